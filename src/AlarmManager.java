@@ -1,6 +1,5 @@
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.Properties;
 
@@ -72,71 +71,84 @@ public class AlarmManager {
 		  }
 	
 	public static boolean getAlarmStatus(String vmHostName, Properties prop) throws Exception{
+		// Answered from the streamed VM events while the monitor is in sync
+		VMEventMonitor vmEventMonitor = AvailabilityManager.vmEventMonitor;
+		if (vmEventMonitor != null && vmEventMonitor.isSynced()) {
+			boolean graceful = vmEventMonitor.wasGracefulShutdown(vmHostName);
+			if (graceful)
+				System.out.println("Event: User has switched off the VM");
+			return graceful;
+		}
+		
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		com.vmware.vim25.mo.AlarmManager alMgr = si.getAlarmManager();
-		VirtualMachine virtualmachine;
-		boolean alarmStatus = false;
+			com.vmware.vim25.mo.AlarmManager alMgr = si.getAlarmManager();
+			VirtualMachine virtualmachine;
+			boolean alarmStatus = false;
 		
-		try {
-			virtualmachine = (VirtualMachine) new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmHostName);
-//			AlarmState[] aState = alMgr.getAlarmState(virtualmachine);
-			AlarmState[] aState = virtualmachine.getTriggeredAlarmState();
+			try {
+				virtualmachine = (VirtualMachine) new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmHostName);
+	//			AlarmState[] aState = alMgr.getAlarmState(virtualmachine);
+				AlarmState[] aState = virtualmachine.getTriggeredAlarmState();
 
-			if (aState!=null) {
-				for (AlarmState alarmState : aState) {
-					System.out.println(alarmState.entity.val);
-					if( alarmState.overallStatus.name().equals("yellow")){
-						System.out.println("Alarm: User has switched off the VM");
-						// Return true if graceful shutdown
-						alarmStatus=true;
-					 }	 
-					}
-			}
-			}
+				if (aState!=null) {
+					for (AlarmState alarmState : aState) {
+						System.out.println(alarmState.entity.val);
+						if( alarmState.overallStatus.name().equals("yellow")){
+							System.out.println("Alarm: User has switched off the VM");
+							// Return true if graceful shutdown
+							alarmStatus=true;
+						 }	 
+						}
+				}
+				}
 		
-		catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			catch (Exception e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			return alarmStatus;	
+		} finally {
+			SessionPoolManager.release(si);
 		}
-		return alarmStatus;	
 	}
 	
 	// Create an alarm
 	public void createAlarm(String vmHostName, Properties prop) throws Exception{
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		VirtualMachine vm = (VirtualMachine) new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmHostName);
+			VirtualMachine vm = (VirtualMachine) new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmHostName);
 
-		com.vmware.vim25.mo.AlarmManager alarmMgr = si.getAlarmManager();
-		AlarmSpec spec = new AlarmSpec();
+			com.vmware.vim25.mo.AlarmManager alarmMgr = si.getAlarmManager();
+			AlarmSpec spec = new AlarmSpec();
 		
-		// Event alarm expression
-		EventAlarmExpression expression = createEventAlarmExpression();
-		AlarmAction methodAction = createAlarmTriggerAction(createPowerOnAction());
-		GroupAlarmAction gaa = new GroupAlarmAction();
+			// Event alarm expression
+			EventAlarmExpression expression = createEventAlarmExpression();
+			AlarmAction methodAction = createAlarmTriggerAction(createPowerOnAction());
+			GroupAlarmAction gaa = new GroupAlarmAction();
 
-		gaa.setAction(new AlarmAction[]{ methodAction});
-//		spec.setAction(gaa);
-		spec.setExpression(expression);
-		spec.setName("VmPowerOffEventAlarm-" + vmHostName);
-		spec.setDescription("Monitor VM power off by user");
-		spec.setEnabled(true);    
+			gaa.setAction(new AlarmAction[]{ methodAction});
+	//		spec.setAction(gaa);
+			spec.setExpression(expression);
+			spec.setName("VmPowerOffEventAlarm-" + vmHostName);
+			spec.setDescription("Monitor VM power off by user");
+			spec.setEnabled(true);    
 
-		AlarmSetting as = new AlarmSetting();
-		as.setReportingFrequency(0); //as often as possible
-		as.setToleranceRange(0);
+			AlarmSetting as = new AlarmSetting();
+			as.setReportingFrequency(0); //as often as possible
+			as.setToleranceRange(0);
 
-		spec.setSetting(as);
-		alarmMgr.createAlarm(vm, spec);
+			spec.setSetting(as);
+			alarmMgr.createAlarm(vm, spec);
 		
-		// Closing connection
-		si.getServerConnection().logout();
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 }
@@ -1,74 +1,129 @@
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ResourcePool;
 import com.vmware.vim25.mo.ServiceInstance;
-import com.vmware.vim25.mo.VirtualMachine;
 
 
 public class AvailabilityManager {
-	// Distributed Static HashMap
-	static HashMap<String,String> ipListMap;
-	static HashMap<String,String> ipListMapvHost;
-	static HashMap<String,String> ipListProvisionMap;
+	// IP, placement, provision state and last checks of every VM, read by the health checks without locks
+	static final VMRegistry vmRegistry = new VMRegistry();
 	
-	// Get list of IP
-	public HashMap<String, String> getIPList(Properties prop) throws RemoteException, MalformedURLException {
-		// Declaring Hash Map for Storing IP Address of VMs
-		HashMap<String,String> ipMap = new HashMap<String,String>();
+	// Event driven inventory model and the scheduler running the health checks
+	static InventoryWatcher inventoryWatcher;
+	static PlacementIndex placementIndex;
+	static HealthCheckScheduler healthCheckScheduler;
+	
+	// Suspicion level of every VM and vHost, from probes and vHost quick stats
+	static FailureDetector failureDetector;
+	
+	// Power off, vHost and HA events of every VM, read from an event history collector
+	static VMEventMonitor vmEventMonitor;
+	
+	// Recent CPU and memory samples of every VM and vHost
+	static PerfCollector perfCollector;
+	
+	// Standby vHosts kept in maintenance mode, ready to take over
+	static WarmSpareManager warmSpareManager;
+	
+	// Recovery steps on disk, resumed after a restart
+	static RecoveryJournal recoveryJournal;
+	
+	// Snapshot schedulers for the VMs and for the vHosts in the admin vCenter
+	static SnapshotScheduler snapshotScheduler;
+	static SnapshotScheduler vHostSnapshotScheduler;
+	
+	// Scheduled tasks in vCenter taking the snapshots instead, with SnapshotMode=server
+	static ScheduledSnapshotManager scheduledSnapshots;
+	static ScheduledSnapshotManager vHostScheduledSnapshots;
+	
+	// Forward VM and vHost state changes to the health managers
+	static class HealthEventForwarder implements InventoryWatcher.Listener {
+		public void vmChanged(InventoryWatcher.VMState previous, InventoryWatcher.VMState current) {
+			if (previous == null || current.name == null)
+				return;
+			if (previous.powerState != current.powerState
+					|| !String.valueOf(previous.hostMor).equals(String.valueOf(current.hostMor))) {
+				healthCheckScheduler.checkNow(current.name);
+			}
+		}
 		
-		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		public void vmRemoved(InventoryWatcher.VMState previous) {
+			if (previous.name != null)
+				healthCheckScheduler.cancel(previous.name);
+		}
+		
+		public void hostChanged(InventoryWatcher.HostState previous, InventoryWatcher.HostState current) {
+			if (previous == null || previous.connectionState == current.connectionState)
+				return;
+			System.out.println("vHost " + current.name + " is now " + current.connectionState);
+			for (String vmName : placementIndex.getVMsOnHost(current.mor))
+				healthCheckScheduler.checkNow(vmName);
+		}
 		
-		System.out.println("\n============ Virtual Machines ============");
-		ManagedEntity[] vms = new InventoryNavigator(rootFolder).searchManagedEntities(
-				new String[][] { {"VirtualMachine", "name" }, }, true);
-		for(int i=0; i<vms.length; i++)
-		{
-			System.out.println("vm["+i+"]=" + vms[i].getName());
-			VirtualMachine vmm = (VirtualMachine) vms[i];
-			ipMap.put(vms[i].getName(), vmm.getSummary().getGuest().getIpAddress());
-			System.out.println("IP Address=" + vmm.getSummary().getGuest().getIpAddress() + "\n");
+		public void hostRemoved(InventoryWatcher.HostState previous) {
+			// Picked up by the next inventory cycle
 		}
+	}
+	
+	// Get list of IP
+	public HashMap<String, String> getIPList(Properties prop) throws Exception {
+		// Service Instance
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			// Name and IP of every VM in one paged property retrieval
+			InventorySnapshot snapshot = InventorySnapshot.retrieve(si, si.getRootFolder(), true,
+					ConfigService.getInstance().current().getInt("InventoryPageSize", 500));
 		
-		si.getServerConnection().logout();
+			System.out.println("\n============ Virtual Machines ============");
+			HashMap<String,String> ipMap = snapshot.getIPMap();
+			int i = 0;
+			for (Map.Entry<String,String> vm : ipMap.entrySet())
+			{
+				System.out.println("vm["+(i++)+"]=" + vm.getKey());
+				System.out.println("IP Address=" + vm.getValue() + "\n");
+			}
 		
-		return ipMap;
+			return ipMap;
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 	
-	public HashMap<String, String> getResourcePoolVMList(Properties prop) throws RemoteException, MalformedURLException {
+	public HashMap<String, String> getResourcePoolVMList(Properties prop) throws Exception {
 		// Declaring Hash Map for Storing IP Address of VMs
 		HashMap<String,String> ipMap = new HashMap<String,String>();
 		
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenterAdmin")), prop.getProperty("vCenterAdminUsername"), 
-				prop.getProperty("vCenterAdminPassword"), Boolean.parseBoolean(prop.getProperty("vCenterAdminIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER_ADMIN);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		System.out.println("\n============ Virtual Machines ============");
-		ResourcePool rps = (ResourcePool)new InventoryNavigator(rootFolder).searchManagedEntity("ResourcePool", "Team01_vHOSTS");  
-        VirtualMachine[] vms = rps.getVMs();
+			System.out.println("\n============ Virtual Machines ============");
+			ResourcePool rps = (ResourcePool)new InventoryNavigator(rootFolder).searchManagedEntity("ResourcePool", "Team01_vHOSTS");  
+			InventorySnapshot snapshot = InventorySnapshot.retrieve(si, rps, false,
+					ConfigService.getInstance().current().getInt("InventoryPageSize", 500));
         
-		for(int i=0; i<vms.length; i++)
-		{
-			System.out.println("vm["+i+"]=" + vms[i].getName());
-			VirtualMachine vmm = (VirtualMachine) vms[i];
-			ipMap.put(vms[i].getName(), vms[i].getName());
-		}
+			int i = 0;
+			for (InventorySnapshot.Row vm : snapshot.getRows())
+			{
+				System.out.println("vm["+(i++)+"]=" + vm.name);
+				ipMap.put(vm.name, vm.name);
+			}
 		
-		si.getServerConnection().logout();
 		
-		return ipMap;
+			return ipMap;
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 
 	public static void main(String[] args) throws RemoteException, MalformedURLException, Exception {
@@ -76,26 +131,76 @@ public class AvailabilityManager {
 		// Create an Instance of AvailabilityManager
 		AvailabilityManager availabilityManager = new AvailabilityManager();
 		
-		// Initializing classes
-		PropertyManager getPropertyValue= new PropertyManager();
-		Thread d = null;
-		Thread s = null;
-		
-		ipListProvisionMap = new HashMap<String,String>();
-		
 		Properties prop = null;
 		while(true) {
-			// Get properties
-			prop = getPropertyValue.getProps();
+			// Get the current configuration snapshot
+			ConfigService.Config config = ConfigService.getInstance().current();
+			prop = config.getProperties();
+			
+			// Stage timings and vCenter counters on the local metrics endpoint
+			RecoveryMetrics.start(prop);
 			
-			// Get IP List
-			ipListMap = new HashMap<String,String>();
-			ipListMap = availabilityManager.getIPList(prop);
+			// Finish or roll back the recoveries a previous run left half done, before any new health check
+			if (recoveryJournal == null) {
+				recoveryJournal = RecoveryJournal.getInstance(prop);
+				recoveryJournal.resume(prop);
+			}
 			
-			ipListMapvHost = new HashMap<String,String>();
-			ipListMapvHost = availabilityManager.getResourcePoolVMList(prop);
+			// Start watching VM and vHost state with a single property collector
+			if (inventoryWatcher == null) {
+				inventoryWatcher = new InventoryWatcher(prop);
+				placementIndex = new PlacementIndex();
+				inventoryWatcher.addListener(placementIndex);
+				inventoryWatcher.addListener(vmRegistry);
+				failureDetector = new FailureDetector(prop);
+				inventoryWatcher.addListener(failureDetector);
+				inventoryWatcher.addListener(new HealthEventForwarder());
+				inventoryWatcher.start();
+				vmEventMonitor = new VMEventMonitor(prop);
+				vmEventMonitor.start();
+				perfCollector = new PerfCollector(prop);
+				perfCollector.start();
+				warmSpareManager = new WarmSpareManager(prop);
+				warmSpareManager.start();
+			}
+			
+			// Bounded pool of workers running the per-VM health checks
+			if (healthCheckScheduler == null) {
+				healthCheckScheduler = new HealthCheckScheduler(config.getInt("HealthCheckThreads", 4),
+						config.getInt("HealthCheckQueueSize", 1000), config.getMonitorInterval());
+			}
+			
+			// Snapshots taken by vCenter itself, the DR process only reconciles the tasks and watches their results
+			boolean serverSnapshots = "server".equals(config.getString("SnapshotMode", "client"));
+			if (serverSnapshots && scheduledSnapshots == null) {
+				scheduledSnapshots = new ScheduledSnapshotManager(SessionPoolManager.VCENTER);
+				scheduledSnapshots.start();
+				vHostScheduledSnapshots = new ScheduledSnapshotManager(SessionPoolManager.VCENTER_ADMIN);
+				vHostScheduledSnapshots.start();
+			}
+			
+			// Snapshots run in parallel under per vHost and per datastore limits
+			if (!serverSnapshots && snapshotScheduler == null) {
+				snapshotScheduler = new SnapshotScheduler(SessionPoolManager.VCENTER);
+				snapshotScheduler.start();
+				vHostSnapshotScheduler = new SnapshotScheduler(SessionPoolManager.VCENTER_ADMIN);
+				vHostSnapshotScheduler.start();
+			}
+			
+			// Get IP List, from the watcher once it has synchronized
+			Map<String,String> ipListMap;
+			if (inventoryWatcher.awaitInitialSync(config.getMonitorInterval()))
+				ipListMap = inventoryWatcher.getIPMap();
+			else
+				ipListMap = availabilityManager.getIPList(prop);
+			VMRegistry.Diff diff = vmRegistry.apply(ipListMap, inventoryWatcher);
+			if (!diff.isEmpty())
+				System.out.println("VMs added: " + diff.added + ", changed: " + diff.changed + ", removed: " + diff.removed);
+			
+			Map<String,String> ipListMapvHost = availabilityManager.getResourcePoolVMList(prop);
 			
 			 // Iterate over IP List, Ignore VMs that have Null IP
+			 List<String> snapshotvHosts = new ArrayList<String>();
 			 Iterator it2 = ipListMapvHost.entrySet().iterator();
 				    while (it2.hasNext()) {
 				        Map.Entry ip2 = (Map.Entry)it2.next();
@@ -105,43 +210,41 @@ public class AvailabilityManager {
 				        if (!String.valueOf(ip2.getValue()).equals("null")) {
 							hostName = ip2.getKey().toString();
 				        	
-				        	// Start Snapshot Manager of each VM
-//				        	new SnapShotManagerVHost(hostName).start();
+				        	// Snapshot each vHost
+				        	snapshotvHosts.add(hostName);
 						}
 				         
 //				       it.remove(); // avoids a ConcurrentModificationException
 					}
+			 if (serverSnapshots)
+				 vHostScheduledSnapshots.sync(ipListMapvHost.keySet());
+			 else
+				 vHostSnapshotScheduler.sync(snapshotvHosts);
 			
-			// Iterate over IP List, Ignore VMs that have Null IP
-			Iterator it = ipListMap.entrySet().iterator();
-			    while (it.hasNext()) {
-			        Map.Entry ip = (Map.Entry)it.next();
-			        System.out.println(ip.getKey() + " = " + ip.getValue());
-			        
-			        String hostName;
-			        if (!String.valueOf(ip.getValue()).equals("null")) {
-						hostName = ip.getKey().toString();
-						
-						if(!ipListProvisionMap.containsKey(hostName))
-							ipListProvisionMap.put(hostName,"NP");
-								        	
-						// Check if already provisioned or not
-						if(ipListProvisionMap.get(hostName).equals("NP")) {
-							// Start Snapshot Manager of each VM
-//				        	s = new SnapShotManager(hostName);
-//				        	s.start();
-//							
-							// Start Health Manager of each VM
-				        	d = new HealthManager(hostName);
-				        	d.start();	
-				        	ipListProvisionMap.put(hostName,"P");
-						}
-		        	
-					}
-//			       it.remove(); // avoids a ConcurrentModificationException
+			// Iterate over the registry, Ignore VMs that never had an IP
+			List<String> inventory = new ArrayList<String>();
+			List<String> monitored = new ArrayList<String>();
+			for (VMRegistry.Record vm : vmRegistry.getRecords()) {
+				System.out.println(vm.name + " = " + vm.ipAddress);
+				inventory.add(vm.name);
+				if (vm.hasIP()) {
+					monitored.add(vm.name);
+					
+					// Schedule Health Manager of each VM, once until it disappears
+					if (vmRegistry.markProvisioned(vm.name))
+						healthCheckScheduler.schedule(vm.name);
 				}
+			}
+			
+			// Stop checking VMs that left the inventory, a crashed VM loses its IP but keeps its check so it gets recovered
+			healthCheckScheduler.sync(inventory);
+			// vCenter keeps taking the snapshots of a VM without an IP, its task only goes with the VM
+			if (serverSnapshots)
+				scheduledSnapshots.sync(inventory);
+			else
+				snapshotScheduler.sync(monitored);
 				
-			Thread.sleep(Integer.parseInt(prop.getProperty("MonitorIntervalMain")));
+			Thread.sleep(config.getMonitorIntervalMain());
 		}
 		}
 		    
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+
+public class BenchmarkRunner {
+	// One operation of a benchmark, its result is consumed so the JIT cannot drop the work
+	public interface Benchmark {
+		Object run() throws Exception;
+	}
+
+	// Average time and allocation per operation over the measured iterations
+	public static class Result {
+		public final String name;
+		public final long ops;
+		public final double nanosPerOp;
+		public final double error;
+		public final double bytesPerOp;
+		public final long gcCount;
+		public final long gcMillis;
+		public final double allocMBPerSec;
+
+		Result(String name, long ops, double nanosPerOp, double error, double bytesPerOp, long gcCount, long gcMillis,
+				double allocMBPerSec) {
+			this.name = name;
+			this.ops = ops;
+			this.nanosPerOp = nanosPerOp;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+			this.allocMBPerSec = allocMBPerSec;
+		}
+	}
+
+	// Results land here, a volatile write the JIT has to keep
+	private static volatile int sink;
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationNanos;
+	private final Pattern filter;
+	private final File resultFile;
+	private final Properties baseline = new Properties();
+	private final double regressionThreshold;
+	private final List<Result> results = new ArrayList<Result>();
+	private final PrintStream out = System.out;
+	private final com.sun.management.ThreadMXBean threads;
+
+	// Results of a suite go to <suite>.properties, compared with the file of the same name in the baseline directory
+	public BenchmarkRunner(Properties prop, String suite) throws IOException {
+		this.warmupIterations = Integer.parseInt(prop.getProperty("BenchmarkWarmupIterations", "5"));
+		this.iterations = Integer.parseInt(prop.getProperty("BenchmarkIterations", "10"));
+		this.iterationNanos = Long.parseLong(prop.getProperty("BenchmarkIterationTime", "1000")) * 1000000L;
+		this.filter = Pattern.compile(prop.getProperty("BenchmarkFilter", ".*"));
+		this.resultFile = new File(prop.getProperty("BenchmarkResultDir", "."), suite + ".properties");
+		this.regressionThreshold = Double.parseDouble(prop.getProperty("BenchmarkRegressionThreshold", "10"));
+
+		String baselineDir = prop.getProperty("BenchmarkBaselineDir", "");
+		File baselineFile = new File(baselineDir, suite + ".properties");
+		if (!baselineDir.isEmpty() && baselineFile.isFile()) {
+			InputStream in = new FileInputStream(baselineFile);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		// Allocation is only measured where the JVM counts it per thread
+		com.sun.management.ThreadMXBean bean = null;
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (bean.isThreadAllocatedMemorySupported())
+				bean.setThreadAllocatedMemoryEnabled(true);
+			else
+				bean = null;
+		}
+		this.threads = bean;
+	}
+
+	public boolean isSelected(String name) {
+		return filter.matcher(name).find();
+	}
+
+	// Function to warm up and measure one benchmark, System.out is muted while it runs
+	public Result run(String name, Benchmark benchmark) throws Exception {
+		if (!isSelected(name))
+			return null;
+		out.print(String.format("%-40s", name));
+		out.flush();
+
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		Result result;
+		try {
+			for (int i = 0; i < warmupIterations; i++)
+				iteration(benchmark);
+
+			long ops = 0;
+			double[] nanosPerOp = new double[iterations];
+			long gcCount = gcCount();
+			long gcMillis = gcMillis();
+			long allocated = allocated();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				long[] iteration = iteration(benchmark);
+				ops += iteration[0];
+				nanosPerOp[i] = (double) iteration[1] / iteration[0];
+			}
+			long elapsed = System.nanoTime() - start;
+			allocated = allocated() - allocated;
+
+			double mean = 0;
+			for (double n : nanosPerOp)
+				mean += n;
+			mean /= iterations;
+			double variance = 0;
+			for (double n : nanosPerOp)
+				variance += (n - mean) * (n - mean);
+			double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+			result = new Result(name, ops, mean, error, threads != null ? (double) allocated / ops : -1,
+					gcCount() - gcCount, gcMillis() - gcMillis,
+					threads != null ? allocated / 1048576.0 / (elapsed / 1e9) : -1);
+		} finally {
+			System.setOut(out);
+		}
+		results.add(result);
+		out.println(format(result));
+		return result;
+	}
+
+	// Runs operations for one iteration time, returns the operation count and the nanoseconds they took
+	private long[] iteration(Benchmark benchmark) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			Object result = benchmark.run();
+			sink ^= System.identityHashCode(result);
+			ops++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		return new long[] { ops, elapsed };
+	}
+
+	private long allocated() {
+		return threads != null ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	private String format(Result result) {
+		String line = String.format("%14.1f +- %10.1f ns/op %14.1f B/op %9.1f MB/s %5d gc %6d ms", result.nanosPerOp,
+				result.error, result.bytesPerOp, result.allocMBPerSec, result.gcCount, result.gcMillis);
+		String previous = baseline.getProperty(result.name);
+		if (previous != null) {
+			double change = (result.nanosPerOp / Double.parseDouble(previous) - 1) * 100;
+			line += String.format(" %+7.1f%%", change) + (change > regressionThreshold ? " REGRESSION" : "");
+		}
+		return line;
+	}
+
+	// Function to save the results as a baseline for the next run, true when nothing got slower than the threshold
+	public boolean finish() throws IOException {
+		Properties saved = new Properties();
+		boolean regressed = false;
+		for (Result result : results) {
+			saved.setProperty(result.name, String.format(Locale.ROOT, "%.1f", result.nanosPerOp));
+			String previous = baseline.getProperty(result.name);
+			if (previous != null && (result.nanosPerOp / Double.parseDouble(previous) - 1) * 100 > regressionThreshold)
+				regressed = true;
+		}
+		OutputStream file = new FileOutputStream(resultFile);
+		try {
+			saved.store(file, "ns/op of each benchmark");
+		} finally {
+			file.close();
+		}
+		out.println("Results saved to " + resultFile.getPath() + (regressed ? ", regressions found" : ""));
+		return !regressed;
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.sblim.wbem.cimxml.CimXmlSerializer;
+import org.sblim.wbem.xml.CIMResponse;
+import org.sblim.wbem.xml.CIMXMLBuilderImpl;
+import org.sblim.wbem.xml.CIMXMLParserImpl;
+import org.sblim.wbem.xml.XMLDefaultHandlerImpl;
+import org.sblim.wbem.xml.parser.XMLPullParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+
+public class CIMXMLBenchmarks {
+	// Output stream that only counts, so serializing measures the builder and not the disk
+	static class CountingStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	// Function to benchmark the CIM-XML parsers and the builder, on recorded Resp*.xml files when a directory is given
+	public static void main(String[] args) throws Exception {
+		Properties prop = ConfigService.getInstance().current().getProperties();
+		BenchmarkRunner runner = new BenchmarkRunner(prop, "CIMXMLBenchmarks");
+
+		Map<String,String> payloads = new LinkedHashMap<String,String>();
+		if (args.length > 0) {
+			for (File file : XMLDefaultHandlerImpl.listAllXml(new File(args[0])))
+				payloads.put(file.getName(), read(file));
+		} else {
+			for (String size : prop.getProperty("BenchmarkCIMInstances", "1000,10000,100000").split(","))
+				payloads.put(size.trim(), enumerateInstancesResponse(Integer.parseInt(size.trim())));
+		}
+
+		final DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		final SAXParser saxParser = SAXParserFactory.newInstance().newSAXParser();
+
+		for (Map.Entry<String,String> payload : payloads.entrySet()) {
+			final String xml = payload.getValue();
+			String label = payload.getKey();
+			System.out.println(label + ": " + xml.length() / 1024 + " KB");
+
+			runner.run("cimxml.dom." + label, () -> {
+				Document doc = documentBuilder.parse(new InputSource(new StringReader(xml)));
+				return CIMXMLParserImpl.parseCIM(doc.getDocumentElement());
+			});
+			runner.run("cimxml.sax." + label, () -> {
+				XMLDefaultHandlerImpl handler = new XMLDefaultHandlerImpl(false);
+				saxParser.parse(new InputSource(new StringReader(xml)), handler);
+				return handler.getObjects();
+			});
+			runner.run("cimxml.pull." + label, () -> {
+				XMLDefaultHandlerImpl handler = new XMLDefaultHandlerImpl(false);
+				handler.parse(new XMLPullParser(new StringReader(xml)));
+				return handler.getObjects();
+			});
+
+			// The builder writes back what the pull parser read
+			XMLDefaultHandlerImpl handler = new XMLDefaultHandlerImpl(false);
+			handler.parse(new XMLPullParser(new StringReader(xml)));
+			Object response = handler.getObjects().isEmpty() ? null : handler.getObjects().elementAt(0);
+			if (!(response instanceof CIMResponse) || !(((CIMResponse) response).getFirstReturnValue() instanceof Vector))
+				continue;
+			final Vector<?> instances = ((CIMResponse) response).getFirstReturnValue();
+			System.out.println(label + ": " + instances.size() + " instances");
+			runner.run("cimxml.build." + label, () -> {
+				Document doc = documentBuilder.newDocument();
+				Element cim = CIMXMLBuilderImpl.createCIM(doc);
+				Element message = CIMXMLBuilderImpl.createMESSAGE(doc, cim, "1", "1.0");
+				Element simpleRsp = CIMXMLBuilderImpl.createSIMPLERSP(doc, message);
+				Element methodResponse = CIMXMLBuilderImpl.createIMETHODRESPONSE(doc, simpleRsp, "EnumerateInstances");
+				CIMXMLBuilderImpl.createIRETURNVALUE_ENUMERATE_INSTANCE(doc, methodResponse, instances);
+				CountingStream out = new CountingStream();
+				CimXmlSerializer.serialize(out, doc, false);
+				return out;
+			});
+		}
+
+		System.exit(runner.finish() ? 0 : 1);
+	}
+
+	private static String read(File file) throws Exception {
+		StringBuilder xml = new StringBuilder((int) file.length());
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				xml.append(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return xml.toString();
+	}
+
+	// Function to synthesize an EnumerateInstances response shaped like an ESXi CIM_LogicalDisk enumeration
+	static String enumerateInstancesResponse(int count) {
+		StringBuilder xml = new StringBuilder(count * 1100 + 512);
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+		xml.append("<CIM CIMVERSION=\"2.0\" DTDVERSION=\"2.0\"><MESSAGE ID=\"1\" PROTOCOLVERSION=\"1.0\"><SIMPLERSP>");
+		xml.append("<IMETHODRESPONSE NAME=\"EnumerateInstances\"><IRETURNVALUE>");
+		for (int i = 0; i < count; i++) {
+			String deviceId = "vmhba1:C0:T" + (i / 256) + ":L" + (i % 256);
+			xml.append("<VALUE.NAMEDINSTANCE><INSTANCENAME CLASSNAME=\"CIM_LogicalDisk\">");
+			keyBinding(xml, "CreationClassName", "CIM_LogicalDisk");
+			keyBinding(xml, "DeviceID", deviceId);
+			keyBinding(xml, "SystemCreationClassName", "OMC_UnitaryComputerSystem");
+			keyBinding(xml, "SystemName", "esx" + (i % 100) + ".example.com");
+			xml.append("</INSTANCENAME><INSTANCE CLASSNAME=\"CIM_LogicalDisk\">");
+			property(xml, "CreationClassName", "string", "CIM_LogicalDisk");
+			property(xml, "DeviceID", "string", deviceId);
+			property(xml, "SystemCreationClassName", "string", "OMC_UnitaryComputerSystem");
+			property(xml, "SystemName", "string", "esx" + (i % 100) + ".example.com");
+			property(xml, "ElementName", "string", "Local disk " + i);
+			property(xml, "BlockSize", "uint64", "512");
+			property(xml, "NumberOfBlocks", "uint64", String.valueOf(585937500L + i));
+			property(xml, "IsBasedOnUnderlyingRedundancy", "boolean", i % 2 == 0 ? "true" : "false");
+			property(xml, "InstallDate", "datetime", "20140101120000.000000+000");
+			xml.append("<PROPERTY.ARRAY NAME=\"OperationalStatus\" TYPE=\"uint16\"><VALUE.ARRAY>");
+			xml.append("<VALUE>2</VALUE><VALUE>").append(i % 5 == 0 ? 3 : 2).append("</VALUE>");
+			xml.append("</VALUE.ARRAY></PROPERTY.ARRAY></INSTANCE></VALUE.NAMEDINSTANCE>");
+		}
+		xml.append("</IRETURNVALUE></IMETHODRESPONSE></SIMPLERSP></MESSAGE></CIM>");
+		return xml.toString();
+	}
+
+	private static void keyBinding(StringBuilder xml, String name, String value) {
+		xml.append("<KEYBINDING NAME=\"").append(name).append("\"><KEYVALUE VALUETYPE=\"string\">").append(value)
+				.append("</KEYVALUE></KEYBINDING>");
+	}
+
+	private static void property(StringBuilder xml, String name, String type, String value) {
+		xml.append("<PROPERTY NAME=\"").append(name).append("\" TYPE=\"").append(type).append("\"><VALUE>")
+				.append(value).append("</VALUE></PROPERTY>");
+	}
+}
@@ -0,0 +1,304 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+
+public class ConfigService {
+	private static final String PROP_FILE_NAME = "config.properties";
+
+	private static ConfigService instance;
+
+	// Properties that can no longer be changed once loaded, every mutator and view of the table is closed
+	private static class FrozenProperties extends Properties {
+		private static final long serialVersionUID = 1L;
+		private boolean frozen = false;
+
+		private void checkWritable() {
+			if (frozen)
+				throw new UnsupportedOperationException("Configuration is read-only");
+		}
+
+		public synchronized Object put(Object key, Object value) {
+			checkWritable();
+			return super.put(key, value);
+		}
+
+		public synchronized void putAll(Map<?,?> t) {
+			checkWritable();
+			super.putAll(t);
+		}
+
+		public synchronized Object putIfAbsent(Object key, Object value) {
+			checkWritable();
+			return super.putIfAbsent(key, value);
+		}
+
+		public synchronized Object remove(Object key) {
+			checkWritable();
+			return super.remove(key);
+		}
+
+		public synchronized boolean remove(Object key, Object value) {
+			checkWritable();
+			return super.remove(key, value);
+		}
+
+		public synchronized Object replace(Object key, Object value) {
+			checkWritable();
+			return super.replace(key, value);
+		}
+
+		public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+			checkWritable();
+			return super.replace(key, oldValue, newValue);
+		}
+
+		public synchronized void replaceAll(BiFunction<? super Object,? super Object,?> function) {
+			checkWritable();
+			super.replaceAll(function);
+		}
+
+		public synchronized Object compute(Object key, BiFunction<? super Object,? super Object,?> remappingFunction) {
+			checkWritable();
+			return super.compute(key, remappingFunction);
+		}
+
+		public synchronized Object computeIfAbsent(Object key, Function<? super Object,?> mappingFunction) {
+			checkWritable();
+			return super.computeIfAbsent(key, mappingFunction);
+		}
+
+		public synchronized Object computeIfPresent(Object key, BiFunction<? super Object,? super Object,?> remappingFunction) {
+			checkWritable();
+			return super.computeIfPresent(key, remappingFunction);
+		}
+
+		public synchronized Object merge(Object key, Object value, BiFunction<? super Object,? super Object,?> remappingFunction) {
+			checkWritable();
+			return super.merge(key, value, remappingFunction);
+		}
+
+		public synchronized void clear() {
+			checkWritable();
+			super.clear();
+		}
+
+		public synchronized void load(InputStream inStream) throws IOException {
+			checkWritable();
+			super.load(inStream);
+		}
+
+		public synchronized void load(Reader reader) throws IOException {
+			checkWritable();
+			super.load(reader);
+		}
+
+		public synchronized void loadFromXML(InputStream in) throws IOException {
+			checkWritable();
+			super.loadFromXML(in);
+		}
+
+		// The views would otherwise let entries be removed through them or their iterators
+		public Set<Object> keySet() {
+			return Collections.unmodifiableSet(super.keySet());
+		}
+
+		public Set<Map.Entry<Object,Object>> entrySet() {
+			return Collections.unmodifiableSet(super.entrySet());
+		}
+
+		public Collection<Object> values() {
+			return Collections.unmodifiableCollection(super.values());
+		}
+	}
+
+	// Immutable snapshot of config.properties, numbers are parsed once per snapshot
+	public static class Config {
+		private final FrozenProperties prop;
+		// Keyed by property name and default, a missing property yields the default of each caller
+		private final Map<String,Integer> parsedInts = new ConcurrentHashMap<String,Integer>();
+		private final Map<String,Long> parsedLongs = new ConcurrentHashMap<String,Long>();
+
+		Config(FrozenProperties prop) {
+			prop.frozen = true;
+			this.prop = prop;
+		}
+
+		// Read-only view for the code taking Properties
+		public Properties getProperties() {
+			return prop;
+		}
+
+		public String getString(String key) {
+			return prop.getProperty(key);
+		}
+
+		public String getString(String key, String defaultValue) {
+			return prop.getProperty(key, defaultValue);
+		}
+
+		public int getInt(String key, int defaultValue) {
+			String cacheKey = key + "/" + defaultValue;
+			Integer value = parsedInts.get(cacheKey);
+			if (value == null) {
+				String text = prop.getProperty(key);
+				value = text == null ? defaultValue : Integer.parseInt(text.trim());
+				parsedInts.put(cacheKey, value);
+			}
+			return value;
+		}
+
+		public long getLong(String key, long defaultValue) {
+			String cacheKey = key + "/" + defaultValue;
+			Long value = parsedLongs.get(cacheKey);
+			if (value == null) {
+				String text = prop.getProperty(key);
+				value = text == null ? defaultValue : Long.parseLong(text.trim());
+				parsedLongs.put(cacheKey, value);
+			}
+			return value;
+		}
+
+		public boolean getBoolean(String key, boolean defaultValue) {
+			String text = prop.getProperty(key);
+			return text == null ? defaultValue : Boolean.parseBoolean(text.trim());
+		}
+
+		// Intervals in milliseconds
+		public int getMonitorInterval() {
+			return getInt("MonitorInterval", 60000);
+		}
+
+		public int getMonitorIntervalMain() {
+			return getInt("MonitorIntervalMain", 60000);
+		}
+
+		public long getSnapshotInterval() {
+			return getLong("SnapshotInterval", 600000);
+		}
+
+		public int getPingWaitTime() {
+			return getInt("PingWaitTime", 3000);
+		}
+
+		// Endpoint ("vCenter" or "vCenterAdmin") URL and credentials
+		public String getEndpointURL(String endpoint) {
+			return prop.getProperty(endpoint);
+		}
+
+		public String getUsername(String endpoint) {
+			return prop.getProperty(endpoint + "Username");
+		}
+
+		public String getPassword(String endpoint) {
+			return prop.getProperty(endpoint + "Password");
+		}
+
+		public boolean isIgnoreCert(String endpoint) {
+			return getBoolean(endpoint + "IgnoreCert", false);
+		}
+	}
+
+	private final AtomicReference<Config> current = new AtomicReference<Config>();
+	private Thread watcher;
+
+	ConfigService() throws IOException {
+		current.set(load());
+	}
+
+	// Function to get the shared configuration, loaded on first use and reloaded when the file changes
+	public static synchronized ConfigService getInstance() throws IOException {
+		if (instance == null) {
+			instance = new ConfigService();
+			instance.watch();
+		}
+		return instance;
+	}
+
+	// Function to get the latest snapshot, callers keep it for one pass of their loop
+	public Config current() {
+		return current.get();
+	}
+
+	private Config load() throws IOException {
+		FrozenProperties prop = new FrozenProperties();
+		InputStream inputStream = getClass().getClassLoader().getResourceAsStream(PROP_FILE_NAME);
+		if (inputStream == null) {
+			throw new FileNotFoundException("property file '" + PROP_FILE_NAME + "' not found in the classpath");
+		}
+		try {
+			prop.load(inputStream);
+		} finally {
+			inputStream.close();
+		}
+		return new Config(prop);
+	}
+
+	// Watch the file when it sits in a directory on the classpath, not inside a jar
+	private void watch() {
+		URL url = getClass().getClassLoader().getResource(PROP_FILE_NAME);
+		if (url == null || !"file".equals(url.getProtocol()))
+			return;
+
+		final Path file;
+		try {
+			file = Paths.get(url.toURI());
+		} catch (Exception e) {
+			return;
+		}
+		watcher = new Thread("ConfigService") {
+			public void run() {
+				try {
+					WatchService watchService = FileSystems.getDefault().newWatchService();
+					file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					while (true) {
+						WatchKey key = watchService.take();
+						boolean changed = false;
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (file.getFileName().equals(event.context()))
+								changed = true;
+						}
+						key.reset();
+						if (changed)
+							reload();
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				} catch (IOException e) {
+					System.out.println("Configuration changes will not be picked up: " + e);
+				}
+			}
+		};
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	// A file that cannot be read keeps the previous snapshot until the next change
+	private void reload() {
+		try {
+			current.set(load());
+			System.out.println("Configuration reloaded from " + PROP_FILE_NAME);
+		} catch (Exception e) {
+			System.out.println("Configuration could not be reloaded, keeping the previous one: " + e);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+
+public class DRBenchmarks {
+	// Prober answering from a set of down targets, no sockets
+	static class StubProber extends ReachabilityProber {
+		final Set<String> down = new HashSet<String>();
+
+		StubProber() {
+			super(new int[0], 0, 0, false, 0);
+		}
+
+		@Override
+		public Map<String,Result> probeAll(Collection<String> targets) {
+			Map<String,Result> results = new LinkedHashMap<String,Result>();
+			for (String target : targets) {
+				boolean reachable = !down.contains(target);
+				results.put(target, new Result(target, reachable, reachable ? 500 : -1, 1));
+			}
+			return results;
+		}
+	}
+
+	// Event monitor in sync with a fixed set of gracefully shut down VMs, no vCenter
+	static class StubEventMonitor extends VMEventMonitor {
+		final Set<String> graceful = new HashSet<String>();
+
+		StubEventMonitor(Properties prop) {
+			super(prop);
+		}
+
+		@Override
+		public boolean isSynced() {
+			return true;
+		}
+
+		@Override
+		public boolean wasGracefulShutdown(String vmName) {
+			return graceful.contains(vmName);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties prop = ConfigService.getInstance().current().getProperties();
+		BenchmarkRunner runner = new BenchmarkRunner(prop, "DRBenchmarks");
+		int vmCount = Integer.parseInt(prop.getProperty("BenchmarkVMs", "10000"));
+
+		Map<String,String> ipMap = ipMap(vmCount, 0);
+		final String[] vmNames = ipMap.keySet().toArray(new String[vmCount]);
+		AvailabilityManager.vmRegistry.apply(ipMap, null);
+
+		StubProber prober = new StubProber();
+		ReachabilityProber.setInstance(prober);
+		StubEventMonitor eventMonitor = new StubEventMonitor(prop);
+		AvailabilityManager.vmEventMonitor = eventMonitor;
+
+		// Detectors that keep an unreachable VM suspected, or give it up at once
+		Properties patient = new Properties();
+		patient.putAll(prop);
+		patient.setProperty("FailureDetectorThreshold", "1000000");
+		final FailureDetector suspecting = new FailureDetector(patient);
+		Properties eager = new Properties();
+		eager.putAll(prop);
+		eager.setProperty("FailureDetectorThreshold", "0");
+		final FailureDetector failing = new FailureDetector(eager);
+		long now = System.currentTimeMillis();
+		long interval = Long.parseLong(prop.getProperty("MonitorInterval", "5000"));
+		for (int i = 10; i > 0; i--) {
+			for (String vmName : vmNames) {
+				suspecting.heartbeat(vmName, now - i * interval);
+				failing.heartbeat(vmName, now - i * interval);
+			}
+		}
+
+		// Decision path of one health check: reachable, suspected, and down but shut down by the user
+		final HealthManager reachable = new HealthManager(vmNames[0]);
+		final HealthManager suspected = new HealthManager(vmNames[1]);
+		prober.down.add(ipMap.get(vmNames[1]));
+		final HealthManager graceful = new HealthManager(vmNames[2]);
+		prober.down.add(ipMap.get(vmNames[2]));
+		eventMonitor.graceful.add(vmNames[2]);
+
+		AvailabilityManager.failureDetector = suspecting;
+		runner.run("health.reachable", () -> {
+			reachable.run();
+			return reachable;
+		});
+		runner.run("health.suspected", () -> {
+			suspected.run();
+			return suspected;
+		});
+		AvailabilityManager.failureDetector = failing;
+		runner.run("health.gracefulShutdown", () -> {
+			graceful.run();
+			return graceful;
+		});
+		AvailabilityManager.failureDetector = suspecting;
+
+		final int[] next = new int[1];
+		runner.run("failureDetector.phi", () -> suspecting.phi(vmNames[next[0]++ % vmNames.length]));
+		runner.run("failureDetector.heartbeat", () -> {
+			suspecting.heartbeat(vmNames[next[0]++ % vmNames.length]);
+			return suspecting;
+		});
+
+		// Inventory diffing of a full refresh, unchanged and with one VM in a hundred moved
+		final VMRegistry registry = new VMRegistry();
+		final Map<String,String> unchanged = ipMap;
+		final Map<String,String> churned = ipMap(vmCount, 100);
+		registry.apply(unchanged, null);
+		runner.run("registry.apply.unchanged." + vmCount, () -> registry.apply(unchanged, null));
+		final boolean[] flip = new boolean[1];
+		runner.run("registry.apply.churn." + vmCount, () -> {
+			flip[0] = !flip[0];
+			return registry.apply(flip[0] ? churned : unchanged, null);
+		});
+
+		// Config access of every health check, and a cold load of config.properties
+		final PropertyManager propertyManager = new PropertyManager();
+		final ConfigService.Config config = ConfigService.getInstance().current();
+		runner.run("config.getProps", () -> propertyManager.getProps());
+		runner.run("config.getInt", () -> config.getInt("MonitorInterval", 0));
+		runner.run("config.load", () -> new ConfigService().current());
+
+		System.exit(runner.finish() ? 0 : 1);
+	}
+
+	// VM names and IPs, every churn-th VM with a different address
+	private static Map<String,String> ipMap(int vmCount, int churn) {
+		Map<String,String> ipMap = new LinkedHashMap<String,String>();
+		for (int i = 0; i < vmCount; i++) {
+			int octet = churn > 0 && i % churn == 0 ? 200 : 10;
+			ipMap.put(String.format("BENCH-VM%05d", i),
+					octet + "." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255));
+		}
+		return ipMap;
+	}
+}
@@ -0,0 +1,247 @@
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+
+public class DRLoadTest {
+	// VMs a scenario expects back, and what was done to them
+	private static class Victim {
+		final String name;
+		final String fault;
+		final long injected;
+		long detected;
+		long recovered;
+		boolean dropped;
+
+		Victim(String name, String fault, long injected) {
+			this.name = name;
+			this.fault = fault;
+			this.injected = injected;
+		}
+	}
+
+	// Prober answering from the simulator, an unreachable target costs the time real probes would wait
+	static class SimulatedProber extends ReachabilityProber {
+		private final VSphereSimulator simulator;
+		private final long timeout;
+		private final int retries;
+
+		SimulatedProber(VSphereSimulator simulator, Properties prop) {
+			super(new int[0], Long.parseLong(prop.getProperty("ProbeTimeout", "2000")),
+					Integer.parseInt(prop.getProperty("ProbeRetries", "2")), false, 0);
+			this.simulator = simulator;
+			this.timeout = Long.parseLong(prop.getProperty("ProbeTimeout", "2000"));
+			this.retries = Integer.parseInt(prop.getProperty("ProbeRetries", "2"));
+		}
+
+		@Override
+		public Map<String,Result> probeAll(Collection<String> targets) {
+			Map<String,Result> results = new LinkedHashMap<String,Result>();
+			boolean waited = false;
+			for (String target : targets) {
+				boolean reachable = simulator.isReachable(target);
+				if (!reachable && !waited) {
+					try {
+						Thread.sleep(timeout * (retries + 1));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					waited = true;
+				}
+				results.put(target, new Result(target, reachable, reachable ? 500 : -1, reachable ? 1 : retries + 1));
+			}
+			return results;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties prop = ConfigService.getInstance().current().getProperties();
+		URL sdk = new URL(prop.getProperty("vCenter"));
+		final VSphereSimulator simulator = new VSphereSimulator(prop, sdk.getPort() > 0 ? sdk.getPort() : 443);
+		simulator.start();
+		ReachabilityProber.setInstance(new SimulatedProber(simulator, prop));
+
+		// The DR process runs unchanged against the simulator
+		Thread manager = new Thread(new Runnable() {
+			public void run() {
+				try {
+					AvailabilityManager.main(new String[0]);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "AvailabilityManager");
+		manager.setDaemon(true);
+		manager.start();
+
+		long timeout = Long.parseLong(prop.getProperty("LoadTestTimeout", "600000"));
+		long start = System.currentTimeMillis();
+		List<String> vmNames = simulator.getVMNames();
+		System.out.println("Waiting for the health checks of " + vmNames.size() + " VMs");
+		while (!allChecked(vmNames)) {
+			if (System.currentTimeMillis() - start > timeout) {
+				System.out.println("The health checks did not reach every VM within " + timeout + " ms");
+				finish(simulator, Collections.<Victim>emptyList(), 1);
+			}
+			Thread.sleep(500);
+		}
+		System.out.println("Every VM checked after " + (System.currentTimeMillis() - start) + " ms");
+		Thread.sleep(Long.parseLong(prop.getProperty("LoadTestWarmup", "10000")));
+
+		List<Victim> victims = inject(simulator, prop.getProperty("LoadTestScenario", "hostDown:1,vmCrash:10,vmPowerOff:5"),
+				new Random(Long.parseLong(prop.getProperty("SimulatorSeed", "1"))));
+
+		// Poll until every victim that should come back runs again, under its name or as its recovered clone
+		long injected = System.currentTimeMillis();
+		int pending = expected(victims);
+		while (pending > 0 && System.currentTimeMillis() - injected < timeout) {
+			Thread.sleep(100);
+			long now = System.currentTimeMillis();
+			Set<String> present = new HashSet<String>(simulator.getVMNames());
+			pending = 0;
+			for (Victim victim : victims) {
+				if ("vmPowerOff".equals(victim.fault))
+					continue;
+				if (victim.detected == 0) {
+					long action = Math.max(simulator.getFirstAction(victim.name), simulator.getFirstAction(victim.name + "_recovered"));
+					if (action > 0)
+						victim.detected = action;
+				}
+				if (victim.recovered == 0
+						&& (simulator.isRunning(victim.name) || simulator.isRunning(victim.name + "_recovered")))
+					victim.recovered = now;
+				// A crashed VM has no IP in vCenter, its health check must keep running to recover it
+				if (victim.recovered == 0 && !victim.dropped && present.contains(victim.name)
+						&& !AvailabilityManager.healthCheckScheduler.isScheduled(victim.name)) {
+					victim.dropped = true;
+					System.out.println("Health check of " + victim.name + " stopped before it was recovered");
+				}
+				if (victim.recovered == 0)
+					pending++;
+			}
+		}
+		finish(simulator, victims, pending > 0 ? 1 : 0);
+	}
+
+	private static boolean allChecked(List<String> vmNames) {
+		for (String vmName : vmNames) {
+			VMRegistry.Record record = AvailabilityManager.vmRegistry.get(vmName);
+			if (record == null || record.lastCheck == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Function to inject a scenario such as hostDown:2,vmCrash:20,vmPowerOff:5
+	private static List<Victim> inject(VSphereSimulator simulator, String scenario, Random random) {
+		simulator.clearActions();
+		List<Victim> victims = new ArrayList<Victim>();
+		List<String> hosts = new ArrayList<String>(simulator.getHostNames());
+		List<String> vmNames = new ArrayList<String>(simulator.getVMNames());
+		Collections.shuffle(hosts, random);
+		Collections.shuffle(vmNames, random);
+
+		for (String step : scenario.split(",")) {
+			String[] parts = step.trim().split(":");
+			int count = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+			for (int i = 0; i < count; i++) {
+				if ("hostDown".equals(parts[0])) {
+					// Spares and empty vHosts make no recovery to measure
+					String host = null;
+					List<String> onHost = Collections.emptyList();
+					while (onHost.isEmpty() && !hosts.isEmpty()) {
+						host = hosts.remove(0);
+						onHost = simulator.getVMsOnHost(host);
+					}
+					if (onHost.isEmpty())
+						continue;
+					vmNames.removeAll(onHost);
+					long now = System.currentTimeMillis();
+					simulator.failHost(host);
+					for (String vmName : onHost)
+						victims.add(new Victim(vmName, "hostDown", now));
+					System.out.println("Injected: vHost " + host + " down with " + onHost.size() + " VMs");
+				} else if ("vmCrash".equals(parts[0]) && !vmNames.isEmpty()) {
+					String vmName = vmNames.remove(0);
+					victims.add(new Victim(vmName, "vmCrash", System.currentTimeMillis()));
+					simulator.crashVM(vmName);
+					System.out.println("Injected: " + vmName + " crashed");
+				} else if ("vmPowerOff".equals(parts[0]) && !vmNames.isEmpty()) {
+					String vmName = vmNames.remove(0);
+					victims.add(new Victim(vmName, "vmPowerOff", System.currentTimeMillis()));
+					simulator.powerOffVM(vmName);
+					System.out.println("Injected: " + vmName + " powered off");
+				} else if ("slowTasks".equals(parts[0])) {
+					simulator.slowTasks(count);
+					break;
+				}
+			}
+		}
+		return victims;
+	}
+
+	private static int expected(List<Victim> victims) {
+		int expected = 0;
+		for (Victim victim : victims) {
+			if (!"vmPowerOff".equals(victim.fault))
+				expected++;
+		}
+		return expected;
+	}
+
+	// Function to print detection and recovery times and the vCenter calls they took, then exit
+	private static void finish(VSphereSimulator simulator, List<Victim> victims, int status) {
+		Histogram detection = new Histogram();
+		Histogram recovery = new Histogram();
+		long first = Long.MAX_VALUE;
+		long last = 0;
+		int falseRecoveries = 0;
+		int missed = 0;
+		int dropped = 0;
+		for (Victim victim : victims) {
+			if ("vmPowerOff".equals(victim.fault)) {
+				// A graceful shutdown must be left alone
+				if (simulator.getFirstAction(victim.name) > 0)
+					falseRecoveries++;
+				continue;
+			}
+			if (victim.dropped)
+				dropped++;
+			if (victim.detected > 0)
+				detection.record(victim.detected - victim.injected);
+			if (victim.recovered > 0) {
+				recovery.record(victim.recovered - victim.injected);
+				first = Math.min(first, victim.injected);
+				last = Math.max(last, victim.recovered);
+			} else {
+				missed++;
+				System.out.println("Not recovered: " + victim.name + " (" + victim.fault + ")");
+			}
+		}
+
+		System.out.println("\n============ DR Load Test ============");
+		System.out.println("VMs: " + simulator.getVMNames().size() + ", vHosts: " + simulator.getHostNames().size());
+		System.out.println("Victims: " + victims.size() + ", recovered: " + recovery.getCount() + ", missed: " + missed
+				+ ", false recoveries: " + falseRecoveries + ", dropped health checks: " + dropped);
+		System.out.println("Detection ms p50=" + detection.getPercentile(50) + " p99=" + detection.getPercentile(99)
+				+ " max=" + detection.getMax());
+		System.out.println("Recovery ms p50=" + recovery.getPercentile(50) + " p99=" + recovery.getPercentile(99)
+				+ " max=" + recovery.getMax());
+		if (recovery.getCount() > 0 && last > first)
+			System.out.println(String.format("Throughput: %.2f VMs recovered per second",
+					recovery.getCount() * 1000.0 / (last - first)));
+		System.out.println("\n============ vCenter calls ============");
+		System.out.print(simulator.report());
+		System.out.println("\n============ Recovery stages ============");
+		System.out.print(RecoveryMetrics.report());
+		System.exit(status == 0 && falseRecoveries == 0 && dropped == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,184 @@
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class FailureDetector implements InventoryWatcher.Listener {
+	// Key prefix of vHost targets, VMs are keyed by their name
+	private static final String HOST_PREFIX = "vHost:";
+
+	// Inter-arrival times of the latest heartbeats of one target
+	private static class Window {
+		final long[] intervals;
+		int count = 0;
+		int next = 0;
+		long sum = 0;
+		long sumOfSquares = 0;
+		long last;
+
+		Window(int size, long now) {
+			intervals = new long[size];
+			last = now;
+		}
+
+		void add(long interval) {
+			if (count == intervals.length) {
+				long dropped = intervals[next];
+				sum -= dropped;
+				sumOfSquares -= dropped * dropped;
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			sumOfSquares += interval * interval;
+		}
+
+		double mean() {
+			return (double) sum / count;
+		}
+
+		double stdDev() {
+			double mean = mean();
+			return Math.sqrt(Math.max(0, (double) sumOfSquares / count - mean * mean));
+		}
+	}
+
+	private final ConcurrentHashMap<String,Window> windows = new ConcurrentHashMap<String,Window>();
+	private final int windowSize;
+	private final double threshold;
+	private final long firstInterval;
+	private final long minStdDev;
+	private final long acceptablePause;
+	private final long minProbeInterval;
+
+	public FailureDetector(Properties prop) {
+		this.windowSize = Integer.parseInt(prop.getProperty("FailureDetectorWindow", "100"));
+		this.threshold = Double.parseDouble(prop.getProperty("FailureDetectorThreshold", "8"));
+		this.firstInterval = Long.parseLong(prop.getProperty("MonitorInterval", "10000"));
+		this.minStdDev = Long.parseLong(prop.getProperty("FailureDetectorMinStdDev", "1000"));
+		this.acceptablePause = Long.parseLong(prop.getProperty("FailureDetectorAcceptablePause", "0"));
+		this.minProbeInterval = Long.parseLong(prop.getProperty("FailureDetectorMinInterval", "1000"));
+	}
+
+	public static String hostTarget(String hostName) {
+		return HOST_PREFIX + hostName;
+	}
+
+	// Function to record that a target answered, from a probe or a property change
+	public void heartbeat(String target) {
+		heartbeat(target, System.currentTimeMillis());
+	}
+
+	public void heartbeat(String target, long now) {
+		Window window = windows.get(target);
+		if (window == null) {
+			bootstrap(target, now);
+			return;
+		}
+		synchronized (window) {
+			if (now > window.last) {
+				window.add(now - window.last);
+				window.last = now;
+			}
+		}
+	}
+
+	// Function to get the suspicion level of a target, a target never heard of is watched from now on
+	public double phi(String target) {
+		return phi(target, System.currentTimeMillis());
+	}
+
+	public double phi(String target, long now) {
+		Window window = windows.get(target);
+		if (window == null) {
+			bootstrap(target, now);
+			return 0;
+		}
+		long elapsed;
+		double mean;
+		double stdDev;
+		synchronized (window) {
+			elapsed = now - window.last;
+			mean = window.mean() + acceptablePause;
+			stdDev = Math.max(minStdDev, window.stdDev());
+		}
+		return phi(elapsed, mean, stdDev);
+	}
+
+	// Logistic approximation of the normal distribution, -log10 of the chance the heartbeat is only late
+	static double phi(long elapsed, double mean, double stdDev) {
+		double y = (elapsed - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean)
+			return -Math.log10(e / (1.0 + e));
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	// Suspicion level of a vHost, 0 until its quick stats have been refreshed a few times
+	public double hostPhi(String hostName) {
+		Window window = windows.get(hostTarget(hostName));
+		if (window == null)
+			return 0;
+		synchronized (window) {
+			if (window.count < 4)
+				return 0;
+		}
+		return phi(hostTarget(hostName));
+	}
+
+	// Function to tell whether a target is failed with the configured confidence
+	public boolean isFailed(String target) {
+		return phi(target) >= threshold;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	// Function to shorten the next probe of a target as its suspicion rises
+	public long nextDelay(String target, long delay) {
+		Window window = windows.get(target);
+		if (window == null)
+			return delay;
+		double suspicion = phi(target);
+		if (suspicion < 0.1)
+			return delay;
+		return Math.max(minProbeInterval, (long) (delay / (1 + suspicion)));
+	}
+
+	public void remove(String target) {
+		windows.remove(target);
+	}
+
+	// Two samples around the expected interval until real ones come in
+	private Window bootstrap(String target, long now) {
+		Window window = new Window(windowSize, now);
+		window.add(firstInterval - firstInterval / 4);
+		window.add(firstInterval + firstInterval / 4);
+		Window existing = windows.putIfAbsent(target, window);
+		return existing != null ? existing : window;
+	}
+
+	// A vHost is alive while vCenter keeps refreshing its quick stats
+	public void hostChanged(InventoryWatcher.HostState previous, InventoryWatcher.HostState current) {
+		if (current.name == null || !current.isConnected())
+			return;
+		if (previous == null || previous.uptime != current.uptime || !previous.isConnected())
+			heartbeat(hostTarget(current.name));
+	}
+
+	public void hostRemoved(InventoryWatcher.HostState previous) {
+		if (previous.name != null)
+			remove(hostTarget(previous.name));
+	}
+
+	public void vmChanged(InventoryWatcher.VMState previous, InventoryWatcher.VMState current) {
+		// VMs are only heard from through their probes
+	}
+
+	public void vmRemoved(InventoryWatcher.VMState previous) {
+		if (previous.name != null)
+			remove(previous.name);
+	}
+}
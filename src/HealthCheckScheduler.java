@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class HealthCheckScheduler {
+	// Each cadence is spread by up to this fraction of MonitorInterval
+	private static final double JITTER = 0.2;
+
+	// Scheduled health check of one VM
+	private class CheckEntry implements Runnable {
+		final HealthManager check;
+		final AtomicBoolean running = new AtomicBoolean(false);
+		volatile boolean cancelled = false;
+		volatile ScheduledFuture<?> next;
+
+		CheckEntry(HealthManager check) {
+			this.check = check;
+		}
+
+		// Runs on a worker, the next tick is only scheduled once this one is done
+		public void run() {
+			try {
+				if (!cancelled)
+					check.run();
+			} finally {
+				running.set(false);
+				scheduleNext(this, nextDelay(this));
+			}
+		}
+	}
+
+	private final Map<String,CheckEntry> entries = new ConcurrentHashMap<String,CheckEntry>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private final ThreadPoolExecutor workers;
+	private final Random random = new Random();
+	private final long interval;
+
+	public HealthCheckScheduler(int threads, int queueSize, long interval) {
+		this.interval = interval;
+		this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	// Function to start checking a VM, first check at a random point of the interval
+	public boolean schedule(String vmName) {
+		if (entries.containsKey(vmName))
+			return false;
+		CheckEntry entry = new CheckEntry(new HealthManager(vmName));
+		if (entries.putIfAbsent(vmName, entry) != null)
+			return false;
+		scheduleNext(entry, (long) (random.nextDouble() * interval));
+		return true;
+	}
+
+	// Function to stop checking a VM that has left the inventory
+	public void cancel(String vmName) {
+		CheckEntry entry = entries.remove(vmName);
+		if (entry != null) {
+			entry.cancelled = true;
+			ScheduledFuture<?> next = entry.next;
+			if (next != null)
+				next.cancel(false);
+		}
+	}
+
+	// Function to stop checking the VMs no longer in the inventory, checks are started by schedule
+	public void sync(Collection<String> vmNames) {
+		Set<String> current = new HashSet<String>(vmNames);
+		List<String> gone = new ArrayList<String>();
+		for (String vmName : entries.keySet()) {
+			if (!current.contains(vmName))
+				gone.add(vmName);
+		}
+		for (String vmName : gone) {
+			System.out.println("VM " + vmName + " has left the inventory, stopping health checks");
+			cancel(vmName);
+		}
+	}
+
+	// Function to run a VM check right away unless one is already running
+	public void checkNow(String vmName) {
+		CheckEntry entry = entries.get(vmName);
+		if (entry != null)
+			submit(entry);
+	}
+
+	public boolean isScheduled(String vmName) {
+		return entries.containsKey(vmName);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	private void scheduleNext(final CheckEntry entry, long delay) {
+		if (entry.cancelled || timer.isShutdown())
+			return;
+		try {
+			entry.next = timer.schedule(new Runnable() {
+				public void run() {
+					submit(entry);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Scheduler is shutting down
+		}
+	}
+
+	// Never run the same VM twice at once, skip the tick when the workers are saturated
+	private void submit(CheckEntry entry) {
+		if (entry.cancelled || !entry.running.compareAndSet(false, true))
+			return;
+		ScheduledFuture<?> next = entry.next;
+		if (next != null)
+			next.cancel(false);
+		try {
+			workers.execute(entry);
+		} catch (RejectedExecutionException e) {
+			entry.running.set(false);
+			System.out.println("Health check queue is full, deferring VM " + entry.check.getName());
+			scheduleNext(entry, nextDelay(entry));
+		}
+	}
+
+	// Suspected VMs are probed sooner, the more suspected the sooner
+	private long nextDelay(CheckEntry entry) {
+		double jitter = (random.nextDouble() * 2 - 1) * JITTER;
+		long delay = (long) (interval * (1 + jitter));
+		FailureDetector failureDetector = AvailabilityManager.failureDetector;
+		return failureDetector == null ? delay : failureDetector.nextDelay(entry.check.getName(), delay);
+	}
+}
@@ -1,9 +1,11 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import com.vmware.vim25.ComputeResourceConfigSpec;
 import com.vmware.vim25.HostConnectSpec;
@@ -12,9 +14,12 @@ import com.vmware.vim25.HostOvercommittedEvent;
 import com.vmware.vim25.HostResignatureRescanResult;
 import com.vmware.vim25.HostRuntimeInfo;
 import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.VirtualMachineCloneSpec;
 import com.vmware.vim25.VirtualMachineConfigInfo;
 import com.vmware.vim25.VirtualMachineMovePriority;
+import com.vmware.vim25.VirtualMachineRelocateDiskMoveOptions;
 import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineRelocateSpec;
 import com.vmware.vim25.VirtualMachineRuntimeInfo;
@@ -31,9 +36,61 @@ import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
 
 
-public class HealthManager extends Thread {
+public class HealthManager implements Runnable {
+	// Name of the VM this health check is for
+	private final String vmHostName;
+	
+	// Alarm is created on the first check only
+	private boolean alarmSet = false;
+	
+	// Recovery of this VM that is still running, if any
+	private volatile CompletableFuture<Boolean> recovery;
+	
+	// Time of the first failed ping since the VM was last reachable, 0 while it is reachable
+	private long firstFailure = 0;
+	
 	public HealthManager(String vmHostName) {
-		super(vmHostName);
+		this.vmHostName = vmHostName;
+	}
+	
+	public String getName() {
+		return vmHostName;
+	}
+	
+	private static ManagedObjectReference mor(String type, String val) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.setVal(val);
+		return mor;
+	}
+	
+	// vHost name of a VM for the per vHost metrics, null when not known
+	private static String hostOf(String vmHostName) {
+		PlacementIndex placementIndex = AvailabilityManager.placementIndex;
+		return placementIndex != null ? placementIndex.getHostName(vmHostName) : null;
+	}
+	
+	// Function to tell whether a VM is recovered as a linked clone, from the LinkedCloneVMs pattern
+	public static boolean isLinkedClone(String vmHostName, Properties prop) {
+		String linkedVMs = prop.getProperty("LinkedCloneVMs", "");
+		return !linkedVMs.isEmpty() && vmHostName.matches(linkedVMs);
+	}
+	
+	// Linked clones only get a child disk on top of the snapshot, nothing is copied before the VM boots
+	private static VirtualMachineRelocateSpec applyCloneMode(VirtualMachineRelocateSpec relocateSpec, String vmHostName, Properties prop) {
+		if (isLinkedClone(vmHostName, prop))
+			relocateSpec.setDiskMoveType(VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+		return relocateSpec;
+	}
+	
+	// Function to wait for a vSphere task through the shared task tracker instead of polling it
+	private String waitForTask(Task task, String endpoint, Properties prop) throws Exception {
+		return TaskTracker.getInstance(prop, endpoint).waitFor(task);
+	}
+	
+	// Function to get the VM IP from the registry, kept current by the inventory watcher
+	private String getVMIP() {
+		return AvailabilityManager.vmRegistry.getIP(getName());
 	}
 	
 	// Function to perform the Ping Test operation on VM
@@ -43,166 +100,164 @@ public class HealthManager extends Thread {
 		inet = InetAddress.getByName(ip);
 		System.out.println("Sending Ping Request to " + ip);
 		
-		if(inet.isReachable(Integer.parseInt(prop.getProperty("PingWaitTime")))) {
+		if(inet.isReachable(Integer.parseInt(prop.getProperty("PingWaitTime", "3000")))) {
 			return true;
 		} else {
 			return false;
 		}	
 	}
 	
-	// Function to perform the Ping Test operation on vHost
-	public boolean pingTestvHost (String ip) throws IOException {
-		// Variables for ping test
-		String resultLine;
-		String pingResult = " ";
-		String pingCommand;
-	    	
+	// Function to perform the Ping Test operation on vHost, TCP connect probes with ICMP fallback
+	public boolean pingTestvHost (String ip, Properties prop) {
 		System.out.println("Sending Ping Request to " + ip);
-		pingCommand = "ping " + ip;
-		
-		Runtime rt = Runtime.getRuntime();
-		Process pr = rt.exec(pingCommand);
-
-		BufferedReader inputBuffer = new BufferedReader(new InputStreamReader(
-				pr.getInputStream()));
-		while ((resultLine = inputBuffer.readLine()) != null) 
-		{
-			 System.out.println(resultLine);
-			pingResult += resultLine;
-		}
-		inputBuffer.close();
-		
-		if (ip != null) 
-		{
-			if (pingResult.contains("100% loss")) 
-			{
-				return false;
-			} else 
-			{
-				return true;
-			}
-		}else {
-			return false;
-		}
+		return ReachabilityProber.getInstance(prop).probe(ip);
+	}
+	
+	// Function to ping all vHosts in one batch instead of one after another
+	public Map<String,ReachabilityProber.Result> pingTestvHosts (ManagedEntity[] hosts, Properties prop) {
+		List<String> names = new ArrayList<String>();
+		for (ManagedEntity host : hosts)
+			names.add(host.getName());
+		return ReachabilityProber.getInstance(prop).probeAll(names);
 	}
 	
 	// Function to gather the statistics of the VM
 	public void gatherStats(String vmHostName, Properties prop) throws Exception {
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		// Search for the VM with that particular vm HostName
-		VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-		        rootFolder).searchManagedEntity(
-		            "VirtualMachine", vmHostName);
+			// Search for the VM with that particular vm HostName
+			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+			        rootFolder).searchManagedEntity(
+			            "VirtualMachine", vmHostName);
 		
-		// Configuration for VM Statistics
-		VirtualMachineConfigInfo vmcapabilityonfiginfo = virtualmachine.getConfig();
-        VirtualMachineRuntimeInfo vmri = virtualmachine.getRuntime();
+			// Configuration for VM Statistics
+			VirtualMachineConfigInfo vmcapabilityonfiginfo = virtualmachine.getConfig();
+	        VirtualMachineRuntimeInfo vmri = virtualmachine.getRuntime();
 
-		System.out.println("-----------------VM STATS START----------------------");
-		System.out.println("VM NAME: " + virtualmachine.getName());
-		System.out.println("The VM Guest is: " +virtualmachine.getGuest().getIpAddress());
-		System.out.println("The Virtual Machine's Parent is: " +virtualmachine.getParent());
-		System.out.println("");
-		
-		System.out.println("GuestOS is: " + vmcapabilityonfiginfo.getGuestFullName());
-		System.out.println("GuestID is: " + vmcapabilityonfiginfo.getGuestId());
-		System.out.println("GuestName is: " + vmcapabilityonfiginfo.getName());
-		System.out.println("");
-		
-        // Memory, CPU & I/O Statistics
-		System.out.println("Connection State of VM: " + vmri.getConnectionState());
-        System.out.println("Power State of VM: " + vmri.getPowerState());
-        System.out.println("Boot Time: " + vmri.getBootTime());
-        System.out.println("Max CPU Usage: " + vmri.getMaxCpuUsage());
-        System.out.println("Max Memory Usage: " + vmri.getMaxMemoryUsage());
-        System.out.println("Guest CPU Usage: " + virtualmachine.getSummary().getQuickStats().getOverallCpuUsage());   
-        System.out.println("Guest Memory Usage: " + virtualmachine.getSummary().getQuickStats().getGuestMemoryUsage()); 
-		System.out.println("-----------------VM STATS END----------------------");
-		
-		// Close Connection
-		si.getServerConnection().logout();
+			System.out.println("-----------------VM STATS START----------------------");
+			System.out.println("VM NAME: " + virtualmachine.getName());
+			System.out.println("The VM Guest is: " +virtualmachine.getGuest().getIpAddress());
+			System.out.println("The Virtual Machine's Parent is: " +virtualmachine.getParent());
+			System.out.println("");
+		
+			System.out.println("GuestOS is: " + vmcapabilityonfiginfo.getGuestFullName());
+			System.out.println("GuestID is: " + vmcapabilityonfiginfo.getGuestId());
+			System.out.println("GuestName is: " + vmcapabilityonfiginfo.getName());
+			System.out.println("");
+		
+	        // Memory, CPU & I/O Statistics
+			System.out.println("Connection State of VM: " + vmri.getConnectionState());
+	        System.out.println("Power State of VM: " + vmri.getPowerState());
+	        System.out.println("Boot Time: " + vmri.getBootTime());
+	        System.out.println("Max CPU Usage: " + vmri.getMaxCpuUsage());
+	        System.out.println("Max Memory Usage: " + vmri.getMaxMemoryUsage());
+	        System.out.println("Guest CPU Usage: " + virtualmachine.getSummary().getQuickStats().getOverallCpuUsage());   
+	        System.out.println("Guest Memory Usage: " + virtualmachine.getSummary().getQuickStats().getGuestMemoryUsage()); 
+			System.out.println("-----------------VM STATS END----------------------");
+		
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 	
 	// Function to provision VM using screenshot
 	public boolean provisionVM(String vmHostName, Properties prop) throws Exception {
 		// Variables for status
 		boolean provisioned = false;
+		RecoveryJournal journal = RecoveryJournal.getInstance(prop);
 		
-		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
-				
-		// Search for the VM with that particular vm HostName
-		VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-				 rootFolder).searchManagedEntity(
-				        "VirtualMachine", vmHostName);
-		
-		 VirtualMachineCloneSpec cloneSpec = 
-			      new VirtualMachineCloneSpec();
-			    cloneSpec.setLocation(new VirtualMachineRelocateSpec());
-			    cloneSpec.setPowerOn(true);
-			    cloneSpec.setTemplate(false);
-			    cloneSpec.setSnapshot(virtualmachine.getCurrentSnapShot().getMOR());
-
-			    Task task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(), 
-			    		vmHostName + "_recovered", cloneSpec);
-			    System.out.println("Launching the VM recovery task. " +
-			    		"Please wait ...");
-
-			    String status = task.waitForMe();
-			    if(status==Task.SUCCESS)
-			    {
-			      provisioned = true;
-			    }
-			    else
-			    {
-			      System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
-			      provisioned = false;
-			    }
-			    
-		// Close Connection
-		si.getServerConnection().logout();
-		
-		return provisioned;
+		for (int attempt = 1; ; attempt++) {
+			Task task;
+			ManagedObjectReference snapshot;
+			
+			// Service Instance, only held until the clone is started
+			ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			try {
+				Folder rootFolder = si.getRootFolder();
+					
+				// Search for the VM with that particular vm HostName
+				VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+						 rootFolder).searchManagedEntity(
+						        "VirtualMachine", vmHostName);
+				if (virtualmachine == null) {
+					System.out.println("Failure -: VM " + vmHostName + " is no longer in vCenter, nothing to recover it from");
+					return false;
+				}
+			
+				 VirtualMachineCloneSpec cloneSpec = 
+					      new VirtualMachineCloneSpec();
+					    cloneSpec.setLocation(applyCloneMode(new VirtualMachineRelocateSpec(), vmHostName, prop));
+					    cloneSpec.setPowerOn(true);
+					    cloneSpec.setTemplate(false);
+					    snapshot = SnapshotCatalog.getCurrentSnapshot(SessionPoolManager.VCENTER, virtualmachine);
+					    cloneSpec.setSnapshot(snapshot);
+	
+					    // Journaled before the clone starts so a restart never clones twice
+					    journal.record(vmHostName, RecoveryJournal.CLONE_STARTED, null);
+					    task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(), 
+					    		vmHostName + "_recovered", cloneSpec);
+					    journal.recordTask(vmHostName, RecoveryJournal.CLONING, task);
+					    System.out.println("Launching the VM recovery task. " +
+					    		"Please wait ...");
+			} finally {
+				SessionPoolManager.release(si);
+			}
+	
+			long start = System.currentTimeMillis();
+			String status = waitForTask(task,SessionPoolManager.VCENTER,prop);
+			RecoveryMetrics.recordSince(RecoveryMetrics.CLONE, hostOf(vmHostName), start);
+			if(status==Task.SUCCESS)
+			{
+			  journal.record(vmHostName, RecoveryJournal.CLONED, null);
+			  provisioned = true;
+			}
+			else if (attempt == 1 && SnapshotCatalog.reload(prop, SessionPoolManager.VCENTER, vmHostName, snapshot))
+			{
+			  // The tracked snapshot may be gone, tried once more from the tree as vCenter has it
+			  System.out.println("Clone of VM " + vmHostName + " failed, retrying from its snapshot tree in vCenter");
+			  continue;
+			}
+			else
+			{
+			  journal.record(vmHostName, RecoveryJournal.FAILED, null);
+			  System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
+			  provisioned = false;
+			}
+			
+			return provisioned;
+		}
 	}
 	
 	// Return the IP Address/Name of vHost
 	public String findVMvHostMapping(String vmHostName, Properties prop) throws Exception {
-		// Variable to store vHost
-		String vHostIP = null;
-		HostSystem hostsystemobj;
+		// Local lookup in the placement index, kept current from runtime.host changes
+		PlacementIndex placementIndex = AvailabilityManager.placementIndex;
+		if (placementIndex != null) {
+			String vHostIP = placementIndex.getHostName(vmHostName);
+			if (vHostIP != null)
+				return vHostIP;
+		}
 		
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-				prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		// Search for the VM with that particular vHost
-		ManagedEntity[] hosts = new InventoryNavigator(rootFolder).searchManagedEntities(
-				new String[][] { {"HostSystem", "name" }, }, true);
-		for(ManagedEntity managedEntity : hosts)
-		{
-			hostsystemobj = (HostSystem) managedEntity;
-			VirtualMachine[] vmsd =  hostsystemobj.getVms();
-			
-			for (ManagedEntity managedEntityVM : vmsd) {
-				if (managedEntityVM.getName().equals(vmHostName)) {
-					vHostIP = managedEntity.getName();
-					break;
-				}
-			}
+			// Not indexed yet, ask the VM for its vHost directly
+			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+					 rootFolder).searchManagedEntity(
+					        "VirtualMachine", vmHostName);
+			if (virtualmachine == null || virtualmachine.getRuntime().getHost() == null)
+				return null;
 			
+			HostSystem hostsystemobj = new HostSystem(si.getServerConnection(), virtualmachine.getRuntime().getHost());
+			return hostsystemobj.getName();
+		} finally {
+			SessionPoolManager.release(si);
 		}
-		
-		// Close Connection
-		si.getServerConnection().logout();
-		
-		return vHostIP;
 	}
 	
 	// Function to test if vHost is alive or not
@@ -218,33 +273,34 @@ public class HealthManager extends Thread {
 		vHostIP = findVMvHostMapping(vmHostName,prop);
 		
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-						prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		// Get vHost
-		hostsystemobj = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
-				"HostSystem", vHostIP);
+			// Get vHost
+			hostsystemobj = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
+					"HostSystem", vHostIP);
 		
-		// Check 1: Perform ping test on vHost
-		pingResult = pingTestvHost(vHostIP);
+			// Check 1: Perform ping test on vHost
+			pingResult = pingTestvHost(vHostIP,prop);
 		
-		// Check 2: Verify connection state
-		if(hostsystemobj.getRuntime().getConnectionState() == HostSystemConnectionState.disconnected) {
-			connected = false;
-		}else{
-			connected = true;
-		}
+			// Check 2: Verify connection state
+			if(hostsystemobj.getRuntime().getConnectionState() == HostSystemConnectionState.disconnected) {
+				connected = false;
+			}else{
+				connected = true;
+			}
 		
-		if (connected && pingResult)
-			testVHost = true;
-		else 
-			testVHost = false;
+			if (connected && pingResult)
+				testVHost = true;
+			else 
+				testVHost = false;
 		
-		// Close Connection
-		si.getServerConnection().logout();
 			
-		return testVHost;
+			return testVHost;
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 	
 	// Function to test if vHost is connected
@@ -258,310 +314,191 @@ public class HealthManager extends Thread {
 		vHostIP = findVMvHostMapping(vmHostName,prop);
 		
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-						prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-		Folder rootFolder = si.getRootFolder();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
 		
-		// Get vHost
-		hostsystemobj = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
-				"HostSystem", vHostIP);
+			// Get vHost
+			hostsystemobj = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
+					"HostSystem", vHostIP);
 		
-		// Check 2: Verify connection state
-		if(hostsystemobj.getRuntime().getConnectionState() == HostSystemConnectionState.disconnected) {
-			connected = false;
-		}else{
-			connected = true;
-		}
+			// Check 2: Verify connection state
+			if(hostsystemobj.getRuntime().getConnectionState() == HostSystemConnectionState.disconnected) {
+				connected = false;
+			}else{
+				connected = true;
+			}
 		
-		// Close Connection
-		si.getServerConnection().logout();
 			
-		return connected;
+			return connected;
 		
+		} finally {
+			SessionPoolManager.release(si);
+		}
 	}
 	
 	
-	// Function to find another live vHost and provision VM
-	public boolean provisionOnLivevHost(String vmHostName, Properties prop) throws Exception {
-			// Variable to store vHost
-			HostSystem hostsystemobj = null;
-			boolean pingResult = false;
-			boolean provisioned = false;
-			int poolIndex = 0;
-					
-			// Service Instance
-			ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-					prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-			Folder rootFolder = si.getRootFolder();
-			
-			// Get the dead vm configurations
-			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-					 rootFolder).searchManagedEntity(
-					        "VirtualMachine", vmHostName);
-			Datastore[] dataStore = virtualmachine.getDatastores();
-	        ManagedEntity[] rps = new InventoryNavigator(rootFolder).searchManagedEntities(new String[][] {{"ResourcePool", "name" }, }, true);  
-			
-			// Search for another alive vHost
-			ManagedEntity[] hosts = new InventoryNavigator(rootFolder).searchManagedEntities(
-					new String[][] { {"HostSystem", "name" }, }, true);
-			for(ManagedEntity managedEntity : hosts)
-			{
-				hostsystemobj = (HostSystem) managedEntity;
-				// Perform ping test on vHost
-				pingResult = pingTestvHost(hostsystemobj.getName());
-				
-					if (pingResult == true) {
-						break;
-					}
-					poolIndex ++;
-			}
-			
-			if (pingResult == true) {
-				// Recover vm on the alive found vHost
-				VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
-		        relocateSpec.setDatastore(dataStore[0].getMOR());
-		        relocateSpec.setHost(hostsystemobj.getMOR());
-		        relocateSpec.setPool(rps[poolIndex].getMOR());
-		        
-				 VirtualMachineCloneSpec cloneSpec = 
-					      new VirtualMachineCloneSpec();
-					    cloneSpec.setLocation(relocateSpec);
-					    cloneSpec.setPowerOn(true);
-					    cloneSpec.setTemplate(false);
-					    cloneSpec.setSnapshot(virtualmachine.getCurrentSnapShot().getMOR());
-	
-					    Task task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(), 
-					    		vmHostName + "_recovered", cloneSpec);
-					    System.out.println("Launching the VM recovery task. " +
-					    		"Please wait ...");
-	
-					    String status = task.waitForMe();
-					    if(status==Task.SUCCESS)
-					    {
-					      provisioned = true;
-					    }
-					    else
-					    {
-					      System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
-					    }
-					    
-				// Close Connection
-				si.getServerConnection().logout();
-			}
-			
-			return provisioned;
-	}
-	
-	// Function to try to make vHost alive for provisioning
+	// Function to try to make vHost alive for provisioning, a session is only held to start each task and never while waiting for it
 	public boolean provisionvHost(String vmHostName, Properties prop)  {
-		// Variable to store vHost
-		HostSystem hostsystemobj = null;
-		boolean provisionedvHost = false;
 		boolean provisioned = false;
-		String vHostIP;
 		
 		try {
 				// Get vHost IP
-				vHostIP = findVMvHostMapping(vmHostName,prop);
+				String vHostIP = findVMvHostMapping(vmHostName,prop);
+				ManagedObjectReference vHostVM = null;
+				String vHostVMName = null;
 				
-				// Connect to admin
-				ServiceInstance siAdmin = new ServiceInstance(new URL(prop.getProperty("vCenterAdmin")), prop.getProperty("vCenterAdminUsername"), 
-						prop.getProperty("vCenterAdminPassword"), Boolean.parseBoolean(prop.getProperty("vCenterAdminIgnoreCert")));
-				Folder rootFolderAdmin = siAdmin.getRootFolder();
+				for (int attempt = 1; ; attempt++) {
+					Task task;
+					ManagedObjectReference snapshot;
+					
+					// Connect to admin
+					ServiceInstance siAdmin = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER_ADMIN);
+					try {
+						Folder rootFolderAdmin = siAdmin.getRootFolder();
+						
+						ResourcePool rpsAdmin = (ResourcePool)new InventoryNavigator(rootFolderAdmin).searchManagedEntity("ResourcePool", prop.getProperty("vCenterAdminRP"));  
+				        VirtualMachine[] vms = rpsAdmin.getVMs();
+				        VirtualMachine oneVM = null;
+				        
+						for(int i=0; i<vms.length; i++)
+						{
+							if(vms[i].getName().contains(vHostIP.substring(7)))
+							{ oneVM = vms[i]; 
+								  break; }
+						}
+						
+						Datastore[] dataStore = oneVM.getDatastores();
+				        HostSystem hostsystemobj = (HostSystem) new InventoryNavigator(rootFolderAdmin).searchManagedEntity(
+								"HostSystem",  prop.getProperty("vCenterAdminHost"));
+				         
+						// Recover vHost
+				        VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
+				        relocateSpec.setDatastore(dataStore[0].getMOR());
+				        relocateSpec.setHost(hostsystemobj.getMOR());
+				        relocateSpec.setPool(rpsAdmin.getMOR());
+				        
+						VirtualMachineCloneSpec cloneSpec = 
+							      new VirtualMachineCloneSpec();
+							    cloneSpec.setLocation(relocateSpec);
+							    cloneSpec.setPowerOn(true);
+							    cloneSpec.setTemplate(false);
+							    snapshot = SnapshotCatalog.getCurrentSnapshot(SessionPoolManager.VCENTER_ADMIN, oneVM);
+							    cloneSpec.setSnapshot(snapshot);
+			
+							    task = oneVM.cloneVM_Task((Folder) oneVM.getParent(), 
+							    		oneVM.getName() + "_recovered", cloneSpec);
+							    System.out.println("Launching the VM recovery task. " +
+							    		"Please wait ...");
+						vHostVM = oneVM.getMOR();
+						vHostVMName = oneVM.getName();
+					} finally {
+						SessionPoolManager.release(siAdmin);
+					}
+					
+					if (waitForTask(task,SessionPoolManager.VCENTER_ADMIN,prop)==Task.SUCCESS)
+						break;
+					
+					// The tracked snapshot may be gone, tried once more from the tree as vCenter has it
+					if (attempt == 1 && SnapshotCatalog.reload(prop, SessionPoolManager.VCENTER_ADMIN, vHostVMName, snapshot)) {
+						System.out.println("Clone of vHost " + vHostVMName + " failed, retrying from its snapshot tree in vCenter");
+						continue;
+					}
+					System.out.println("Failure -: VM " + vHostVMName + " cannot be recovered");
+					return false;
+				}
 				
-				ResourcePool rpsAdmin = (ResourcePool)new InventoryNavigator(rootFolderAdmin).searchManagedEntity("ResourcePool", prop.getProperty("vCenterAdminRP"));  
-		        VirtualMachine[] vms = rpsAdmin.getVMs();
-		        VirtualMachine oneVM = null;
-		        
-				for(int i=0; i<vms.length; i++)
-				{
-					if(vms[i].getName().contains(vHostIP.substring(7)))
-					{ oneVM = (VirtualMachine)vms[i]; 
-						  break; }
+				// Delete the stale vHost
+				Task destroyTask;
+				ServiceInstance siAdmin = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER_ADMIN);
+				try {
+					VirtualMachine oneVM = new VirtualMachine(siAdmin.getServerConnection(), vHostVM);
+					oneVM.powerOffVM_Task();
+					destroyTask = oneVM.destroy_Task();
+				} finally {
+					SessionPoolManager.release(siAdmin);
 				}
+				if (waitForTask(destroyTask,SessionPoolManager.VCENTER_ADMIN,prop)!=Task.SUCCESS)
+			    	System.out.println("vHost " + vHostVMName + " has been recovered and provisioned. Please delete stale vHost manually");
 				
-				Datastore[] dataStore = oneVM.getDatastores();
-		        new InventoryNavigator(rootFolderAdmin).searchManagedEntities(new String[][] {{"ResourcePool", "name" }, }, true);  
-		        hostsystemobj = (HostSystem) new InventoryNavigator(rootFolderAdmin).searchManagedEntity(
-						"HostSystem",  prop.getProperty("vCenterAdminHost"));
-		         
-				// Recover vHost
-		        VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
-		        relocateSpec.setDatastore(dataStore[0].getMOR());
-		        relocateSpec.setHost(hostsystemobj.getMOR());
-		        relocateSpec.setPool(rpsAdmin.getMOR());
-		        
-				VirtualMachineCloneSpec cloneSpec = 
-					      new VirtualMachineCloneSpec();
-					    cloneSpec.setLocation(relocateSpec);
-					    cloneSpec.setPowerOn(true);
-					    cloneSpec.setTemplate(false);
-					    cloneSpec.setSnapshot(oneVM.getCurrentSnapShot().getMOR());
-	
-					    Task task = oneVM.cloneVM_Task((Folder) oneVM.getParent(), 
-					    		oneVM.getName() + "_recovered", cloneSpec);
-					    System.out.println("Launching the VM recovery task. " +
-					    		"Please wait ...");
-	
-					    String status = task.waitForMe();
-					    if(status==Task.SUCCESS)
-					    {	
-					    	oneVM.powerOffVM_Task();
-					    	Task destroyTask = oneVM.destroy_Task();
-					    	String destroyStatus = destroyTask.waitForMe();
-					        if(destroyStatus==Task.SUCCESS)
-						    {
-					        	// Do nothing
-						    }else {
-						    	System.out.println("vHost " + oneVM.getName() + " has been recovered and provisioned. Please delete stale vHost manually");
-						    }
-					        
-					      provisionedvHost = true;
-					      
-					      // Close the admin connection
-					      siAdmin.getServerConnection().logout();
-					    }
-					    else
-					    {
-					      System.out.println("Failure -: VM " + oneVM.getName() + " cannot be recovered");
-					    }
-					    
-					 if (provisionedvHost == true) {
-						// Service Instance
-						 ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-									prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-						 Folder rootFolder = si.getRootFolder();
-							
-						// Get datacenter configuration
-						Datacenter dataCenter = (Datacenter)new InventoryNavigator(rootFolder).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));  
-							
-						// 	Configuration for Host Specification
-						HostConnectSpec hSpec = new HostConnectSpec();
-							hSpec.setHostName(vHostIP);
-							hSpec.setUserName(prop.getProperty("vHostUsername"));
-							hSpec.setPassword(prop.getProperty("vHostPassword"));
-							hSpec.setForce(true);
-							hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
-						
-						// Get the stale vHost and re-connect it
-						HostSystem hostsystemobj2 = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
-									"HostSystem", vHostIP);
-						
-						Task reconnectTask = hostsystemobj2.reconnectHost_Task(hSpec);
-
-				    	String reconnectStatus = reconnectTask.waitForMe();
-				        if(reconnectStatus==Task.SUCCESS)
-					    {
-				        	provisioned = true;
-					    }else {
-					    	provisioned = false;
-					    }
-					 }
+				Task reconnectTask;
+				ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+				try {
+					// 	Configuration for Host Specification
+					HostConnectSpec hSpec = new HostConnectSpec();
+						hSpec.setHostName(vHostIP);
+						hSpec.setUserName(prop.getProperty("vHostUsername"));
+						hSpec.setPassword(prop.getProperty("vHostPassword"));
+						hSpec.setForce(true);
+						hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
+					
+					// Get the stale vHost and re-connect it
+					HostSystem hostsystemobj2 = (HostSystem) new InventoryNavigator(si.getRootFolder()).searchManagedEntity(
+								"HostSystem", vHostIP);
+					
+					reconnectTask = hostsystemobj2.reconnectHost_Task(hSpec);
+				} finally {
+					SessionPoolManager.release(si);
+				}
+				
+		    	provisioned = waitForTask(reconnectTask,SessionPoolManager.VCENTER,prop)==Task.SUCCESS;
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 				return provisioned;
 	}
 	
-	// Function to find another live vHost and provision VM using Migration
-	public boolean provisionOnLivevHostMigrate(String vmHostName, Properties prop) throws Exception {
-				// Variable to store vHost
-				HostSystem hostsystemobj = null;
-				boolean pingResult = false;
-				boolean provisioned = false;
-						
-				// Service Instance
-				ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-						prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-				Folder rootFolder = si.getRootFolder();
+	// Function to add a new vHost to the datacenter, the session is only held to start the task
+	private boolean addvHost(String hostIP, Properties prop) throws Exception {
+				Task taskAddHost;
 				
-				// Get the dead vm configurations
-				VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-						 rootFolder).searchManagedEntity(
-						        "VirtualMachine", vmHostName);
-				
-				// Search for another alive vHost
-				ManagedEntity[] hosts = new InventoryNavigator(rootFolder).searchManagedEntities(
-						new String[][] { {"HostSystem", "name" }, }, true);
-				for(ManagedEntity managedEntity : hosts)
-				{
-					hostsystemobj = (HostSystem) managedEntity;
-					// Perform ping test on vHost
-					pingResult = pingTestvHost(hostsystemobj.getName());
-					
-						if (pingResult == true) {
-							break;
-						}
-				}
+				// Service Instance
+				ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+				try {
+					// Get datacenter configuration
+					Datacenter dataCenter = (Datacenter)new InventoryNavigator(si.getRootFolder()).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));  
 				
-				if (pingResult == true) {
-					// Recover vm on the alive found vHost
-					ComputeResource cr = (ComputeResource) hostsystemobj.getParent();
-					    
-					Task task = virtualmachine.migrateVM_Task(cr.getResourcePool(), hostsystemobj,
-					        VirtualMachineMovePriority.highPriority, 
-					        VirtualMachinePowerState.poweredOn);
-					 
-					 String status = task.waitForMe();
-					    if(status==Task.SUCCESS)
-					    {
-					      provisioned = true;
-					    }
-					    else
-					    {
-					      System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
-					    }
-						    
-					// Close Connection
-					si.getServerConnection().logout();
+					// 	Configuration for Host Specification
+					HostConnectSpec hSpec = new HostConnectSpec();
+					hSpec.setHostName(hostIP);
+					hSpec.setUserName(prop.getProperty("vHostUsername"));
+					hSpec.setPassword(prop.getProperty("vHostPassword"));
+					hSpec.setForce(true);
+					hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
+
+					// Add new VM
+					ComputeResourceConfigSpec compResSpec = new ComputeResourceConfigSpec();
+					taskAddHost = dataCenter.getHostFolder().addStandaloneHost_Task(hSpec, compResSpec, true);
+				} finally {
+					SessionPoolManager.release(si);
 				}
 				
-				return provisioned;
+				return waitForTask(taskAddHost,SessionPoolManager.VCENTER,prop)==Task.SUCCESS;
 	}
 	
 	// Function to add a new vHost and provision VM
 	public boolean addNewvHostAndProvision(String vmHostName, String hostIP, Properties prop) throws Exception {
 				// Variable to store vHost
 				HostSystem hostsystemobj = null;
-				boolean provisioned = false;
-				boolean vHostAdded = false;
 				int poolIndex = 0;
-						
-				// Service Instance
-				ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-						prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-				Folder rootFolder = si.getRootFolder();
 				
-				// Get datacenter configuration
-				Datacenter dataCenter = (Datacenter)new InventoryNavigator(rootFolder).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));  
+				if (!addvHost(hostIP, prop))
+					return false;
 				
-				// 	Configuration for Host Specification
-				HostConnectSpec hSpec = new HostConnectSpec();
-				hSpec.setHostName(hostIP);
-				hSpec.setUserName(prop.getProperty("vHostUsername"));
-				hSpec.setPassword(prop.getProperty("vHostPassword"));
-				hSpec.setForce(true);
-				hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
-
-				// Add new VM
-				ComputeResourceConfigSpec compResSpec = new ComputeResourceConfigSpec();
-				Task taskAddHost = dataCenter.getHostFolder().addStandaloneHost_Task(hSpec, compResSpec, true);
+				Task task;
 				
-				if(taskAddHost.waitForTask()==Task.SUCCESS) {
-					vHostAdded = true;
-				    }
-				else {
-					vHostAdded = false;
-				}
+				// Service Instance
+				ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+				try {
+					Folder rootFolder = si.getRootFolder();
 				
-				if (vHostAdded == true) {
 					// Get the dead vm configurations
 					VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
 							 rootFolder).searchManagedEntity(
 							        "VirtualMachine", vmHostName);
 					Datastore[] dataStore = virtualmachine.getDatastores();
 					ManagedEntity[] rps = new InventoryNavigator(rootFolder).searchManagedEntities(new String[][] {{"ResourcePool", "name" }, }, true);  
-					
+				
 					// Search for index pool of newly added vHost
 					ManagedEntity[] hosts = new InventoryNavigator(rootFolder).searchManagedEntities(
 							new String[][] { {"HostSystem", "name" }, }, true);
@@ -573,124 +510,241 @@ public class HealthManager extends Thread {
 							}
 							poolIndex ++;
 					}
-					
+				
 					// Recover vm on the newly added vHost
 					VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
 			        relocateSpec.setDatastore(dataStore[0].getMOR());
 			        relocateSpec.setHost(hostsystemobj.getMOR());
 			        relocateSpec.setPool(rps[poolIndex].getMOR());
-			        
+		        
 					 VirtualMachineCloneSpec cloneSpec = 
 						      new VirtualMachineCloneSpec();
 						    cloneSpec.setLocation(relocateSpec);
 						    cloneSpec.setPowerOn(true);
 						    cloneSpec.setTemplate(false);
-						    cloneSpec.setSnapshot(virtualmachine.getCurrentSnapShot().getMOR());
-		
-						    Task task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(), 
+						    cloneSpec.setSnapshot(SnapshotCatalog.getCurrentSnapshot(SessionPoolManager.VCENTER, virtualmachine));
+	
+						    task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(), 
 						    		vmHostName + "_recovered", cloneSpec);
 						    System.out.println("Launching the VM recovery task. " +
 						    		"Please wait ...");
-		
-						    String status = task.waitForMe();
-						    if(status==Task.SUCCESS)
-						    {
-						      provisioned = true;
-						    }
-						    else
-						    {
-						      System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
-						    }
-						    
-					// Close Connection
-					si.getServerConnection().logout();
-					
+				} finally {
+					SessionPoolManager.release(si);
 				}
 				
-			return provisioned;
+			    if(waitForTask(task,SessionPoolManager.VCENTER,prop)==Task.SUCCESS)
+			    {
+			      return true;
+			    }
+			    System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
+			    return false;
 	}
 	
 	// Function to add a new vHost and provision VM
 	public boolean addNewvHostAndProvisionMigrate(String vmHostName, String hostIP, Properties prop) throws Exception {
-					// Variable to store vHost
-					HostSystem hostsystemobj = null;
-					boolean provisioned = false;
-					boolean vHostAdded = false;
-					
-					// Service Instance
-					ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-							prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-					Folder rootFolder = si.getRootFolder();
-					
-					// Get datacenter configuration
-					Datacenter dataCenter = (Datacenter)new InventoryNavigator(rootFolder).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));  
+					if (!addvHost(hostIP, prop))
+						return false;
 					
-					// 	Configuration for Host Specification
-					HostConnectSpec hSpec = new HostConnectSpec();
-					hSpec.setHostName(hostIP);
-					hSpec.setUserName(prop.getProperty("vHostUsername"));
-					hSpec.setPassword(prop.getProperty("vHostPassword"));
-					hSpec.setForce(true);
-					hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
-
-					// Add new VM
-					ComputeResourceConfigSpec compResSpec = new ComputeResourceConfigSpec();
-					Task taskAddHost = dataCenter.getHostFolder().addStandaloneHost_Task(hSpec, compResSpec, true);
+					Task task;
 					
-					if(taskAddHost.waitForTask()==Task.SUCCESS) {
-						vHostAdded = true;
-					    }
-					else {
-						vHostAdded = false;
-					}
+					// Service Instance
+					ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+					try {
+						Folder rootFolder = si.getRootFolder();
 					
-					if (vHostAdded == true) {
-						// Get the dead vm configurations
+						// Get the dead vm configurations and the newly added vHost
 						VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
 								 rootFolder).searchManagedEntity(
 								        "VirtualMachine", vmHostName);
+						HostSystem hostsystemobj = (HostSystem) new InventoryNavigator(rootFolder).searchManagedEntity(
+								"HostSystem", hostIP);
 						ComputeResource cr = (ComputeResource) hostsystemobj.getParent();
-					    
-						Task task = virtualmachine.migrateVM_Task(cr.getResourcePool(), hostsystemobj,
+				    
+						task = virtualmachine.migrateVM_Task(cr.getResourcePool(), hostsystemobj,
 						        VirtualMachineMovePriority.highPriority, 
 						        VirtualMachinePowerState.poweredOn);
-						 
-						String status = task.waitForMe();
-						    if(status==Task.SUCCESS)
-						    {
-						      provisioned = true;
-						    }
-						    else
-						    {
-						      System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
-						    }
-							    
-						// Close Connection
-						si.getServerConnection().logout();
-						
+					} finally {
+						SessionPoolManager.release(si);
 					}
 					
-				return provisioned;
+					if(waitForTask(task,SessionPoolManager.VCENTER,prop)==Task.SUCCESS)
+				    {
+				      return true;
+				    }
+				    System.out.println("Failure -: VM " + vmHostName + " cannot be recovered");
+				    return false;
+		}
+	
+	// Function to recover a VM without blocking: clone it from its current snapshot, then delete the stale VM
+	public CompletableFuture<Boolean> recoverVM(final String vmHostName, final Properties prop) throws Exception {
+		final TaskTracker tracker = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER);
+		final RecoveryJournal journal = RecoveryJournal.getInstance(prop);
+		
+		// The stale VM is only deleted once the clone is up, a failed delete still leaves the VM recovered
+		final String host = hostOf(vmHostName);
+		final long start = System.currentTimeMillis();
+		final boolean linked = isLinkedClone(vmHostName, prop);
+		return cloneAsync(vmHostName, true, tracker, journal, prop).thenComposeAsync(cloned -> {
+				RecoveryMetrics.recordSince(RecoveryMetrics.CLONE, host, start);
+				journal.recordQuietly(vmHostName, RecoveryJournal.CLONED);
+				if (!linked)
+					return deleteStaleAsync(vmHostName, host, journal, prop);
+				
+				// A linked clone still reads the stale VM's disks, they are copied over before it is deleted
+				final long promoteStart = System.currentTimeMillis();
+				return promoteDisksAsync(vmHostName + "_recovered", journal, vmHostName, prop).handle((promoted, e) -> e == null)
+					.thenCompose(promoted -> {
+						RecoveryMetrics.recordSince(RecoveryMetrics.PROMOTE, host, promoteStart);
+						if (promoted)
+							return deleteStaleAsync(vmHostName, host, journal, prop);
+						journal.recordQuietly(vmHostName, RecoveryJournal.DONE);
+						System.out.println("VM " + vmHostName + " has been recovered as a linked clone. Please consolidate its disks and delete stale VM manually");
+						return CompletableFuture.completedFuture(true);
+					});
+			}, tracker.getExecutor())
+			.exceptionally(e -> {
+				journal.recordQuietly(vmHostName, RecoveryJournal.FAILED);
+				System.out.println("VM " + vmHostName + " could not be recovered! " + e.getMessage());
+				return false;
+			});
+	}
+	
+	// Start cloning a VM from its current snapshot. A failed clone may come from a tracked snapshot that is gone,
+	// with retry it is then tried once more from the snapshot tree as vCenter has it
+	private CompletableFuture<TaskInfo> cloneAsync(final String vmHostName, boolean retry, final TaskTracker tracker,
+			final RecoveryJournal journal, final Properties prop) {
+		final ManagedObjectReference snapshot;
+		final CompletableFuture<TaskInfo> cloned;
+		ServiceInstance si = null;
+		try {
+			si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+					si.getRootFolder()).searchManagedEntity("VirtualMachine", vmHostName);
+			if (virtualmachine == null)
+				throw new Exception("VM " + vmHostName + " is no longer in vCenter, nothing to recover it from");
+			
+			VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
+			cloneSpec.setLocation(applyCloneMode(new VirtualMachineRelocateSpec(), vmHostName, prop));
+			cloneSpec.setPowerOn(true);
+			cloneSpec.setTemplate(false);
+			snapshot = SnapshotCatalog.getCurrentSnapshot(SessionPoolManager.VCENTER, virtualmachine);
+			cloneSpec.setSnapshot(snapshot);
+			
+			// Journaled before the clone starts so a restart never clones twice
+			journal.record(vmHostName, RecoveryJournal.CLONE_STARTED, null);
+			Task task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(),
+					vmHostName + "_recovered", cloneSpec);
+			journal.recordTask(vmHostName, RecoveryJournal.CLONING, task);
+			System.out.println("Launching the VM recovery task for VM " + vmHostName);
+			cloned = tracker.track(task);
+		} catch (Exception e) {
+			CompletableFuture<TaskInfo> failed = new CompletableFuture<TaskInfo>();
+			failed.completeExceptionally(e);
+			return failed;
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		if (!retry)
+			return cloned;
+		return cloned.handleAsync((info, e) -> {
+			try {
+				if (e == null || !SnapshotCatalog.reload(prop, SessionPoolManager.VCENTER, vmHostName, snapshot))
+					return cloned;
+			} catch (Exception reloadFailed) {
+				return cloned;
+			}
+			System.out.println("Clone of VM " + vmHostName + " failed, retrying from its snapshot tree in vCenter");
+			return cloneAsync(vmHostName, false, tracker, journal, prop);
+		}, tracker.getExecutor()).thenCompose(next -> next);
+	}
+	
+	private CompletableFuture<Boolean> deleteStaleAsync(String vmHostName, String host, RecoveryJournal journal, Properties prop) {
+		final long start = System.currentTimeMillis();
+		return destroyVMAsync(vmHostName, prop).handle((destroyed, e) -> {
+			RecoveryMetrics.recordSince(RecoveryMetrics.DELETE, host, start);
+			journal.recordQuietly(vmHostName, RecoveryJournal.DONE);
+			if (e == null)
+				System.out.println("VM " + vmHostName + " has been recovered and provisioned");
+			else
+				System.out.println("VM " + vmHostName + " has been recovered and provisioned. Please delete stale VM manually");
+			return true;
+		});
+	}
+	
+	// Start copying the parent disks into a linked clone so it no longer depends on the snapshot
+	private CompletableFuture<TaskInfo> promoteDisksAsync(String cloneName, RecoveryJournal journal, String vmHostName, Properties prop) {
+		ServiceInstance si = null;
+		try {
+			si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			VirtualMachine clone = (VirtualMachine) new InventoryNavigator(
+					si.getRootFolder()).searchManagedEntity("VirtualMachine", cloneName);
+			Task task = clone.promoteDisks_Task(true, null);
+			journal.recordTask(vmHostName, RecoveryJournal.PROMOTING, task);
+			return TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).track(task);
+		} catch (Exception e) {
+			CompletableFuture<TaskInfo> failed = new CompletableFuture<TaskInfo>();
+			failed.completeExceptionally(e);
+			return failed;
+		} finally {
+			SessionPoolManager.release(si);
+		}
+	}
+	
+	// Function to copy the parent disks into a linked clone and wait for it, true when it no longer needs them
+	public boolean promoteDisks(String vmHostName, Properties prop) throws Exception {
+		long start = System.currentTimeMillis();
+		try {
+			promoteDisksAsync(vmHostName + "_recovered", RecoveryJournal.getInstance(prop), vmHostName, prop).get();
+			return true;
+		} catch (ExecutionException e) {
+			System.out.println("Disks of VM " + vmHostName + "_recovered could not be promoted: " + e.getCause().getMessage());
+			return false;
+		} finally {
+			RecoveryMetrics.recordSince(RecoveryMetrics.PROMOTE, hostOf(vmHostName), start);
+		}
+	}
+	
+	// Start deleting a VM, the future completes when vCenter is done
+	private CompletableFuture<TaskInfo> destroyVMAsync(String vmHostName, Properties prop) {
+		ServiceInstance si = null;
+		try {
+			si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+					si.getRootFolder()).searchManagedEntity("VirtualMachine", vmHostName);
+			return TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).track(virtualmachine.destroy_Task());
+		} catch (Exception e) {
+			CompletableFuture<TaskInfo> failed = new CompletableFuture<TaskInfo>();
+			failed.completeExceptionally(e);
+			return failed;
+		} finally {
+			SessionPoolManager.release(si);
 		}
+	}
 	
-	// Function to delete VM
 	public boolean deleteVM(String vmHostName, Properties prop) throws Exception{
 			// Variable to store vHost
 			boolean destroyed;
+			long start;
+			Task task;
 			
-			// Service Instance
-			ServiceInstance si = new ServiceInstance(new URL(prop.getProperty("vCenter")), prop.getProperty("vCenterUsername"), 
-					prop.getProperty("vCenterPassword"), Boolean.parseBoolean(prop.getProperty("vCenterIgnoreCert")));
-			Folder rootFolder = si.getRootFolder();
+			// Service Instance, only held until the delete is started
+			ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			try {
+				Folder rootFolder = si.getRootFolder();
 			
-			// Get the dead vm configurations
-			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-					 rootFolder).searchManagedEntity(
-					        "VirtualMachine", vmHostName);
+				// Get the dead vm configurations
+				VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+						 rootFolder).searchManagedEntity(
+						        "VirtualMachine", vmHostName);
 			
-			Task task = virtualmachine.destroy_Task();
+				start = System.currentTimeMillis();
+				task = virtualmachine.destroy_Task();
+			} finally {
+				SessionPoolManager.release(si);
+			}
 
-		    String status = task.waitForMe();
+		    String status = waitForTask(task,SessionPoolManager.VCENTER,prop);
+		    RecoveryMetrics.recordSince(RecoveryMetrics.DELETE, hostOf(vmHostName), start);
 		    if(status==Task.SUCCESS)
 		    {
 		      destroyed = true;
@@ -699,170 +753,111 @@ public class HealthManager extends Thread {
 		    {
 			  destroyed = false;
 		    }
-		    
-		    // Close Connection
-		    si.getServerConnection().logout();
 			
 			return destroyed;
 	}
 	
+	// One health check of the VM, scheduled by HealthCheckScheduler
 	@SuppressWarnings("static-access")
 	public void run() {	
 		// Flags for different operations
-		boolean alarmSet = false;
 		boolean pingResult;
 		boolean alarmStatus;
 		boolean pingResultvHost;
-		boolean vHostConnected;
-		boolean provisionedVM;
-		boolean makeAlivevHost;
-		boolean provisionedAliveVHost;
-		boolean provisionedOnAddVHost;
 		
 		// Initializing classes
 		AlarmManager alarmManager = new AlarmManager();
-		PropertyManager getPropertyValue= new PropertyManager();
 		
 		// Variable for properties
 		Properties prop = null;
-		while (true){
 			try {	
 					// Get properties
-					prop = getPropertyValue.getProps();
+					prop = ConfigService.getInstance().current().getProperties();
+					
+					// A recovery started by an earlier check, or resumed from the journal, is still running
+					if (recovery == null)
+						recovery = RecoveryJournal.getInstance(prop).getResumed(getName());
+					if (recovery != null && !recovery.isDone()) {
+						System.out.println("Recovery of VM " + getName() + " is still in progress");
+						return;
+					}
 					
-					if (alarmSet == false) {
+					// Only needed as fallback when the VM event monitor is not in sync
+					if (alarmSet == false && (AvailabilityManager.vmEventMonitor == null || !AvailabilityManager.vmEventMonitor.isSynced())) {
 						alarmManager.createAlarm(getName(),prop);
 						alarmSet=true;
 					}
 					
-					// Display statistics for the VM
-					gatherStats(getName(),prop);
-					
-					// Start the Ping Operation for VM- IP fetched from Distributed Hash Map
-					AvailabilityManager av = new AvailabilityManager();
-					pingResult = pingTestvHost(av.ipListMap.get(getName()));
+					// Start the Ping Operation for VM- IP fetched from the inventory watcher
+					pingResult = pingTestvHost(getVMIP(),prop);
+					AvailabilityManager.vmRegistry.checked(getName(), pingResult);
 					
+					FailureDetector failureDetector = AvailabilityManager.failureDetector;
 					if(pingResult == true) {
 						System.out.println("VM is reachable");
+						firstFailure = 0;
+						if (failureDetector != null)
+							failureDetector.heartbeat(getName());
 					}
 					else {
 						System.out.println("VM is NOT reachable!");
+						if (firstFailure == 0)
+							firstFailure = System.currentTimeMillis();
+						String host = hostOf(getName());
+						
+						// One missed probe is only a suspicion, recovery waits for the detector's confidence
+						if (failureDetector != null) {
+							double phi = failureDetector.phi(getName());
+							if (host != null)
+								phi = Math.max(phi, failureDetector.hostPhi(host));
+							if (phi < failureDetector.getThreshold()) {
+								System.out.println(String.format("VM %s is suspected, phi %.1f of %.1f", getName(), phi,
+										failureDetector.getThreshold()));
+								return;
+							}
+						}
 						
 						// Case 1: Check if user had shutdown the VM - True for user shutdown, False for abrupt shutdown
+						long start = System.currentTimeMillis();
 						alarmStatus = alarmManager.getAlarmStatus(getName(),prop);
+						RecoveryMetrics.recordSince(RecoveryMetrics.ALARM_CHECK, host, start);
 											
 						if (alarmStatus == false) { 
 							// Case 2: Check if vHost is Accessible - True if accessible, False for not accessible
+							start = System.currentTimeMillis();
 							pingResultvHost = testVHost(getName(),prop);
+							RecoveryMetrics.recordSince(RecoveryMetrics.HOST_TEST, host, start);
+							RecoveryMetrics.recordSince(RecoveryMetrics.DETECTION, host, firstFailure);
 							
 							if (pingResultvHost == true) {
 								System.out.println("vHost is reachable, provisioning of VM Starting...");
 								
-								// Provision the VM
-								provisionedVM = provisionVM(getName(),prop);
-								
-								if (provisionedVM == true) {
-									// Delete the stale VM
-									if(deleteVM(getName(),prop))
-										System.out.println("VM " + getName() + " has been recovered and provisioned");
-									else
-										System.out.println("VM " + getName() + " has been recovered and provisioned. Please delete stale VM manually");
-								}
-								else 
-									System.out.println("VM " + getName() + " could not be recovered!");
+								// Provision the VM and delete the stale one, the check does not wait for it
+								recovery = recoverVM(getName(),prop);
 	
 							}
 							else {
-								System.out.println("vHost is NOT reachable, using alternate method for provisioning...");
-																
-								// Try to make vHost Alive using snapshot
-								makeAlivevHost = provisionvHost(getName(),prop);
-																
-								// Get vHost Connection State for deciding Clone Snapshot / Migration
-								vHostConnected = testVHostConnection(getName(),prop);
-								
-								// If the vHost is recovered and can be ping'ed
-								if ( makeAlivevHost && vHostConnected) {
-									System.out.println("vHost is reachable, provisioning of VM Starting...");
-									
-									// Provision the VM
-									provisionedVM = provisionVM(getName(),prop);
-									
-									if (provisionedVM == true) {
-										// Delete the stale VM
-										if(deleteVM(getName(),prop))
-											System.out.println("VM " + getName() + " has been recovered and provisioned");
-										else
-											System.out.println("VM " + getName() + " has been recovered and provisioned. Please delete stale VM manually");
-									}
-									else 
-										System.out.println("VM " + getName() + " could not be recovered!");
-									
-								}
-								
-								// Clone Remidiation
-								else if(vHostConnected == true) {
-									// Case 3a: Find Another alive vHost and Provision
-									provisionedAliveVHost = provisionOnLivevHost(getName(),prop);
-									
-									// Case 3b: If No vHost is alive, Add a new vHost
-									if (provisionedAliveVHost == false) {
-										provisionedOnAddVHost = addNewvHostAndProvision(getName(),prop.getProperty("vStandByHost"),prop);
-										
-										if (provisionedOnAddVHost == true) {
-											// Delete the stale VM
-											if(deleteVM(getName(),prop))
-												System.out.println("VM " + getName() + " has been recovered and provisioned");
-											else
-												System.out.println("VM " + getName() + " has been recovered and provisioned. Please delete stale VM manually");
-										}
-										else {
-											System.out.println("VM " + getName() + " could not be recovered!");
-										}
-									}
-									else {
-										// Delete the stale VM
-										if(deleteVM(getName(),prop))
-											System.out.println("VM " + getName() + " has been recovered and provisioned");
-										else
-											System.out.println("VM " + getName() + " has been recovered and provisioned. Please delete stale VM manually");
-									}
-								}
-								
-								// Migration Remidiation
-								else {
-									// Case 4a: Find Another alive vHost and Provision
-									provisionedAliveVHost = provisionOnLivevHostMigrate(getName(),prop);
-									
-									// Case 4b: If No vHost is alive, Add a new vHost
-									if (provisionedAliveVHost == false) {
-										provisionedOnAddVHost = addNewvHostAndProvisionMigrate(getName(),prop.getProperty("vStandByHost"),prop);
-										
-										if (provisionedOnAddVHost == true) {
-											System.out.println("VM " + getName() + " has been recovered and provisioned.");
-											}
-										else {
-											System.out.println("VM " + getName() + " could not be recovered!");
-										}
-									}
-									else {
-											System.out.println("VM " + getName() + " has been recovered and provisioned.");
-									}
-								}
+								System.out.println("vHost is NOT reachable, recovering its VMs together...");
 								
+								// One plan for all VMs of the failed vHost, shared by their health checks
+								recovery = RecoveryPlanner.getInstance(prop).hostFailed(getName(),prop);
 							}		
 							
+							// Recovery time from the first failed ping until the VM is back
+							final long failedAt = firstFailure;
+							recovery.thenAccept(recovered -> {
+								if (recovered)
+									RecoveryMetrics.recordSince(RecoveryMetrics.RECOVERY, host, failedAt);
+							});
+							firstFailure = 0;
+							
 						}
 						
 					}
 				
-				// Monitoring Interval
-				Thread.sleep(Integer.parseInt(prop.getProperty("MonitorInterval")));
-				
 				} catch (Exception e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
-	}
 			}
-	}
\ No newline at end of file
+	}
@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+
+public class InventorySnapshot {
+	// Properties read for every VM
+	static final String[] VM_PROPERTIES = { "name", "guest.ipAddress", "runtime.powerState", "runtime.host", "resourcePool" };
+
+	// One VM as it was when the snapshot was taken
+	public static class Row {
+		public final String mor;
+		public final String name;
+		public final String ipAddress;
+		public final VirtualMachinePowerState powerState;
+		public final String hostMor;
+		public final String resourcePoolMor;
+
+		Row(String mor, String name, String ipAddress, VirtualMachinePowerState powerState, String hostMor, String resourcePoolMor) {
+			this.mor = mor;
+			this.name = name;
+			this.ipAddress = ipAddress;
+			this.powerState = powerState;
+			this.hostMor = hostMor;
+			this.resourcePoolMor = resourcePoolMor;
+		}
+	}
+
+	private final List<Row> rows;
+	private final Map<String,Row> byName;
+
+	InventorySnapshot(List<Row> rows) {
+		this.rows = Collections.unmodifiableList(rows);
+		Map<String,Row> names = new HashMap<String,Row>();
+		for (Row row : rows) {
+			if (row.name != null)
+				names.put(row.name, row);
+		}
+		this.byName = Collections.unmodifiableMap(names);
+	}
+
+	// Function to read every VM under a folder or resource pool with one RetrievePropertiesEx, paged by pageSize
+	public static InventorySnapshot retrieve(ServiceInstance si, ManagedEntity container, boolean recursive, int pageSize) throws Exception {
+		ContainerView view = si.getViewManager().createContainerView(container, new String[] { "VirtualMachine" }, recursive);
+		try {
+			PropertyCollector pc = si.getPropertyCollector();
+			RetrieveOptions options = new RetrieveOptions();
+			options.setMaxObjects(pageSize);
+
+			List<Row> rows = new ArrayList<Row>();
+			RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { createFilterSpec(view) }, options);
+			while (result != null) {
+				if (result.getObjects() != null) {
+					for (ObjectContent oc : result.getObjects())
+						rows.add(toRow(oc));
+				}
+				if (result.getToken() == null)
+					break;
+				result = pc.continueRetrievePropertiesEx(result.getToken());
+			}
+			return new InventorySnapshot(rows);
+		} finally {
+			view.destroyView();
+		}
+	}
+
+	public List<Row> getRows() {
+		return rows;
+	}
+
+	public Row get(String vmName) {
+		return byName.get(vmName);
+	}
+
+	public int size() {
+		return rows.size();
+	}
+
+	// Function to get VM name to guest IP, same shape as AvailabilityManager.getIPList
+	public HashMap<String,String> getIPMap() {
+		HashMap<String,String> ipMap = new LinkedHashMap<String,String>();
+		for (Row row : rows) {
+			if (row.name != null)
+				ipMap.put(row.name, row.ipAddress);
+		}
+		return ipMap;
+	}
+
+	static PropertyFilterSpec createFilterSpec(ContainerView view) {
+		TraversalSpec traversal = new TraversalSpec();
+		traversal.setName("traverseView");
+		traversal.setType("ContainerView");
+		traversal.setPath("view");
+		traversal.setSkip(Boolean.FALSE);
+
+		ObjectSpec oSpec = new ObjectSpec();
+		oSpec.setObj(view.getMOR());
+		oSpec.setSkip(Boolean.TRUE);
+		oSpec.setSelectSet(new SelectionSpec[] { traversal });
+
+		PropertySpec vmSpec = new PropertySpec();
+		vmSpec.setType("VirtualMachine");
+		vmSpec.setPathSet(VM_PROPERTIES);
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { oSpec });
+		spec.setPropSet(new PropertySpec[] { vmSpec });
+		return spec;
+	}
+
+	private static Row toRow(ObjectContent oc) {
+		String name = null;
+		String ipAddress = null;
+		VirtualMachinePowerState powerState = null;
+		String hostMor = null;
+		String resourcePoolMor = null;
+		if (oc.getPropSet() != null) {
+			for (DynamicProperty property : oc.getPropSet()) {
+				Object value = property.getVal();
+				if ("name".equals(property.getName()))
+					name = (String) value;
+				else if ("guest.ipAddress".equals(property.getName()))
+					ipAddress = (String) value;
+				else if ("runtime.powerState".equals(property.getName()))
+					powerState = (VirtualMachinePowerState) value;
+				else if ("runtime.host".equals(property.getName()) && value != null)
+					hostMor = ((ManagedObjectReference) value).getVal();
+				else if ("resourcePool".equals(property.getName()) && value != null)
+					resourcePoolMor = ((ManagedObjectReference) value).getVal();
+			}
+		}
+		return new Row(oc.getObj().getVal(), name, ipAddress, powerState, hostMor, resourcePoolMor);
+	}
+}
@@ -0,0 +1,340 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+
+public class InventoryWatcher extends Thread {
+	// Seconds a single long-poll may block before we check for shutdown
+	private static final int MAX_WAIT_SECONDS = 60;
+
+	// Properties kept in the in-memory model
+	static final String[] VM_PROPERTIES = { "name", "runtime.powerState", "guest.ipAddress", "runtime.host" };
+	static final String[] HOST_PROPERTIES = { "name", "runtime.connectionState", "summary.quickStats.uptime" };
+
+	// Immutable view of one VM as last reported by vCenter
+	public static class VMState {
+		public final String mor;
+		public final String name;
+		public final VirtualMachinePowerState powerState;
+		public final String ipAddress;
+		public final String hostMor;
+
+		VMState(String mor, String name, VirtualMachinePowerState powerState, String ipAddress, String hostMor) {
+			this.mor = mor;
+			this.name = name;
+			this.powerState = powerState;
+			this.ipAddress = ipAddress;
+			this.hostMor = hostMor;
+		}
+
+		VMState with(String property, Object value) {
+			if ("name".equals(property))
+				return new VMState(mor, (String) value, powerState, ipAddress, hostMor);
+			if ("runtime.powerState".equals(property))
+				return new VMState(mor, name, (VirtualMachinePowerState) value, ipAddress, hostMor);
+			if ("guest.ipAddress".equals(property))
+				return new VMState(mor, name, powerState, (String) value, hostMor);
+			if ("runtime.host".equals(property))
+				return new VMState(mor, name, powerState, ipAddress, value == null ? null : ((ManagedObjectReference) value).getVal());
+			return this;
+		}
+	}
+
+	// Immutable view of one vHost as last reported by vCenter
+	public static class HostState {
+		public final String mor;
+		public final String name;
+		public final HostSystemConnectionState connectionState;
+		// Refreshed by vCenter every few seconds while the vHost is alive
+		public final int uptime;
+
+		HostState(String mor, String name, HostSystemConnectionState connectionState, int uptime) {
+			this.mor = mor;
+			this.name = name;
+			this.connectionState = connectionState;
+			this.uptime = uptime;
+		}
+
+		HostState with(String property, Object value) {
+			if ("name".equals(property))
+				return new HostState(mor, (String) value, connectionState, uptime);
+			if ("runtime.connectionState".equals(property))
+				return new HostState(mor, name, (HostSystemConnectionState) value, uptime);
+			if ("summary.quickStats.uptime".equals(property))
+				return new HostState(mor, name, connectionState, value == null ? 0 : (Integer) value);
+			return this;
+		}
+
+		public boolean isConnected() {
+			return connectionState == HostSystemConnectionState.connected;
+		}
+	}
+
+	// Receives change events, called on the watcher thread
+	public interface Listener {
+		void vmChanged(VMState previous, VMState current);
+		void vmRemoved(VMState previous);
+		void hostChanged(HostState previous, HostState current);
+		void hostRemoved(HostState previous);
+	}
+
+	private final Properties prop;
+	private final Map<String,VMState> vms = new ConcurrentHashMap<String,VMState>();
+	private final Map<String,HostState> hosts = new ConcurrentHashMap<String,HostState>();
+	private final Map<String,String> vmNames = new ConcurrentHashMap<String,String>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final CountDownLatch initialSync = new CountDownLatch(1);
+	private volatile boolean running = true;
+
+	public InventoryWatcher(Properties prop) {
+		super("InventoryWatcher");
+		this.prop = prop;
+		setDaemon(true);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	// Function to wait until the first full inventory has been received
+	public boolean awaitInitialSync(long timeout) throws InterruptedException {
+		return initialSync.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	public VMState getVM(String vmName) {
+		String mor = vmNames.get(vmName);
+		return mor == null ? null : vms.get(mor);
+	}
+
+	public VMState getVMByMor(String mor) {
+		return vms.get(mor);
+	}
+
+	public HostState getHost(String hostMor) {
+		return hostMor == null ? null : hosts.get(hostMor);
+	}
+
+	public List<VMState> getVMs() {
+		return new ArrayList<VMState>(vms.values());
+	}
+
+	public List<HostState> getHosts() {
+		return new ArrayList<HostState>(hosts.values());
+	}
+
+	// VM name to guest IP, same shape as AvailabilityManager.getIPList
+	public HashMap<String,String> getIPMap() {
+		HashMap<String,String> ipMap = new HashMap<String,String>();
+		for (VMState vm : vms.values()) {
+			if (vm.name != null)
+				ipMap.put(vm.name, vm.ipAddress);
+		}
+		return ipMap;
+	}
+
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+	public void run() {
+		while (running) {
+			ServiceInstance si = null;
+			PropertyFilter filter = null;
+			ContainerView view = null;
+			try {
+				// Held for as long as the watcher runs, so it is not taken from the pool
+				si = SessionPoolManager.openDedicated(prop, SessionPoolManager.VCENTER);
+				view = si.getViewManager().createContainerView(si.getRootFolder(),
+						new String[] { "VirtualMachine", "HostSystem" }, true);
+				PropertyCollector pc = si.getPropertyCollector();
+				filter = pc.createFilter(createFilterSpec(view), true);
+
+				// Full resync after (re)connect, anything not reported again has gone
+				Map<String,VMState> staleVMs = new HashMap<String,VMState>(vms);
+				Map<String,HostState> staleHosts = new HashMap<String,HostState>(hosts);
+
+				WaitOptions options = new WaitOptions();
+				options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+				String version = "";
+				while (running) {
+					UpdateSet update = pc.waitForUpdatesEx(version, options);
+					if (update == null)
+						continue;
+					version = update.getVersion();
+					handleUpdate(update, staleVMs, staleHosts);
+
+					// A truncated set means the initial inventory is still arriving
+					if (staleVMs != null && !Boolean.TRUE.equals(update.getTruncated())) {
+						for (VMState vm : staleVMs.values())
+							removeVM(vm.mor);
+						for (HostState host : staleHosts.values())
+							removeHost(host.mor);
+						staleVMs = null;
+						staleHosts = null;
+						initialSync.countDown();
+						System.out.println("Inventory synchronized: " + vms.size() + " VMs, " + hosts.size() + " vHosts");
+					}
+				}
+			} catch (Exception e) {
+				if (!running)
+					break;
+				System.out.println("Inventory watcher lost its session, reconnecting: " + e);
+				SessionPoolManager.invalidate(si);
+				si = null;
+				try {
+					Thread.sleep(ConfigService.getInstance().current().getMonitorInterval());
+				} catch (Exception ie) {
+					// Retry or stop
+				}
+			} finally {
+				if (si != null) {
+					try {
+						if (filter != null)
+							filter.destroyPropertyFilter();
+						if (view != null)
+							view.destroyView();
+					} catch (Exception e) {
+						// Session is being dropped anyway
+					}
+					SessionPoolManager.release(si);
+				}
+			}
+		}
+	}
+
+	// One filter over a container view of every VM and vHost
+	static PropertyFilterSpec createFilterSpec(ContainerView view) {
+		TraversalSpec traversal = new TraversalSpec();
+		traversal.setName("traverseView");
+		traversal.setType("ContainerView");
+		traversal.setPath("view");
+		traversal.setSkip(Boolean.FALSE);
+
+		ObjectSpec oSpec = new ObjectSpec();
+		oSpec.setObj(view.getMOR());
+		oSpec.setSkip(Boolean.TRUE);
+		oSpec.setSelectSet(new SelectionSpec[] { traversal });
+
+		PropertySpec vmSpec = new PropertySpec();
+		vmSpec.setType("VirtualMachine");
+		vmSpec.setPathSet(VM_PROPERTIES);
+		PropertySpec hostSpec = new PropertySpec();
+		hostSpec.setType("HostSystem");
+		hostSpec.setPathSet(HOST_PROPERTIES);
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { oSpec });
+		spec.setPropSet(new PropertySpec[] { vmSpec, hostSpec });
+		return spec;
+	}
+
+	private void handleUpdate(UpdateSet update, Map<String,VMState> staleVMs, Map<String,HostState> staleHosts) {
+		PropertyFilterUpdate[] pfus = update.getFilterSet();
+		if (pfus == null)
+			return;
+		for (PropertyFilterUpdate pfu : pfus) {
+			ObjectUpdate[] ous = pfu.getObjectSet();
+			if (ous == null)
+				continue;
+			for (ObjectUpdate ou : ous) {
+				String type = ou.getObj().getType();
+				String mor = ou.getObj().getVal();
+				if (ou.getKind() == ObjectUpdateKind.leave) {
+					if ("VirtualMachine".equals(type))
+						removeVM(mor);
+					else if ("HostSystem".equals(type))
+						removeHost(mor);
+					continue;
+				}
+				if ("VirtualMachine".equals(type)) {
+					if (staleVMs != null)
+						staleVMs.remove(mor);
+					updateVM(mor, ou.getChangeSet());
+				} else if ("HostSystem".equals(type)) {
+					if (staleHosts != null)
+						staleHosts.remove(mor);
+					updateHost(mor, ou.getChangeSet());
+				}
+			}
+		}
+	}
+
+	private void updateVM(String mor, PropertyChange[] changes) {
+		VMState previous = vms.get(mor);
+		VMState current = previous != null ? previous : new VMState(mor, null, null, null, null);
+		if (changes != null) {
+			for (PropertyChange change : changes)
+				current = current.with(change.getName(), change.getOp() == PropertyChangeOp.assign ? change.getVal() : null);
+		}
+		vms.put(mor, current);
+		if (previous != null && previous.name != null && !previous.name.equals(current.name))
+			vmNames.remove(previous.name, mor);
+		if (current.name != null)
+			vmNames.put(current.name, mor);
+
+		for (Listener listener : listeners)
+			listener.vmChanged(previous, current);
+	}
+
+	private void updateHost(String mor, PropertyChange[] changes) {
+		HostState previous = hosts.get(mor);
+		HostState current = previous != null ? previous : new HostState(mor, null, null, 0);
+		if (changes != null) {
+			for (PropertyChange change : changes)
+				current = current.with(change.getName(), change.getOp() == PropertyChangeOp.assign ? change.getVal() : null);
+		}
+		hosts.put(mor, current);
+
+		for (Listener listener : listeners)
+			listener.hostChanged(previous, current);
+	}
+
+	private void removeVM(String mor) {
+		VMState previous = vms.remove(mor);
+		if (previous == null)
+			return;
+		if (previous.name != null)
+			vmNames.remove(previous.name, mor);
+		for (Listener listener : listeners)
+			listener.vmRemoved(previous);
+	}
+
+	private void removeHost(String mor) {
+		HostState previous = hosts.remove(mor);
+		if (previous == null)
+			return;
+		for (Listener listener : listeners)
+			listener.hostRemoved(previous);
+	}
+}
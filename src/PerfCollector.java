@@ -0,0 +1,310 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfEntityMetricCSV;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfMetricSeriesCSV;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServiceInstance;
+
+
+public class PerfCollector extends Thread {
+	// Interval id of the real-time statistics, 20 second samples
+	private static final int REALTIME_INTERVAL = 20;
+
+	// Fixed size history of one counter of one entity, oldest sample overwritten first
+	public static class Series {
+		private final long[] values;
+		private final long[] times;
+		private int count = 0;
+		private int next = 0;
+
+		Series(int capacity) {
+			values = new long[capacity];
+			times = new long[capacity];
+		}
+
+		synchronized void add(long time, long value) {
+			// Overlapping queries return samples already stored
+			if (count > 0 && time <= times[(next + values.length - 1) % values.length])
+				return;
+			values[next] = value;
+			times[next] = time;
+			next = (next + 1) % values.length;
+			if (count < values.length)
+				count++;
+		}
+
+		synchronized long lastTime() {
+			return count == 0 ? 0 : times[(next + values.length - 1) % values.length];
+		}
+
+		public synchronized long last() {
+			return count == 0 ? -1 : values[(next + values.length - 1) % values.length];
+		}
+
+		// Mean of the latest samples, -1 if there are none
+		public synchronized double average(int samples) {
+			int n = Math.min(samples, count);
+			if (n == 0)
+				return -1;
+			long sum = 0;
+			for (int i = 1; i <= n; i++)
+				sum += values[(next + values.length - i) % values.length];
+			return (double) sum / n;
+		}
+
+		public synchronized long percentile(double p) {
+			if (count == 0)
+				return -1;
+			long[] sorted = new long[count];
+			for (int i = 0; i < count; i++)
+				sorted[i] = values[(next + values.length - 1 - i) % values.length];
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(p / 100.0 * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+
+		public synchronized int size() {
+			return count;
+		}
+	}
+
+	private final Properties prop;
+	private final String[] counterNames;
+	private final int historySize;
+	private final ConcurrentHashMap<String,Series> series = new ConcurrentHashMap<String,Series>();
+	private volatile boolean running = true;
+
+	public PerfCollector(Properties prop) {
+		super("PerfCollector");
+		this.prop = prop;
+		this.counterNames = prop.getProperty("PerfCounters",
+				"cpu.usagemhz.average,mem.consumed.average,mem.active.average").split(",");
+		for (int i = 0; i < counterNames.length; i++)
+			counterNames[i] = counterNames[i].trim();
+		this.historySize = Integer.parseInt(prop.getProperty("PerfHistorySize", "180"));
+		setDaemon(true);
+	}
+
+	// Function to get the history of a counter ("group.name.rollup") of a VM or vHost MOR, null if not collected
+	public Series getSeries(String entityMor, String counter) {
+		return series.get(entityMor + "|" + counter);
+	}
+
+	// Latest value, -1 if not collected
+	public long getLast(String entityMor, String counter) {
+		Series history = getSeries(entityMor, counter);
+		return history == null ? -1 : history.last();
+	}
+
+	public double getAverage(String entityMor, String counter, int samples) {
+		Series history = getSeries(entityMor, counter);
+		return history == null ? -1 : history.average(samples);
+	}
+
+	public long getPercentile(String entityMor, String counter, double p) {
+		Series history = getSeries(entityMor, counter);
+		return history == null ? -1 : history.percentile(p);
+	}
+
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+	public void run() {
+		Map<Integer,String> counters = null;
+		while (running) {
+			ServiceInstance si = null;
+			try {
+				si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+				PerformanceManager perfMgr = si.getPerformanceManager();
+				if (counters == null)
+					counters = resolveCounters(perfMgr);
+				collect(perfMgr, counters);
+			} catch (Exception e) {
+				System.out.println("Performance collection failed: " + e);
+				SessionPoolManager.invalidate(si);
+				si = null;
+			} finally {
+				SessionPoolManager.release(si);
+			}
+
+			try {
+				Thread.sleep(Long.parseLong(prop.getProperty("PerfPollInterval", "60000")));
+			} catch (InterruptedException e) {
+				// Stopping
+			}
+		}
+	}
+
+	// Counter ids of the configured counter names
+	private Map<Integer,String> resolveCounters(PerformanceManager perfMgr) {
+		List<String> wanted = Arrays.asList(counterNames);
+		Map<Integer,String> counters = new HashMap<Integer,String>();
+		for (PerfCounterInfo info : perfMgr.getPerfCounter()) {
+			String name = info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey() + "." + info.getRollupType();
+			if (wanted.contains(name))
+				counters.put(info.getKey(), name);
+		}
+		if (counters.size() < wanted.size())
+			System.out.println("Only " + counters.values() + " of the configured performance counters exist");
+		return counters;
+	}
+
+	// One queryPerf per batch of VMs and vHosts
+	private void collect(PerformanceManager perfMgr, Map<Integer,String> counters) throws Exception {
+		InventoryWatcher inventoryWatcher = AvailabilityManager.inventoryWatcher;
+		if (inventoryWatcher == null || counters.isEmpty())
+			return;
+
+		List<ManagedObjectReference> entities = new ArrayList<ManagedObjectReference>();
+		Set<String> known = new HashSet<String>();
+		for (InventoryWatcher.VMState vm : inventoryWatcher.getVMs()) {
+			known.add(vm.mor);
+			if (vm.powerState == VirtualMachinePowerState.poweredOn)
+				entities.add(mor("VirtualMachine", vm.mor));
+		}
+		for (InventoryWatcher.HostState host : inventoryWatcher.getHosts()) {
+			known.add(host.mor);
+			if (host.isConnected())
+				entities.add(mor("HostSystem", host.mor));
+		}
+
+		// Drop the history of entities that left the inventory
+		for (Iterator<String> it = series.keySet().iterator(); it.hasNext();) {
+			String key = it.next();
+			if (!known.contains(key.substring(0, key.indexOf('|'))))
+				it.remove();
+		}
+
+		PerfMetricId[] metricIds = new PerfMetricId[counters.size()];
+		int i = 0;
+		for (Integer counterId : counters.keySet()) {
+			metricIds[i] = new PerfMetricId();
+			metricIds[i].setCounterId(counterId);
+			metricIds[i].setInstance("");
+			i++;
+		}
+
+		int batchSize = Integer.parseInt(prop.getProperty("PerfBatchSize", "50"));
+		String format = prop.getProperty("PerfFormat", "csv");
+		for (int start = 0; start < entities.size(); start += batchSize) {
+			List<ManagedObjectReference> batch = entities.subList(start, Math.min(entities.size(), start + batchSize));
+			PerfQuerySpec[] specs = new PerfQuerySpec[batch.size()];
+			for (int j = 0; j < specs.length; j++)
+				specs[j] = createPerfQuerySpec(batch.get(j), metricIds, format, counters);
+
+			PerfEntityMetricBase[] values = perfMgr.queryPerf(specs);
+			if (values == null)
+				continue;
+			for (PerfEntityMetricBase value : values) {
+				if (value instanceof PerfEntityMetricCSV)
+					storeCSV((PerfEntityMetricCSV) value, counters);
+				else if (value instanceof PerfEntityMetric)
+					store((PerfEntityMetric) value, counters);
+			}
+		}
+	}
+
+	// Only the samples newer than what is stored for the entity
+	private PerfQuerySpec createPerfQuerySpec(ManagedObjectReference entity, PerfMetricId[] metricIds, String format,
+			Map<Integer,String> counters) {
+		PerfQuerySpec qSpec = new PerfQuerySpec();
+		qSpec.setEntity(entity);
+		qSpec.setMetricId(metricIds);
+		qSpec.setFormat(format);
+		qSpec.setIntervalId(REALTIME_INTERVAL);
+
+		long since = 0;
+		for (String counter : counters.values()) {
+			Series history = getSeries(entity.getVal(), counter);
+			if (history != null)
+				since = since == 0 ? history.lastTime() : Math.min(since, history.lastTime());
+		}
+		if (since > 0) {
+			Calendar start = Calendar.getInstance();
+			start.setTimeInMillis(since);
+			qSpec.setStartTime(start);
+		} else {
+			qSpec.setMaxSample(historySize);
+		}
+		return qSpec;
+	}
+
+	// sampleInfoCSV is "interval,timestamp,interval,timestamp,..." and each series "value,value,..."
+	private void storeCSV(PerfEntityMetricCSV metric, Map<Integer,String> counters) {
+		if (metric.getSampleInfoCSV() == null || metric.getValue() == null)
+			return;
+		String[] info = metric.getSampleInfoCSV().split(",");
+		long[] times = new long[info.length / 2];
+		for (int i = 0; i < times.length; i++)
+			times[i] = Instant.parse(info[i * 2 + 1]).toEpochMilli();
+
+		for (PerfMetricSeriesCSV csv : metric.getValue()) {
+			String counter = counters.get(csv.getId().getCounterId());
+			if (counter == null || csv.getValue() == null)
+				continue;
+			Series history = seriesOf(metric.getEntity().getVal(), counter);
+			String[] values = csv.getValue().split(",");
+			for (int i = 0; i < values.length && i < times.length; i++) {
+				if (!values[i].isEmpty())
+					history.add(times[i], Long.parseLong(values[i]));
+			}
+		}
+	}
+
+	private void store(PerfEntityMetric metric, Map<Integer,String> counters) {
+		PerfSampleInfo[] infos = metric.getSampleInfo();
+		if (infos == null || metric.getValue() == null)
+			return;
+		for (PerfMetricSeries value : metric.getValue()) {
+			String counter = counters.get(value.getId().getCounterId());
+			if (counter == null || !(value instanceof PerfMetricIntSeries))
+				continue;
+			Series history = seriesOf(metric.getEntity().getVal(), counter);
+			long[] longs = ((PerfMetricIntSeries) value).getValue();
+			for (int i = 0; longs != null && i < longs.length && i < infos.length; i++)
+				history.add(infos[i].getTimestamp().getTimeInMillis(), longs[i]);
+		}
+	}
+
+	private Series seriesOf(String entityMor, String counter) {
+		String key = entityMor + "|" + counter;
+		Series history = series.get(key);
+		if (history == null) {
+			history = new Series(historySize);
+			Series existing = series.putIfAbsent(key, history);
+			if (existing != null)
+				history = existing;
+		}
+		return history;
+	}
+
+	private static ManagedObjectReference mor(String type, String val) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.setVal(val);
+		return mor;
+	}
+}
@@ -0,0 +1,387 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.Datastore;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+
+public class PlacementEngine {
+	private static PlacementEngine instance;
+
+	// What a VM needs from its new vHost, a migration also needs the vHost to see the VM's datastores
+	public static class Demand {
+		public final long cpuMhz;
+		public final long memoryMB;
+		public final long storage;
+		public final List<String> datastores;
+
+		public Demand(long cpuMhz, long memoryMB, long storage) {
+			this(cpuMhz, memoryMB, storage, Collections.<String>emptyList());
+		}
+
+		public Demand(long cpuMhz, long memoryMB, long storage, List<String> datastores) {
+			this.cpuMhz = cpuMhz;
+			this.memoryMB = memoryMB;
+			this.storage = storage;
+			this.datastores = datastores;
+		}
+	}
+
+	// Best vHost, its resource pool and datastore for one VM
+	public static class Placement {
+		public final String hostMor;
+		public final String hostName;
+		public final String poolMor;
+		public final String datastoreMor;
+
+		Placement(String hostMor, String hostName, String poolMor, String datastoreMor) {
+			this.hostMor = hostMor;
+			this.hostName = hostName;
+			this.poolMor = poolMor;
+			this.datastoreMor = datastoreMor;
+		}
+	}
+
+	// Cached capacity of one vHost
+	private static class HostModel {
+		final String mor;
+		String name;
+		boolean connected;
+		long cpuCapacityMhz;
+		long memoryCapacityMB;
+		long cpuUsedMhz;
+		long memoryUsedMB;
+		String parentMor;
+		String poolMor;
+		List<String> datastores = new ArrayList<String>();
+
+		HostModel(String mor) {
+			this.mor = mor;
+		}
+	}
+
+	// vHosts and free datastore space as read at one time, never changed once published
+	private static class Model {
+		final Map<String,HostModel> hosts;
+		final Map<String,Long> datastoreFree;
+		final long refreshedAt;
+
+		Model(Map<String,HostModel> hosts, Map<String,Long> datastoreFree, long refreshedAt) {
+			this.hosts = hosts;
+			this.datastoreFree = datastoreFree;
+			this.refreshedAt = refreshedAt;
+		}
+	}
+
+	// Capacity held for a recovery that is still running
+	private static class Reservation {
+		final Placement placement;
+		final Demand demand;
+
+		Reservation(Placement placement, Demand demand) {
+			this.placement = placement;
+			this.demand = demand;
+		}
+	}
+
+	private final long cacheTTL;
+	private final double antiAffinityWeight;
+	private volatile Model model = new Model(new HashMap<String,HostModel>(), new HashMap<String,Long>(), 0);
+	private volatile boolean invalidated = false;
+	private final Object refreshLock = new Object();
+	private final Map<String,Reservation> reservations = new HashMap<String,Reservation>();
+
+	public PlacementEngine(long cacheTTL, double antiAffinityWeight) {
+		this.cacheTTL = cacheTTL;
+		this.antiAffinityWeight = antiAffinityWeight;
+	}
+
+	// Function to get the shared engine, created from the first properties seen
+	public static synchronized PlacementEngine getInstance(Properties prop) {
+		if (instance == null)
+			instance = new PlacementEngine(Long.parseLong(prop.getProperty("PlacementCacheTTL", "30000")),
+					Double.parseDouble(prop.getProperty("PlacementAntiAffinityWeight", "0.1")));
+		return instance;
+	}
+
+	// Function to get what a VM needs, CPU from the collected history when there is one
+	public static Demand demandOf(VirtualMachine vm) throws Exception {
+		long cpu = -1;
+		PerfCollector perfCollector = AvailabilityManager.perfCollector;
+		if (perfCollector != null)
+			cpu = Math.round(perfCollector.getAverage(vm.getMOR().getVal(), "cpu.usagemhz.average", 15));
+		if (cpu < 0) {
+			Integer overall = vm.getSummary().getQuickStats().getOverallCpuUsage();
+			cpu = overall != null ? overall : 0;
+		}
+		long memory = vm.getConfig() != null ? vm.getConfig().getHardware().getMemoryMB() : 0;
+		long storage = vm.getSummary().getStorage() != null ? vm.getSummary().getStorage().getCommitted() : 0;
+		List<String> datastores = new ArrayList<String>();
+		Datastore[] vmDatastores = vm.getDatastores();
+		if (vmDatastores != null) {
+			for (Datastore datastore : vmDatastores)
+				datastores.add(datastore.getMOR().getVal());
+		}
+		return new Demand(cpu, memory, storage, datastores);
+	}
+
+	// Function to pick and reserve the best vHost, pool and datastore for a VM, null if nothing fits
+	public Placement choose(String vmName, Demand demand, Set<String> excludedHosts, boolean needsDatastore,
+			Properties prop) throws Exception {
+		// vCenter and the vHosts are read without the lock, only the reservations are kept under it
+		Model current = current(prop);
+		synchronized (this) {
+			return choose(current, vmName, demand, excludedHosts, needsDatastore);
+		}
+	}
+
+	private Placement choose(Model current, String vmName, Demand demand, Set<String> excludedHosts, boolean needsDatastore) {
+		release(vmName);
+
+		Map<String,Integer> inFlight = new HashMap<String,Integer>();
+		Map<String,long[]> reserved = new HashMap<String,long[]>();
+		Map<String,Long> reservedStorage = new HashMap<String,Long>();
+		for (Reservation reservation : reservations.values()) {
+			String hostMor = reservation.placement.hostMor;
+			inFlight.put(hostMor, inFlight.containsKey(hostMor) ? inFlight.get(hostMor) + 1 : 1);
+			long[] held = reserved.containsKey(hostMor) ? reserved.get(hostMor) : new long[2];
+			held[0] += reservation.demand.cpuMhz;
+			held[1] += reservation.demand.memoryMB;
+			reserved.put(hostMor, held);
+			String datastoreMor = reservation.placement.datastoreMor;
+			if (datastoreMor != null)
+				reservedStorage.put(datastoreMor, (reservedStorage.containsKey(datastoreMor) ? reservedStorage.get(datastoreMor) : 0)
+						+ reservation.demand.storage);
+		}
+
+		Placement best = null;
+		double bestScore = 0;
+		for (HostModel host : current.hosts.values()) {
+			if (!host.connected || host.poolMor == null || excludedHosts.contains(host.mor) || excludedHosts.contains(host.name))
+				continue;
+			// A migrated VM keeps its disks where they are
+			if (!needsDatastore && !host.datastores.containsAll(demand.datastores))
+				continue;
+
+			// Headroom left after what is running, what is being recovered and this VM
+			long[] held = reserved.containsKey(host.mor) ? reserved.get(host.mor) : new long[2];
+			double cpuHeadroom = (double) (host.cpuCapacityMhz - usedCpu(host) - held[0] - demand.cpuMhz) / Math.max(1, host.cpuCapacityMhz);
+			double memoryHeadroom = (double) (host.memoryCapacityMB - usedMemory(host) - held[1] - demand.memoryMB) / Math.max(1, host.memoryCapacityMB);
+			if (cpuHeadroom < 0 || memoryHeadroom < 0)
+				continue;
+
+			String datastoreMor = null;
+			long datastoreRoom = -1;
+			for (String candidate : host.datastores) {
+				Long free = current.datastoreFree.get(candidate);
+				if (free == null)
+					continue;
+				long room = free - (reservedStorage.containsKey(candidate) ? reservedStorage.get(candidate) : 0) - demand.storage;
+				if (room >= 0 && room > datastoreRoom) {
+					datastoreMor = candidate;
+					datastoreRoom = room;
+				}
+			}
+			if (needsDatastore && datastoreMor == null)
+				continue;
+
+			// Spread concurrent recoveries over the vHosts
+			double score = Math.min(cpuHeadroom, memoryHeadroom)
+					- antiAffinityWeight * (inFlight.containsKey(host.mor) ? inFlight.get(host.mor) : 0);
+			if (best == null || score > bestScore) {
+				best = new Placement(host.mor, host.name, host.poolMor, datastoreMor);
+				bestScore = score;
+			}
+		}
+
+		if (best != null)
+			reservations.put(vmName, new Reservation(best, demand));
+		return best;
+	}
+
+	// Function to free the capacity held for a VM once its recovery is done
+	public synchronized void release(String vmName) {
+		reservations.remove(vmName);
+	}
+
+	// Function to drop the cached model, the next choice reads vCenter again
+	public void invalidate() {
+		invalidated = true;
+	}
+
+	// Used CPU and memory from the collected history when there is one, quickStats otherwise
+	private static long usedCpu(HostModel host) {
+		PerfCollector perfCollector = AvailabilityManager.perfCollector;
+		double average = perfCollector != null ? perfCollector.getAverage(host.mor, "cpu.usagemhz.average", 3) : -1;
+		return average >= 0 ? Math.round(average) : host.cpuUsedMhz;
+	}
+
+	private static long usedMemory(HostModel host) {
+		PerfCollector perfCollector = AvailabilityManager.perfCollector;
+		double average = perfCollector != null ? perfCollector.getAverage(host.mor, "mem.consumed.average", 3) : -1;
+		return average >= 0 ? Math.round(average) / 1024 : host.memoryUsedMB;
+	}
+
+	// The cached model, read again once it is older than the TTL, one refresh at a time while the others wait for it
+	private Model current(Properties prop) throws Exception {
+		Model current = model;
+		if (!invalidated && System.currentTimeMillis() - current.refreshedAt < cacheTTL)
+			return current;
+		synchronized (refreshLock) {
+			current = model;
+			if (!invalidated && System.currentTimeMillis() - current.refreshedAt < cacheTTL)
+				return current;
+			// An invalidate during the refresh makes the next choice read again
+			invalidated = false;
+			current = refresh(prop);
+			model = current;
+			return current;
+		}
+	}
+
+	private static Model refresh(Properties prop) throws Exception {
+		Map<String,HostModel> models = new HashMap<String,HostModel>();
+		Map<String,Long> free = new HashMap<String,Long>();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			ContainerView view = si.getViewManager().createContainerView(si.getRootFolder(),
+					new String[] { "HostSystem", "Datastore", "ComputeResource" }, true);
+			try {
+				Map<String,String> pools = new HashMap<String,String>();
+				for (ObjectContent oc : retrieve(si.getPropertyCollector(), view))
+					read(oc, models, free, pools);
+				for (HostModel host : models.values())
+					host.poolMor = pools.get(host.parentMor);
+			} finally {
+				view.destroyView();
+			}
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		long refreshedAt = System.currentTimeMillis();
+
+		// vHosts that vCenter still shows connected but do not answer are left out
+		List<String> names = new ArrayList<String>();
+		for (HostModel host : models.values())
+			names.add(host.name);
+		Map<String,ReachabilityProber.Result> probes = ReachabilityProber.getInstance(prop).probeAll(names);
+		for (HostModel host : models.values()) {
+			ReachabilityProber.Result result = probes.get(host.name);
+			if (result == null || !result.reachable)
+				host.connected = false;
+		}
+		return new Model(models, free, refreshedAt);
+	}
+
+	// One paged retrieval of every vHost, datastore and compute resource
+	private static Collection<ObjectContent> retrieve(PropertyCollector pc, ContainerView view) throws Exception {
+		TraversalSpec traversal = new TraversalSpec();
+		traversal.setName("traverseView");
+		traversal.setType("ContainerView");
+		traversal.setPath("view");
+		traversal.setSkip(Boolean.FALSE);
+
+		ObjectSpec oSpec = new ObjectSpec();
+		oSpec.setObj(view.getMOR());
+		oSpec.setSkip(Boolean.TRUE);
+		oSpec.setSelectSet(new SelectionSpec[] { traversal });
+
+		PropertySpec hostSpec = new PropertySpec();
+		hostSpec.setType("HostSystem");
+		hostSpec.setPathSet(new String[] { "name", "runtime.connectionState", "runtime.inMaintenanceMode", "summary.hardware", "summary.quickStats", "parent", "datastore" });
+		PropertySpec datastoreSpec = new PropertySpec();
+		datastoreSpec.setType("Datastore");
+		datastoreSpec.setPathSet(new String[] { "summary" });
+		PropertySpec computeSpec = new PropertySpec();
+		computeSpec.setType("ComputeResource");
+		computeSpec.setPathSet(new String[] { "resourcePool" });
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { oSpec });
+		spec.setPropSet(new PropertySpec[] { hostSpec, datastoreSpec, computeSpec });
+
+		List<ObjectContent> objects = new ArrayList<ObjectContent>();
+		RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { spec }, new RetrieveOptions());
+		while (result != null) {
+			if (result.getObjects() != null) {
+				for (ObjectContent oc : result.getObjects())
+					objects.add(oc);
+			}
+			if (result.getToken() == null)
+				break;
+			result = pc.continueRetrievePropertiesEx(result.getToken());
+		}
+		return objects;
+	}
+
+	private static void read(ObjectContent oc, Map<String,HostModel> models, Map<String,Long> free, Map<String,String> pools) {
+		String type = oc.getObj().getType();
+		String mor = oc.getObj().getVal();
+		if (oc.getPropSet() == null)
+			return;
+
+		if ("HostSystem".equals(type)) {
+			HostModel host = new HostModel(mor);
+			boolean maintenance = false;
+			for (DynamicProperty property : oc.getPropSet()) {
+				Object value = PropertyCollectorUtil.convertProperty(property.getVal());
+				if ("name".equals(property.getName())) {
+					host.name = (String) value;
+				} else if ("runtime.connectionState".equals(property.getName())) {
+					host.connected = value == HostSystemConnectionState.connected;
+				} else if ("runtime.inMaintenanceMode".equals(property.getName())) {
+					maintenance = Boolean.TRUE.equals(value);
+				} else if ("summary.hardware".equals(property.getName())) {
+					HostHardwareSummary hardware = (HostHardwareSummary) value;
+					// Widened before multiplying so many fast cores cannot overflow an int
+					long cpuMhz = hardware.getCpuMhz();
+					host.cpuCapacityMhz = cpuMhz * hardware.getNumCpuCores();
+					host.memoryCapacityMB = hardware.getMemorySize() / (1024 * 1024);
+				} else if ("summary.quickStats".equals(property.getName())) {
+					HostListSummaryQuickStats stats = (HostListSummaryQuickStats) value;
+					host.cpuUsedMhz = stats.getOverallCpuUsage() != null ? stats.getOverallCpuUsage() : 0;
+					host.memoryUsedMB = stats.getOverallMemoryUsage() != null ? stats.getOverallMemoryUsage() : 0;
+				} else if ("parent".equals(property.getName())) {
+					host.parentMor = ((ManagedObjectReference) value).getVal();
+				} else if ("datastore".equals(property.getName()) && value instanceof ManagedObjectReference[]) {
+					for (ManagedObjectReference datastore : (ManagedObjectReference[]) value)
+						host.datastores.add(datastore.getVal());
+				}
+			}
+			// Warm spares wait in maintenance mode until a recovery takes them
+			if (maintenance)
+				host.connected = false;
+			models.put(mor, host);
+		} else if ("Datastore".equals(type)) {
+			DatastoreSummary summary = (DatastoreSummary) oc.getPropSet()[0].getVal();
+			if (summary != null && summary.isAccessible())
+				free.put(mor, summary.getFreeSpace());
+		} else if (oc.getPropSet()[0].getVal() != null) {
+			pools.put(mor, ((ManagedObjectReference) oc.getPropSet()[0].getVal()).getVal());
+		}
+	}
+}
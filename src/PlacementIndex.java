@@ -0,0 +1,100 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class PlacementIndex implements InventoryWatcher.Listener {
+	// VM to vHost, by VM name and by VM MOR
+	private final Map<String,String> hostByVMName = new ConcurrentHashMap<String,String>();
+	private final Map<String,String> hostByVMMor = new ConcurrentHashMap<String,String>();
+
+	// vHost to the names of the VMs it runs
+	private final Map<String,Set<String>> vmsByHost = new ConcurrentHashMap<String,Set<String>>();
+
+	// vHost MOR to name and back
+	private final Map<String,String> hostNames = new ConcurrentHashMap<String,String>();
+	private final Map<String,String> hostMors = new ConcurrentHashMap<String,String>();
+
+	// Function to get the vHost MOR a VM is running on
+	public String getHostMor(String vmName) {
+		return hostByVMName.get(vmName);
+	}
+
+	// Function to get the vHost name a VM is running on, same value as HealthManager.findVMvHostMapping
+	public String getHostName(String vmName) {
+		String hostMor = hostByVMName.get(vmName);
+		return hostMor == null ? null : hostNames.get(hostMor);
+	}
+
+	public String getHostMorByVMMor(String vmMor) {
+		return hostByVMMor.get(vmMor);
+	}
+
+	public String getHostMorByName(String hostName) {
+		return hostMors.get(hostName);
+	}
+
+	// Function to get the names of the VMs on a vHost
+	public Set<String> getVMsOnHost(String hostMor) {
+		Set<String> vms = vmsByHost.get(hostMor);
+		if (vms == null)
+			return Collections.emptySet();
+		synchronized (vms) {
+			return new HashSet<String>(vms);
+		}
+	}
+
+	public synchronized void vmChanged(InventoryWatcher.VMState previous, InventoryWatcher.VMState current) {
+		if (previous != null)
+			unplace(previous);
+		if (current.hostMor != null) {
+			hostByVMMor.put(current.mor, current.hostMor);
+			if (current.name != null) {
+				hostByVMName.put(current.name, current.hostMor);
+				vmsOf(current.hostMor).add(current.name);
+			}
+		}
+	}
+
+	public synchronized void vmRemoved(InventoryWatcher.VMState previous) {
+		unplace(previous);
+	}
+
+	public synchronized void hostChanged(InventoryWatcher.HostState previous, InventoryWatcher.HostState current) {
+		if (previous != null && previous.name != null)
+			hostMors.remove(previous.name);
+		if (current.name != null) {
+			hostNames.put(current.mor, current.name);
+			hostMors.put(current.name, current.mor);
+		}
+	}
+
+	public synchronized void hostRemoved(InventoryWatcher.HostState previous) {
+		hostNames.remove(previous.mor);
+		if (previous.name != null)
+			hostMors.remove(previous.name);
+		vmsByHost.remove(previous.mor);
+	}
+
+	private void unplace(InventoryWatcher.VMState vm) {
+		hostByVMMor.remove(vm.mor);
+		if (vm.name != null)
+			hostByVMName.remove(vm.name);
+		if (vm.hostMor != null && vm.name != null) {
+			Set<String> vms = vmsByHost.get(vm.hostMor);
+			if (vms != null)
+				vms.remove(vm.name);
+		}
+	}
+
+	private Set<String> vmsOf(String hostMor) {
+		Set<String> vms = vmsByHost.get(hostMor);
+		if (vms == null) {
+			vms = Collections.synchronizedSet(new HashSet<String>());
+			vmsByHost.put(hostMor, vms);
+		}
+		return vms;
+	}
+}
@@ -0,0 +1,331 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class ReachabilityProber {
+	// Number of recent round trips kept per target for the percentiles
+	private static final int RTT_SAMPLES = 64;
+
+	private static ReachabilityProber instance;
+
+	// Outcome of probing one target
+	public static class Result {
+		public final String target;
+		public final boolean reachable;
+		public final long rttMicros;
+		public final int attempts;
+
+		Result(String target, boolean reachable, long rttMicros, int attempts) {
+			this.target = target;
+			this.reachable = reachable;
+			this.rttMicros = rttMicros;
+			this.attempts = attempts;
+		}
+	}
+
+	// Timeout and retries for one target
+	public static class Policy {
+		public final long timeout;
+		public final int retries;
+
+		public Policy(long timeout, int retries) {
+			this.timeout = timeout;
+			this.retries = retries;
+		}
+	}
+
+	// Ring buffer of the last round trips of one target
+	private static class RttHistory {
+		private final long[] samples = new long[RTT_SAMPLES];
+		private int count = 0;
+		private int next = 0;
+
+		synchronized void add(long rttMicros) {
+			samples[next] = rttMicros;
+			next = (next + 1) % samples.length;
+			if (count < samples.length)
+				count++;
+		}
+
+		synchronized long percentile(double p) {
+			if (count == 0)
+				return -1;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(p / 100.0 * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+	}
+
+	// One outstanding TCP connect
+	private static class Attempt {
+		final String target;
+		final long started;
+
+		Attempt(String target, long started) {
+			this.target = target;
+			this.started = started;
+		}
+	}
+
+	private final int[] ports;
+	private final Policy defaultPolicy;
+	private final boolean icmpFallback;
+	private final Map<String,Policy> policies = new ConcurrentHashMap<String,Policy>();
+	private final ConcurrentHashMap<String,RttHistory> rtts = new ConcurrentHashMap<String,RttHistory>();
+	private final ExecutorService fallbackPool;
+
+	public ReachabilityProber(int[] ports, long timeout, int retries, boolean icmpFallback, int fallbackThreads) {
+		this.ports = ports;
+		this.defaultPolicy = new Policy(timeout, retries);
+		this.icmpFallback = icmpFallback;
+		this.fallbackPool = icmpFallback ? Executors.newFixedThreadPool(fallbackThreads) : null;
+	}
+
+	// Function to get the shared prober, created from the first properties seen
+	public static synchronized ReachabilityProber getInstance(Properties prop) {
+		if (instance == null) {
+			String[] portList = prop.getProperty("ProbePorts", "22,443,902").split(",");
+			int[] ports = new int[portList.length];
+			for (int i = 0; i < portList.length; i++)
+				ports[i] = Integer.parseInt(portList[i].trim());
+			instance = new ReachabilityProber(ports,
+					Long.parseLong(prop.getProperty("ProbeTimeout", "2000")),
+					Integer.parseInt(prop.getProperty("ProbeRetries", "2")),
+					Boolean.parseBoolean(prop.getProperty("ProbeIcmpFallback", "true")),
+					Integer.parseInt(prop.getProperty("ProbeFallbackThreads", "16")));
+		}
+		return instance;
+	}
+
+	// Function to replace the shared prober, e.g. with a simulated one in a load test
+	public static synchronized void setInstance(ReachabilityProber prober) {
+		instance = prober;
+	}
+
+	public void setPolicy(String target, Policy policy) {
+		policies.put(target, policy);
+	}
+
+	// Function to probe a single target
+	public boolean probe(String target) {
+		if (target == null)
+			return false;
+		return probeAll(Collections.singletonList(target)).get(target).reachable;
+	}
+
+	// Function to probe all targets concurrently, results in the order given
+	public Map<String,Result> probeAll(Collection<String> targets) {
+		Map<String,Result> results = new LinkedHashMap<String,Result>();
+		Map<String,Integer> attempts = new HashMap<String,Integer>();
+		for (String target : targets) {
+			if (target != null && !attempts.containsKey(target)) {
+				results.put(target, null);
+				attempts.put(target, 0);
+			}
+		}
+		List<String> pending = new ArrayList<String>(attempts.keySet());
+
+		// Every round connects to all pending targets at once
+		while (!pending.isEmpty()) {
+			Map<String,Long> reached = connectRound(pending);
+			List<String> retry = new ArrayList<String>();
+			for (String target : pending) {
+				int attempt = attempts.get(target) + 1;
+				attempts.put(target, attempt);
+				Long rtt = reached.get(target);
+				if (rtt != null) {
+					rttHistory(target).add(rtt);
+					results.put(target, new Result(target, true, rtt, attempt));
+				} else if (attempt <= policyOf(target).retries) {
+					retry.add(target);
+				}
+			}
+			pending = retry;
+		}
+
+		// Hosts that filter every probed port may still answer ICMP
+		List<String> unreached = new ArrayList<String>();
+		for (Map.Entry<String,Result> entry : results.entrySet()) {
+			if (entry.getValue() == null)
+				unreached.add(entry.getKey());
+		}
+		results.putAll(fallback(unreached, attempts));
+
+		return results;
+	}
+
+	// Round trip percentile in microseconds, -1 if the target was never reached
+	public long getRttPercentile(String target, double p) {
+		RttHistory history = rtts.get(target);
+		return history == null ? -1 : history.percentile(p);
+	}
+
+	public void shutdown() {
+		if (fallbackPool != null)
+			fallbackPool.shutdownNow();
+	}
+
+	// Non-blocking connects to every port of every target, one select loop until the longest timeout
+	private Map<String,Long> connectRound(List<String> targets) {
+		Map<String,Long> reached = new HashMap<String,Long>();
+		Selector selector = null;
+		try {
+			selector = Selector.open();
+			long now = System.nanoTime();
+			long deadline = now;
+			Map<String,Long> deadlines = new HashMap<String,Long>();
+
+			for (String target : targets) {
+				long targetDeadline = now + policyOf(target).timeout * 1000000L;
+				deadlines.put(target, targetDeadline);
+				deadline = Math.max(deadline, targetDeadline);
+
+				InetAddress address;
+				try {
+					address = InetAddress.getByName(target);
+				} catch (IOException e) {
+					continue;
+				}
+				for (int port : ports) {
+					SocketChannel channel = SocketChannel.open();
+					try {
+						channel.configureBlocking(false);
+						Attempt attempt = new Attempt(target, System.nanoTime());
+						if (channel.connect(new InetSocketAddress(address, port))) {
+							reached.put(target, (System.nanoTime() - attempt.started) / 1000);
+							channel.close();
+							break;
+						}
+						channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+					} catch (IOException e) {
+						channel.close();
+					}
+				}
+			}
+
+			while (!selector.keys().isEmpty()) {
+				long remaining = (deadline - System.nanoTime()) / 1000000L;
+				if (remaining <= 0)
+					break;
+				selector.select(remaining);
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					Attempt attempt = (Attempt) key.attachment();
+					SocketChannel channel = (SocketChannel) key.channel();
+					long rtt = (System.nanoTime() - attempt.started) / 1000;
+					try {
+						channel.finishConnect();
+						reached.put(attempt.target, rtt);
+					} catch (ConnectException e) {
+						// Only an answer from the host fails finishConnect this way, a refused connection still proves
+						// the host is up; a host that stays silent is left to the deadline
+						reached.put(attempt.target, rtt);
+					} catch (IOException e) {
+						// Unreachable on this port
+					}
+					key.cancel();
+					channel.close();
+				}
+				selector.selectedKeys().clear();
+
+				// Drop connects of targets that answered or ran out of time
+				long time = System.nanoTime();
+				for (SelectionKey key : selector.keys()) {
+					Attempt attempt = (Attempt) key.attachment();
+					if (reached.containsKey(attempt.target) || time > deadlines.get(attempt.target)) {
+						key.cancel();
+						key.channel().close();
+					}
+				}
+				selector.selectNow();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (selector != null) {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						// Closing anyway
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+		}
+		return reached;
+	}
+
+	// isReachable on the fallback pool, all targets at once
+	private Map<String,Result> fallback(List<String> targets, Map<String,Integer> attempts) {
+		Map<String,Result> results = new HashMap<String,Result>();
+		Map<String,Future<Result>> futures = new HashMap<String,Future<Result>>();
+		for (final String target : targets) {
+			final int attempt = attempts.get(target);
+			if (!icmpFallback) {
+				results.put(target, new Result(target, false, -1, attempt));
+				continue;
+			}
+			final long timeout = policyOf(target).timeout;
+			futures.put(target, fallbackPool.submit(new Callable<Result>() {
+				public Result call() throws Exception {
+					long started = System.nanoTime();
+					if (InetAddress.getByName(target).isReachable((int) timeout)) {
+						long rtt = (System.nanoTime() - started) / 1000;
+						rttHistory(target).add(rtt);
+						return new Result(target, true, rtt, attempt + 1);
+					}
+					return new Result(target, false, -1, attempt + 1);
+				}
+			}));
+		}
+		for (Map.Entry<String,Future<Result>> entry : futures.entrySet()) {
+			try {
+				results.put(entry.getKey(), entry.getValue().get());
+			} catch (Exception e) {
+				results.put(entry.getKey(), new Result(entry.getKey(), false, -1, attempts.get(entry.getKey()) + 1));
+			}
+		}
+		return results;
+	}
+
+	private Policy policyOf(String target) {
+		Policy policy = policies.get(target);
+		return policy != null ? policy : defaultPolicy;
+	}
+
+	private RttHistory rttHistory(String target) {
+		RttHistory history = rtts.get(target);
+		if (history == null) {
+			history = new RttHistory();
+			RttHistory existing = rtts.putIfAbsent(target, history);
+			if (existing != null)
+				history = existing;
+		}
+		return history;
+	}
+}
@@ -0,0 +1,486 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+
+public class RecoveryJournal {
+	private static RecoveryJournal instance;
+
+	// Steps of one recovery, everything before DONE or FAILED is resumed after a restart
+	public static final int CLONE_STARTED = 0;
+	public static final int CLONING = 1;
+	public static final int CLONED = 2;
+	public static final int DESTROYING = 3;
+	public static final int MIGRATING = 4;
+	public static final int DONE = 5;
+	public static final int FAILED = 6;
+	public static final int PROMOTING = 7;
+
+	private static final String CLONE_TASK = "VirtualMachine.clone";
+
+	private static final String SNAPSHOT_FILE = "journal.snapshot";
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// Latest step of one recovery
+	public static class Entry {
+		public final String vmName;
+		public final int step;
+		public final String taskMor;
+		public final long time;
+
+		Entry(String vmName, int step, String taskMor, long time) {
+			this.vmName = vmName;
+			this.step = step;
+			this.taskMor = taskMor;
+			this.time = time;
+		}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final int compactSegments;
+	private final Map<String,Entry> recoveries = new ConcurrentHashMap<String,Entry>();
+	private final Map<String,CompletableFuture<Boolean>> resumed = new ConcurrentHashMap<String,CompletableFuture<Boolean>>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "journal-resume-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Records waiting for the next flush, written and forced together
+	private final List<byte[]> pending = new ArrayList<byte[]>();
+	private long nextSeq = 1;
+	private long durableSeq = 0;
+	private IOException flushError;
+
+	private long segmentIndex = 0;
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private final List<File> segments = new ArrayList<File>();
+
+	RecoveryJournal(File dir, int segmentSize, int compactSegments) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.compactSegments = compactSegments;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Journal directory " + dir + " cannot be created");
+
+		long started = System.currentTimeMillis();
+		replay();
+		compact();
+		System.out.println("Recovery journal loaded " + recoveries.size() + " unfinished recoveries in "
+				+ (System.currentTimeMillis() - started) + " ms");
+
+		Thread flusher = new Thread("RecoveryJournal") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Function to get the shared journal, opened from the first properties seen
+	public static synchronized RecoveryJournal getInstance(Properties prop) throws IOException {
+		if (instance == null) {
+			instance = new RecoveryJournal(new File(prop.getProperty("JournalDir", "journal")),
+					Integer.parseInt(prop.getProperty("JournalSegmentSize", "1048576")),
+					Integer.parseInt(prop.getProperty("JournalCompactSegments", "4")));
+		}
+		return instance;
+	}
+
+	// Function to record a step of the recovery of a VM, returns once it is on disk
+	public void record(String vmName, int step, String taskMor) throws IOException {
+		Entry entry = new Entry(vmName, step, taskMor, System.currentTimeMillis());
+		byte[] record = encode(entry);
+		long seq;
+		synchronized (this) {
+			seq = nextSeq++;
+			pending.add(record);
+			apply(entry);
+			notifyAll();
+			while (durableSeq < seq && flushError == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while writing the recovery journal");
+				}
+			}
+			if (durableSeq < seq)
+				throw flushError;
+		}
+	}
+
+	public void recordTask(String vmName, int step, Task task) throws IOException {
+		record(vmName, step, task.getMOR().getVal());
+	}
+
+	// Same as record, for the callbacks of a recovery where a journal failure must not stop it
+	public void recordQuietly(String vmName, int step) {
+		try {
+			record(vmName, step, null);
+		} catch (IOException e) {
+			System.out.println("Recovery journal could not record VM " + vmName + ": " + e.getMessage());
+		}
+	}
+
+	public Entry get(String vmName) {
+		return recoveries.get(vmName);
+	}
+
+	public Map<String,Entry> getUnfinished() {
+		return Collections.unmodifiableMap(recoveries);
+	}
+
+	// Function to get the recovery of a VM resumed from the journal, null if there is none
+	public CompletableFuture<Boolean> getResumed(String vmName) {
+		return resumed.get(vmName);
+	}
+
+	// Function to finish or roll back the recoveries a previous run left half done
+	public void resume(Properties prop) {
+		for (final Entry entry : new ArrayList<Entry>(recoveries.values())) {
+			System.out.println("Resuming the recovery of VM " + entry.vmName + " from step " + entry.step);
+			final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+			resumed.put(entry.vmName, result);
+			result.whenComplete((recovered, e) -> resumed.remove(entry.vmName, result));
+			try {
+				resumeTask(entry, prop).whenCompleteAsync((succeeded, e) -> {
+					try {
+						result.complete(resumeStep(entry, e == null && succeeded, prop));
+					} catch (Exception ex) {
+						System.out.println("VM " + entry.vmName + " could not be resumed! " + ex.getMessage());
+						recordQuietly(entry.vmName, FAILED);
+						result.complete(false);
+					}
+				}, TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).getExecutor());
+			} catch (Exception e) {
+				System.out.println("VM " + entry.vmName + " could not be resumed! " + e.getMessage());
+				recordQuietly(entry.vmName, FAILED);
+				result.complete(false);
+			}
+		}
+	}
+
+	// The task an entry was waiting for, still running or already finished in vCenter. A task vCenter has dropped,
+	// or one that does not finish within JournalResumeTimeout, is judged by the clone instead
+	private CompletableFuture<Boolean> resumeTask(final Entry entry, final Properties prop) throws Exception {
+		Task task = findTask(entry, prop);
+		if (task == null)
+			return CompletableFuture.completedFuture(entry.step == CLONED || isCloneUp(entry, prop));
+		final CompletableFuture<Boolean> finished = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).track(task)
+				.thenApply((TaskInfo info) -> info.getState() == TaskInfoState.success);
+		long timeout = Long.parseLong(prop.getProperty("JournalResumeTimeout", "3600000"));
+		timer.schedule(() -> finished.completeExceptionally(
+				new TimeoutException("Task " + entry.taskMor + " did not finish")), timeout, TimeUnit.MILLISECONDS);
+		return finished.exceptionally(e -> isCloneUp(entry, prop));
+	}
+
+	// The journaled task while vCenter still has it. A clone started without its task on record is looked for
+	// among the running tasks of the VM, so a clone still being created is waited for and not rolled back
+	private static Task findTask(Entry entry, Properties prop) throws Exception {
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			if (entry.taskMor != null) {
+				ManagedObjectReference mor = new ManagedObjectReference();
+				mor.setType("Task");
+				mor.setVal(entry.taskMor);
+				Task task = new Task(si.getServerConnection(), mor);
+				try {
+					task.getTaskInfo();
+					return task;
+				} catch (Exception e) {
+					// vijava hands the fault of a property read back wrapped in a RuntimeException
+					if (e instanceof ManagedObjectNotFound || e.getCause() instanceof ManagedObjectNotFound)
+						return null;
+					throw e;
+				}
+			}
+			if (entry.step != CLONE_STARTED)
+				return null;
+			VirtualMachine vm = (VirtualMachine) new InventoryNavigator(si.getRootFolder()).searchManagedEntity("VirtualMachine", entry.vmName);
+			if (vm == null || vm.getRecentTasks() == null)
+				return null;
+			for (Task task : vm.getRecentTasks()) {
+				TaskInfo info = task.getTaskInfo();
+				if (CLONE_TASK.equals(info.getDescriptionId())
+						&& (info.getState() == TaskInfoState.running || info.getState() == TaskInfoState.queued)) {
+					System.out.println("VM " + entry.vmName + " is still being cloned, waiting for " + task.getMOR().getVal());
+					return task;
+				}
+			}
+			return null;
+		} finally {
+			SessionPoolManager.release(si);
+		}
+	}
+
+	// Tasks are dropped by vCenter some time after they finish, a powered on clone is taken as finished
+	private static boolean isCloneUp(Entry entry, Properties prop) {
+		if (entry.step != CLONE_STARTED && entry.step != CLONING)
+			return false;
+		try {
+			VirtualMachine vm = find(entry.vmName + "_recovered", prop);
+			return vm != null && vm.getRuntime().getPowerState() == VirtualMachinePowerState.poweredOn;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	@SuppressWarnings("fallthrough")
+	private boolean resumeStep(Entry entry, boolean succeeded, Properties prop) throws Exception {
+		HealthManager healthManager = new HealthManager(entry.vmName);
+		String recovered = entry.vmName + "_recovered";
+		switch (entry.step) {
+		case CLONE_STARTED:
+		case CLONING:
+			// Without a finished clone task the clone cannot be trusted, it is removed and the check starts over
+			if (!succeeded) {
+				if (exists(recovered, prop) && healthManager.deleteVM(recovered, prop))
+					System.out.println("Rolled back the partial clone of VM " + entry.vmName);
+				record(entry.vmName, FAILED, null);
+				return false;
+			}
+			record(entry.vmName, CLONED, null);
+			// Fall through to the delete of the stale VM
+		case CLONED:
+		case PROMOTING:
+			// A linked clone still reads the stale VM's disks until they are promoted
+			if (HealthManager.isLinkedClone(entry.vmName, prop) && !(entry.step == PROMOTING && succeeded)
+					&& !healthManager.promoteDisks(entry.vmName, prop)) {
+				System.out.println("VM " + entry.vmName + " has been recovered as a linked clone. Please consolidate its disks and delete stale VM manually");
+				record(entry.vmName, DONE, null);
+				return true;
+			}
+			// Fall through to the delete of the stale VM
+		case DESTROYING:
+			if (exists(entry.vmName, prop) && !healthManager.deleteVM(entry.vmName, prop))
+				System.out.println("VM " + entry.vmName + " has been recovered and provisioned. Please delete stale VM manually");
+			else
+				System.out.println("VM " + entry.vmName + " has been recovered and provisioned");
+			record(entry.vmName, DONE, null);
+			return true;
+		default:
+			// A migration either moved the VM or left it where it was
+			record(entry.vmName, succeeded ? DONE : FAILED, null);
+			return succeeded;
+		}
+	}
+
+	private static boolean exists(String vmName, Properties prop) throws Exception {
+		return find(vmName, prop) != null;
+	}
+
+	private static VirtualMachine find(String vmName, Properties prop) throws Exception {
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			return (VirtualMachine) new InventoryNavigator(si.getRootFolder()).searchManagedEntity("VirtualMachine", vmName);
+		} finally {
+			SessionPoolManager.release(si);
+		}
+	}
+
+	private void apply(Entry entry) {
+		if (entry.step == DONE || entry.step == FAILED)
+			recoveries.remove(entry.vmName);
+		else
+			recoveries.put(entry.vmName, entry);
+	}
+
+	// Write everything pending, force it once, then wake up every writer of the batch
+	private void flushLoop() {
+		while (true) {
+			List<byte[]> batch;
+			long batchEnd;
+			synchronized (this) {
+				while (pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				batch = new ArrayList<byte[]>(pending);
+				pending.clear();
+				batchEnd = nextSeq - 1;
+			}
+			try {
+				for (byte[] record : batch)
+					append(record);
+				segment.force();
+				synchronized (this) {
+					durableSeq = batchEnd;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				System.out.println("Recovery journal write failed: " + e);
+				synchronized (this) {
+					flushError = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	// Record is length, CRC32, then the entry, a zero length marks the end of a segment
+	private void append(byte[] record) throws IOException {
+		if (record.length + 12 > segmentSize)
+			throw new IOException("Journal record larger than a segment");
+		if (segment.remaining() < record.length + 12) {
+			segment.force();
+			if (segments.size() >= compactSegments)
+				compact();
+			else
+				openSegment();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		segment.putInt(record.length);
+		segment.putInt((int) crc.getValue());
+		segment.put(record);
+	}
+
+	private void openSegment() throws IOException {
+		closeSegment();
+		File file = new File(dir, SEGMENT_PREFIX + String.format("%016d", segmentIndex++) + SEGMENT_SUFFIX);
+		segmentFile = new RandomAccessFile(file, "rw");
+		segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segments.add(file);
+	}
+
+	private void closeSegment() throws IOException {
+		if (segmentFile != null) {
+			segment.force();
+			segmentFile.close();
+			segmentFile = null;
+			segment = null;
+		}
+	}
+
+	// State of every unfinished recovery written as one file, the segments it covers are dropped
+	private void compact() throws IOException {
+		closeSegment();
+		File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			for (Entry entry : recoveries.values())
+				writer.write(new String(encode(entry), StandardCharsets.UTF_8) + "\n");
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File snapshot = new File(dir, SNAPSHOT_FILE);
+		if (!temp.renameTo(snapshot)) {
+			snapshot.delete();
+			temp.renameTo(snapshot);
+		}
+		for (File file : listSegments())
+			file.delete();
+		segments.clear();
+		openSegment();
+	}
+
+	// Snapshot first, then every segment in the order it was written
+	private void replay() throws IOException {
+		File snapshot = new File(dir, SNAPSHOT_FILE);
+		if (snapshot.exists()) {
+			for (String line : Files.readAllLines(snapshot.toPath(), StandardCharsets.UTF_8)) {
+				Entry entry = decode(line);
+				if (entry != null)
+					apply(entry);
+			}
+		}
+		for (File file : listSegments()) {
+			String name = file.getName();
+			segmentIndex = Math.max(segmentIndex,
+					Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) + 1);
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				while (buffer.remaining() >= 8) {
+					int length = buffer.getInt();
+					int checksum = buffer.getInt();
+					if (length <= 0 || length > buffer.remaining())
+						break;
+					byte[] record = new byte[length];
+					buffer.get(record);
+					CRC32 crc = new CRC32();
+					crc.update(record);
+					// A torn write at the end of the last segment
+					if ((int) crc.getValue() != checksum)
+						break;
+					Entry entry = decode(new String(record, StandardCharsets.UTF_8));
+					if (entry != null)
+						apply(entry);
+				}
+			} catch (BufferUnderflowException e) {
+				// Truncated segment, everything before it was applied
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private File[] listSegments() {
+		File[] files = dir.listFiles((d, name) -> name.matches(SEGMENT_PREFIX + "\\d{16}" + SEGMENT_SUFFIX.replace(".", "\\.")));
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	// vmName, step, task MOR and time separated by tabs
+	private static byte[] encode(Entry entry) {
+		return (entry.vmName + "\t" + entry.step + "\t" + (entry.taskMor == null ? "" : entry.taskMor) + "\t" + entry.time)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static Entry decode(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length != 4)
+			return null;
+		try {
+			return new Entry(fields[0], Integer.parseInt(fields[1]), fields[2].isEmpty() ? null : fields[2],
+					Long.parseLong(fields[3]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
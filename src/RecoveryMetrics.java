@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class RecoveryMetrics implements RecoveryMetricsMBean {
+	// Stages of a recovery, timed in milliseconds
+	public static final String DETECTION = "detection";
+	public static final String ALARM_CHECK = "alarm_check";
+	public static final String HOST_TEST = "host_test";
+	public static final String CLONE = "clone";
+	public static final String MIGRATE = "migrate";
+	public static final String DELETE = "delete";
+	public static final String PROMOTE = "promote";
+	public static final String RECOVERY = "recovery";
+
+	// Counters of vCenter work
+	public static final String LOGINS = "vcenter_logins";
+	public static final String SESSION_BORROWS = "vcenter_session_borrows";
+	public static final String TASKS = "vcenter_tasks";
+	public static final String TASK_FAILURES = "vcenter_task_failures";
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 100 };
+
+	// Keyed by stage for all vHosts and by stage and vHost name
+	private static final ConcurrentHashMap<String,Histogram> stages = new ConcurrentHashMap<String,Histogram>();
+	private static final ConcurrentHashMap<String,Histogram> hostStages = new ConcurrentHashMap<String,Histogram>();
+	private static final ConcurrentHashMap<String,LongAdder> counters = new ConcurrentHashMap<String,LongAdder>();
+
+	private static HttpServer server;
+
+	// Function to record how long a stage took, host is the vHost name or null when not known
+	public static void record(String stage, String host, long millis) {
+		histogram(stages, stage).record(millis);
+		if (host != null)
+			histogram(hostStages, stage + "|" + host).record(millis);
+	}
+
+	// Same as record, from a start time taken with System.currentTimeMillis
+	public static void recordSince(String stage, String host, long start) {
+		record(stage, host, System.currentTimeMillis() - start);
+	}
+
+	public static void increment(String counter) {
+		LongAdder adder = counters.get(counter);
+		if (adder == null) {
+			adder = new LongAdder();
+			LongAdder existing = counters.putIfAbsent(counter, adder);
+			if (existing != null)
+				adder = existing;
+		}
+		adder.increment();
+	}
+
+	public static Histogram getStage(String stage) {
+		return stages.get(stage);
+	}
+
+	private static Histogram histogram(ConcurrentHashMap<String,Histogram> histograms, String key) {
+		Histogram histogram = histograms.get(key);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(key, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	// Function to serve the metrics on MetricsBindAddress:MetricsPort/metrics and register them in JMX, once
+	public static synchronized void start(Properties prop) {
+		if (server != null)
+			return;
+		int port = Integer.parseInt(prop.getProperty("MetricsPort", "9404"));
+		if (port <= 0)
+			return;
+		try {
+			server = HttpServer.create(new InetSocketAddress(prop.getProperty("MetricsBindAddress", "127.0.0.1"), port), 0);
+			server.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = report().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					try {
+						out.write(body);
+					} finally {
+						out.close();
+					}
+				}
+			});
+			server.start();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new RecoveryMetrics(),
+					new ObjectName("AvailabilityManager:type=RecoveryMetrics"));
+			System.out.println("Recovery metrics served on port " + port);
+		} catch (Exception e) {
+			System.out.println("Recovery metrics endpoint could not be started: " + e);
+		}
+	}
+
+	// Prometheus text format, stages in milliseconds
+	public static String report() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String,LongAdder> counter : new TreeMap<String,LongAdder>(counters).entrySet())
+			out.append("dr_").append(counter.getKey()).append("_total ").append(counter.getValue().sum()).append('\n');
+		for (Map.Entry<String,Histogram> stage : new TreeMap<String,Histogram>(stages).entrySet())
+			appendHistogram(out, stage.getKey(), null, stage.getValue());
+		for (Map.Entry<String,Histogram> stage : new TreeMap<String,Histogram>(hostStages).entrySet()) {
+			String[] key = stage.getKey().split("\\|", 2);
+			appendHistogram(out, key[0], key[1], stage.getValue());
+		}
+		return out.toString();
+	}
+
+	private static void appendHistogram(StringBuilder out, String stage, String host, Histogram histogram) {
+		String labels = host == null ? "" : "host=\"" + host.replace("\"", "\\\"") + "\",";
+		String name = "dr_stage_" + stage + "_ms";
+		for (double p : PERCENTILES) {
+			out.append(name).append("{").append(labels).append("quantile=\"").append(p / 100).append("\"} ")
+					.append(histogram.getPercentile(p)).append('\n');
+		}
+		String suffix = host == null ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+		out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+		out.append(name).append("_sum").append(suffix).append(' ').append(histogram.getSum()).append('\n');
+	}
+
+	public String getReport() {
+		return report();
+	}
+
+	public long getCounter(String counter) {
+		LongAdder adder = counters.get(counter);
+		return adder == null ? 0 : adder.sum();
+	}
+
+	public long getPercentile(String stage, double p) {
+		Histogram histogram = stages.get(stage);
+		return histogram == null ? 0 : histogram.getPercentile(p);
+	}
+}
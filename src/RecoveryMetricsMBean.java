@@ -0,0 +1,8 @@
+// JMX view of RecoveryMetrics
+public interface RecoveryMetricsMBean {
+	String getReport();
+
+	long getCounter(String counter);
+
+	long getPercentile(String stage, double p);
+}
@@ -0,0 +1,363 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.vmware.vim25.ComputeResourceConfigSpec;
+import com.vmware.vim25.HostConnectSpec;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineMovePriority;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRelocateDiskMoveOptions;
+import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class RecoveryPlanner {
+	private static RecoveryPlanner instance;
+
+	// Recovery of every VM of one failed vHost
+	private class HostRecovery {
+		final String hostName;
+		final Map<String,CompletableFuture<Boolean>> vms = new LinkedHashMap<String,CompletableFuture<Boolean>>();
+		CompletableFuture<Void> done;
+
+		HostRecovery(String hostName) {
+			this.hostName = hostName;
+		}
+	}
+
+	private final Map<String,HostRecovery> recoveries = new HashMap<String,HostRecovery>();
+	private final ExecutorService planners = Executors.newCachedThreadPool();
+	private final ExecutorService workers;
+
+	public RecoveryPlanner(int maxConcurrent) {
+		this.workers = Executors.newFixedThreadPool(maxConcurrent);
+	}
+
+	// Function to get the shared planner, created from the first properties seen
+	public static synchronized RecoveryPlanner getInstance(Properties prop) {
+		if (instance == null)
+			instance = new RecoveryPlanner(Integer.parseInt(prop.getProperty("RecoveryMaxConcurrent", "4")));
+		return instance;
+	}
+
+	// Function to get the recovery of a VM whose vHost is not reachable, the first VM of a vHost starts it for all its VMs
+	public synchronized CompletableFuture<Boolean> hostFailed(final String vmName, final Properties prop) throws Exception {
+		final String hostName = new HealthManager(vmName).findVMvHostMapping(vmName, prop);
+		if (hostName == null)
+			return CompletableFuture.completedFuture(false);
+
+		HostRecovery recovery = recoveries.get(hostName);
+		if (recovery != null && !recovery.done.isDone()) {
+			CompletableFuture<Boolean> vm = recovery.vms.get(vmName);
+			if (vm != null)
+				return vm;
+			// Not on the vHost when the plan was made, handled by a new plan afterwards
+			return recovery.done.thenComposeAsync(x -> {
+				try {
+					return hostFailed(vmName, prop);
+				} catch (Exception e) {
+					return CompletableFuture.completedFuture(false);
+				}
+			}, planners);
+		}
+
+		recovery = new HostRecovery(hostName);
+		List<String> vmNames = new ArrayList<String>();
+		PlacementIndex placementIndex = AvailabilityManager.placementIndex;
+		String hostMor = placementIndex != null ? placementIndex.getHostMorByName(hostName) : null;
+		if (hostMor != null)
+			vmNames.addAll(placementIndex.getVMsOnHost(hostMor));
+		if (!vmNames.contains(vmName))
+			vmNames.add(vmName);
+		Collections.sort(vmNames);
+		for (String name : vmNames)
+			recovery.vms.put(name, new CompletableFuture<Boolean>());
+		recovery.done = CompletableFuture.allOf(recovery.vms.values().toArray(new CompletableFuture<?>[0]));
+		recoveries.put(hostName, recovery);
+
+		System.out.println("vHost " + hostName + " has failed, planning the recovery of " + vmNames.size() + " VMs");
+		final HostRecovery started = recovery;
+		planners.execute(new Runnable() {
+			public void run() {
+				recover(started, prop);
+			}
+		});
+		return recovery.vms.get(vmName);
+	}
+
+	public void shutdown() {
+		planners.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	// Try the vHost itself once, otherwise spread its VMs over the surviving vHosts
+	private void recover(HostRecovery recovery, Properties prop) {
+		try {
+			String anyVM = recovery.vms.keySet().iterator().next();
+			HealthManager healthManager = new HealthManager(anyVM);
+
+			// Case 1: make the vHost alive from its snapshot and recover the VMs in place
+			if (healthManager.provisionvHost(anyVM, prop) && healthManager.testVHostConnection(anyVM, prop)) {
+				System.out.println("vHost " + recovery.hostName + " is reachable again, provisioning its VMs...");
+				for (Map.Entry<String,CompletableFuture<Boolean>> entry : recovery.vms.entrySet())
+					runInPlace(entry.getKey(), entry.getValue(), prop);
+				return;
+			}
+
+			// Clone from the snapshots while the datastores are still readable, migrate otherwise
+			boolean clone = healthManager.testVHostConnection(anyVM, prop);
+			List<String> pending = new ArrayList<String>(recovery.vms.keySet());
+			pending = planAndRun(recovery, pending, clone, prop);
+
+			// Case 3b / 4b: add the standby vHost once and plan what is left onto it
+			if (!pending.isEmpty() && addStandbyHost(prop))
+				pending = planAndRun(recovery, pending, clone, prop);
+
+			for (String vmName : pending) {
+				System.out.println("VM " + vmName + " could not be recovered, no vHost has capacity for it!");
+				recovery.vms.get(vmName).complete(false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			for (CompletableFuture<Boolean> vm : recovery.vms.values())
+				vm.complete(false);
+		}
+	}
+
+	// Compute one plan for the VMs and start it, returns the VMs that did not fit
+	private List<String> planAndRun(HostRecovery recovery, List<String> vmNames, boolean clone, Properties prop) throws Exception {
+		PlacementEngine placementEngine = PlacementEngine.getInstance(prop);
+		Set<String> excluded = Collections.singleton(recovery.hostName);
+		List<String> unplaced = new ArrayList<String>();
+		final Map<String,PlacementEngine.Demand> demands = new HashMap<String,PlacementEngine.Demand>();
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
+			for (String vmName : vmNames) {
+				VirtualMachine vm = (VirtualMachine) new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmName);
+				if (vm == null)
+					unplaced.add(vmName);
+				else
+					demands.put(vmName, PlacementEngine.demandOf(vm));
+			}
+		} finally {
+			SessionPoolManager.release(si);
+		}
+
+		// Largest VMs first, each reserves its share before the next one is placed
+		List<String> ordered = new ArrayList<String>(demands.keySet());
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Long.compare(demands.get(b).memoryMB, demands.get(a).memoryMB);
+			}
+		});
+		for (String vmName : ordered) {
+			PlacementEngine.Placement placement = placementEngine.choose(vmName, demands.get(vmName), excluded, clone, prop);
+			if (placement == null) {
+				unplaced.add(vmName);
+				continue;
+			}
+			System.out.println("Planned VM " + vmName + " onto vHost " + placement.hostName);
+			run(vmName, placement, clone, recovery.vms.get(vmName), prop);
+		}
+		return unplaced;
+	}
+
+	// Clone or migrate one VM on a worker, at most RecoveryMaxConcurrent at a time
+	private void run(final String vmName, final PlacementEngine.Placement placement, final boolean clone,
+			final CompletableFuture<Boolean> result, final Properties prop) {
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					result.complete(clone ? cloneTo(vmName, placement, prop) : migrateTo(vmName, placement, prop));
+				} catch (Exception e) {
+					e.printStackTrace();
+					result.complete(false);
+				} finally {
+					PlacementEngine.getInstance(prop).release(vmName);
+				}
+			}
+		});
+	}
+
+	private void runInPlace(final String vmName, final CompletableFuture<Boolean> result, final Properties prop) {
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					HealthManager healthManager = new HealthManager(vmName);
+					boolean provisioned = healthManager.provisionVM(vmName, prop);
+					if (provisioned)
+						deleteStale(healthManager, vmName, prop);
+					else
+						System.out.println("VM " + vmName + " could not be recovered!");
+					result.complete(provisioned);
+				} catch (Exception e) {
+					e.printStackTrace();
+					result.complete(false);
+				}
+			}
+		});
+	}
+
+	// The session is only held to start the task, the wait goes through the task tracker's own session
+	private boolean cloneTo(String vmName, PlacementEngine.Placement placement, Properties prop) throws Exception {
+		RecoveryJournal journal = RecoveryJournal.getInstance(prop);
+		for (int attempt = 1; ; attempt++) {
+			Task task;
+			ManagedObjectReference snapshot;
+			ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+			try {
+				VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+						si.getRootFolder()).searchManagedEntity("VirtualMachine", vmName);
+				if (virtualmachine == null) {
+					System.out.println("VM " + vmName + " is no longer in vCenter, nothing to recover it from");
+					return false;
+				}
+
+				VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
+				relocateSpec.setDatastore(mor("Datastore", placement.datastoreMor));
+				relocateSpec.setHost(mor("HostSystem", placement.hostMor));
+				relocateSpec.setPool(mor("ResourcePool", placement.poolMor));
+				if (HealthManager.isLinkedClone(vmName, prop))
+					relocateSpec.setDiskMoveType(VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+
+				VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
+				cloneSpec.setLocation(relocateSpec);
+				cloneSpec.setPowerOn(true);
+				cloneSpec.setTemplate(false);
+				snapshot = SnapshotCatalog.getCurrentSnapshot(SessionPoolManager.VCENTER, virtualmachine);
+				cloneSpec.setSnapshot(snapshot);
+
+				journal.record(vmName, RecoveryJournal.CLONE_STARTED, null);
+				task = virtualmachine.cloneVM_Task((Folder) virtualmachine.getParent(),
+						vmName + "_recovered", cloneSpec);
+				journal.recordTask(vmName, RecoveryJournal.CLONING, task);
+				System.out.println("Launching the recovery of VM " + vmName + " on vHost " + placement.hostName);
+			} finally {
+				SessionPoolManager.release(si);
+			}
+
+			long start = System.currentTimeMillis();
+			String status = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).waitFor(task);
+			RecoveryMetrics.recordSince(RecoveryMetrics.CLONE, placement.hostName, start);
+			if (status != Task.SUCCESS) {
+				// The tracked snapshot may be gone, tried once more from the tree as vCenter has it
+				if (attempt == 1 && SnapshotCatalog.reload(prop, SessionPoolManager.VCENTER, vmName, snapshot)) {
+					System.out.println("Clone of VM " + vmName + " failed, retrying from its snapshot tree in vCenter");
+					continue;
+				}
+				journal.record(vmName, RecoveryJournal.FAILED, null);
+				System.out.println("VM " + vmName + " could not be recovered!");
+				return false;
+			}
+			journal.record(vmName, RecoveryJournal.CLONED, null);
+			deleteStale(new HealthManager(vmName), vmName, prop);
+			return true;
+		}
+	}
+
+	private boolean migrateTo(String vmName, PlacementEngine.Placement placement, Properties prop) throws Exception {
+		RecoveryJournal journal = RecoveryJournal.getInstance(prop);
+		Task task;
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+					si.getRootFolder()).searchManagedEntity("VirtualMachine", vmName);
+
+			task = virtualmachine.migrateVM_Task(
+					new ResourcePool(si.getServerConnection(), mor("ResourcePool", placement.poolMor)),
+					new HostSystem(si.getServerConnection(), mor("HostSystem", placement.hostMor)),
+					VirtualMachineMovePriority.highPriority, VirtualMachinePowerState.poweredOn);
+			journal.recordTask(vmName, RecoveryJournal.MIGRATING, task);
+			System.out.println("Migrating VM " + vmName + " to vHost " + placement.hostName);
+		} finally {
+			SessionPoolManager.release(si);
+		}
+
+		long start = System.currentTimeMillis();
+		String status = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).waitFor(task);
+		RecoveryMetrics.recordSince(RecoveryMetrics.MIGRATE, placement.hostName, start);
+		if (status != Task.SUCCESS) {
+			journal.record(vmName, RecoveryJournal.FAILED, null);
+			System.out.println("VM " + vmName + " could not be recovered!");
+			return false;
+		}
+		journal.record(vmName, RecoveryJournal.DONE, null);
+		System.out.println("VM " + vmName + " has been recovered and provisioned.");
+		return true;
+	}
+
+	// The recovery is finished in the journal either way, a stale VM left behind is for the operator
+	private static void deleteStale(HealthManager healthManager, String vmName, Properties prop) throws Exception {
+		try {
+			// A linked clone still reads the stale VM's disks until they are promoted
+			if (HealthManager.isLinkedClone(vmName, prop) && !healthManager.promoteDisks(vmName, prop))
+				System.out.println("VM " + vmName + " has been recovered as a linked clone. Please consolidate its disks and delete stale VM manually");
+			else if (healthManager.deleteVM(vmName, prop))
+				System.out.println("VM " + vmName + " has been recovered and provisioned");
+			else
+				System.out.println("VM " + vmName + " has been recovered and provisioned. Please delete stale VM manually");
+		} finally {
+			RecoveryJournal.getInstance(prop).record(vmName, RecoveryJournal.DONE, null);
+		}
+	}
+
+	// A warm spare is only taken out of maintenance mode, otherwise the standby vHost is added as in
+	// HealthManager.addNewvHostAndProvision, done once for all VMs of the failed vHost
+	private boolean addStandbyHost(Properties prop) throws Exception {
+		WarmSpareManager warmSpareManager = AvailabilityManager.warmSpareManager;
+		if (warmSpareManager != null && warmSpareManager.acquire() != null)
+			return true;
+		if (prop.getProperty("vStandByHost") == null)
+			return false;
+
+		Task taskAddHost;
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			Folder rootFolder = si.getRootFolder();
+			if (new InventoryNavigator(rootFolder).searchManagedEntity("HostSystem", prop.getProperty("vStandByHost")) != null)
+				return false;
+
+			Datacenter dataCenter = (Datacenter) new InventoryNavigator(rootFolder).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));
+			HostConnectSpec hSpec = new HostConnectSpec();
+			hSpec.setHostName(prop.getProperty("vStandByHost"));
+			hSpec.setUserName(prop.getProperty("vHostUsername"));
+			hSpec.setPassword(prop.getProperty("vHostPassword"));
+			hSpec.setForce(true);
+			hSpec.setSslThumbprint(prop.getProperty("vStandByHostSSL"));
+
+			System.out.println("Adding standby vHost " + prop.getProperty("vStandByHost"));
+			taskAddHost = dataCenter.getHostFolder().addStandaloneHost_Task(hSpec, new ComputeResourceConfigSpec(), true);
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		boolean added = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).waitFor(taskAddHost) == Task.SUCCESS;
+		// The next plan has to see the new vHost
+		PlacementEngine.getInstance(prop).invalidate();
+		return added;
+	}
+
+	private static ManagedObjectReference mor(String type, String val) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.setVal(val);
+		return mor;
+	}
+}
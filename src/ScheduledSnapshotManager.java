@@ -0,0 +1,360 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.ScheduledTaskInfo;
+import com.vmware.vim25.ScheduledTaskSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ScheduledTask;
+import com.vmware.vim25.mo.ScheduledTaskManager;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+
+public class ScheduledSnapshotManager extends Thread {
+	// How often finished consolidations are checked and the next ones started
+	private static final long POLL_INTERVAL = 2000;
+
+	// Removal of the oldest snapshot of a VM beyond its policy's retention
+	private static class Pruning {
+		final ManagedObjectReference snapshot;
+		final CompletableFuture<TaskInfo> task;
+
+		Pruning(ManagedObjectReference snapshot, CompletableFuture<TaskInfo> task) {
+			this.snapshot = snapshot;
+			this.task = task;
+		}
+	}
+
+	private final String endpoint;
+	private final String taskPrefix;
+	private final SnapshotCatalog catalog;
+	private final Set<String> vms = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private volatile boolean vmsChanged = true;
+	private Map<String,SnapshotPolicy> assigned = new HashMap<String,SnapshotPolicy>();
+	private final Map<String,Long> lastRuns = new HashMap<String,Long>();
+	private final Map<String,ManagedObjectReference> vmMors = new HashMap<String,ManagedObjectReference>();
+	private final Set<String> toPrune = new HashSet<String>();
+	private final Map<String,Pruning> pruning = new HashMap<String,Pruning>();
+	private final Set<String> overdue = new HashSet<String>();
+	private long nextReconcile = 0;
+	private long nextWatch = 0;
+	private volatile boolean active = true;
+
+	// Function to create the manager of the scheduled snapshots of one endpoint ("vCenter" or "vCenterAdmin")
+	public ScheduledSnapshotManager(String endpoint) {
+		super("ScheduledSnapshotManager-" + endpoint);
+		this.endpoint = endpoint;
+		this.taskPrefix = SnapshotPolicy.taskPrefix(endpoint);
+		this.catalog = SnapshotCatalog.getInstance(endpoint);
+		setDaemon(true);
+	}
+
+	// Function to bring the snapshotted VMs in line with the current inventory, a change is reconciled right away
+	public void sync(Collection<String> vmNames) {
+		Set<String> current = new HashSet<String>(vmNames);
+		if (current.equals(vms))
+			return;
+		for (String vmName : vms) {
+			if (!current.contains(vmName))
+				catalog.forget(vmName);
+		}
+		vms.retainAll(current);
+		vms.addAll(current);
+		vmsChanged = true;
+	}
+
+	public void shutdown() {
+		active = false;
+		interrupt();
+	}
+
+	public void run() {
+		while (active) {
+			ServiceInstance si = null;
+			try {
+				ConfigService.Config config = ConfigService.getInstance().current();
+				Properties prop = config.getProperties();
+				long now = System.currentTimeMillis();
+				finishPruning();
+
+				boolean reconcile = vmsChanged || now >= nextReconcile;
+				boolean watch = now >= nextWatch;
+				if (reconcile || watch || canPrune()) {
+					si = SessionPoolManager.borrow(prop, endpoint);
+					if (reconcile) {
+						vmsChanged = false;
+						reconcile(si, config);
+						nextReconcile = now + config.getLong("ScheduledSnapshotReconcileInterval", 300000);
+					}
+					if (watch) {
+						watch(si, config, now);
+						nextWatch = now + config.getLong("ScheduledSnapshotPollInterval", 60000);
+					}
+					startPruning(si, prop);
+				}
+			} catch (RemoteException e) {
+				e.printStackTrace();
+				SessionPoolManager.invalidate(si);
+				si = null;
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				SessionPoolManager.release(si);
+			}
+
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				// Shutting down
+			}
+		}
+	}
+
+	// Compile the policies for the current VMs and create, reconfigure or remove only the tasks that differ
+	private void reconcile(ServiceInstance si, ConfigService.Config config) throws Exception {
+		Properties prop = config.getProperties();
+		int pageSize = config.getInt("InventoryPageSize", 500);
+		List<SnapshotPolicy> policies = SnapshotPolicy.load(prop);
+
+		// Every VM and every policy folder is read with one paged retrieval each
+		Folder rootFolder = si.getRootFolder();
+		Map<String,String> mors = new LinkedHashMap<String,String>();
+		for (InventorySnapshot.Row row : InventorySnapshot.retrieve(si, rootFolder, true, pageSize).getRows()) {
+			if (row.name != null && vms.contains(row.name))
+				mors.put(row.name, row.mor);
+		}
+		Map<String,Set<String>> folderMembers = new HashMap<String,Set<String>>();
+		for (SnapshotPolicy policy : policies) {
+			if (policy.folder == null || folderMembers.containsKey(policy.folder))
+				continue;
+			Set<String> members = new HashSet<String>();
+			Folder folder = (Folder) new InventoryNavigator(rootFolder).searchManagedEntity("Folder", policy.folder);
+			if (folder != null) {
+				for (InventorySnapshot.Row row : InventorySnapshot.retrieve(si, folder, true, pageSize).getRows())
+					members.add(row.name);
+			} else {
+				System.out.println("Folder " + policy.folder + " of snapshot policy " + policy.name + " not found on " + endpoint);
+			}
+			folderMembers.put(policy.folder, members);
+		}
+
+		Map<String,SnapshotPolicy> assignment = SnapshotPolicyCompiler.assign(policies, mors.keySet(), folderMembers);
+		Map<String,ScheduledTaskSpec> desired = SnapshotPolicyCompiler.compile(assignment, config.getString("SnapshotQuiesceVMs", ""), taskPrefix);
+		SnapshotPolicyCompiler.Plan plan = SnapshotPolicyCompiler.diff(desired, readTasks(si), mors);
+
+		// Removals first, a replaced task keeps its name
+		ScheduledTaskManager scheduledTaskManager = si.getScheduledTaskManager();
+		int failed = 0;
+		for (SnapshotPolicyCompiler.Change change : plan.remove) {
+			try {
+				new ScheduledTask(si.getServerConnection(), change.task).removeScheduledTask();
+			} catch (RemoteException e) {
+				failed++;
+				System.out.println("Scheduled snapshot of VM " + change.vmName + " could not be removed: " + e);
+			}
+		}
+		for (SnapshotPolicyCompiler.Change change : plan.create) {
+			try {
+				ManagedObjectReference vmMor = new ManagedObjectReference();
+				vmMor.setType("VirtualMachine");
+				vmMor.setVal(mors.get(change.vmName));
+				scheduledTaskManager.createScheduledTask(new VirtualMachine(si.getServerConnection(), vmMor), change.spec);
+			} catch (RemoteException e) {
+				failed++;
+				System.out.println("Scheduled snapshot of VM " + change.vmName + " could not be created: " + e);
+			}
+		}
+		for (SnapshotPolicyCompiler.Change change : plan.update) {
+			try {
+				new ScheduledTask(si.getServerConnection(), change.task).reconfigureScheduledTask(change.spec);
+			} catch (RemoteException e) {
+				failed++;
+				System.out.println("Scheduled snapshot of VM " + change.vmName + " could not be updated: " + e);
+			}
+		}
+		if (!plan.isEmpty())
+			System.out.println("Scheduled snapshots on " + endpoint + " reconciled: " + plan + (failed > 0 ? ", " + failed + " failed" : ""));
+		// What failed is retried by the next reconcile
+		if (failed > 0)
+			vmsChanged = true;
+
+		assigned = assignment;
+		lastRuns.keySet().retainAll(assignment.keySet());
+		overdue.retainAll(assignment.keySet());
+		toPrune.retainAll(assignment.keySet());
+	}
+
+	// Read the outcome of every DR task at once, the snapshots themselves are taken by vCenter
+	private void watch(ServiceInstance si, ConfigService.Config config, long now) throws Exception {
+		long grace = config.getLong("ScheduledSnapshotOverdue", 600000);
+		for (Map.Entry<String,ScheduledTaskInfo> entry : readTasks(si).entrySet()) {
+			String vmName = entry.getKey();
+			ScheduledTaskInfo info = entry.getValue();
+			if (!assigned.containsKey(vmName))
+				continue;
+			if (info.getEntity() != null)
+				vmMors.put(vmName, info.getEntity());
+
+			// A snapshot that should have started a while ago did not
+			if (info.getNextRunTime() != null && now - info.getNextRunTime().getTimeInMillis() > grace) {
+				if (overdue.add(vmName))
+					System.out.println("Scheduled snapshot of VM " + vmName + " is overdue on " + endpoint);
+			} else {
+				overdue.remove(vmName);
+			}
+
+			if (info.getState() == TaskInfoState.running || info.getState() == TaskInfoState.queued)
+				continue;
+			long prevRun = info.getPrevRunTime() != null ? info.getPrevRunTime().getTimeInMillis() : 0;
+			Long seen = lastRuns.put(vmName, prevRun);
+			if (prevRun == 0 || (seen != null && seen == prevRun))
+				continue;
+
+			if (info.getState() == TaskInfoState.success) {
+				// Catalogs that were never loaded are read from vCenter when the VM is pruned
+				if (info.getResult() instanceof ManagedObjectReference && catalog.isTracked(vmName)) {
+					catalog.added(vmName, (ManagedObjectReference) info.getResult());
+					if (seen != null)
+						System.out.println("Scheduled snapshot of VM " + vmName + " was created.");
+				} else {
+					catalog.forget(vmName);
+				}
+				toPrune.add(vmName);
+			} else if (info.getState() == TaskInfoState.error) {
+				System.out.println("Scheduled snapshot of VM " + vmName + " failed: "
+						+ (info.getError() != null ? info.getError().getLocalizedMessage() : "unknown error"));
+			}
+		}
+	}
+
+	private boolean canPrune() {
+		for (String vmName : toPrune) {
+			if (!pruning.containsKey(vmName))
+				return true;
+		}
+		return false;
+	}
+
+	// Consolidate one snapshot per VM at a time until only the retained ones are left
+	private void startPruning(ServiceInstance si, Properties prop) throws Exception {
+		for (Iterator<String> it = toPrune.iterator(); it.hasNext();) {
+			String vmName = it.next();
+			if (pruning.containsKey(vmName))
+				continue;
+			SnapshotPolicy policy = assigned.get(vmName);
+			ManagedObjectReference vmMor = vmMors.get(vmName);
+			if (policy == null || vmMor == null) {
+				it.remove();
+				continue;
+			}
+			if (!catalog.isTracked(vmName))
+				catalog.load(vmName, new VirtualMachine(si.getServerConnection(), vmMor).getSnapshot());
+			if (catalog.count(vmName) <= policy.retention) {
+				it.remove();
+				continue;
+			}
+			ManagedObjectReference oldest = catalog.getOldest(vmName);
+			try {
+				Task task = new VirtualMachineSnapshot(si.getServerConnection(), oldest).removeSnapshot_Task(false);
+				pruning.put(vmName, new Pruning(oldest, TaskTracker.getInstance(prop, endpoint).track(task)));
+			} catch (RemoteException e) {
+				// Removed by someone else, the snapshots are read again on the next run
+				catalog.forget(vmName);
+				System.out.println("Removing the oldest snapshot of VM " + vmName + " failed: " + e);
+			}
+		}
+	}
+
+	private void finishPruning() {
+		for (Iterator<Map.Entry<String,Pruning>> it = pruning.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String,Pruning> entry = it.next();
+			if (!entry.getValue().task.isDone())
+				continue;
+			it.remove();
+			try {
+				entry.getValue().task.join();
+				catalog.removed(entry.getKey(), entry.getValue().snapshot);
+				System.out.println("Oldest Snapshot of VM " + entry.getKey() + " was removed.");
+			} catch (CompletionException e) {
+				// Read the snapshots again before the next try
+				catalog.forget(entry.getKey());
+				toPrune.remove(entry.getKey());
+				System.out.println("Removing the oldest snapshot of VM " + entry.getKey() + " failed: " + e.getCause().getMessage());
+			}
+		}
+	}
+
+	// Info of every scheduled task the DR process owns by VM name, one RetrievePropertiesEx for all of them
+	private Map<String,ScheduledTaskInfo> readTasks(ServiceInstance si) throws Exception {
+		Map<String,ScheduledTaskInfo> tasks = new HashMap<String,ScheduledTaskInfo>();
+		ScheduledTask[] scheduledTasks = si.getScheduledTaskManager().getScheduledTasks();
+		if (scheduledTasks == null || scheduledTasks.length == 0)
+			return tasks;
+
+		List<ObjectSpec> objects = new ArrayList<ObjectSpec>();
+		for (ScheduledTask scheduledTask : scheduledTasks) {
+			ObjectSpec oSpec = new ObjectSpec();
+			oSpec.setObj(scheduledTask.getMOR());
+			oSpec.setSkip(Boolean.FALSE);
+			objects.add(oSpec);
+		}
+		PropertySpec pSpec = new PropertySpec();
+		pSpec.setType("ScheduledTask");
+		pSpec.setPathSet(new String[] { "info" });
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(objects.toArray(new ObjectSpec[objects.size()]));
+		spec.setPropSet(new PropertySpec[] { pSpec });
+
+		PropertyCollector pc = si.getPropertyCollector();
+		RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { spec }, new RetrieveOptions());
+		while (result != null) {
+			if (result.getObjects() != null) {
+				for (ObjectContent oc : result.getObjects()) {
+					if (oc.getPropSet() == null)
+						continue;
+					for (DynamicProperty property : oc.getPropSet()) {
+						if (!(property.getVal() instanceof ScheduledTaskInfo))
+							continue;
+						ScheduledTaskInfo info = (ScheduledTaskInfo) property.getVal();
+						if (info.getScheduledTask() == null)
+							info.setScheduledTask(oc.getObj());
+						String vmName = SnapshotPolicyCompiler.vmNameOf(info.getName(), taskPrefix);
+						if (vmName != null)
+							tasks.put(vmName, info);
+					}
+				}
+			}
+			if (result.getToken() == null)
+				break;
+			result = pc.continueRetrievePropertiesEx(result.getToken());
+		}
+		return tasks;
+	}
+}
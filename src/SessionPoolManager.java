@@ -0,0 +1,275 @@
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+
+public class SessionPoolManager {
+	// Endpoint prefixes as used in config.properties
+	public static final String VCENTER = "vCenter";
+	public static final String VCENTER_ADMIN = "vCenterAdmin";
+
+	// Sessions idle for longer than this are validated before being handed out
+	private static final long VALIDATE_AFTER_IDLE = 30000;
+
+	private static SessionPoolManager instance;
+
+	// Pooled sessions per endpoint, keyed by URL and user name
+	private final Map<String,Endpoint> endpoints = new HashMap<String,Endpoint>();
+	private final Map<ServiceInstance,PooledSession> borrowed = new IdentityHashMap<ServiceInstance,PooledSession>();
+	private final Semaphore totalPermits;
+	private final int maxPerEndpoint;
+	private final long borrowTimeout;
+	private final long keepAliveInterval;
+	private Thread keepAlive;
+
+	// A logged-in session and when it was last known to be good
+	private static class PooledSession {
+		final ServiceInstance si;
+		final Endpoint endpoint;
+		long lastUsed;
+
+		PooledSession(ServiceInstance si, Endpoint endpoint) {
+			this.si = si;
+			this.endpoint = endpoint;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	// Connection details and idle sessions of one vCenter endpoint
+	private static class Endpoint {
+		final String url;
+		final String username;
+		final String password;
+		final boolean ignoreCert;
+		final Semaphore permits;
+		final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+
+		Endpoint(String url, String username, String password, boolean ignoreCert, int maxSessions) {
+			this.url = url;
+			this.username = username;
+			this.password = password;
+			this.ignoreCert = ignoreCert;
+			this.permits = new Semaphore(maxSessions, true);
+		}
+	}
+
+	SessionPoolManager(int maxTotal, int maxPerEndpoint, long borrowTimeout, long keepAliveInterval) {
+		this.totalPermits = new Semaphore(maxTotal, true);
+		this.maxPerEndpoint = maxPerEndpoint;
+		this.borrowTimeout = borrowTimeout;
+		this.keepAliveInterval = keepAliveInterval;
+	}
+
+	// Function to get the shared pool, created from the first properties seen
+	public static synchronized SessionPoolManager getInstance(Properties prop) {
+		if (instance == null) {
+			instance = new SessionPoolManager(
+					Integer.parseInt(prop.getProperty("SessionPoolMaxTotal", "8")),
+					Integer.parseInt(prop.getProperty("SessionPoolMaxPerEndpoint", "4")),
+					Long.parseLong(prop.getProperty("SessionBorrowTimeout", "60000")),
+					Long.parseLong(prop.getProperty("SessionKeepAliveInterval", "300000")));
+			instance.startKeepAlive();
+		}
+		return instance;
+	}
+
+	// Function to borrow a logged-in session for the endpoint ("vCenter" or "vCenterAdmin")
+	public static ServiceInstance borrow(Properties prop, String endpointName) throws Exception {
+		return getInstance(prop).borrowSession(prop, endpointName);
+	}
+
+	// Function to log in a session of its own for a long-lived watcher, it does not count against the pool limits
+	// and is logged out by release or invalidate like any session that is not from the pool
+	public static ServiceInstance openDedicated(Properties prop, String endpointName) throws Exception {
+		SessionPoolManager pool = getInstance(prop);
+		return pool.login(pool.getEndpoint(prop, endpointName));
+	}
+
+	// Function to hand a borrowed session back to the pool
+	public static void release(ServiceInstance si) {
+		SessionPoolManager pool;
+		synchronized (SessionPoolManager.class) {
+			pool = instance;
+		}
+		if (pool != null && si != null)
+			pool.releaseSession(si, true);
+	}
+
+	// Function to drop a borrowed session that is known to be broken
+	public static void invalidate(ServiceInstance si) {
+		SessionPoolManager pool;
+		synchronized (SessionPoolManager.class) {
+			pool = instance;
+		}
+		if (pool != null && si != null)
+			pool.releaseSession(si, false);
+	}
+
+	public ServiceInstance borrowSession(Properties prop, String endpointName) throws Exception {
+		Endpoint endpoint = getEndpoint(prop, endpointName);
+		RecoveryMetrics.increment(RecoveryMetrics.SESSION_BORROWS);
+
+		// Bounded per endpoint and overall
+		if (!endpoint.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+			throw new Exception("Timed out waiting for a session to " + endpoint.url);
+		if (!totalPermits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+			endpoint.permits.release();
+			throw new Exception("Timed out waiting for a session to " + endpoint.url);
+		}
+
+		try {
+			PooledSession session = takeIdle(endpoint);
+
+			// Re-login transparently if the pooled session has expired
+			if (session != null && System.currentTimeMillis() - session.lastUsed > VALIDATE_AFTER_IDLE
+					&& !isAlive(session.si)) {
+				System.out.println("Session to " + endpoint.url + " has expired, logging in again");
+				logout(session.si);
+				session = null;
+			}
+			if (session == null)
+				session = new PooledSession(login(endpoint), endpoint);
+
+			synchronized (borrowed) {
+				borrowed.put(session.si, session);
+			}
+			return session.si;
+		} catch (Exception e) {
+			totalPermits.release();
+			endpoint.permits.release();
+			throw e;
+		}
+	}
+
+	public void releaseSession(ServiceInstance si, boolean reusable) {
+		PooledSession session;
+		synchronized (borrowed) {
+			session = borrowed.remove(si);
+		}
+		if (session == null) {
+			// Not from the pool, close it as before
+			logout(si);
+			return;
+		}
+
+		if (reusable) {
+			session.lastUsed = System.currentTimeMillis();
+			synchronized (session.endpoint) {
+				session.endpoint.idle.addFirst(session);
+			}
+		} else {
+			logout(si);
+		}
+		totalPermits.release();
+		session.endpoint.permits.release();
+	}
+
+	// Function to log out all idle sessions and stop the keep alive thread
+	public void shutdown() {
+		if (keepAlive != null)
+			keepAlive.interrupt();
+		synchronized (endpoints) {
+			for (Endpoint endpoint : endpoints.values()) {
+				synchronized (endpoint) {
+					for (PooledSession session : endpoint.idle)
+						logout(session.si);
+					endpoint.idle.clear();
+				}
+			}
+		}
+	}
+
+	private Endpoint getEndpoint(Properties prop, String endpointName) throws Exception {
+		String url = prop.getProperty(endpointName);
+		String username = prop.getProperty(endpointName + "Username");
+		if (url == null)
+			throw new Exception("No endpoint '" + endpointName + "' in configuration");
+
+		String key = url + "|" + username;
+		synchronized (endpoints) {
+			Endpoint endpoint = endpoints.get(key);
+			if (endpoint == null) {
+				endpoint = new Endpoint(url, username, prop.getProperty(endpointName + "Password"),
+						Boolean.parseBoolean(prop.getProperty(endpointName + "IgnoreCert")), maxPerEndpoint);
+				endpoints.put(key, endpoint);
+			}
+			return endpoint;
+		}
+	}
+
+	private PooledSession takeIdle(Endpoint endpoint) {
+		synchronized (endpoint) {
+			return endpoint.idle.isEmpty() ? null : endpoint.idle.removeFirst();
+		}
+	}
+
+	private ServiceInstance login(Endpoint endpoint) throws Exception {
+		RecoveryMetrics.increment(RecoveryMetrics.LOGINS);
+		return new ServiceInstance(new URL(endpoint.url), endpoint.username, endpoint.password, endpoint.ignoreCert);
+	}
+
+	// Cheapest round-trip that needs an authenticated session
+	private boolean isAlive(ServiceInstance si) {
+		try {
+			return si.getSessionManager().getCurrentSession() != null;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private void logout(ServiceInstance si) {
+		try {
+			si.getServerConnection().logout();
+		} catch (Exception e) {
+			// Session already gone
+		}
+	}
+
+	// Keep idle sessions from timing out on the server, drop the ones that did
+	private void startKeepAlive() {
+		keepAlive = new Thread("SessionKeepAlive") {
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(keepAliveInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					Endpoint[] all;
+					synchronized (endpoints) {
+						all = endpoints.values().toArray(new Endpoint[0]);
+					}
+					for (Endpoint endpoint : all) {
+						LinkedList<PooledSession> sessions;
+						synchronized (endpoint) {
+							sessions = new LinkedList<PooledSession>(endpoint.idle);
+						}
+						for (PooledSession session : sessions) {
+							try {
+								session.si.currentTime();
+								session.lastUsed = System.currentTimeMillis();
+							} catch (Exception e) {
+								boolean stillIdle;
+								synchronized (endpoint) {
+									stillIdle = endpoint.idle.remove(session);
+								}
+								if (stillIdle)
+									logout(session.si);
+							}
+						}
+					}
+				}
+			}
+		};
+		keepAlive.setDaemon(true);
+		keepAlive.start();
+	}
+}
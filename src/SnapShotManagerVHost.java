@@ -1,11 +1,16 @@
 	import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
+import com.vmware.vim25.VirtualMachineSnapshotTree;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
 
 
 public class SnapShotManagerVHost extends Thread {
@@ -14,69 +19,84 @@ public class SnapShotManagerVHost extends Thread {
 	}
 	
 	// Function to create Snapshot of VM
-	public void createSnapshot(String vmHostName) throws Exception {
+	public void createSnapshot(String vmHostName, Properties prop) throws Exception {
 		// Service Instance
-		ServiceInstance si = new ServiceInstance(new URL("https://130.65.132.14/sdk"), "administrator", "12!@qwQW", true);
-		Folder rootFolder = si.getRootFolder();
-		
-		// Search for the VM with that particular vm HostName
-		VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
-		        rootFolder).searchManagedEntity(
-		            "VirtualMachine", vmHostName);
-		
-		 if(virtualmachine!=null) {
-			 Task task = virtualmachine.createSnapshot_Task(
-					 vmHostName.concat("_snapshot"), "Snapshot created for the VM " + vmHostName, false, false);
-			      if(task.waitForMe()==Task.SUCCESS)
-			      {
-			        System.out.println("Snapshot was created.");
-			      }
-		 }
-		 
-		 // Closing connection
-		 si.getServerConnection().logout();
-	}
-	
-	// Function to delete Snapshot of VM
-		public void deleteSnapshot(String vmHostName) throws Exception {
-			// Service Instance
-			ServiceInstance si = new ServiceInstance(new URL("https://130.65.132.14/sdk"), "administrator", "12!@qwQW", true);
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER_ADMIN);
+		try {
 			Folder rootFolder = si.getRootFolder();
-			
+		
 			// Search for the VM with that particular vm HostName
 			VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
 			        rootFolder).searchManagedEntity(
 			            "VirtualMachine", vmHostName);
-			
+		
 			 if(virtualmachine!=null) {
-				 Task task = virtualmachine.removeAllSnapshots_Task();
-				      if(task.waitForMe()==Task.SUCCESS)
+				 String quiesceVMs = prop.getProperty("SnapshotQuiesceVMs", "");
+				 Task task = virtualmachine.createSnapshot_Task(
+						 vmHostName + "_snapshot_" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()),
+						 "Snapshot created for the VM " + vmHostName, false,
+						 !quiesceVMs.isEmpty() && vmHostName.matches(quiesceVMs));
+				      if(TaskTracker.getInstance(prop, SessionPoolManager.VCENTER_ADMIN).waitFor(task)==Task.SUCCESS)
 				      {
-				        System.out.println("All previous Snapshots were removed.");
+				        System.out.println("Snapshot was created.");
 				      }
 			 }
+		 
+		} finally {
+			SessionPoolManager.release(si);
+		}
+	}
+	
+	// Function to delete the oldest Snapshots of VM beyond the retention
+		public void deleteSnapshot(String vmHostName, Properties prop) throws Exception {
+			// Service Instance
+			ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER_ADMIN);
+			try {
+				Folder rootFolder = si.getRootFolder();
+			
+				// Search for the VM with that particular vm HostName
+				VirtualMachine virtualmachine = (VirtualMachine) new InventoryNavigator(
+				        rootFolder).searchManagedEntity(
+				            "VirtualMachine", vmHostName);
+			
+				 if(virtualmachine!=null) {
+					 // Oldest first, only the snapshots beyond the retention are consolidated
+					 List<VirtualMachineSnapshotTree> snapshots = SnapshotCatalog.flatten(virtualmachine.getSnapshot());
+					 int retention = Math.max(1, Integer.parseInt(prop.getProperty("SnapshotRetention", "3")));
+					 for (int i = 0; i < snapshots.size() - retention; i++) {
+						 VirtualMachineSnapshot snapshot = new VirtualMachineSnapshot(
+								 si.getServerConnection(), snapshots.get(i).getSnapshot());
+						 Task task = snapshot.removeSnapshot_Task(false);
+						 if(TaskTracker.getInstance(prop, SessionPoolManager.VCENTER_ADMIN).waitFor(task)!=Task.SUCCESS)
+							 break;
+						 System.out.println("Snapshot " + snapshots.get(i).getName() + " was removed.");
+					 }
+					 SnapshotCatalog.getInstance(SessionPoolManager.VCENTER_ADMIN).load(vmHostName, virtualmachine.getSnapshot());
+				 }
 			 
-			 // Closing connection
-			 si.getServerConnection().logout();
+			} finally {
+				SessionPoolManager.release(si);
+			}
 		}
 	
 	public void run() {	
 		// Variables for properties
 		Properties prop = null;
-		PropertyManager getPropertyValue= new PropertyManager();
+		ConfigService.Config config = null;
 		
 		while (true) {
 			try {
 					// Fetch properties
-					prop = getPropertyValue.getProps();
-					
-					// Remove previous snapshot
-					deleteSnapshot(getName());
+					config = ConfigService.getInstance().current();
+					prop = config.getProperties();
 					
 					// Create new snapshot
-					createSnapshot(getName());
+					createSnapshot(getName(),prop);
+					
+					// Remove the oldest snapshots, the new one is already there
+					deleteSnapshot(getName(),prop);
 					
-					Thread.sleep(Integer.parseInt(prop.getProperty("SnapshotInterval")));
+					Thread.sleep(config.getSnapshotInterval());
 				} catch (Exception e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+
+public class SnapshotCatalog {
+	private static final Map<String,SnapshotCatalog> instances = new HashMap<String,SnapshotCatalog>();
+
+	// Snapshots of each VM oldest first, the last one is the current snapshot
+	private final Map<String,List<ManagedObjectReference>> snapshots = new ConcurrentHashMap<String,List<ManagedObjectReference>>();
+
+	// Function to get the catalog of an endpoint ("vCenter" or "vCenterAdmin")
+	public static synchronized SnapshotCatalog getInstance(String endpoint) {
+		SnapshotCatalog catalog = instances.get(endpoint);
+		if (catalog == null) {
+			catalog = new SnapshotCatalog();
+			instances.put(endpoint, catalog);
+		}
+		return catalog;
+	}
+
+	// Function to get the snapshot to clone a VM from, the tree is read from vCenter only when the VM is not tracked
+	public static ManagedObjectReference getCurrentSnapshot(String endpoint, VirtualMachine vm) throws Exception {
+		SnapshotCatalog catalog = getInstance(endpoint);
+		if (!catalog.isTracked(vm.getName()))
+			catalog.load(vm.getName(), vm.getSnapshot());
+		return catalog.getCurrent(vm.getName());
+	}
+
+	// Function to read a VM's snapshot tree again after an operation on its current snapshot failed, the snapshot
+	// may have gone without the catalog seeing it. True when vCenter has another current snapshot to retry with
+	public static boolean reload(Properties prop, String endpoint, String vmName, ManagedObjectReference snapshot) throws Exception {
+		if (snapshot == null)
+			return false;
+		SnapshotCatalog catalog = getInstance(endpoint);
+		ServiceInstance si = SessionPoolManager.borrow(prop, endpoint);
+		try {
+			VirtualMachine vm = (VirtualMachine) new InventoryNavigator(si.getRootFolder()).searchManagedEntity("VirtualMachine", vmName);
+			if (vm == null) {
+				catalog.forget(vmName);
+				return false;
+			}
+			catalog.load(vmName, vm.getSnapshot());
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		ManagedObjectReference current = catalog.getCurrent(vmName);
+		return current != null && !current.getVal().equals(snapshot.getVal());
+	}
+
+	// Every snapshot in a snapshot tree, oldest first
+	public static List<VirtualMachineSnapshotTree> flatten(VirtualMachineSnapshotInfo info) {
+		List<VirtualMachineSnapshotTree> trees = new ArrayList<VirtualMachineSnapshotTree>();
+		if (info != null && info.getRootSnapshotList() != null)
+			collect(info.getRootSnapshotList(), trees);
+		Collections.sort(trees, new Comparator<VirtualMachineSnapshotTree>() {
+			public int compare(VirtualMachineSnapshotTree a, VirtualMachineSnapshotTree b) {
+				return a.getCreateTime().compareTo(b.getCreateTime());
+			}
+		});
+		return trees;
+	}
+
+	private static void collect(VirtualMachineSnapshotTree[] trees, List<VirtualMachineSnapshotTree> all) {
+		for (VirtualMachineSnapshotTree tree : trees) {
+			all.add(tree);
+			if (tree.getChildSnapshotList() != null)
+				collect(tree.getChildSnapshotList(), all);
+		}
+	}
+
+	public boolean isTracked(String vmName) {
+		return snapshots.containsKey(vmName);
+	}
+
+	// Function to start tracking a VM from its snapshot tree as read from vCenter
+	public void load(String vmName, VirtualMachineSnapshotInfo info) {
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		ManagedObjectReference current = info != null ? info.getCurrentSnapshot() : null;
+		for (VirtualMachineSnapshotTree tree : flatten(info)) {
+			if (current == null || !current.getVal().equals(tree.getSnapshot().getVal()))
+				mors.add(tree.getSnapshot());
+		}
+		if (current != null)
+			mors.add(current);
+		snapshots.put(vmName, Collections.synchronizedList(mors));
+	}
+
+	// New snapshots become the current one, a snapshot already read with the tree is not counted twice.
+	// A VM no longer tracked gets the snapshot with its whole tree when it is loaded again
+	public void added(String vmName, ManagedObjectReference snapshot) {
+		List<ManagedObjectReference> mors = snapshots.get(vmName);
+		if (mors == null)
+			return;
+		synchronized (mors) {
+			for (ManagedObjectReference mor : mors) {
+				if (mor.getVal().equals(snapshot.getVal()))
+					return;
+			}
+			mors.add(snapshot);
+		}
+	}
+
+	public void removed(String vmName, ManagedObjectReference snapshot) {
+		List<ManagedObjectReference> mors = snapshots.get(vmName);
+		if (mors == null)
+			return;
+		synchronized (mors) {
+			for (int i = 0; i < mors.size(); i++) {
+				if (mors.get(i).getVal().equals(snapshot.getVal())) {
+					mors.remove(i);
+					break;
+				}
+			}
+		}
+	}
+
+	public void forget(String vmName) {
+		snapshots.remove(vmName);
+	}
+
+	public ManagedObjectReference getCurrent(String vmName) {
+		List<ManagedObjectReference> mors = snapshots.get(vmName);
+		if (mors == null)
+			return null;
+		synchronized (mors) {
+			return mors.isEmpty() ? null : mors.get(mors.size() - 1);
+		}
+	}
+
+	public ManagedObjectReference getOldest(String vmName) {
+		List<ManagedObjectReference> mors = snapshots.get(vmName);
+		if (mors == null)
+			return null;
+		synchronized (mors) {
+			return mors.isEmpty() ? null : mors.get(0);
+		}
+	}
+
+	public int count(String vmName) {
+		List<ManagedObjectReference> mors = snapshots.get(vmName);
+		return mors == null ? 0 : mors.size();
+	}
+}
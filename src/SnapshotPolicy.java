@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.vmware.vim25.DailyTaskScheduler;
+import com.vmware.vim25.HourlyTaskScheduler;
+import com.vmware.vim25.MethodAction;
+import com.vmware.vim25.MethodActionArgument;
+import com.vmware.vim25.ScheduledTaskSpec;
+import com.vmware.vim25.TaskScheduler;
+import com.vmware.vim25.WeeklyTaskScheduler;
+
+
+public class SnapshotPolicy {
+	// Name of every scheduled task the DR process owns on vCenter starts with this
+	public static final String TASK_PREFIX = "DR snapshot ";
+
+	private static final String[] DAYS = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+
+	public final String name;
+	public final Pattern vms;
+	public final String folder;
+	public final String schedule;
+	public final boolean quiesce;
+	public final boolean memory;
+	public final int retention;
+
+	public SnapshotPolicy(String name, String vms, String folder, String schedule, boolean quiesce, boolean memory, int retention) {
+		this.name = name;
+		this.vms = vms == null || vms.isEmpty() ? null : Pattern.compile(vms);
+		this.folder = folder == null || folder.isEmpty() ? null : folder;
+		this.schedule = schedule;
+		this.quiesce = quiesce;
+		this.memory = memory;
+		this.retention = Math.max(1, retention);
+		// Fail on a bad schedule when the policy is read, not when the first task is built
+		scheduler("");
+	}
+
+	// Function to read the policies named by SnapshotPolicies, or one policy for all VMs every SnapshotInterval
+	public static List<SnapshotPolicy> load(Properties prop) {
+		List<SnapshotPolicy> policies = new ArrayList<SnapshotPolicy>();
+		int retention = Integer.parseInt(prop.getProperty("SnapshotRetention", "3"));
+		String names = prop.getProperty("SnapshotPolicies", "").trim();
+		if (names.isEmpty()) {
+			long hours = Math.max(1, Long.parseLong(prop.getProperty("SnapshotInterval", "600000")) / 3600000L);
+			policies.add(new SnapshotPolicy("default", ".*", null, "hourly:" + hours, false, false, retention));
+			return policies;
+		}
+		for (String name : names.split(",")) {
+			name = name.trim();
+			String key = "SnapshotPolicy." + name + ".";
+			policies.add(new SnapshotPolicy(name,
+					prop.getProperty(key + "VMs", ""),
+					prop.getProperty(key + "Folder", ""),
+					prop.getProperty(key + "Schedule", "daily:0"),
+					Boolean.parseBoolean(prop.getProperty(key + "Quiesce", "false")),
+					Boolean.parseBoolean(prop.getProperty(key + "Memory", "false")),
+					Integer.parseInt(prop.getProperty(key + "Retention", String.valueOf(retention)))));
+		}
+		return policies;
+	}
+
+	// Task names of each endpoint, both endpoints may be the same vCenter and must not take each other's tasks
+	public static String taskPrefix(String endpoint) {
+		return SessionPoolManager.VCENTER.equals(endpoint) ? TASK_PREFIX : "DR " + endpoint + " snapshot ";
+	}
+
+	// A VM is covered when it matches the pattern and sits in the folder, whichever of the two are set
+	public boolean matches(String vmName, Set<String> folderMembers) {
+		if (vms != null && !vms.matcher(vmName).matches())
+			return false;
+		if (folder != null && (folderMembers == null || !folderMembers.contains(vmName)))
+			return false;
+		return true;
+	}
+
+	// Function to build the scheduled task of one VM, quiesced also when the VM matches quiesceVMs
+	public ScheduledTaskSpec toSpec(String vmName, String quiesceVMs, String taskPrefix) {
+		boolean quiesced = quiesce || (quiesceVMs != null && !quiesceVMs.isEmpty() && vmName.matches(quiesceVMs));
+		MethodAction action = new MethodAction();
+		action.setName("CreateSnapshot_Task");
+		action.setArgument(new MethodActionArgument[] {
+				argument(vmName + "_scheduled"),
+				argument("Snapshot of the VM " + vmName + " by policy " + name),
+				argument(memory),
+				argument(quiesced) });
+
+		ScheduledTaskSpec spec = new ScheduledTaskSpec();
+		spec.setName(taskPrefix + vmName);
+		spec.setDescription("Snapshot policy " + name + ", managed by the DR process");
+		spec.setEnabled(true);
+		spec.setAction(action);
+		spec.setScheduler(scheduler(vmName));
+		return spec;
+	}
+
+	// hourly:<hours>, daily:<hour> or weekly:<days>:<hour>, the minute is spread by VM so they do not all start at once
+	TaskScheduler scheduler(String vmName) {
+		String[] parts = schedule.trim().split(":");
+		int minute = (vmName.hashCode() & 0x7fffffff) % 60;
+		if ("hourly".equals(parts[0])) {
+			HourlyTaskScheduler scheduler = new HourlyTaskScheduler();
+			scheduler.setInterval(parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+			scheduler.setMinute(minute);
+			return scheduler;
+		}
+		if ("daily".equals(parts[0])) {
+			DailyTaskScheduler scheduler = new DailyTaskScheduler();
+			scheduler.setInterval(1);
+			scheduler.setHour(parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+			scheduler.setMinute(minute);
+			return scheduler;
+		}
+		if ("weekly".equals(parts[0]) && parts.length > 1) {
+			WeeklyTaskScheduler scheduler = new WeeklyTaskScheduler();
+			scheduler.setInterval(1);
+			scheduler.setHour(parts.length > 2 ? Integer.parseInt(parts[2]) : 0);
+			scheduler.setMinute(minute);
+			for (String day : parts[1].split(",")) {
+				day = day.trim().toLowerCase();
+				if (DAYS[0].equals(day))
+					scheduler.setSunday(true);
+				else if (DAYS[1].equals(day))
+					scheduler.setMonday(true);
+				else if (DAYS[2].equals(day))
+					scheduler.setTuesday(true);
+				else if (DAYS[3].equals(day))
+					scheduler.setWednesday(true);
+				else if (DAYS[4].equals(day))
+					scheduler.setThursday(true);
+				else if (DAYS[5].equals(day))
+					scheduler.setFriday(true);
+				else if (DAYS[6].equals(day))
+					scheduler.setSaturday(true);
+				else
+					throw new IllegalArgumentException("Unknown day " + day + " in snapshot policy " + name);
+			}
+			return scheduler;
+		}
+		throw new IllegalArgumentException("Unknown schedule " + schedule + " in snapshot policy " + name);
+	}
+
+	// Interval between two runs, for telling an overdue snapshot
+	public long getPeriod() {
+		String[] parts = schedule.trim().split(":");
+		if ("hourly".equals(parts[0]))
+			return (parts.length > 1 ? Integer.parseInt(parts[1]) : 1) * 3600000L;
+		if ("daily".equals(parts[0]))
+			return 24 * 3600000L;
+		return 7 * 24 * 3600000L;
+	}
+
+	private static MethodActionArgument argument(Object value) {
+		MethodActionArgument argument = new MethodActionArgument();
+		argument.setValue(value);
+		return argument;
+	}
+}
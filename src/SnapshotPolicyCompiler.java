@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.vim25.Action;
+import com.vmware.vim25.DailyTaskScheduler;
+import com.vmware.vim25.HourlyTaskScheduler;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodAction;
+import com.vmware.vim25.MethodActionArgument;
+import com.vmware.vim25.RecurrentTaskScheduler;
+import com.vmware.vim25.ScheduledTaskInfo;
+import com.vmware.vim25.ScheduledTaskSpec;
+import com.vmware.vim25.TaskScheduler;
+import com.vmware.vim25.WeeklyTaskScheduler;
+
+
+public class SnapshotPolicyCompiler {
+	// One scheduled task to create, reconfigure or remove
+	public static class Change {
+		public final String vmName;
+		public final ManagedObjectReference task;
+		public final ScheduledTaskSpec spec;
+
+		Change(String vmName, ManagedObjectReference task, ScheduledTaskSpec spec) {
+			this.vmName = vmName;
+			this.task = task;
+			this.spec = spec;
+		}
+	}
+
+	// Differences between the compiled policies and the scheduled tasks in vCenter
+	public static class Plan {
+		public final List<Change> create = new ArrayList<Change>();
+		public final List<Change> update = new ArrayList<Change>();
+		public final List<Change> remove = new ArrayList<Change>();
+
+		public boolean isEmpty() {
+			return create.isEmpty() && update.isEmpty() && remove.isEmpty();
+		}
+
+		public String toString() {
+			return create.size() + " created, " + update.size() + " updated, " + remove.size() + " removed";
+		}
+	}
+
+	// Function to give every VM the first policy covering it, VMs without one get no scheduled snapshot
+	public static Map<String,SnapshotPolicy> assign(List<SnapshotPolicy> policies, Collection<String> vmNames,
+			Map<String,Set<String>> folderMembers) {
+		Map<String,SnapshotPolicy> assigned = new LinkedHashMap<String,SnapshotPolicy>();
+		for (String vmName : vmNames) {
+			for (SnapshotPolicy policy : policies) {
+				Set<String> members = policy.folder != null ? folderMembers.get(policy.folder) : Collections.<String>emptySet();
+				if (policy.matches(vmName, members)) {
+					assigned.put(vmName, policy);
+					break;
+				}
+			}
+		}
+		return assigned;
+	}
+
+	// Function to compile the assigned policies into the scheduled task spec of each VM
+	public static Map<String,ScheduledTaskSpec> compile(Map<String,SnapshotPolicy> assigned, String quiesceVMs, String taskPrefix) {
+		Map<String,ScheduledTaskSpec> specs = new LinkedHashMap<String,ScheduledTaskSpec>();
+		for (Map.Entry<String,SnapshotPolicy> entry : assigned.entrySet())
+			specs.put(entry.getKey(), entry.getValue().toSpec(entry.getKey(), quiesceVMs, taskPrefix));
+		return specs;
+	}
+
+	// Function to diff the wanted specs against the existing DR tasks by VM name, a task on another entity is replaced
+	public static Plan diff(Map<String,ScheduledTaskSpec> desired, Map<String,ScheduledTaskInfo> existing,
+			Map<String,String> vmMors) {
+		Plan plan = new Plan();
+		for (Map.Entry<String,ScheduledTaskSpec> entry : desired.entrySet()) {
+			String vmName = entry.getKey();
+			ScheduledTaskInfo info = existing.get(vmName);
+			if (info == null) {
+				plan.create.add(new Change(vmName, null, entry.getValue()));
+			} else if (info.getEntity() == null || !info.getEntity().getVal().equals(vmMors.get(vmName))) {
+				plan.remove.add(new Change(vmName, info.getScheduledTask(), null));
+				plan.create.add(new Change(vmName, null, entry.getValue()));
+			} else if (!fingerprint(info).equals(fingerprint(entry.getValue()))) {
+				plan.update.add(new Change(vmName, info.getScheduledTask(), entry.getValue()));
+			}
+		}
+		for (Map.Entry<String,ScheduledTaskInfo> entry : existing.entrySet()) {
+			if (!desired.containsKey(entry.getKey()))
+				plan.remove.add(new Change(entry.getKey(), entry.getValue().getScheduledTask(), null));
+		}
+		return plan;
+	}
+
+	// VM of a task the DR process owns, null for anybody else's task
+	public static String vmNameOf(String taskName, String taskPrefix) {
+		if (taskName == null || !taskName.startsWith(taskPrefix))
+			return null;
+		return taskName.substring(taskPrefix.length());
+	}
+
+	// What a spec does, leaving out what vCenter fills in itself such as the active time
+	static String fingerprint(ScheduledTaskSpec spec) {
+		StringBuilder out = new StringBuilder();
+		out.append(spec.getName()).append('|').append(spec.getDescription()).append('|').append(spec.isEnabled());
+
+		TaskScheduler scheduler = spec.getScheduler();
+		out.append('|').append(scheduler != null ? scheduler.getClass().getSimpleName() : null);
+		if (scheduler instanceof RecurrentTaskScheduler)
+			out.append(':').append(((RecurrentTaskScheduler) scheduler).getInterval());
+		if (scheduler instanceof HourlyTaskScheduler)
+			out.append(':').append(((HourlyTaskScheduler) scheduler).getMinute());
+		if (scheduler instanceof DailyTaskScheduler)
+			out.append(':').append(((DailyTaskScheduler) scheduler).getHour());
+		if (scheduler instanceof WeeklyTaskScheduler) {
+			WeeklyTaskScheduler weekly = (WeeklyTaskScheduler) scheduler;
+			out.append(':').append(weekly.isSunday()).append(weekly.isMonday()).append(weekly.isTuesday())
+					.append(weekly.isWednesday()).append(weekly.isThursday()).append(weekly.isFriday()).append(weekly.isSaturday());
+		}
+
+		Action action = spec.getAction();
+		if (action instanceof MethodAction) {
+			out.append('|').append(((MethodAction) action).getName());
+			MethodActionArgument[] arguments = ((MethodAction) action).getArgument();
+			if (arguments != null) {
+				for (MethodActionArgument argument : arguments)
+					out.append(':').append(argument != null ? argument.getValue() : null);
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,330 @@
+import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+
+public class SnapshotScheduler extends Thread {
+	// How often running snapshot tasks are checked and waiting jobs dispatched
+	private static final long POLL_INTERVAL = 2000;
+
+	// How long a job whose snapshot could not be started waits before it is tried again
+	private static final long RETRY_DELAY = 30000;
+
+	// Steps of one snapshot job: the new snapshot first, then the oldest ones beyond the retention
+	private static final int STEP_CREATE = 0;
+	private static final int STEP_REMOVE = 1;
+
+	private static final SimpleDateFormat SNAPSHOT_SUFFIX = new SimpleDateFormat("yyyyMMddHHmmss");
+
+	// Snapshot of one VM within the current cycle
+	private static class SnapshotJob {
+		final String vmName;
+		long due;
+		String hostMor;
+		List<String> datastoreMors = new ArrayList<String>();
+		boolean resolved;
+		CompletableFuture<TaskInfo> task;
+		Task started;
+		ManagedObjectReference removing;
+		int step;
+		int progress;
+
+		SnapshotJob(String vmName, long due) {
+			this.vmName = vmName;
+			this.due = due;
+		}
+	}
+
+	private final String endpoint;
+	private final SnapshotCatalog catalog;
+	private final Set<String> vms = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final LinkedList<SnapshotJob> waiting = new LinkedList<SnapshotJob>();
+	private final List<SnapshotJob> running = new ArrayList<SnapshotJob>();
+	private final Map<String,Integer> runningPerHost = new HashMap<String,Integer>();
+	private final Map<String,Integer> runningPerDatastore = new HashMap<String,Integer>();
+	private long nextCycle = 0;
+	private volatile boolean active = true;
+
+	// Function to create a scheduler for the VMs of one endpoint ("vCenter" or "vCenterAdmin")
+	public SnapshotScheduler(String endpoint) {
+		super("SnapshotScheduler-" + endpoint);
+		this.endpoint = endpoint;
+		this.catalog = SnapshotCatalog.getInstance(endpoint);
+		setDaemon(true);
+	}
+
+	// Function to bring the snapshotted VMs in line with the current inventory
+	public void sync(Collection<String> vmNames) {
+		Set<String> current = new HashSet<String>(vmNames);
+		for (String vmName : vms) {
+			if (!current.contains(vmName))
+				catalog.forget(vmName);
+		}
+		vms.retainAll(current);
+		vms.addAll(current);
+	}
+
+	public void shutdown() {
+		active = false;
+		interrupt();
+	}
+
+	public void run() {
+		while (active) {
+			ServiceInstance si = null;
+			try {
+				ConfigService.Config config = ConfigService.getInstance().current();
+				Properties prop = config.getProperties();
+				long now = System.currentTimeMillis();
+				if (now >= nextCycle) {
+					long interval = config.getSnapshotInterval();
+					planCycle(now, interval);
+					nextCycle = now + interval;
+				}
+
+				if (hasFinishedJobs() || hasDueJobs(now)) {
+					si = SessionPoolManager.borrow(prop, endpoint);
+					pollRunning(si, prop);
+					dispatch(si, config, now);
+				}
+			} catch (RemoteException e) {
+				e.printStackTrace();
+				SessionPoolManager.invalidate(si);
+				si = null;
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				SessionPoolManager.release(si);
+			}
+
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				// Shutting down
+			}
+		}
+	}
+
+	// Spread the start times of all VMs evenly over the interval
+	private void planCycle(long now, long interval) {
+		List<String> names = new ArrayList<String>(vms);
+		Collections.sort(names);
+		Set<String> pending = new HashSet<String>();
+		for (SnapshotJob job : waiting)
+			pending.add(job.vmName);
+		for (SnapshotJob job : running)
+			pending.add(job.vmName);
+
+		for (int i = 0; i < names.size(); i++) {
+			// Still busy from the previous cycle
+			if (pending.contains(names.get(i)))
+				continue;
+			waiting.add(new SnapshotJob(names.get(i), now + interval * i / names.size()));
+		}
+		System.out.println("Snapshot cycle planned for " + names.size() + " VMs on " + endpoint);
+	}
+
+	private boolean hasFinishedJobs() {
+		for (SnapshotJob job : running) {
+			if (job.task.isDone())
+				return true;
+		}
+		return false;
+	}
+
+	private boolean hasDueJobs(long now) {
+		for (SnapshotJob job : waiting) {
+			if (job.due <= now)
+				return true;
+		}
+		return false;
+	}
+
+	// Start due jobs while the global, per vHost and per datastore limits allow it
+	private void dispatch(ServiceInstance si, ConfigService.Config config, long now) throws Exception {
+		Properties prop = config.getProperties();
+		int maxTotal = config.getInt("SnapshotMaxConcurrent", 8);
+		int maxPerHost = config.getInt("SnapshotMaxPerHost", 2);
+		int maxPerDatastore = config.getInt("SnapshotMaxPerDatastore", 2);
+		Folder rootFolder = si.getRootFolder();
+
+		for (Iterator<SnapshotJob> it = waiting.iterator(); it.hasNext() && running.size() < maxTotal;) {
+			SnapshotJob job = it.next();
+			if (job.due > now)
+				continue;
+			// One VM failing must not hold back the others, the job stays waiting until its task is submitted
+			try {
+				start(it, job, rootFolder, prop, config, maxPerHost, maxPerDatastore);
+			} catch (RemoteException e) {
+				// A lost connection fails every job, the session is replaced before the next pass
+				if (!(e instanceof MethodFault))
+					throw e;
+				System.out.println("Snapshot of VM " + job.vmName + " could not be started, retrying later: " + e);
+				job.due = now + RETRY_DELAY;
+			} catch (Exception e) {
+				System.out.println("Snapshot of VM " + job.vmName + " could not be started, retrying later: " + e);
+				job.due = now + RETRY_DELAY;
+			}
+		}
+	}
+
+	// Submit the snapshot of one due job, it is taken off the waiting list only once its task exists
+	private void start(Iterator<SnapshotJob> it, SnapshotJob job, Folder rootFolder, Properties prop,
+			ConfigService.Config config, int maxPerHost, int maxPerDatastore) throws Exception {
+		// Placement is looked up once per job
+		VirtualMachine virtualmachine = null;
+		if (!job.resolved) {
+			virtualmachine = (VirtualMachine) new InventoryNavigator(
+					rootFolder).searchManagedEntity("VirtualMachine", job.vmName);
+			if (virtualmachine == null) {
+				it.remove();
+				return;
+			}
+			resolvePlacement(job, virtualmachine);
+		}
+
+		// Leave it waiting if its vHost or one of its datastores is busy
+		if (count(runningPerHost, job.hostMor) >= maxPerHost)
+			return;
+		boolean datastoreBusy = false;
+		for (String datastoreMor : job.datastoreMors) {
+			if (count(runningPerDatastore, datastoreMor) >= maxPerDatastore)
+				datastoreBusy = true;
+		}
+		if (datastoreBusy)
+			return;
+
+		if (virtualmachine == null)
+			virtualmachine = (VirtualMachine) new InventoryNavigator(
+					rootFolder).searchManagedEntity("VirtualMachine", job.vmName);
+		if (virtualmachine == null) {
+			it.remove();
+			return;
+		}
+		if (!catalog.isTracked(job.vmName))
+			catalog.load(job.vmName, virtualmachine.getSnapshot());
+
+		// Quiesced only for the VMs matching SnapshotQuiesceVMs
+		String quiesceVMs = config.getString("SnapshotQuiesceVMs", "");
+		boolean quiesce = !quiesceVMs.isEmpty() && job.vmName.matches(quiesceVMs);
+		String suffix;
+		synchronized (SNAPSHOT_SUFFIX) {
+			suffix = SNAPSHOT_SUFFIX.format(new Date());
+		}
+		job.step = STEP_CREATE;
+		job.started = virtualmachine.createSnapshot_Task(job.vmName + "_snapshot_" + suffix,
+				"Snapshot created for the VM " + job.vmName, false, quiesce);
+		it.remove();
+		job.task = TaskTracker.getInstance(prop, endpoint).track(job.started);
+		running.add(job);
+		adjust(runningPerHost, job.hostMor, 1);
+		for (String datastoreMor : job.datastoreMors)
+			adjust(runningPerDatastore, datastoreMor, 1);
+		System.out.println("Snapshot of VM " + job.vmName + " started, " + running.size() + " running");
+	}
+
+	// Move on the jobs whose task the task tracker has completed, without asking vCenter
+	private void pollRunning(ServiceInstance si, Properties prop) throws Exception {
+		for (Iterator<SnapshotJob> it = running.iterator(); it.hasNext();) {
+			SnapshotJob job = it.next();
+			if (!job.task.isDone()) {
+				Integer progress = TaskTracker.getInstance(prop, endpoint).getProgress(job.started);
+				if (progress != null)
+					job.progress = progress;
+				continue;
+			}
+
+			try {
+				TaskInfo info = job.task.join();
+				if (job.step == STEP_CREATE) {
+					System.out.println("Snapshot of VM " + job.vmName + " was created.");
+					catalog.added(job.vmName, (ManagedObjectReference) info.getResult());
+				} else {
+					System.out.println("Oldest Snapshot of VM " + job.vmName + " was removed.");
+					catalog.removed(job.vmName, job.removing);
+				}
+
+				// Consolidate one snapshot at a time until only the retained ones are left
+				if (catalog.count(job.vmName) > retention(prop)) {
+					ManagedObjectReference oldest = catalog.getOldest(job.vmName);
+					Task task = new VirtualMachineSnapshot(si.getServerConnection(), oldest).removeSnapshot_Task(false);
+					job.step = STEP_REMOVE;
+					job.progress = 0;
+					job.removing = oldest;
+					job.started = task;
+					job.task = TaskTracker.getInstance(prop, endpoint).track(task);
+					continue;
+				}
+			} catch (RemoteException e) {
+				// Removed by someone else, the snapshots are read again on the next run
+				catalog.forget(job.vmName);
+				System.out.println("Removing the oldest snapshot of VM " + job.vmName + " failed: " + e);
+			} catch (CompletionException e) {
+				System.out.println("Snapshot of VM " + job.vmName + " failed: " + e.getCause().getMessage());
+			}
+
+			it.remove();
+			adjust(runningPerHost, job.hostMor, -1);
+			for (String datastoreMor : job.datastoreMors)
+				adjust(runningPerDatastore, datastoreMor, -1);
+		}
+	}
+
+	private static int retention(Properties prop) {
+		return Math.max(1, Integer.parseInt(prop.getProperty("SnapshotRetention", "3")));
+	}
+
+	private void resolvePlacement(SnapshotJob job, VirtualMachine virtualmachine) throws Exception {
+		PlacementIndex placementIndex = AvailabilityManager.placementIndex;
+		job.hostMor = null;
+		if (placementIndex != null && SessionPoolManager.VCENTER.equals(endpoint))
+			job.hostMor = placementIndex.getHostMor(job.vmName);
+		if (job.hostMor == null && virtualmachine.getRuntime().getHost() != null)
+			job.hostMor = virtualmachine.getRuntime().getHost().getVal();
+
+		job.datastoreMors.clear();
+		ManagedObjectReference[] datastores = (ManagedObjectReference[]) virtualmachine.getPropertyByPath("datastore");
+		if (datastores != null) {
+			for (ManagedObjectReference datastore : datastores)
+				job.datastoreMors.add(datastore.getVal());
+		}
+		job.resolved = true;
+	}
+
+	private static int count(Map<String,Integer> counts, String key) {
+		Integer count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+
+	private static void adjust(Map<String,Integer> counts, String key, int delta) {
+		int count = count(counts, key) + delta;
+		if (count <= 0)
+			counts.remove(key);
+		else
+			counts.put(key, count);
+	}
+}
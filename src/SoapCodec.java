@@ -0,0 +1,335 @@
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+
+public class SoapCodec {
+	private static final String VIM_PACKAGE = "com.vmware.vim25.";
+	private static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+	// Public fields of a vim25 data object, superclass fields first
+	private static final ConcurrentHashMap<Class<?>,Field[]> FIELDS = new ConcurrentHashMap<Class<?>,Field[]>();
+
+	private static final DatatypeFactory DATATYPES;
+	static {
+		try {
+			DATATYPES = DatatypeFactory.newInstance();
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+			+ " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"" + XSI + "\"><soapenv:Body>";
+	static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+	// Function to build the response of a method, null is an empty response and arrays repeat returnval
+	public static String response(String method, Object returnval) {
+		StringBuilder out = new StringBuilder(256);
+		out.append(ENVELOPE_START).append('<').append(method).append("Response xmlns=\"urn:vim25\">");
+		if (returnval != null)
+			write(out, "returnval", returnval, returnval.getClass(), false);
+		out.append("</").append(method).append("Response>").append(ENVELOPE_END);
+		return out.toString();
+	}
+
+	// Function to build a SOAP fault carrying a vim25 fault object
+	public static String fault(String message, Object detail) {
+		StringBuilder out = new StringBuilder(256);
+		out.append(ENVELOPE_START).append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>");
+		escape(out, message);
+		out.append("</faultstring>");
+		if (detail != null) {
+			out.append("<detail>");
+			write(out, detail.getClass().getSimpleName() + "Fault", detail, Object.class, true);
+			out.append("</detail>");
+		}
+		out.append("</soapenv:Fault>").append(ENVELOPE_END);
+		return out.toString();
+	}
+
+	// Function to write one element, anyType values carry their xsi:type
+	public static void write(StringBuilder out, String tag, Object value, Class<?> declared, boolean typed) {
+		if (value == null)
+			return;
+		Class<?> type = value.getClass();
+		if (type.isArray()) {
+			if (declared == Object.class || typed) {
+				Class<?> component = type.getComponentType();
+				String itemTag = xsdName(component);
+				out.append('<').append(tag).append(" xsi:type=\"ArrayOf").append(capitalize(itemTag)).append("\">");
+				for (int i = 0; i < Array.getLength(value); i++)
+					write(out, itemTag, Array.get(value, i), component, false);
+				out.append("</").append(tag).append('>');
+			} else {
+				for (int i = 0; i < Array.getLength(value); i++)
+					write(out, tag, Array.get(value, i), type.getComponentType(), false);
+			}
+			return;
+		}
+
+		boolean anyType = declared == Object.class || typed;
+		out.append('<').append(tag);
+		if (value instanceof ManagedObjectReference) {
+			ManagedObjectReference mor = (ManagedObjectReference) value;
+			// The type attribute goes first, readers looking up "type" by name take the first match
+			out.append(" type=\"").append(mor.getType()).append('"');
+			if (anyType)
+				out.append(" xsi:type=\"ManagedObjectReference\"");
+			out.append('>');
+			escape(out, mor.getVal());
+		} else if (isSimple(type)) {
+			if (anyType)
+				out.append(" xsi:type=\"").append(type.isEnum() ? type.getSimpleName() : "xsd:" + xsdName(type)).append('"');
+			out.append('>');
+			escape(out, text(value));
+		} else {
+			// Data objects always say what they are, the field may be declared as a superclass
+			out.append(" xsi:type=\"").append(type.getSimpleName()).append("\">");
+			for (Field field : fieldsOf(type)) {
+				try {
+					write(out, field.getName(), field.get(value), field.getType(), false);
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		out.append("</").append(tag).append('>');
+	}
+
+	// Function to read one element of a request into the declared type, or the type named by xsi:type
+	public static Object read(Element element, Class<?> declared) throws Exception {
+		String xsiType = element.attributeValue(QName.get("type", "xsi", XSI));
+		Class<?> type = declared;
+		if (xsiType != null) {
+			String name = xsiType.substring(xsiType.indexOf(':') + 1);
+			if (name.startsWith("ArrayOf")) {
+				Class<?> component = classOf(name.substring("ArrayOf".length()));
+				List<Object> items = new ArrayList<Object>();
+				for (Object child : element.elements())
+					items.add(read((Element) child, component));
+				return toArray(items, component);
+			}
+			type = classOf(name);
+		}
+		if (type == ManagedObjectReference.class) {
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType(element.attributeValue("type"));
+			mor.setVal(element.getTextTrim());
+			return mor;
+		}
+		if (isSimple(type) || type == Object.class)
+			return parse(element.getText(), type == Object.class ? String.class : type);
+
+		Object value = type.getDeclaredConstructor().newInstance();
+		// Array fields come as repeated elements
+		Map<Field,List<Object>> arrays = new LinkedHashMap<Field,List<Object>>();
+		for (Object child : element.elements()) {
+			Element item = (Element) child;
+			Field field;
+			try {
+				field = type.getField(item.getName());
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+			if (field.getType().isArray()) {
+				List<Object> items = arrays.get(field);
+				if (items == null) {
+					items = new ArrayList<Object>();
+					arrays.put(field, items);
+				}
+				items.add(read(item, field.getType().getComponentType()));
+			} else {
+				field.set(value, read(item, field.getType()));
+			}
+		}
+		for (Map.Entry<Field,List<Object>> array : arrays.entrySet())
+			array.getKey().set(value, toArray(array.getValue(), array.getKey().getType().getComponentType()));
+		return value;
+	}
+
+	// Function to read a named argument of a method element, null when it was not sent
+	public static Object arg(Element method, String name, Class<?> type) throws Exception {
+		if (type.isArray()) {
+			List<Object> items = new ArrayList<Object>();
+			for (Object child : method.elements(name))
+				items.add(read((Element) child, type.getComponentType()));
+			return items.isEmpty() ? null : toArray(items, type.getComponentType());
+		}
+		Element element = method.element(name);
+		return element == null ? null : read(element, type);
+	}
+
+	static Field[] fieldsOf(Class<?> type) {
+		Field[] fields = FIELDS.get(type);
+		if (fields == null) {
+			List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+				hierarchy.add(0, c);
+			List<Field> all = new ArrayList<Field>();
+			for (Class<?> c : hierarchy) {
+				for (Field field : c.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers))
+						all.add(field);
+				}
+			}
+			fields = all.toArray(new Field[all.size()]);
+			FIELDS.put(type, fields);
+		}
+		return fields;
+	}
+
+	private static boolean isSimple(Class<?> type) {
+		return type.isPrimitive() || type.isEnum() || type == String.class || Number.class.isAssignableFrom(type)
+				|| type == Boolean.class || Calendar.class.isAssignableFrom(type);
+	}
+
+	private static String text(Object value) {
+		if (value instanceof Calendar)
+			return DATATYPES.newXMLGregorianCalendar(toGregorian((Calendar) value)).toXMLFormat();
+		if (value instanceof Enum) {
+			try {
+				Field val = value.getClass().getDeclaredField("val");
+				val.setAccessible(true);
+				return String.valueOf(val.get(value));
+			} catch (Exception e) {
+				return ((Enum<?>) value).name();
+			}
+		}
+		return String.valueOf(value);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object parse(String text, Class<?> type) {
+		text = text.trim();
+		if (type == String.class)
+			return text;
+		if (type == int.class || type == Integer.class)
+			return Integer.valueOf(text);
+		if (type == long.class || type == Long.class)
+			return Long.valueOf(text);
+		if (type == boolean.class || type == Boolean.class)
+			return Boolean.valueOf(text);
+		if (type == short.class || type == Short.class)
+			return Short.valueOf(text);
+		if (type == byte.class || type == Byte.class)
+			return Byte.valueOf(text);
+		if (type == float.class || type == Float.class)
+			return Float.valueOf(text);
+		if (type == double.class || type == Double.class)
+			return Double.valueOf(text);
+		if (Calendar.class.isAssignableFrom(type))
+			return DATATYPES.newXMLGregorianCalendar(text).toGregorianCalendar();
+		if (type.isEnum()) {
+			for (Object constant : type.getEnumConstants()) {
+				if (text(constant).equals(text))
+					return constant;
+			}
+			return Enum.valueOf((Class<Enum>) type, text);
+		}
+		throw new IllegalArgumentException("Cannot read " + type.getName());
+	}
+
+	private static Object toArray(List<Object> items, Class<?> component) {
+		Object array = Array.newInstance(component, items.size());
+		for (int i = 0; i < items.size(); i++)
+			Array.set(array, i, items.get(i));
+		return array;
+	}
+
+	private static Class<?> classOf(String name) throws ClassNotFoundException {
+		if ("string".equals(name))
+			return String.class;
+		if ("int".equals(name))
+			return Integer.class;
+		if ("long".equals(name))
+			return Long.class;
+		if ("boolean".equals(name))
+			return Boolean.class;
+		if ("short".equals(name))
+			return Short.class;
+		if ("byte".equals(name))
+			return Byte.class;
+		if ("float".equals(name))
+			return Float.class;
+		if ("double".equals(name))
+			return Double.class;
+		if ("dateTime".equals(name))
+			return Calendar.class;
+		return Class.forName(VIM_PACKAGE + name);
+	}
+
+	private static String xsdName(Class<?> type) {
+		if (type == String.class)
+			return "string";
+		if (type == int.class || type == Integer.class)
+			return "int";
+		if (type == long.class || type == Long.class)
+			return "long";
+		if (type == boolean.class || type == Boolean.class)
+			return "boolean";
+		if (type == short.class || type == Short.class)
+			return "short";
+		if (type == byte.class || type == Byte.class)
+			return "byte";
+		if (type == float.class || type == Float.class)
+			return "float";
+		if (type == double.class || type == Double.class)
+			return "double";
+		if (Calendar.class.isAssignableFrom(type))
+			return "dateTime";
+		return type.getSimpleName();
+	}
+
+	private static String capitalize(String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private static GregorianCalendar toGregorian(Calendar calendar) {
+		if (calendar instanceof GregorianCalendar)
+			return (GregorianCalendar) calendar;
+		GregorianCalendar gregorian = new GregorianCalendar(calendar.getTimeZone());
+		gregorian.setTimeInMillis(calendar.getTimeInMillis());
+		return gregorian;
+	}
+
+	private static void escape(StringBuilder out, String text) {
+		if (text == null)
+			return;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '&':
+				out.append("&amp;");
+				break;
+			case '"':
+				out.append("&quot;");
+				break;
+			default:
+				out.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+
+public class TaskTracker extends Thread {
+	// Seconds a single long-poll may block before we check for shutdown
+	private static final int MAX_WAIT_SECONDS = 60;
+
+	private static final Map<String,TaskTracker> instances = new HashMap<String,TaskTracker>();
+
+	// Failure of a tracked task vCenter does not have, so callers can tell it from a task that failed
+	public static class TaskNotFoundException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		TaskNotFoundException(String message) {
+			super(message);
+		}
+	}
+
+	// Tracked task and the future completed when it finishes
+	private static class TrackedTask {
+		final ManagedObjectReference mor;
+		final CompletableFuture<TaskInfo> future = new CompletableFuture<TaskInfo>();
+		volatile Integer progress;
+
+		TrackedTask(ManagedObjectReference mor) {
+			this.mor = mor;
+		}
+	}
+
+	private final Properties prop;
+	private final String endpoint;
+	private final Map<String,TrackedTask> tasks = new ConcurrentHashMap<String,TrackedTask>();
+	private final ExecutorService continuations;
+	private ServiceInstance si;
+	private ManagedObjectReference listView;
+	// Tasks the last connect could not put in the view, failed once the tracker is past the lock
+	private ManagedObjectReference[] unresolved;
+	private volatile boolean running = true;
+
+	TaskTracker(Properties prop, String endpoint) {
+		super("TaskTracker-" + endpoint);
+		this.prop = prop;
+		this.endpoint = endpoint;
+		this.continuations = Executors.newFixedThreadPool(Integer.parseInt(prop.getProperty("TaskTrackerThreads", "4")));
+		setDaemon(true);
+	}
+
+	// Function to get the shared tracker of an endpoint ("vCenter" or "vCenterAdmin")
+	public static synchronized TaskTracker getInstance(Properties prop, String endpoint) {
+		TaskTracker tracker = instances.get(endpoint);
+		if (tracker == null) {
+			tracker = new TaskTracker(prop, endpoint);
+			instances.put(endpoint, tracker);
+			tracker.start();
+		}
+		return tracker;
+	}
+
+	// Function to get a future completed with the task's info when it succeeds, or failed when it does not
+	public CompletableFuture<TaskInfo> track(Task task) throws Exception {
+		ManagedObjectReference mor = task.getMOR();
+		TrackedTask tracked = new TrackedTask(mor);
+		TrackedTask existing = tasks.putIfAbsent(mor.getVal(), tracked);
+		if (existing != null)
+			return existing.future;
+		RecoveryMetrics.increment(RecoveryMetrics.TASKS);
+		dropUnresolved(addToView(mor));
+		return tracked.future;
+	}
+
+	// Function to block until a task is done, drop-in for Task.waitForMe
+	public String waitFor(Task task) throws Exception {
+		try {
+			track(task).get();
+			return Task.SUCCESS;
+		} catch (Exception e) {
+			System.out.println(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+			return TaskInfoState.error.toString();
+		}
+	}
+
+	// Last reported progress of a tracked task, null if unknown
+	public Integer getProgress(Task task) {
+		TrackedTask tracked = tasks.get(task.getMOR().getVal());
+		return tracked == null ? null : tracked.progress;
+	}
+
+	// Executor for the steps chained on task futures, keeps SOAP calls off the tracker thread
+	public ExecutorService getExecutor() {
+		return continuations;
+	}
+
+	public int getOutstanding() {
+		return tasks.size();
+	}
+
+	public void shutdown() {
+		running = false;
+		interrupt();
+		continuations.shutdown();
+	}
+
+	public void run() {
+		while (running) {
+			PropertyFilter filter = null;
+			try {
+				PropertyCollector pc = connect();
+				filter = pc.createFilter(createFilterSpec(listView), true);
+				dropUnresolved(unresolved);
+				unresolved = null;
+
+				WaitOptions options = new WaitOptions();
+				options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+				String version = "";
+				while (running) {
+					UpdateSet update = pc.waitForUpdatesEx(version, options);
+					if (update == null)
+						continue;
+					version = update.getVersion();
+					handleUpdate(update);
+				}
+			} catch (Exception e) {
+				if (!running)
+					break;
+				System.out.println("Task tracker lost its session, reconnecting: " + e);
+				disconnect(false);
+				try {
+					Thread.sleep(ConfigService.getInstance().current().getMonitorInterval());
+				} catch (Exception ie) {
+					// Retry or stop
+				}
+			}
+		}
+		disconnect(true);
+	}
+
+	// New session of its own, outside the pool, and a list view holding every outstanding task.
+	// The tasks are added with modifyListView, createListView does not say which ones vCenter no longer has
+	private synchronized PropertyCollector connect() throws Exception {
+		si = SessionPoolManager.openDedicated(prop, endpoint);
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		for (TrackedTask tracked : tasks.values())
+			mors.add(tracked.mor);
+		listView = si.getServerConnection().getVimService().createListView(
+				si.getServiceContent().getViewManager(), new ManagedObjectReference[0]);
+		if (!mors.isEmpty())
+			unresolved = si.getServerConnection().getVimService().modifyListView(
+					listView, mors.toArray(new ManagedObjectReference[0]), null);
+		return si.getPropertyCollector();
+	}
+
+	private synchronized void disconnect(boolean reusable) {
+		if (si == null)
+			return;
+		if (reusable)
+			SessionPoolManager.release(si);
+		else
+			SessionPoolManager.invalidate(si);
+		si = null;
+		listView = null;
+	}
+
+	// Added while connected, otherwise picked up by the next connect. Returns the MORs vCenter could not resolve
+	private synchronized ManagedObjectReference[] addToView(ManagedObjectReference mor) throws Exception {
+		if (listView == null)
+			return null;
+		return si.getServerConnection().getVimService().modifyListView(listView, new ManagedObjectReference[] { mor }, null);
+	}
+
+	// A task vCenter does not know, never started or already purged, would otherwise wait forever.
+	// Called outside the lock since the futures run their callers' steps
+	private void dropUnresolved(ManagedObjectReference[] mors) {
+		if (mors == null)
+			return;
+		for (ManagedObjectReference mor : mors) {
+			TrackedTask tracked = tasks.remove(mor.getVal());
+			if (tracked == null)
+				continue;
+			RecoveryMetrics.increment(RecoveryMetrics.TASK_FAILURES);
+			tracked.future.completeExceptionally(new TaskNotFoundException("Task " + mor.getVal() + " is no longer known to " + endpoint));
+		}
+	}
+
+	private synchronized void removeFromView(ManagedObjectReference mor) {
+		try {
+			if (listView != null)
+				si.getServerConnection().getVimService().modifyListView(listView, null, new ManagedObjectReference[] { mor });
+		} catch (Exception e) {
+			// Dropped with the view on reconnect
+		}
+	}
+
+	// One filter on the info of every task in the list view
+	static PropertyFilterSpec createFilterSpec(ManagedObjectReference view) {
+		TraversalSpec traversal = new TraversalSpec();
+		traversal.setName("traverseList");
+		traversal.setType("ListView");
+		traversal.setPath("view");
+		traversal.setSkip(Boolean.FALSE);
+
+		ObjectSpec oSpec = new ObjectSpec();
+		oSpec.setObj(view);
+		oSpec.setSkip(Boolean.TRUE);
+		oSpec.setSelectSet(new SelectionSpec[] { traversal });
+
+		PropertySpec taskSpec = new PropertySpec();
+		taskSpec.setType("Task");
+		taskSpec.setPathSet(new String[] { "info" });
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { oSpec });
+		spec.setPropSet(new PropertySpec[] { taskSpec });
+		return spec;
+	}
+
+	private void handleUpdate(UpdateSet update) {
+		PropertyFilterUpdate[] pfus = update.getFilterSet();
+		if (pfus == null)
+			return;
+		for (PropertyFilterUpdate pfu : pfus) {
+			ObjectUpdate[] ous = pfu.getObjectSet();
+			if (ous == null)
+				continue;
+			for (ObjectUpdate ou : ous) {
+				TrackedTask tracked = tasks.get(ou.getObj().getVal());
+				if (tracked == null || ou.getChangeSet() == null)
+					continue;
+				for (PropertyChange change : ou.getChangeSet()) {
+					if ("info".equals(change.getName()) && change.getVal() instanceof TaskInfo)
+						handleInfo(tracked, (TaskInfo) change.getVal());
+				}
+			}
+		}
+	}
+
+	private void handleInfo(TrackedTask tracked, TaskInfo info) {
+		tracked.progress = info.getProgress();
+		if (info.getState() != TaskInfoState.success && info.getState() != TaskInfoState.error)
+			return;
+
+		tasks.remove(tracked.mor.getVal());
+		removeFromView(tracked.mor);
+		if (info.getState() == TaskInfoState.success) {
+			tracked.future.complete(info);
+		} else {
+			RecoveryMetrics.increment(RecoveryMetrics.TASK_FAILURES);
+			LocalizedMethodFault fault = info.getError();
+			tracked.future.completeExceptionally(new Exception("Task " + info.getDescriptionId() + " on "
+					+ info.getEntityName() + " failed: " + (fault != null ? fault.getLocalizedMessage() : "unknown error")));
+		}
+	}
+}
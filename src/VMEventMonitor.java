@@ -0,0 +1,250 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.DasHostFailedEvent;
+import com.vmware.vim25.Event;
+import com.vmware.vim25.EventFilterSpec;
+import com.vmware.vim25.EventFilterSpecByEntity;
+import com.vmware.vim25.EventFilterSpecByTime;
+import com.vmware.vim25.EventFilterSpecRecursionOption;
+import com.vmware.vim25.HostConnectedEvent;
+import com.vmware.vim25.HostConnectionLostEvent;
+import com.vmware.vim25.HostDisconnectedEvent;
+import com.vmware.vim25.VmDasBeingResetEvent;
+import com.vmware.vim25.VmGuestShutdownEvent;
+import com.vmware.vim25.VmPoweredOffEvent;
+import com.vmware.vim25.VmPoweredOnEvent;
+import com.vmware.vim25.VmRemovedEvent;
+import com.vmware.vim25.VmRenamedEvent;
+import com.vmware.vim25.VmRestartedOnAlternateHostEvent;
+import com.vmware.vim25.mo.EventHistoryCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+
+public class VMEventMonitor extends Thread {
+	// Events that tell why a VM stopped answering
+	private static final String[] EVENT_TYPES = { "VmPoweredOffEvent", "VmGuestShutdownEvent", "VmPoweredOnEvent",
+			"VmRemovedEvent", "VmRenamedEvent", "VmDasBeingResetEvent", "VmRestartedOnAlternateHostEvent",
+			"HostConnectionLostEvent", "HostDisconnectedEvent", "HostConnectedEvent", "DasHostFailedEvent" };
+
+	// Last known reason for the power state of a VM
+	public static final int RUNNING = 0;
+	public static final int USER_POWER_OFF = 1;
+	public static final int GUEST_SHUTDOWN = 2;
+	public static final int HOST_FAILURE = 3;
+	public static final int HA_RESTART = 4;
+
+	// Latest classified event of one VM
+	public static class VMEventState {
+		public final int cause;
+		public final int eventKey;
+		public final long time;
+
+		VMEventState(int cause, int eventKey, long time) {
+			this.cause = cause;
+			this.eventKey = eventKey;
+			this.time = time;
+		}
+
+		public boolean isGraceful() {
+			return cause == USER_POWER_OFF || cause == GUEST_SHUTDOWN;
+		}
+	}
+
+	private final Properties prop;
+	private final File cursorFile;
+	private final Map<String,VMEventState> vms = new ConcurrentHashMap<String,VMEventState>();
+	private int lastKey = -1;
+	private long lastTime = 0;
+	private volatile boolean synced = false;
+	private boolean replayed = false;
+	private volatile boolean running = true;
+
+	public VMEventMonitor(Properties prop) {
+		super("VMEventMonitor");
+		this.prop = prop;
+		this.cursorFile = new File(prop.getProperty("EventCursorFile", "event.cursor"));
+		setDaemon(true);
+	}
+
+	// Function to tell a user or guest shutdown from a crash, answered from the event table
+	public boolean wasGracefulShutdown(String vmName) {
+		VMEventState state = vms.get(vmName);
+		return state != null && state.isGraceful();
+	}
+
+	public VMEventState getState(String vmName) {
+		return vms.get(vmName);
+	}
+
+	// True once the events since the cursor have been read
+	public boolean isSynced() {
+		return synced && running;
+	}
+
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+	public void run() {
+		readCursor();
+		while (running) {
+			ServiceInstance si = null;
+			EventHistoryCollector collector = null;
+			try {
+				// Held for as long as the watcher runs, so it is not taken from the pool
+				si = SessionPoolManager.openDedicated(prop, SessionPoolManager.VCENTER);
+				collector = si.getEventManager().createCollectorForEvents(createFilterSpec(si));
+				int pageSize = Integer.parseInt(prop.getProperty("EventPageSize", "100"));
+				collector.setCollectorPageSize(pageSize);
+				collector.rewindCollector();
+
+				// Read everything since the cursor, then tail new events
+				while (running) {
+					Event[] events = collector.readNextEvents(pageSize);
+					if (events == null || events.length == 0) {
+						synced = true;
+						replayed = true;
+						Thread.sleep(Long.parseLong(prop.getProperty("EventPollInterval", "2000")));
+						continue;
+					}
+					for (Event event : events)
+						handleEvent(event);
+					writeCursor();
+				}
+			} catch (InterruptedException e) {
+				// Stopping
+			} catch (Exception e) {
+				if (!running)
+					break;
+				synced = false;
+				System.out.println("VM event monitor lost its session, reconnecting: " + e);
+				SessionPoolManager.invalidate(si);
+				si = null;
+				try {
+					Thread.sleep(ConfigService.getInstance().current().getMonitorInterval());
+				} catch (Exception ie) {
+					// Retry or stop
+				}
+			} finally {
+				if (si != null) {
+					try {
+						collector.destroyCollector();
+					} catch (Exception e) {
+						// Session is being dropped anyway
+					}
+					SessionPoolManager.release(si);
+				}
+			}
+		}
+	}
+
+	// Every VM and vHost event of interest since the cursor, or the replay window when that is earlier
+	private EventFilterSpec createFilterSpec(ServiceInstance si) {
+		EventFilterSpecByEntity entity = new EventFilterSpecByEntity();
+		entity.setEntity(si.getRootFolder().getMOR());
+		entity.setRecursion(EventFilterSpecRecursionOption.all);
+
+		long window = System.currentTimeMillis() - Long.parseLong(prop.getProperty("EventReplayWindow", "3600000"));
+		Calendar begin = Calendar.getInstance();
+		begin.setTimeInMillis(lastTime > 0 ? Math.min(lastTime, window) : window);
+		EventFilterSpecByTime time = new EventFilterSpecByTime();
+		time.setBeginTime(begin);
+
+		EventFilterSpec spec = new EventFilterSpec();
+		spec.setEntity(entity);
+		spec.setTime(time);
+		spec.setType(EVENT_TYPES);
+		return spec;
+	}
+
+	private void handleEvent(Event event) {
+		// The table is rebuilt from the replay after a restart, only reconnects skip what was seen
+		if (replayed && event.getKey() <= lastKey)
+			return;
+		lastKey = Math.max(lastKey, event.getKey());
+		if (event.getCreatedTime() != null)
+			lastTime = Math.max(lastTime, event.getCreatedTime().getTimeInMillis());
+
+		if (event instanceof VmPoweredOffEvent)
+			setVM(event, USER_POWER_OFF);
+		else if (event instanceof VmGuestShutdownEvent)
+			setVM(event, GUEST_SHUTDOWN);
+		else if (event instanceof VmPoweredOnEvent)
+			setVM(event, RUNNING);
+		else if (event instanceof VmDasBeingResetEvent || event instanceof VmRestartedOnAlternateHostEvent)
+			setVM(event, HA_RESTART);
+		else if (event instanceof VmRemovedEvent && event.getVm() != null)
+			vms.remove(event.getVm().getName());
+		else if (event instanceof VmRenamedEvent) {
+			VMEventState state = vms.remove(((VmRenamedEvent) event).getOldName());
+			if (state != null)
+				vms.put(((VmRenamedEvent) event).getNewName(), state);
+		} else if (event instanceof HostConnectionLostEvent || event instanceof HostDisconnectedEvent)
+			setHost(event.getHost() != null ? event.getHost().getHost().getVal() : null, event, HOST_FAILURE);
+		else if (event instanceof DasHostFailedEvent) {
+			DasHostFailedEvent failed = (DasHostFailedEvent) event;
+			setHost(failed.getFailedHost() != null ? failed.getFailedHost().getHost().getVal() : null, event, HOST_FAILURE);
+		} else if (event instanceof HostConnectedEvent)
+			setHost(event.getHost() != null ? event.getHost().getHost().getVal() : null, event, RUNNING);
+	}
+
+	private void setVM(Event event, int cause) {
+		if (event.getVm() != null && event.getVm().getName() != null)
+			vms.put(event.getVm().getName(), new VMEventState(cause, event.getKey(), lastTime));
+	}
+
+	// A vHost event applies to every VM placed on it
+	private void setHost(String hostMor, Event event, int cause) {
+		PlacementIndex placementIndex = AvailabilityManager.placementIndex;
+		if (hostMor == null || placementIndex == null)
+			return;
+		for (String vmName : placementIndex.getVMsOnHost(hostMor)) {
+			// A graceful power off stays graceful when the vHost comes back
+			VMEventState state = vms.get(vmName);
+			if (cause == RUNNING && state != null && state.isGraceful())
+				continue;
+			vms.put(vmName, new VMEventState(cause, event.getKey(), lastTime));
+		}
+	}
+
+	private void readCursor() {
+		if (!cursorFile.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(cursorFile));
+			try {
+				String[] cursor = reader.readLine().trim().split(",");
+				lastKey = Integer.parseInt(cursor[0]);
+				lastTime = Long.parseLong(cursor[1]);
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			System.out.println("Event cursor could not be read, replaying recent events: " + e);
+		}
+	}
+
+	// Written to a temporary file first so a crash never leaves half a cursor
+	private void writeCursor() throws IOException {
+		File temp = new File(cursorFile.getPath() + ".tmp");
+		FileWriter writer = new FileWriter(temp);
+		try {
+			writer.write(lastKey + "," + lastTime + "\n");
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(cursorFile)) {
+			cursorFile.delete();
+			temp.renameTo(cursorFile);
+		}
+	}
+}
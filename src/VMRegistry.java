@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.VirtualMachinePowerState;
+
+
+public class VMRegistry implements InventoryWatcher.Listener {
+	// Whether a health check is scheduled for the VM
+	public static final String NOT_PROVISIONED = "NP";
+	public static final String PROVISIONED = "P";
+
+	// Immutable state of one VM, every change publishes a new record with the next version
+	public static class Record {
+		public final String name;
+		public final String ipAddress;
+		public final String hostMor;
+		public final VirtualMachinePowerState powerState;
+		public final String provisionState;
+		public final long lastCheck;
+		public final long lastReachable;
+		public final long version;
+
+		Record(String name, String ipAddress, String hostMor, VirtualMachinePowerState powerState, String provisionState,
+				long lastCheck, long lastReachable, long version) {
+			this.name = name;
+			this.ipAddress = ipAddress;
+			this.hostMor = hostMor;
+			this.powerState = powerState;
+			this.provisionState = provisionState;
+			this.lastCheck = lastCheck;
+			this.lastReachable = lastReachable;
+			this.version = version;
+		}
+
+		Record withInventory(String ipAddress, String hostMor, VirtualMachinePowerState powerState) {
+			return new Record(name, ipAddress, hostMor, powerState, provisionState, lastCheck, lastReachable, version + 1);
+		}
+
+		Record withProvisionState(String provisionState) {
+			return new Record(name, ipAddress, hostMor, powerState, provisionState, lastCheck, lastReachable, version + 1);
+		}
+
+		Record withCheck(long time, boolean reachable) {
+			return new Record(name, ipAddress, hostMor, powerState, provisionState, time,
+					reachable ? time : lastReachable, version + 1);
+		}
+
+		boolean sameInventory(String ipAddress, String hostMor, VirtualMachinePowerState powerState) {
+			return equal(this.ipAddress, ipAddress) && equal(this.hostMor, hostMor) && this.powerState == powerState;
+		}
+
+		public boolean hasIP() {
+			return ipAddress != null && !ipAddress.equals("null");
+		}
+	}
+
+	// VMs added, changed and removed by one bulk apply
+	public static class Diff {
+		public final List<String> added = new ArrayList<String>();
+		public final List<String> changed = new ArrayList<String>();
+		public final List<String> removed = new ArrayList<String>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	private final ConcurrentHashMap<String,Record> records = new ConcurrentHashMap<String,Record>();
+
+	// Function to get the current record of a VM without locking, null if not known
+	public Record get(String vmName) {
+		return records.get(vmName);
+	}
+
+	public String getIP(String vmName) {
+		Record record = records.get(vmName);
+		return record == null ? null : record.ipAddress;
+	}
+
+	public Collection<Record> getRecords() {
+		return Collections.unmodifiableCollection(records.values());
+	}
+
+	// Function to copy VM name to IP out of the registry, same shape as AvailabilityManager.getIPList
+	public Map<String,String> getIPMap() {
+		Map<String,String> ipMap = new HashMap<String,String>();
+		for (Record record : records.values())
+			ipMap.put(record.name, record.ipAddress);
+		return ipMap;
+	}
+
+	// Function to bring the registry in line with an inventory refresh, unchanged VMs keep their record
+	public Diff apply(Map<String,String> ipMap, InventoryWatcher watcher) {
+		Diff diff = new Diff();
+		for (Map.Entry<String,String> vm : ipMap.entrySet()) {
+			String name = vm.getKey();
+			String hostMor = null;
+			VirtualMachinePowerState powerState = null;
+			InventoryWatcher.VMState state = watcher != null ? watcher.getVM(name) : null;
+			if (state != null) {
+				hostMor = state.hostMor;
+				powerState = state.powerState;
+			}
+			switch (update(name, vm.getValue(), hostMor, powerState)) {
+			case 1:
+				diff.added.add(name);
+				break;
+			case 2:
+				diff.changed.add(name);
+				break;
+			}
+		}
+		for (String name : records.keySet()) {
+			if (!ipMap.containsKey(name) && records.remove(name) != null)
+				diff.removed.add(name);
+		}
+		return diff;
+	}
+
+	// Returns 0 when unchanged, 1 when added and 2 when changed
+	private int update(String name, String ipAddress, String hostMor, VirtualMachinePowerState powerState) {
+		while (true) {
+			Record current = records.get(name);
+			if (current == null) {
+				Record added = new Record(name, ipAddress, hostMor, powerState, NOT_PROVISIONED, 0, 0, 1);
+				if (records.putIfAbsent(name, added) == null)
+					return 1;
+				continue;
+			}
+			// Without the watcher the refresh only knows the IP
+			if (hostMor == null && powerState == null) {
+				hostMor = current.hostMor;
+				powerState = current.powerState;
+			}
+			if (current.sameInventory(ipAddress, hostMor, powerState))
+				return 0;
+			if (records.replace(name, current, current.withInventory(ipAddress, hostMor, powerState)))
+				return 2;
+		}
+	}
+
+	// Function to mark a VM as provisioned, true only for the caller that changed it
+	public boolean markProvisioned(String vmName) {
+		return setProvisionState(vmName, PROVISIONED);
+	}
+
+	private boolean setProvisionState(String vmName, String provisionState) {
+		while (true) {
+			Record current = records.get(vmName);
+			if (current == null || provisionState.equals(current.provisionState))
+				return false;
+			if (records.replace(vmName, current, current.withProvisionState(provisionState)))
+				return true;
+		}
+	}
+
+	// Function to record the result of one health check of a VM
+	public void checked(String vmName, boolean reachable) {
+		long now = System.currentTimeMillis();
+		while (true) {
+			Record current = records.get(vmName);
+			if (current == null || records.replace(vmName, current, current.withCheck(now, reachable)))
+				return;
+		}
+	}
+
+	// Live updates between the bulk applies, for VMs the registry already knows
+	public void vmChanged(InventoryWatcher.VMState previous, InventoryWatcher.VMState current) {
+		if (current.name == null)
+			return;
+		while (true) {
+			Record record = records.get(current.name);
+			if (record == null || record.sameInventory(current.ipAddress, current.hostMor, current.powerState))
+				return;
+			if (records.replace(current.name, record, record.withInventory(current.ipAddress, current.hostMor, current.powerState)))
+				return;
+		}
+	}
+
+	public void vmRemoved(InventoryWatcher.VMState previous) {
+		if (previous.name != null)
+			records.remove(previous.name);
+	}
+
+	public void hostChanged(InventoryWatcher.HostState previous, InventoryWatcher.HostState current) {
+		// Host state is kept by the watcher itself
+	}
+
+	public void hostRemoved(InventoryWatcher.HostState previous) {
+		// Host state is kept by the watcher itself
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
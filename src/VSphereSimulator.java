@@ -0,0 +1,2881 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.AboutInfo;
+import com.vmware.vim25.AlarmInfo;
+import com.vmware.vim25.AlarmSpec;
+import com.vmware.vim25.AlarmState;
+import com.vmware.vim25.DailyTaskScheduler;
+import com.vmware.vim25.DatacenterEventArgument;
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.DuplicateName;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.Event;
+import com.vmware.vim25.EventFilterSpec;
+import com.vmware.vim25.GuestInfo;
+import com.vmware.vim25.HostConfigManager;
+import com.vmware.vim25.HostConnectFault;
+import com.vmware.vim25.HostConnectSpec;
+import com.vmware.vim25.HostConnectedEvent;
+import com.vmware.vim25.HostConnectionLostEvent;
+import com.vmware.vim25.HostEventArgument;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.HostNasVolume;
+import com.vmware.vim25.HostNasVolumeSpec;
+import com.vmware.vim25.HostNotConnected;
+import com.vmware.vim25.HostRuntimeInfo;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.HostSystemPowerState;
+import com.vmware.vim25.HourlyTaskScheduler;
+import com.vmware.vim25.InvalidArgument;
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodAction;
+import com.vmware.vim25.MethodActionArgument;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.NasDatastoreInfo;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.NotSupported;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.OnceTaskScheduler;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfEntityMetricCSV;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfMetricSeriesCSV;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.PerfStatsType;
+import com.vmware.vim25.PerfSummaryType;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.ScheduledTaskInfo;
+import com.vmware.vim25.ScheduledTaskSpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.SystemError;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TaskScheduler;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.UserSession;
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachineConfigSummary;
+import com.vmware.vim25.VirtualMachineConnectionState;
+import com.vmware.vim25.VirtualMachineGuestSummary;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineQuickStats;
+import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.VirtualMachineStorageSummary;
+import com.vmware.vim25.VirtualMachineSummary;
+import com.vmware.vim25.VmEventArgument;
+import com.vmware.vim25.WeeklyTaskScheduler;
+import com.vmware.vim25.VmPoweredOffEvent;
+import com.vmware.vim25.VmPoweredOnEvent;
+import com.vmware.vim25.VmRemovedEvent;
+import com.vmware.vim25.WaitOptions;
+
+
+public class VSphereSimulator {
+	// Managed entity types, a PropertySpec or TraversalSpec on ManagedEntity matches all of them
+	private static final Set<String> ENTITY_TYPES = new HashSet<String>(Arrays.asList("Folder", "Datacenter",
+			"ComputeResource", "ClusterComputeResource", "HostSystem", "ResourcePool", "VirtualApp", "VirtualMachine",
+			"Datastore", "Network"));
+
+	// Properties that move objects in or out of traversals and container views
+	private static final Set<String> CONTAINMENT = new HashSet<String>(Arrays.asList("childEntity", "vmFolder",
+			"hostFolder", "datastoreFolder", "networkFolder", "host", "vm", "resourcePool", "datastore", "network", "view"));
+
+	// Simulated duration of each task in milliseconds, before SimulatorTaskScale and slowTasks
+	private static final Map<String,Long> TASK_DURATIONS = new HashMap<String,Long>();
+	static {
+		TASK_DURATIONS.put("CloneVM_Task", 3000L);
+		TASK_DURATIONS.put("MigrateVM_Task", 2000L);
+		TASK_DURATIONS.put("Destroy_Task", 500L);
+		TASK_DURATIONS.put("PowerOnVM_Task", 1000L);
+		TASK_DURATIONS.put("PowerOffVM_Task", 500L);
+		TASK_DURATIONS.put("CreateSnapshot_Task", 1000L);
+		TASK_DURATIONS.put("RemoveSnapshot_Task", 500L);
+		TASK_DURATIONS.put("RevertToSnapshot_Task", 1000L);
+		TASK_DURATIONS.put("RevertToCurrentSnapshot_Task", 1000L);
+		TASK_DURATIONS.put("PromoteDisks_Task", 4000L);
+		TASK_DURATIONS.put("AddStandaloneHost_Task", 2000L);
+		TASK_DURATIONS.put("ReconnectHost_Task", 2000L);
+		TASK_DURATIONS.put("DisconnectHost_Task", 500L);
+		TASK_DURATIONS.put("EnterMaintenanceMode_Task", 500L);
+		TASK_DURATIONS.put("ExitMaintenanceMode_Task", 500L);
+	}
+
+	// Realtime interval of the performance manager in seconds
+	private static final int SAMPLE_INTERVAL = 20;
+
+	private static final Pattern SESSION_COOKIE = Pattern.compile("vmware_soap_session=\"?([^\";]+)");
+
+	// A vim25 fault answered to a call or set on a failed task
+	static class SimFault extends Exception {
+		private static final long serialVersionUID = 1L;
+		final MethodFault fault;
+
+		SimFault(MethodFault fault, String message) {
+			super(message);
+			this.fault = fault;
+		}
+	}
+
+	// Work done when a simulated task completes, its return value is the task result
+	private interface Action {
+		Object run() throws SimFault;
+	}
+
+	// One managed object, its property values are replaced and never changed in place
+	private static class MO {
+		final String type;
+		final String id;
+		final ManagedObjectReference mor;
+		final Map<String,Object> props = new ConcurrentHashMap<String,Object>();
+		volatile long version;
+
+		// Contents of a container view and the structure version they were computed at
+		ManagedObjectReference[] view;
+		long viewStructure = -1;
+
+		MO(String type, String id) {
+			this.type = type;
+			this.id = id;
+			this.mor = mor(type, id);
+		}
+	}
+
+	// State behind a VirtualMachine, published as its vim25 properties
+	private static class SimVM {
+		final MO mo;
+		String name;
+		String ip;
+		SimHost host;
+		MO pool;
+		MO folder;
+		MO datastore;
+		int memoryMB;
+		int numCPU;
+		int cpuMhz;
+		VirtualMachinePowerState powerState = VirtualMachinePowerState.poweredOn;
+		boolean crashed;
+		long bootTime = System.currentTimeMillis();
+		String linkedTo;
+		boolean alarmed;
+		AlarmState[] triggered = new AlarmState[0];
+		final List<SimSnapshot> snapshots = new ArrayList<SimSnapshot>();
+		SimSnapshot current;
+
+		SimVM(MO mo) {
+			this.mo = mo;
+		}
+
+		boolean isUp() {
+			return powerState == VirtualMachinePowerState.poweredOn && !crashed && !host.failed;
+		}
+	}
+
+	private static class SimSnapshot {
+		final MO mo;
+		final String name;
+		final String description;
+		final Calendar created = Calendar.getInstance();
+		final int id;
+		boolean quiesced;
+		SimSnapshot parent;
+
+		SimSnapshot(MO mo, String name, String description, int id) {
+			this.mo = mo;
+			this.name = name;
+			this.description = description;
+			this.id = id;
+		}
+	}
+
+	// State behind a HostSystem, failed means the hardware is down whatever vCenter says
+	private static class SimHost {
+		final MO mo;
+		final String name;
+		MO computeResource;
+		MO pool;
+		MO datacenter;
+		HostSystemConnectionState state = HostSystemConnectionState.connected;
+		boolean maintenance;
+		boolean failed;
+		boolean admin;
+		long bootTime = System.currentTimeMillis();
+		final Set<SimVM> vms = new LinkedHashSet<SimVM>();
+
+		SimHost(MO mo, String name) {
+			this.mo = mo;
+			this.name = name;
+		}
+
+		boolean isUp() {
+			return !failed && state == HostSystemConnectionState.connected;
+		}
+	}
+
+	// Scheduled task and the outcome of its last run
+	private static class SimScheduledTask {
+		final MO mo;
+		final ManagedObjectReference entity;
+		ScheduledTaskSpec spec;
+		long nextRun;
+		ManagedObjectReference activeTask;
+		Calendar prevRun;
+		TaskInfoState state = TaskInfoState.success;
+		Object result;
+		LocalizedMethodFault error;
+		Calendar modified = Calendar.getInstance();
+
+		SimScheduledTask(MO mo, ManagedObjectReference entity) {
+			this.mo = mo;
+			this.entity = entity;
+		}
+	}
+
+	// Property collector state of one session, filters report what changed since the last update
+	private static class Collector {
+		final Map<String,Filter> filters = new ConcurrentHashMap<String,Filter>();
+		long version;
+		volatile boolean cancelled;
+	}
+
+	private static class Filter {
+		final ManagedObjectReference mor;
+		final PropertyFilterSpec spec;
+		long structure = -1;
+		Set<String> matched = Collections.emptySet();
+		final Map<String,Long> seen = new HashMap<String,Long>();
+		final Map<String,Map<String,String>> sent = new HashMap<String,Map<String,String>>();
+
+		Filter(ManagedObjectReference mor, PropertyFilterSpec spec) {
+			this.mor = mor;
+			this.spec = spec;
+		}
+	}
+
+	// Position of an event history collector in the event log
+	private static class EventCursor {
+		final EventFilterSpec filter;
+		int position;
+		int pageSize = 10;
+
+		EventCursor(EventFilterSpec filter, int position) {
+			this.filter = filter;
+			this.position = position;
+		}
+	}
+
+	private static class Session {
+		final String key;
+		final UserSession user;
+		final Map<String,Collector> collectors = new ConcurrentHashMap<String,Collector>();
+		final Map<String,Collector> filterOwners = new ConcurrentHashMap<String,Collector>();
+		final Map<String,List<ObjectContent>> pages = new ConcurrentHashMap<String,List<ObjectContent>>();
+		final Map<String,Integer> pageSizes = new ConcurrentHashMap<String,Integer>();
+		final Map<String,EventCursor> eventCursors = new ConcurrentHashMap<String,EventCursor>();
+		final Set<String> views = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+		Session(String key, UserSession user) {
+			this.key = key;
+			this.user = user;
+		}
+
+		synchronized Collector collector(String id) {
+			Collector collector = collectors.get(id);
+			if (collector == null) {
+				collector = new Collector();
+				collectors.put(id, collector);
+			}
+			return collector;
+		}
+	}
+
+	// One SOAP call: the method element, the object it is invoked on and the caller's session
+	private static class Call {
+		final HttpExchange exchange;
+		final Element method;
+		final String name;
+		final ManagedObjectReference self;
+		final Session session;
+
+		Call(HttpExchange exchange, Element method, ManagedObjectReference self, Session session) {
+			this.exchange = exchange;
+			this.method = method;
+			this.name = method.getName();
+			this.self = self;
+			this.session = session;
+		}
+
+		Object arg(String name, Class<?> type) throws Exception {
+			return SoapCodec.arg(method, name, type);
+		}
+	}
+
+	private final Properties prop;
+	private final HttpServer server;
+	private final ExecutorService handlers;
+	private final ScheduledExecutorService timers;
+	private final Random random;
+
+	// Inventory, every object by its MOR value
+	private final ConcurrentHashMap<String,MO> objects = new ConcurrentHashMap<String,MO>();
+	private final ConcurrentHashMap<String,SimVM> vms = new ConcurrentHashMap<String,SimVM>();
+	private final ConcurrentHashMap<String,SimVM> vmsByName = new ConcurrentHashMap<String,SimVM>();
+	private final ConcurrentHashMap<String,SimVM> vmsByIp = new ConcurrentHashMap<String,SimVM>();
+	private final ConcurrentHashMap<String,SimHost> hostsByName = new ConcurrentHashMap<String,SimHost>();
+	private final ConcurrentHashMap<String,SimHost> hostSystems = new ConcurrentHashMap<String,SimHost>();
+	private final ConcurrentHashMap<String,SimSnapshot> snapshots = new ConcurrentHashMap<String,SimSnapshot>();
+	private final ConcurrentHashMap<String,MO> datastoresByName = new ConcurrentHashMap<String,MO>();
+	private final ConcurrentHashMap<String,SimScheduledTask> scheduledTasks = new ConcurrentHashMap<String,SimScheduledTask>();
+	private final Map<String,Set<String>> refs = new HashMap<String,Set<String>>();
+	private final AtomicInteger ids = new AtomicInteger(10);
+	private final AtomicInteger addresses = new AtomicInteger();
+
+	// Bumped on every property change, and on changes that move objects in or out of traversals
+	private final AtomicLong versions = new AtomicLong();
+	private volatile long structure;
+	private final Object changes = new Object();
+
+	private final Map<String,Session> sessions = new ConcurrentHashMap<String,Session>();
+	private final List<Event> events = new ArrayList<Event>();
+	private final AtomicInteger eventKeys = new AtomicInteger();
+	private final PerfCounterInfo[] perfCounters;
+	private ServiceContent serviceContent;
+	private MO rootFolder;
+	private MO datacenter;
+	private MO network;
+	private MO scheduledTaskManager;
+
+	// Latency and count of every SOAP method, in microseconds
+	private final ConcurrentHashMap<String,Histogram> calls = new ConcurrentHashMap<String,Histogram>();
+	private final AtomicLong faults = new AtomicLong();
+
+	// Injected faults
+	private volatile long callLatency;
+	private final Map<String,Long> methodLatency = new ConcurrentHashMap<String,Long>();
+	private volatile double taskScale;
+	private volatile double taskSlowdown = 1.0;
+	private volatile double taskFailureRate;
+	private final long taskRetention;
+
+	// First clone, migration or power on of each VM since clearActions
+	private final ConcurrentHashMap<String,Long> firstActions = new ConcurrentHashMap<String,Long>();
+
+	public VSphereSimulator(Properties prop, int port) throws IOException {
+		this.prop = prop;
+		this.random = new Random(Long.parseLong(prop.getProperty("SimulatorSeed", "1")));
+		this.callLatency = Long.parseLong(prop.getProperty("SimulatorCallLatency", "0"));
+		this.taskScale = Double.parseDouble(prop.getProperty("SimulatorTaskScale", "1.0"));
+		this.taskFailureRate = Double.parseDouble(prop.getProperty("SimulatorTaskFailureRate", "0"));
+		this.taskRetention = Long.parseLong(prop.getProperty("SimulatorTaskRetention", "600000"));
+		this.perfCounters = createPerfCounters();
+
+		handlers = Executors.newCachedThreadPool(daemon("VSphereSimulator"));
+		timers = Executors.newScheduledThreadPool(2, daemon("VSphereSimulatorTasks"));
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.setExecutor(handlers);
+		server.createContext("/sdk", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				VSphereSimulator.this.handle(exchange);
+			}
+		});
+		buildInventory();
+	}
+
+	// Function to start serving /sdk and ticking the vHost quick stats
+	public void start() {
+		server.start();
+		long interval = Long.parseLong(prop.getProperty("SimulatorQuickStatsInterval", "20000"));
+		timers.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				refreshQuickStats();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		timers.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				runDueScheduledTasks(false);
+			}
+		}, 1000, 1000, TimeUnit.MILLISECONDS);
+		System.out.println("vSphere simulator serving " + hostSystems.size() + " vHosts and " + vms.size()
+				+ " VMs on http://127.0.0.1:" + server.getAddress().getPort() + "/sdk");
+	}
+
+	public void stop() {
+		server.stop(0);
+		handlers.shutdownNow();
+		timers.shutdownNow();
+	}
+
+	// ---- Fault injection ----
+
+	// Function to take a vHost down, vCenter loses it and its VMs stop answering
+	public void failHost(String hostName) {
+		synchronized (this) {
+			SimHost host = hostsByName.get(hostName);
+			if (host == null || host.failed)
+				return;
+			host.failed = true;
+			host.state = HostSystemConnectionState.notResponding;
+			publish(host);
+			for (SimVM vm : host.vms)
+				publish(vm);
+			Event event = new HostConnectionLostEvent();
+			event.setHost(hostArgument(host));
+			postEvent(event, "Host " + hostName + " is not responding");
+		}
+		changed();
+	}
+
+	// Function to bring the hardware of a vHost back, it stays disconnected until it is reconnected
+	public void restoreHost(String hostName) {
+		synchronized (this) {
+			SimHost host = hostsByName.get(hostName);
+			if (host == null || !host.failed)
+				return;
+			host.failed = false;
+			host.bootTime = System.currentTimeMillis();
+			for (SimVM vm : host.vms) {
+				vm.powerState = VirtualMachinePowerState.poweredOff;
+				vm.crashed = false;
+			}
+		}
+	}
+
+	// Function to crash the guest of a VM, vCenter still believes it is powered on
+	public void crashVM(String vmName) {
+		synchronized (this) {
+			SimVM vm = vmsByName.get(vmName);
+			if (vm == null)
+				return;
+			vm.crashed = true;
+			publish(vm);
+		}
+		changed();
+	}
+
+	// Function to shut a VM down from inside the guest, a graceful power off with its event
+	public void powerOffVM(String vmName) {
+		synchronized (this) {
+			SimVM vm = vmsByName.get(vmName);
+			if (vm == null)
+				return;
+			powerOff(vm);
+		}
+		changed();
+	}
+
+	public void setCallLatency(long millis) {
+		callLatency = millis;
+	}
+
+	public void setMethodLatency(String method, long millis) {
+		methodLatency.put(method, millis);
+	}
+
+	// Function to make every task started from now on take factor times longer
+	public void slowTasks(double factor) {
+		taskSlowdown = factor;
+	}
+
+	public void setTaskFailureRate(double rate) {
+		taskFailureRate = rate;
+	}
+
+	// ---- State for probes and load tests ----
+
+	// Function to answer a probe of a VM IP or vHost name
+	public boolean isReachable(String target) {
+		SimVM vm = vmsByIp.get(target);
+		if (vm != null)
+			return vm.isUp();
+		SimHost host = hostsByName.get(target);
+		if (host != null)
+			return !host.failed;
+		return false;
+	}
+
+	// Function to check a VM is powered on, answering and on a connected vHost
+	public boolean isRunning(String vmName) {
+		SimVM vm = vmsByName.get(vmName);
+		return vm != null && vm.isUp() && vm.host.isUp();
+	}
+
+	public List<String> getHostNames() {
+		List<String> names = new ArrayList<String>();
+		for (SimHost host : hostSystems.values()) {
+			if (!host.admin)
+				names.add(host.name);
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	// Names of the VMs with an IP, the ones the DR code monitors
+	public List<String> getVMNames() {
+		List<String> names = new ArrayList<String>();
+		for (SimVM vm : vms.values()) {
+			if (vm.ip != null)
+				names.add(vm.name);
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	public synchronized List<String> getVMsOnHost(String hostName) {
+		List<String> names = new ArrayList<String>();
+		SimHost host = hostsByName.get(hostName);
+		if (host != null) {
+			for (SimVM vm : host.vms) {
+				if (vm.ip != null)
+					names.add(vm.name);
+			}
+		}
+		return names;
+	}
+
+	// Time of the first clone, migration or power on of the VM since clearActions, 0 if none
+	public long getFirstAction(String vmName) {
+		Long time = firstActions.get(vmName);
+		return time != null ? time : 0;
+	}
+
+	public void clearActions() {
+		firstActions.clear();
+	}
+
+	// Function to run every enabled scheduled task now instead of at its next run time
+	public void runScheduledTasks() {
+		runDueScheduledTasks(true);
+	}
+
+	public int getScheduledTaskCount() {
+		return scheduledTasks.size();
+	}
+
+	public synchronized int getSnapshotCount(String vmName) {
+		SimVM vm = vmsByName.get(vmName);
+		return vm != null ? vm.snapshots.size() : 0;
+	}
+
+	public Histogram getCalls(String method) {
+		return calls.get(method);
+	}
+
+	// Function to print the count and latency of every SOAP method served
+	public String report() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-32s %10s %10s %10s %10s%n", "method", "count", "p50 us", "p99 us", "max us"));
+		for (Map.Entry<String,Histogram> entry : new TreeMap<String,Histogram>(calls).entrySet()) {
+			Histogram histogram = entry.getValue();
+			out.append(String.format("%-32s %10d %10d %10d %10d%n", entry.getKey(), histogram.getCount(),
+					histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()));
+		}
+		out.append("faults ").append(faults.get()).append(", sessions ").append(sessions.size())
+				.append(", events ").append(eventKeys.get()).append('\n');
+		return out.toString();
+	}
+
+	// ---- SOAP endpoint ----
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		String method = "unknown";
+		String response;
+		int status = 200;
+		try {
+			Element body = DocumentHelper.parseText(read(exchange.getRequestBody())).getRootElement().element("Body");
+			Element call = (Element) body.elements().get(0);
+			method = call.getName();
+			Long latency = methodLatency.get(method);
+			long delay = callLatency + (latency != null ? latency : 0);
+			if (delay > 0)
+				Thread.sleep(delay);
+			ManagedObjectReference self = (ManagedObjectReference) SoapCodec.arg(call, "_this", ManagedObjectReference.class);
+			response = SoapCodec.response(method, invoke(new Call(exchange, call, self, sessionOf(exchange))));
+		} catch (SimFault e) {
+			faults.incrementAndGet();
+			status = 500;
+			response = SoapCodec.fault(e.getMessage(), e.fault);
+		} catch (Exception e) {
+			faults.incrementAndGet();
+			status = 500;
+			response = SoapCodec.fault(String.valueOf(e), new SystemError());
+		}
+		byte[] bytes = response.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+		histogram(method).record((System.nanoTime() - start) / 1000);
+	}
+
+	private Object invoke(Call c) throws Exception {
+		if ("RetrieveServiceContent".equals(c.name))
+			return serviceContent;
+		if ("Login".equals(c.name))
+			return login(c);
+		if ("CurrentTime".equals(c.name))
+			return Calendar.getInstance();
+		if (c.session == null)
+			throw new SimFault(new NotAuthenticated(), "The session is not authenticated.");
+
+		switch (c.name) {
+		case "Logout":
+			logout(c.session);
+			return null;
+		case "SessionIsActive":
+			return sessions.containsKey(String.valueOf(c.arg("sessionID", String.class)));
+		case "RetrieveProperties":
+			return array(retrieve(c.session, (PropertyFilterSpec[]) c.arg("specSet", PropertyFilterSpec[].class)));
+		case "RetrievePropertiesEx":
+			return retrievePage(c.session, retrieve(c.session, (PropertyFilterSpec[]) c.arg("specSet", PropertyFilterSpec[].class)),
+					(RetrieveOptions) c.arg("options", RetrieveOptions.class));
+		case "ContinueRetrievePropertiesEx":
+			return continuePage(c.session, (String) c.arg("token", String.class));
+		case "CancelRetrievePropertiesEx":
+			c.session.pages.remove(String.valueOf(c.arg("token", String.class)));
+			return null;
+		case "CreateFilter":
+			return createFilter(c.session, c.self, (PropertyFilterSpec) c.arg("spec", PropertyFilterSpec.class));
+		case "DestroyPropertyFilter":
+			destroyFilter(c.session, c.self);
+			return null;
+		case "CreatePropertyCollector":
+			return mor("PropertyCollector", "session[" + c.session.key + "]pc-" + ids.incrementAndGet());
+		case "DestroyPropertyCollector":
+			cancel(c.session.collectors.remove(c.self.getVal()));
+			return null;
+		case "WaitForUpdatesEx": {
+			WaitOptions options = (WaitOptions) c.arg("options", WaitOptions.class);
+			return waitForUpdates(c.session, c.self, (String) c.arg("version", String.class),
+					options != null ? options.getMaxWaitSeconds() : null);
+		}
+		case "WaitForUpdates":
+			return waitForUpdates(c.session, c.self, (String) c.arg("version", String.class), null);
+		case "CheckForUpdates":
+			return waitForUpdates(c.session, c.self, (String) c.arg("version", String.class), 0);
+		case "CancelWaitForUpdates":
+			cancel(c.session.collectors.get(c.self.getVal()));
+			return null;
+		case "CreateContainerView":
+			return createContainerView(c);
+		case "CreateListView":
+			return createListView(c.session, (ManagedObjectReference[]) c.arg("obj", ManagedObjectReference[].class));
+		case "ModifyListView":
+			return modifyListView(target(c), (ManagedObjectReference[]) c.arg("add", ManagedObjectReference[].class),
+					(ManagedObjectReference[]) c.arg("remove", ManagedObjectReference[].class));
+		case "DestroyView":
+			c.session.views.remove(c.self.getVal());
+			remove(c.self.getVal());
+			changed();
+			return null;
+		case "CloneVM_Task":
+			return cloneVM(vm(c), (ManagedObjectReference) c.arg("folder", ManagedObjectReference.class),
+					(String) c.arg("name", String.class), (VirtualMachineCloneSpec) c.arg("spec", VirtualMachineCloneSpec.class));
+		case "MigrateVM_Task":
+			return migrateVM(vm(c), (ManagedObjectReference) c.arg("pool", ManagedObjectReference.class),
+					(ManagedObjectReference) c.arg("host", ManagedObjectReference.class));
+		case "RelocateVM_Task": {
+			VirtualMachineRelocateSpec spec = (VirtualMachineRelocateSpec) c.arg("spec", VirtualMachineRelocateSpec.class);
+			return migrateVM(vm(c), spec.getPool(), spec.getHost());
+		}
+		case "Destroy_Task":
+			return destroyVM(vm(c));
+		case "PowerOnVM_Task":
+			return powerOnVM(vm(c));
+		case "PowerOffVM_Task":
+			return powerOffVMTask(vm(c));
+		case "CreateSnapshot_Task":
+			return createSnapshot(vm(c), (String) c.arg("name", String.class), (String) c.arg("description", String.class),
+					Boolean.TRUE.equals(c.arg("quiesce", Boolean.class)));
+		case "RemoveSnapshot_Task":
+			return removeSnapshot(snapshot(c), Boolean.TRUE.equals(c.arg("removeChildren", Boolean.class)));
+		case "RemoveAllSnapshots_Task":
+			return removeAllSnapshots(vm(c));
+		case "RevertToSnapshot_Task":
+			return revertToSnapshot(snapshot(c));
+		case "RevertToCurrentSnapshot_Task": {
+			SimVM vm = vm(c);
+			if (vm.current == null)
+				throw new SimFault(new InvalidState(), "VM " + vm.name + " has no snapshot");
+			return revertToSnapshot(vm.current);
+		}
+		case "PromoteDisks_Task":
+			return promoteDisks(vm(c));
+		case "AddStandaloneHost_Task":
+			return addStandaloneHost(target(c), (HostConnectSpec) c.arg("spec", HostConnectSpec.class),
+					!Boolean.FALSE.equals(c.arg("addConnected", Boolean.class)));
+		case "ReconnectHost_Task":
+			return reconnectHost(host(c));
+		case "DisconnectHost_Task":
+			return disconnectHost(host(c));
+		case "EnterMaintenanceMode_Task":
+			return setMaintenanceMode(host(c), true);
+		case "ExitMaintenanceMode_Task":
+			return setMaintenanceMode(host(c), false);
+		case "CreateNasDatastore":
+			return createNasDatastore(c, (HostNasVolumeSpec) c.arg("spec", HostNasVolumeSpec.class));
+		case "RescanAllHba":
+		case "RescanVmfs":
+		case "RescanHba":
+		case "RefreshStorageSystem":
+			return null;
+		case "CreateCollectorForEvents":
+			return createEventCollector(c.session, (EventFilterSpec) c.arg("filter", EventFilterSpec.class));
+		case "SetCollectorPageSize":
+			eventCursor(c).pageSize = (Integer) c.arg("maxCount", Integer.class);
+			return null;
+		case "RewindCollector":
+			eventCursor(c).position = 0;
+			return null;
+		case "ResetCollector":
+			synchronized (events) {
+				eventCursor(c).position = events.size();
+			}
+			return null;
+		case "ReadNextEvents":
+			return readNextEvents(eventCursor(c), (Integer) c.arg("maxCount", Integer.class));
+		case "DestroyCollector":
+			c.session.eventCursors.remove(c.self.getVal());
+			return null;
+		case "CreateAlarm":
+			return createAlarm((ManagedObjectReference) c.arg("entity", ManagedObjectReference.class),
+					(AlarmSpec) c.arg("spec", AlarmSpec.class));
+		case "CreateScheduledTask":
+		case "CreateObjectScheduledTask":
+			return createScheduledTask(entityArg(c), (ScheduledTaskSpec) c.arg("spec", ScheduledTaskSpec.class));
+		case "ReconfigureScheduledTask":
+			reconfigureScheduledTask(scheduledTask(c), (ScheduledTaskSpec) c.arg("spec", ScheduledTaskSpec.class));
+			return null;
+		case "RemoveScheduledTask":
+			removeScheduledTask(scheduledTask(c));
+			return null;
+		case "RunScheduledTask":
+			runScheduledTask(scheduledTask(c), System.currentTimeMillis());
+			return null;
+		case "RetrieveEntityScheduledTask":
+		case "RetrieveObjectScheduledTask":
+			return entityScheduledTasks(entityArg(c));
+		case "QueryPerf":
+			return queryPerf((PerfQuerySpec[]) c.arg("querySpec", PerfQuerySpec[].class));
+		case "QueryPerfCounter":
+			return perfCounters;
+		case "FindByIp":
+			return find((String) c.arg("ip", String.class), Boolean.TRUE.equals(c.arg("vmSearch", Boolean.class)));
+		case "FindByDnsName":
+			return find((String) c.arg("dnsName", String.class), Boolean.TRUE.equals(c.arg("vmSearch", Boolean.class)));
+		default:
+			throw new SimFault(new NotSupported(), c.name + " is not simulated");
+		}
+	}
+
+	// ---- Sessions ----
+
+	private Session sessionOf(HttpExchange exchange) {
+		String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+		if (cookie == null)
+			return null;
+		Matcher matcher = SESSION_COOKIE.matcher(cookie);
+		return matcher.find() ? sessions.get(matcher.group(1)) : null;
+	}
+
+	private UserSession login(Call c) throws Exception {
+		String key = UUID.randomUUID().toString();
+		UserSession user = new UserSession();
+		user.setKey(key);
+		user.setUserName((String) c.arg("userName", String.class));
+		user.setFullName(user.getUserName());
+		user.setLoginTime(Calendar.getInstance());
+		user.setLastActiveTime(Calendar.getInstance());
+		user.setLocale("en");
+		user.setMessageLocale("en");
+		user.setIpAddress(c.exchange.getRemoteAddress().getAddress().getHostAddress());
+		sessions.put(key, new Session(key, user));
+		c.exchange.getResponseHeaders().add("Set-Cookie", "vmware_soap_session=\"" + key + "\"; Path=/; HttpOnly");
+		return user;
+	}
+
+	private void logout(Session session) {
+		sessions.remove(session.key);
+		for (Collector collector : session.collectors.values())
+			cancel(collector);
+		for (String view : session.views)
+			remove(view);
+		changed();
+	}
+
+	// ---- Property collector ----
+
+	private List<ObjectContent> retrieve(Session session, PropertyFilterSpec[] specs) throws SimFault {
+		List<ObjectContent> contents = new ArrayList<ObjectContent>();
+		if (specs == null)
+			return contents;
+		for (PropertyFilterSpec spec : specs) {
+			for (String id : select(spec)) {
+				MO mo = objects.get(id);
+				if (mo == null)
+					continue;
+				List<String> paths = paths(spec, mo);
+				if (paths == null)
+					continue;
+				List<DynamicProperty> propSet = new ArrayList<DynamicProperty>();
+				for (String path : paths) {
+					Object value = property(session, mo, path);
+					if (value != null) {
+						DynamicProperty property = new DynamicProperty();
+						property.setName(path);
+						property.setVal(value);
+						propSet.add(property);
+					}
+				}
+				ObjectContent content = new ObjectContent();
+				content.setObj(mo.mor);
+				content.setPropSet(propSet.toArray(new DynamicProperty[propSet.size()]));
+				contents.add(content);
+			}
+		}
+		return contents;
+	}
+
+	private RetrieveResult retrievePage(Session session, List<ObjectContent> contents, RetrieveOptions options) {
+		int pageSize = options != null && options.getMaxObjects() != null && options.getMaxObjects() > 0
+				? options.getMaxObjects() : Integer.MAX_VALUE;
+		return page(session, contents, pageSize);
+	}
+
+	private RetrieveResult continuePage(Session session, String token) throws SimFault {
+		List<ObjectContent> rest = token != null ? session.pages.remove(token) : null;
+		if (rest == null)
+			throw new SimFault(new InvalidArgument(), "Unknown token " + token);
+		return page(session, rest, session.pageSizes.remove(token));
+	}
+
+	private RetrieveResult page(Session session, List<ObjectContent> contents, int pageSize) {
+		if (contents.isEmpty())
+			return null;
+		RetrieveResult result = new RetrieveResult();
+		if (contents.size() > pageSize) {
+			String token = String.valueOf(ids.incrementAndGet());
+			session.pages.put(token, new ArrayList<ObjectContent>(contents.subList(pageSize, contents.size())));
+			session.pageSizes.put(token, pageSize);
+			result.setToken(token);
+			contents = contents.subList(0, pageSize);
+		}
+		result.setObjects(contents.toArray(new ObjectContent[contents.size()]));
+		return result;
+	}
+
+	private ManagedObjectReference createFilter(Session session, ManagedObjectReference collectorMor, PropertyFilterSpec spec) {
+		ManagedObjectReference filterMor = mor("PropertyFilter", "session[" + session.key + "]" + ids.incrementAndGet());
+		Collector collector = session.collector(collectorMor.getVal());
+		collector.filters.put(filterMor.getVal(), new Filter(filterMor, spec));
+		session.filterOwners.put(filterMor.getVal(), collector);
+		return filterMor;
+	}
+
+	private void destroyFilter(Session session, ManagedObjectReference filterMor) {
+		Collector collector = session.filterOwners.remove(filterMor.getVal());
+		if (collector != null) {
+			synchronized (collector) {
+				collector.filters.remove(filterMor.getVal());
+			}
+		}
+	}
+
+	private void cancel(Collector collector) {
+		if (collector == null)
+			return;
+		collector.cancelled = true;
+		changed();
+	}
+
+	// Function to block until a filter of the collector has something to report, or until maxWait seconds
+	private UpdateSet waitForUpdates(Session session, ManagedObjectReference collectorMor, String version, Integer maxWait)
+			throws InterruptedException, SimFault {
+		Collector collector = session.collector(collectorMor.getVal());
+		if (version == null || version.isEmpty()) {
+			// A new version starts from the complete state of every filter
+			synchronized (collector) {
+				for (Filter filter : collector.filters.values()) {
+					filter.seen.clear();
+					filter.sent.clear();
+				}
+			}
+		}
+		collector.cancelled = false;
+		long deadline = maxWait == null ? Long.MAX_VALUE : System.currentTimeMillis() + maxWait * 1000L;
+		while (true) {
+			long seen = versions.get();
+			UpdateSet updates = collect(session, collector);
+			if (updates != null)
+				return updates;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0 || collector.cancelled || !sessions.containsKey(session.key))
+				return null;
+			synchronized (changes) {
+				if (versions.get() == seen && !collector.cancelled)
+					changes.wait(Math.min(remaining, 1000));
+			}
+		}
+	}
+
+	private UpdateSet collect(Session session, Collector collector) throws SimFault {
+		synchronized (collector) {
+			List<PropertyFilterUpdate> filterSet = new ArrayList<PropertyFilterUpdate>();
+			for (Filter filter : collector.filters.values()) {
+				PropertyFilterUpdate update = update(session, filter);
+				if (update != null)
+					filterSet.add(update);
+			}
+			if (filterSet.isEmpty())
+				return null;
+			UpdateSet updates = new UpdateSet();
+			updates.setVersion(String.valueOf(++collector.version));
+			updates.setFilterSet(filterSet.toArray(new PropertyFilterUpdate[filterSet.size()]));
+			return updates;
+		}
+	}
+
+	// Objects entering, changing and leaving the filter since its last update
+	private PropertyFilterUpdate update(Session session, Filter filter) throws SimFault {
+		long current = structure;
+		if (filter.structure != current) {
+			filter.matched = select(filter.spec);
+			filter.structure = current;
+		}
+
+		List<ObjectUpdate> objectSet = new ArrayList<ObjectUpdate>();
+		for (String id : filter.matched) {
+			MO mo = objects.get(id);
+			if (mo == null)
+				continue;
+			Long seen = filter.seen.get(id);
+			long version = mo.version;
+			if (seen != null && seen == version)
+				continue;
+			filter.seen.put(id, version);
+			List<String> paths = paths(filter.spec, mo);
+			if (paths == null)
+				continue;
+
+			Map<String,String> previous = filter.sent.get(id);
+			Map<String,String> values = new HashMap<String,String>();
+			List<PropertyChange> changeSet = new ArrayList<PropertyChange>();
+			for (String path : paths) {
+				Object value = property(session, mo, path);
+				String text = serialize(value);
+				values.put(path, text);
+				if (previous == null ? value != null : !text.equals(previous.get(path))) {
+					PropertyChange change = new PropertyChange();
+					change.setName(path);
+					change.setOp(PropertyChangeOp.assign);
+					change.setVal(value);
+					changeSet.add(change);
+				}
+			}
+			filter.sent.put(id, values);
+			if (previous == null || !changeSet.isEmpty())
+				objectSet.add(objectUpdate(previous == null ? ObjectUpdateKind.enter : ObjectUpdateKind.modify, mo.mor,
+						changeSet.toArray(new PropertyChange[changeSet.size()])));
+		}
+
+		for (String id : new ArrayList<String>(filter.sent.keySet())) {
+			MO mo = objects.get(id);
+			if (mo == null || !filter.matched.contains(id)) {
+				filter.sent.remove(id);
+				filter.seen.remove(id);
+				objectSet.add(objectUpdate(ObjectUpdateKind.leave, mo != null ? mo.mor : morOf(filter, id), null));
+			}
+		}
+
+		if (objectSet.isEmpty())
+			return null;
+		PropertyFilterUpdate update = new PropertyFilterUpdate();
+		update.setFilter(filter.mor);
+		update.setObjectSet(objectSet.toArray(new ObjectUpdate[objectSet.size()]));
+		return update;
+	}
+
+	private static ObjectUpdate objectUpdate(ObjectUpdateKind kind, ManagedObjectReference mor, PropertyChange[] changeSet) {
+		ObjectUpdate update = new ObjectUpdate();
+		update.setKind(kind);
+		update.setObj(mor);
+		update.setChangeSet(changeSet);
+		return update;
+	}
+
+	// MOR of an object that is gone, its type only survives in the removed objects map
+	private ManagedObjectReference morOf(Filter filter, String id) {
+		String type = removedTypes.get(id);
+		return mor(type != null ? type : "ManagedEntity", id);
+	}
+
+	private final Map<String,String> removedTypes = new ConcurrentHashMap<String,String>();
+
+	// Function to select the objects of a filter spec, following its traversal specs
+	private Set<String> select(PropertyFilterSpec spec) throws SimFault {
+		Set<String> selected = new LinkedHashSet<String>();
+		if (spec == null || spec.getObjectSet() == null)
+			return selected;
+		Map<String,TraversalSpec> named = new HashMap<String,TraversalSpec>();
+		for (ObjectSpec objectSpec : spec.getObjectSet())
+			collectNamed(objectSpec.getSelectSet(), named);
+		Set<String> visited = new HashSet<String>();
+		for (ObjectSpec objectSpec : spec.getObjectSet()) {
+			MO mo = objectSpec.getObj() != null ? objects.get(objectSpec.getObj().getVal()) : null;
+			if (mo == null) {
+				ManagedObjectNotFound fault = new ManagedObjectNotFound();
+				fault.setObj(objectSpec.getObj());
+				throw new SimFault(fault, "The object has already been deleted or has not been completely created");
+			}
+			visit(mo, Boolean.TRUE.equals(objectSpec.getSkip()), objectSpec.getSelectSet(), named, visited, selected);
+		}
+		return selected;
+	}
+
+	private static void collectNamed(SelectionSpec[] selectSet, Map<String,TraversalSpec> named) {
+		if (selectSet == null)
+			return;
+		for (SelectionSpec selection : selectSet) {
+			if (selection instanceof TraversalSpec && selection.getName() != null && !named.containsKey(selection.getName())) {
+				named.put(selection.getName(), (TraversalSpec) selection);
+				collectNamed(((TraversalSpec) selection).getSelectSet(), named);
+			}
+		}
+	}
+
+	private void visit(MO mo, boolean skip, SelectionSpec[] selectSet, Map<String,TraversalSpec> named, Set<String> visited,
+			Set<String> selected) {
+		if (!skip)
+			selected.add(mo.id);
+		if (selectSet == null)
+			return;
+		for (SelectionSpec selection : selectSet) {
+			TraversalSpec traversal = selection instanceof TraversalSpec ? (TraversalSpec) selection : named.get(selection.getName());
+			if (traversal == null || !isA(mo.type, traversal.getType()))
+				continue;
+			String name = traversal.getName() != null ? traversal.getName() : String.valueOf(System.identityHashCode(traversal));
+			if (!visited.add(mo.id + "/" + name))
+				continue;
+			for (ManagedObjectReference child : refsOf(property(null, mo, traversal.getPath()))) {
+				MO next = objects.get(child.getVal());
+				if (next != null)
+					visit(next, Boolean.TRUE.equals(traversal.getSkip()), traversal.getSelectSet(), named, visited, selected);
+			}
+		}
+	}
+
+	// Paths asked for the object by the filter spec, null when no property spec is about its type
+	private List<String> paths(PropertyFilterSpec spec, MO mo) {
+		List<String> paths = null;
+		if (spec.getPropSet() == null)
+			return null;
+		for (PropertySpec propertySpec : spec.getPropSet()) {
+			if (!isA(mo.type, propertySpec.getType()))
+				continue;
+			if (paths == null)
+				paths = new ArrayList<String>();
+			if (Boolean.TRUE.equals(propertySpec.getAll())) {
+				for (String name : mo.props.keySet()) {
+					if (!paths.contains(name))
+						paths.add(name);
+				}
+			} else if (propertySpec.getPathSet() != null) {
+				for (String path : propertySpec.getPathSet()) {
+					if (!paths.contains(path))
+						paths.add(path);
+				}
+			}
+		}
+		return paths;
+	}
+
+	// Function to read a property path of an object, null when it is not set
+	private Object property(Session session, MO mo, String path) {
+		if ("ContainerView".equals(mo.type) && "view".equals(path))
+			return containerView(mo);
+		if ("SessionManager".equals(mo.type) && "currentSession".equals(path))
+			return session != null ? session.user : null;
+		int dot = path.indexOf('.');
+		Object value = mo.props.get(dot < 0 ? path : path.substring(0, dot));
+		while (dot >= 0 && value != null) {
+			int next = path.indexOf('.', dot + 1);
+			String field = next < 0 ? path.substring(dot + 1) : path.substring(dot + 1, next);
+			try {
+				value = value.getClass().getField(field).get(value);
+			} catch (Exception e) {
+				return null;
+			}
+			dot = next;
+		}
+		return value;
+	}
+
+	private static boolean isA(String type, String specType) {
+		if (specType == null || type.equals(specType) || "ManagedObject".equals(specType)
+				|| "ExtensibleManagedObject".equals(specType))
+			return true;
+		if ("ManagedEntity".equals(specType))
+			return ENTITY_TYPES.contains(type);
+		if ("ComputeResource".equals(specType))
+			return "ClusterComputeResource".equals(type);
+		if ("ResourcePool".equals(specType))
+			return "VirtualApp".equals(type);
+		if ("View".equals(specType) || "ManagedObjectView".equals(specType))
+			return "ContainerView".equals(type) || "ListView".equals(type);
+		return false;
+	}
+
+	private static String serialize(Object value) {
+		if (value == null)
+			return "";
+		StringBuilder out = new StringBuilder(64);
+		SoapCodec.write(out, "v", value, Object.class, false);
+		return out.toString();
+	}
+
+	// ---- Views ----
+
+	private ManagedObjectReference createContainerView(Call c) throws Exception {
+		MO container = objects.get(((ManagedObjectReference) c.arg("container", ManagedObjectReference.class)).getVal());
+		if (container == null)
+			throw new SimFault(new ManagedObjectNotFound(), "Unknown container");
+		MO view = add("ContainerView", "session[" + c.session.key + "]view");
+		set(view, "container", container.mor);
+		String[] types = (String[]) c.arg("type", String[].class);
+		set(view, "type", types != null ? types : new String[0]);
+		set(view, "recursive", Boolean.TRUE.equals(c.arg("recursive", Boolean.class)));
+		c.session.views.add(view.id);
+		return view.mor;
+	}
+
+	private ManagedObjectReference createListView(Session session, ManagedObjectReference[] objs) {
+		MO view = add("ListView", "session[" + session.key + "]view");
+		synchronized (this) {
+			if (objs != null) {
+				for (ManagedObjectReference obj : objs)
+					refSet(view, "view").add(obj.getType() + ":" + obj.getVal());
+			}
+			set(view, "view", listViewRefs(view));
+		}
+		session.views.add(view.id);
+		changed();
+		return view.mor;
+	}
+
+	// Objects that do not exist are left out of the view and returned, like vCenter does
+	private ManagedObjectReference[] modifyListView(MO view, ManagedObjectReference[] add, ManagedObjectReference[] remove) {
+		List<ManagedObjectReference> unresolved = new ArrayList<ManagedObjectReference>();
+		synchronized (this) {
+			Set<String> members = refSet(view, "view");
+			if (add != null) {
+				for (ManagedObjectReference obj : add) {
+					if (objects.containsKey(obj.getVal()))
+						members.add(obj.getType() + ":" + obj.getVal());
+					else
+						unresolved.add(obj);
+				}
+			}
+			if (remove != null) {
+				for (ManagedObjectReference obj : remove)
+					members.remove(obj.getType() + ":" + obj.getVal());
+			}
+			set(view, "view", listViewRefs(view));
+		}
+		changed();
+		return unresolved.isEmpty() ? null : unresolved.toArray(new ManagedObjectReference[0]);
+	}
+
+	// List views keep the MORs they were given, even of objects that are gone
+	private ManagedObjectReference[] listViewRefs(MO view) {
+		Set<String> members = refSet(view, "view");
+		ManagedObjectReference[] mors = new ManagedObjectReference[members.size()];
+		int i = 0;
+		for (String member : members) {
+			int colon = member.indexOf(':');
+			mors[i++] = mor(member.substring(0, colon), member.substring(colon + 1));
+		}
+		return mors;
+	}
+
+	// Contents of a container view, recomputed when the inventory structure changed
+	private ManagedObjectReference[] containerView(MO view) {
+		synchronized (view) {
+			long current = structure;
+			if (view.view == null || view.viewStructure != current) {
+				MO container = objects.get(((ManagedObjectReference) view.props.get("container")).getVal());
+				String[] types = (String[]) view.props.get("type");
+				boolean recursive = Boolean.TRUE.equals(view.props.get("recursive"));
+				Set<String> seen = new HashSet<String>();
+				List<ManagedObjectReference> contents = new ArrayList<ManagedObjectReference>();
+				List<MO> pending = new ArrayList<MO>();
+				if (container != null)
+					pending.add(container);
+				while (!pending.isEmpty()) {
+					MO parent = pending.remove(pending.size() - 1);
+					for (ManagedObjectReference childMor : children(parent)) {
+						MO child = objects.get(childMor.getVal());
+						if (child == null || !seen.add(child.id))
+							continue;
+						if (types.length == 0 || matchesAny(child.type, types))
+							contents.add(child.mor);
+						if (recursive)
+							pending.add(child);
+					}
+				}
+				view.view = contents.toArray(new ManagedObjectReference[contents.size()]);
+				view.viewStructure = current;
+			}
+			return view.view;
+		}
+	}
+
+	private static boolean matchesAny(String type, String[] types) {
+		for (String t : types) {
+			if (isA(type, t))
+				return true;
+		}
+		return false;
+	}
+
+	private List<ManagedObjectReference> children(MO mo) {
+		List<ManagedObjectReference> children = new ArrayList<ManagedObjectReference>();
+		switch (mo.type) {
+		case "Folder":
+			children.addAll(refsOf(mo.props.get("childEntity")));
+			break;
+		case "Datacenter":
+			for (String folder : new String[] { "vmFolder", "hostFolder", "datastoreFolder", "networkFolder" })
+				children.addAll(refsOf(mo.props.get(folder)));
+			break;
+		case "ComputeResource":
+		case "ClusterComputeResource":
+			children.addAll(refsOf(mo.props.get("host")));
+			children.addAll(refsOf(mo.props.get("resourcePool")));
+			break;
+		case "ResourcePool":
+		case "VirtualApp":
+			children.addAll(refsOf(mo.props.get("resourcePool")));
+			children.addAll(refsOf(mo.props.get("vm")));
+			break;
+		case "HostSystem":
+			children.addAll(refsOf(mo.props.get("vm")));
+			break;
+		default:
+			break;
+		}
+		return children;
+	}
+
+	// ---- Tasks ----
+
+	// Function to start a task, its action runs when the simulated duration is over
+	private ManagedObjectReference task(final String method, String descriptionId, MO entity, String entityName,
+			final Action action) {
+		final MO task = add("Task", "task");
+		TaskInfo info = new TaskInfo();
+		info.setKey(task.id);
+		info.setTask(task.mor);
+		info.setName(method);
+		info.setDescriptionId(descriptionId);
+		info.setEntity(entity.mor);
+		info.setEntityName(entityName);
+		info.setState(TaskInfoState.running);
+		info.setQueueTime(Calendar.getInstance());
+		info.setStartTime(Calendar.getInstance());
+		info.setProgress(0);
+		info.setEventChainId(eventKeys.incrementAndGet());
+		set(task, "info", info);
+		if (entity != null)
+			link(entity, "recentTask", task);
+		changed();
+
+		Long duration = TASK_DURATIONS.get(method);
+		long delay = (long) ((duration != null ? duration : 1000L) * taskScale * taskSlowdown);
+		timers.schedule(new Runnable() {
+			public void run() {
+				complete(task, method, action);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		// Finished tasks drop out of the inventory after a while, like vCenter's recent tasks
+		timers.schedule(new Runnable() {
+			public void run() {
+				unlink(entity, "recentTask", task);
+				remove(task.id);
+				changed();
+			}
+		}, delay + taskRetention, TimeUnit.MILLISECONDS);
+		return task.mor;
+	}
+
+	private void complete(MO task, String method, Action action) {
+		TaskInfo running = (TaskInfo) task.props.get("info");
+		TaskInfo info = new TaskInfo();
+		info.setKey(running.getKey());
+		info.setTask(running.getTask());
+		info.setName(running.getName());
+		info.setDescriptionId(running.getDescriptionId());
+		info.setEntity(running.getEntity());
+		info.setEntityName(running.getEntityName());
+		info.setQueueTime(running.getQueueTime());
+		info.setStartTime(running.getStartTime());
+		info.setEventChainId(running.getEventChainId());
+		try {
+			if (taskFailureRate > 0 && random.nextDouble() < taskFailureRate) {
+				SystemError error = new SystemError();
+				error.setReason("Injected failure");
+				throw new SimFault(error, "Injected failure of " + method);
+			}
+			info.setResult(action.run());
+			info.setState(TaskInfoState.success);
+			info.setProgress(100);
+		} catch (SimFault e) {
+			info.setState(TaskInfoState.error);
+			info.setError(localized(e.fault, e.getMessage()));
+		} catch (RuntimeException e) {
+			SystemError error = new SystemError();
+			error.setReason(String.valueOf(e));
+			info.setState(TaskInfoState.error);
+			info.setError(localized(error, String.valueOf(e)));
+		}
+		info.setCompleteTime(Calendar.getInstance());
+		set(task, "info", info);
+		changed();
+	}
+
+	private static LocalizedMethodFault localized(MethodFault fault, String message) {
+		LocalizedMethodFault localized = new LocalizedMethodFault();
+		localized.setFault(fault);
+		localized.setLocalizedMessage(message);
+		return localized;
+	}
+
+	// ---- Virtual machines ----
+
+	private ManagedObjectReference cloneVM(final SimVM source, final ManagedObjectReference folder, final String name,
+			final VirtualMachineCloneSpec spec) {
+		action(source.name);
+		return task("CloneVM_Task", "VirtualMachine.clone", source.mo, source.name, new Action() {
+			public Object run() throws SimFault {
+				SimVM clone;
+				synchronized (VSphereSimulator.this) {
+					if (vmsByName.containsKey(name)) {
+						DuplicateName fault = new DuplicateName();
+						fault.setName(name);
+						fault.setObject(vmsByName.get(name).mo.mor);
+						throw new SimFault(fault, "The name '" + name + "' already exists.");
+					}
+					VirtualMachineRelocateSpec location = spec != null ? spec.getLocation() : null;
+					SimHost host = location != null && location.getHost() != null ? hostSystems.get(location.getHost().getVal()) : null;
+					MO pool = location != null && location.getPool() != null ? objects.get(location.getPool().getVal()) : null;
+					if (host == null && pool != null)
+						host = hostOfPool(pool);
+					if (host == null)
+						host = source.host;
+					if (pool == null || pool == source.pool && host != source.host)
+						pool = host.pool;
+					MO datastore = location != null && location.getDatastore() != null ? objects.get(location.getDatastore().getVal()) : null;
+					boolean powerOn = spec != null && spec.isPowerOn();
+					if (powerOn && !host.isUp())
+						throw new SimFault(new HostNotConnected(), "vHost " + host.name + " is not connected");
+					if (spec != null && spec.getSnapshot() != null && !snapshots.containsKey(spec.getSnapshot().getVal()))
+						throw new SimFault(new InvalidArgument(), "Snapshot " + spec.getSnapshot().getVal() + " does not exist");
+
+					clone = createVM(name, source.ip != null ? nextAddress() : null, host, pool,
+							folder != null && objects.containsKey(folder.getVal()) ? objects.get(folder.getVal()) : source.folder,
+							datastore != null ? datastore : source.datastore, source.memoryMB, source.numCPU, source.cpuMhz);
+					if (location != null && "createNewChildDiskBacking".equals(location.getDiskMoveType()))
+						clone.linkedTo = source.name;
+					clone.powerState = powerOn ? VirtualMachinePowerState.poweredOn : VirtualMachinePowerState.poweredOff;
+					publish(clone);
+					publish(host);
+					if (powerOn)
+						poweredOn(clone);
+				}
+				return clone.mo.mor;
+			}
+		});
+	}
+
+	private ManagedObjectReference migrateVM(final SimVM vm, final ManagedObjectReference poolMor, final ManagedObjectReference hostMor) {
+		action(vm.name);
+		return task("MigrateVM_Task", "VirtualMachine.migrate", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					SimHost host = hostMor != null ? hostSystems.get(hostMor.getVal()) : null;
+					MO pool = poolMor != null ? objects.get(poolMor.getVal()) : null;
+					if (host == null && pool != null)
+						host = hostOfPool(pool);
+					if (host == null)
+						throw new SimFault(new InvalidArgument(), "No target vHost for " + vm.name);
+					if (!host.isUp())
+						throw new SimFault(new HostNotConnected(), "vHost " + host.name + " is not connected");
+					if (pool == null)
+						pool = host.pool;
+					SimHost from = vm.host;
+					boolean restart = vm.crashed || from.failed;
+					moveVM(vm, host, pool);
+					// A VM leaving a dead vHost or a crashed guest boots again on the new one
+					if (restart) {
+						vm.crashed = false;
+						vm.bootTime = System.currentTimeMillis();
+					}
+					publish(vm);
+					publish(from);
+					publish(host);
+					if (restart && vm.powerState == VirtualMachinePowerState.poweredOn)
+						poweredOn(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference destroyVM(final SimVM vm) {
+		return task("Destroy_Task", "VirtualMachine.destroy", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					if (!vms.containsKey(vm.mo.id))
+						throw new SimFault(new ManagedObjectNotFound(), "VM " + vm.name + " is already gone");
+					unlink(vm.folder, "childEntity", vm.mo);
+					unlink(vm.pool, "vm", vm.mo);
+					unlink(vm.host.mo, "vm", vm.mo);
+					unlink(vm.datastore, "vm", vm.mo);
+					vm.host.vms.remove(vm);
+					vms.remove(vm.mo.id);
+					if (vmsByName.get(vm.name) == vm)
+						vmsByName.remove(vm.name);
+					if (vm.ip != null && vmsByIp.get(vm.ip) == vm)
+						vmsByIp.remove(vm.ip);
+					for (SimSnapshot snapshot : vm.snapshots) {
+						snapshots.remove(snapshot.mo.id);
+						remove(snapshot.mo.id);
+					}
+					remove(vm.mo.id);
+					publish(vm.host);
+					Event event = new VmRemovedEvent();
+					event.setVm(vmArgument(vm));
+					event.setHost(hostArgument(vm.host));
+					postEvent(event, "Removed " + vm.name + " on " + vm.host.name);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference powerOnVM(final SimVM vm) {
+		action(vm.name);
+		return task("PowerOnVM_Task", "VirtualMachine.powerOn", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					if (!vm.host.isUp())
+						throw new SimFault(new HostNotConnected(), "vHost " + vm.host.name + " is not connected");
+					if (vm.powerState != VirtualMachinePowerState.poweredOn || vm.crashed) {
+						vm.powerState = VirtualMachinePowerState.poweredOn;
+						vm.crashed = false;
+						vm.bootTime = System.currentTimeMillis();
+						publish(vm);
+						publish(vm.host);
+						poweredOn(vm);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference powerOffVMTask(final SimVM vm) {
+		return task("PowerOffVM_Task", "VirtualMachine.powerOff", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					powerOff(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private void powerOff(SimVM vm) {
+		if (vm.powerState == VirtualMachinePowerState.poweredOff)
+			return;
+		vm.powerState = VirtualMachinePowerState.poweredOff;
+		vm.crashed = false;
+		Event event = new VmPoweredOffEvent();
+		event.setVm(vmArgument(vm));
+		event.setHost(hostArgument(vm.host));
+		postEvent(event, vm.name + " on " + vm.host.name + " is powered off");
+		// An event alarm on power off turns yellow, like the one AlarmManager creates
+		if (vm.alarmed) {
+			AlarmState state = new AlarmState();
+			state.setKey("alarm-state-" + vm.mo.id);
+			state.setEntity(vm.mo.mor);
+			state.setOverallStatus(ManagedEntityStatus.yellow);
+			state.setTime(Calendar.getInstance());
+			state.setAcknowledged(false);
+			vm.triggered = new AlarmState[] { state };
+		}
+		publish(vm);
+		publish(vm.host);
+	}
+
+	private void poweredOn(SimVM vm) {
+		vm.triggered = new AlarmState[0];
+		Event event = new VmPoweredOnEvent();
+		event.setVm(vmArgument(vm));
+		event.setHost(hostArgument(vm.host));
+		postEvent(event, vm.name + " on " + vm.host.name + " is powered on");
+		publish(vm);
+		// A recovered vHost VM in the admin resource pool brings its vHost back
+		if (vm.name.startsWith("vHost-")) {
+			int end = vm.name.indexOf('_');
+			restoreHost(end < 0 ? vm.name.substring(6) : vm.name.substring(6, end));
+		}
+	}
+
+	private ManagedObjectReference createSnapshot(final SimVM vm, final String name, final String description, final boolean quiesce) {
+		return task("CreateSnapshot_Task", "VirtualMachine.createSnapshot", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					SimSnapshot snapshot = addSnapshot(vm, name, description);
+					snapshot.quiesced = quiesce;
+					publish(vm);
+					return snapshot.mo.mor;
+				}
+			}
+		});
+	}
+
+	private ManagedObjectReference removeSnapshot(final SimSnapshot snapshot, final boolean removeChildren) throws SimFault {
+		final SimVM vm = vmOfSnapshot(snapshot);
+		return task("RemoveSnapshot_Task", "VirtualMachine.removeSnapshot", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					List<SimSnapshot> removed = new ArrayList<SimSnapshot>();
+					removed.add(snapshot);
+					for (SimSnapshot other : vm.snapshots) {
+						if (other.parent == snapshot) {
+							if (removeChildren)
+								removed.addAll(descendants(vm, other));
+							else
+								other.parent = snapshot.parent;
+						}
+					}
+					for (SimSnapshot gone : removed) {
+						vm.snapshots.remove(gone);
+						snapshots.remove(gone.mo.id);
+						remove(gone.mo.id);
+						if (vm.current == gone)
+							vm.current = snapshot.parent;
+					}
+					publish(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference removeAllSnapshots(final SimVM vm) {
+		return task("RemoveSnapshot_Task", "VirtualMachine.removeAllSnapshots", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					for (SimSnapshot snapshot : vm.snapshots) {
+						snapshots.remove(snapshot.mo.id);
+						remove(snapshot.mo.id);
+					}
+					vm.snapshots.clear();
+					vm.current = null;
+					publish(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference revertToSnapshot(final SimSnapshot snapshot) throws SimFault {
+		final SimVM vm = vmOfSnapshot(snapshot);
+		return task("RevertToSnapshot_Task", "VirtualMachine.revert", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					vm.current = snapshot;
+					vm.crashed = false;
+					vm.bootTime = System.currentTimeMillis();
+					publish(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference promoteDisks(final SimVM vm) {
+		return task("PromoteDisks_Task", "VirtualMachine.promoteDisks", vm.mo, vm.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					vm.linkedTo = null;
+					publish(vm);
+				}
+				return null;
+			}
+		});
+	}
+
+	private List<SimSnapshot> descendants(SimVM vm, SimSnapshot root) {
+		List<SimSnapshot> all = new ArrayList<SimSnapshot>();
+		all.add(root);
+		for (SimSnapshot snapshot : vm.snapshots) {
+			if (snapshot.parent == root)
+				all.addAll(descendants(vm, snapshot));
+		}
+		return all;
+	}
+
+	private SimVM vmOfSnapshot(SimSnapshot snapshot) throws SimFault {
+		ManagedObjectReference vmMor = (ManagedObjectReference) snapshot.mo.props.get("vm");
+		SimVM vm = vmMor != null ? vms.get(vmMor.getVal()) : null;
+		if (vm == null)
+			throw new SimFault(new ManagedObjectNotFound(), "The VM of snapshot " + snapshot.name + " is gone");
+		return vm;
+	}
+
+	// ---- vHosts ----
+
+	private ManagedObjectReference addStandaloneHost(final MO folder, final HostConnectSpec spec, final boolean connected) {
+		final String hostName = spec.getHostName();
+		MO datacenterMo = datacenterOf(folder);
+		return task("AddStandaloneHost_Task", "Folder.addStandaloneHost", datacenterMo != null ? datacenterMo : folder,
+				hostName, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					if (hostsByName.containsKey(hostName)) {
+						DuplicateName fault = new DuplicateName();
+						fault.setName(hostName);
+						throw new SimFault(fault, "vHost " + hostName + " is already in the inventory");
+					}
+					SimHost host = createHost(datacenterOf(folder), hostName, false);
+					if (!connected) {
+						host.state = HostSystemConnectionState.disconnected;
+						publish(host);
+					} else {
+						Event event = new HostConnectedEvent();
+						event.setHost(hostArgument(host));
+						postEvent(event, "Connected to " + hostName);
+					}
+					return host.mo.mor;
+				}
+			}
+		});
+	}
+
+	private ManagedObjectReference reconnectHost(final SimHost host) {
+		return task("ReconnectHost_Task", "HostSystem.reconnect", host.mo, host.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					if (host.failed)
+						throw new SimFault(new HostConnectFault(), "Cannot contact the specified host (" + host.name + ")");
+					boolean wasDown = host.state != HostSystemConnectionState.connected;
+					host.state = HostSystemConnectionState.connected;
+					publish(host);
+					for (SimVM vm : host.vms)
+						publish(vm);
+					if (wasDown) {
+						Event event = new HostConnectedEvent();
+						event.setHost(hostArgument(host));
+						postEvent(event, "Connected to " + host.name);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference disconnectHost(final SimHost host) {
+		return task("DisconnectHost_Task", "HostSystem.disconnect", host.mo, host.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					host.state = HostSystemConnectionState.disconnected;
+					publish(host);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference setMaintenanceMode(final SimHost host, final boolean enter) {
+		return task(enter ? "EnterMaintenanceMode_Task" : "ExitMaintenanceMode_Task",
+				enter ? "HostSystem.enterMaintenanceMode" : "HostSystem.exitMaintenanceMode", host.mo, host.name, new Action() {
+			public Object run() throws SimFault {
+				synchronized (VSphereSimulator.this) {
+					if (!host.isUp())
+						throw new SimFault(new HostNotConnected(), "vHost " + host.name + " is not connected");
+					if (enter) {
+						for (SimVM vm : host.vms) {
+							if (vm.powerState == VirtualMachinePowerState.poweredOn)
+								throw new SimFault(new InvalidState(), "vHost " + host.name + " has powered on VMs");
+						}
+					}
+					host.maintenance = enter;
+					publish(host);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ManagedObjectReference createNasDatastore(Call c, HostNasVolumeSpec spec) throws SimFault {
+		SimHost host = null;
+		for (SimHost candidate : hostSystems.values()) {
+			HostConfigManager configManager = (HostConfigManager) candidate.mo.props.get("configManager");
+			if (configManager != null && configManager.getDatastoreSystem().getVal().equals(c.self.getVal()))
+				host = candidate;
+		}
+		if (host == null)
+			throw new SimFault(new ManagedObjectNotFound(), "Unknown datastore system " + c.self.getVal());
+		synchronized (this) {
+			MO datastore = datastoresByName.get(spec.getLocalPath());
+			if (datastore == null)
+				datastore = createDatastore(host.datacenter, spec.getLocalPath(), spec.getRemoteHost(), spec.getRemotePath());
+			if (!refSet(host.mo, "datastore").contains(datastore.id)) {
+				link(host.mo, "datastore", datastore);
+				link(host.computeResource, "datastore", datastore);
+			}
+			changed();
+			return datastore.mor;
+		}
+	}
+
+	// Function to keep the uptime of every live vHost going, like vCenter's quick stats refresh
+	private void refreshQuickStats() {
+		synchronized (this) {
+			for (SimHost host : hostSystems.values()) {
+				if (!host.failed)
+					publish(host);
+			}
+		}
+		changed();
+	}
+
+	// ---- Events and alarms ----
+
+	private void postEvent(Event event, String message) {
+		event.setCreatedTime(Calendar.getInstance());
+		event.setUserName("vpxuser");
+		event.setFullFormattedMessage(message);
+		DatacenterEventArgument dc = new DatacenterEventArgument();
+		dc.setName((String) datacenter.props.get("name"));
+		dc.setDatacenter(datacenter.mor);
+		event.setDatacenter(dc);
+		synchronized (events) {
+			event.setKey(eventKeys.incrementAndGet());
+			event.setChainId(event.getKey());
+			events.add(event);
+		}
+	}
+
+	private ManagedObjectReference createEventCollector(Session session, EventFilterSpec filter) {
+		ManagedObjectReference collector = mor("EventHistoryCollector", "session[" + session.key + "]events-" + ids.incrementAndGet());
+		synchronized (events) {
+			session.eventCursors.put(collector.getVal(), new EventCursor(filter, events.size()));
+		}
+		return collector;
+	}
+
+	private EventCursor eventCursor(Call c) throws SimFault {
+		EventCursor cursor = c.session.eventCursors.get(c.self.getVal());
+		if (cursor == null)
+			throw new SimFault(new ManagedObjectNotFound(), "Unknown event collector " + c.self.getVal());
+		return cursor;
+	}
+
+	private Event[] readNextEvents(EventCursor cursor, Integer maxCount) {
+		int max = maxCount != null ? maxCount : cursor.pageSize;
+		List<Event> page = new ArrayList<Event>();
+		synchronized (events) {
+			while (cursor.position < events.size() && page.size() < max) {
+				Event event = events.get(cursor.position++);
+				if (matches(cursor.filter, event))
+					page.add(event);
+			}
+		}
+		return page.isEmpty() ? null : page.toArray(new Event[page.size()]);
+	}
+
+	private static boolean matches(EventFilterSpec filter, Event event) {
+		if (filter == null)
+			return true;
+		if (filter.getType() != null && filter.getType().length > 0
+				&& !Arrays.asList(filter.getType()).contains(event.getClass().getSimpleName()))
+			return false;
+		if (filter.getTime() != null) {
+			if (filter.getTime().getBeginTime() != null && event.getCreatedTime().before(filter.getTime().getBeginTime()))
+				return false;
+			if (filter.getTime().getEndTime() != null && event.getCreatedTime().after(filter.getTime().getEndTime()))
+				return false;
+		}
+		return true;
+	}
+
+	private ManagedObjectReference createAlarm(ManagedObjectReference entity, AlarmSpec spec) throws SimFault {
+		SimVM vm = entity != null ? vms.get(entity.getVal()) : null;
+		MO alarm = add("Alarm", "alarm");
+		AlarmInfo info = new AlarmInfo();
+		info.setKey(alarm.id);
+		info.setAlarm(alarm.mor);
+		info.setEntity(entity);
+		info.setName(spec.getName());
+		info.setDescription(spec.getDescription());
+		info.setEnabled(spec.isEnabled());
+		info.setExpression(spec.getExpression());
+		info.setLastModifiedTime(Calendar.getInstance());
+		set(alarm, "info", info);
+		if (vm != null) {
+			synchronized (this) {
+				vm.alarmed = true;
+			}
+		}
+		return alarm.mor;
+	}
+
+	// ---- Scheduled tasks ----
+
+	private synchronized ManagedObjectReference createScheduledTask(ManagedObjectReference entity, ScheduledTaskSpec spec)
+			throws SimFault {
+		if (entity == null || !objects.containsKey(entity.getVal())) {
+			ManagedObjectNotFound fault = new ManagedObjectNotFound();
+			fault.setObj(entity);
+			throw new SimFault(fault, "The object has already been deleted or has not been completely created");
+		}
+		checkScheduledTaskName(spec.getName(), null);
+		SimScheduledTask task = new SimScheduledTask(add("ScheduledTask", "schedule"), entity);
+		task.spec = spec;
+		task.nextRun = nextRun(spec.getScheduler(), System.currentTimeMillis());
+		scheduledTasks.put(task.mo.id, task);
+		publishScheduledTasks();
+		publish(task);
+		changed();
+		return task.mo.mor;
+	}
+
+	private synchronized void reconfigureScheduledTask(SimScheduledTask task, ScheduledTaskSpec spec) throws SimFault {
+		checkScheduledTaskName(spec.getName(), task);
+		task.spec = spec;
+		task.nextRun = nextRun(spec.getScheduler(), System.currentTimeMillis());
+		task.modified = Calendar.getInstance();
+		publish(task);
+		changed();
+	}
+
+	private synchronized void removeScheduledTask(SimScheduledTask task) {
+		scheduledTasks.remove(task.mo.id);
+		remove(task.mo.id);
+		publishScheduledTasks();
+		changed();
+	}
+
+	private void checkScheduledTaskName(String name, SimScheduledTask self) throws SimFault {
+		for (SimScheduledTask task : scheduledTasks.values()) {
+			if (task != self && task.spec.getName().equals(name)) {
+				DuplicateName fault = new DuplicateName();
+				fault.setName(name);
+				fault.setObject(task.mo.mor);
+				throw new SimFault(fault, "The name '" + name + "' already exists.");
+			}
+		}
+	}
+
+	// vim25 5.x calls the argument entity, later versions obj
+	private static ManagedObjectReference entityArg(Call c) throws Exception {
+		ManagedObjectReference entity = (ManagedObjectReference) c.arg("entity", ManagedObjectReference.class);
+		return entity != null ? entity : (ManagedObjectReference) c.arg("obj", ManagedObjectReference.class);
+	}
+
+	private ManagedObjectReference[] entityScheduledTasks(ManagedObjectReference entity) {
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		for (SimScheduledTask task : scheduledTasks.values()) {
+			if (entity == null || task.entity.getVal().equals(entity.getVal()))
+				mors.add(task.mo.mor);
+		}
+		return mors.toArray(new ManagedObjectReference[mors.size()]);
+	}
+
+	// Starts the tasks that are due, or all enabled ones, and copies the outcome of finished runs
+	private synchronized void runDueScheduledTasks(boolean all) {
+		long now = System.currentTimeMillis();
+		boolean changes = false;
+		for (SimScheduledTask task : scheduledTasks.values()) {
+			if (task.activeTask != null) {
+				MO active = objects.get(task.activeTask.getVal());
+				TaskInfo info = active != null ? (TaskInfo) active.props.get("info") : null;
+				if (info == null || info.getState() == TaskInfoState.success || info.getState() == TaskInfoState.error) {
+					task.state = info != null ? info.getState() : TaskInfoState.error;
+					task.result = info != null ? info.getResult() : null;
+					task.error = info != null ? info.getError() : null;
+					task.activeTask = null;
+					publish(task);
+					changes = true;
+				}
+			} else if (task.spec.isEnabled() && (all || (task.nextRun > 0 && task.nextRun <= now))) {
+				runScheduledTask(task, now);
+				changes = true;
+			}
+		}
+		if (changes)
+			changed();
+	}
+
+	private synchronized void runScheduledTask(SimScheduledTask task, long now) {
+		task.prevRun = calendar(now);
+		task.nextRun = nextRun(task.spec.getScheduler(), now);
+		task.result = null;
+		task.error = null;
+		try {
+			task.activeTask = runAction(task.entity, task.spec.getAction() instanceof MethodAction
+					? (MethodAction) task.spec.getAction() : null);
+			task.state = TaskInfoState.running;
+		} catch (SimFault e) {
+			task.state = TaskInfoState.error;
+			task.error = localized(e.fault, e.getMessage());
+		}
+		publish(task);
+	}
+
+	// Only snapshots are scheduled by the DR code, other actions fail like an unsupported method
+	private ManagedObjectReference runAction(ManagedObjectReference entity, MethodAction action) throws SimFault {
+		SimVM vm = vms.get(entity.getVal());
+		if (action == null || !"CreateSnapshot_Task".equals(action.getName()) || vm == null)
+			throw new SimFault(new NotSupported(), (action != null ? action.getName() : "The action") + " is not simulated");
+		MethodActionArgument[] arguments = action.getArgument();
+		Object[] values = new Object[4];
+		for (int i = 0; arguments != null && i < arguments.length && i < values.length; i++)
+			values[i] = arguments[i] != null ? arguments[i].getValue() : null;
+		return createSnapshot(vm, String.valueOf(values[0]), values[1] != null ? String.valueOf(values[1]) : null,
+				Boolean.TRUE.equals(values[3]) || "true".equals(values[3]));
+	}
+
+	// Next run after now, 0 when the scheduler never runs again
+	static long nextRun(TaskScheduler scheduler, long now) {
+		if (scheduler instanceof OnceTaskScheduler) {
+			Calendar runAt = ((OnceTaskScheduler) scheduler).getRunAt();
+			return runAt != null && runAt.getTimeInMillis() > now ? runAt.getTimeInMillis() : 0;
+		}
+		if (!(scheduler instanceof HourlyTaskScheduler))
+			return 0;
+		HourlyTaskScheduler hourly = (HourlyTaskScheduler) scheduler;
+		Calendar next = Calendar.getInstance();
+		next.setTimeInMillis(now);
+		next.set(Calendar.SECOND, 0);
+		next.set(Calendar.MILLISECOND, 0);
+		next.set(Calendar.MINUTE, hourly.getMinute());
+		if (scheduler instanceof DailyTaskScheduler)
+			next.set(Calendar.HOUR_OF_DAY, ((DailyTaskScheduler) scheduler).getHour());
+		int field = scheduler instanceof DailyTaskScheduler ? Calendar.DAY_OF_MONTH : Calendar.HOUR_OF_DAY;
+		int step = Math.max(1, hourly.getInterval());
+		while (next.getTimeInMillis() <= now || !onDay(scheduler, next))
+			next.add(field, next.getTimeInMillis() <= now ? step : 1);
+		return next.getTimeInMillis();
+	}
+
+	private static boolean onDay(TaskScheduler scheduler, Calendar day) {
+		if (!(scheduler instanceof WeeklyTaskScheduler))
+			return true;
+		WeeklyTaskScheduler weekly = (WeeklyTaskScheduler) scheduler;
+		switch (day.get(Calendar.DAY_OF_WEEK)) {
+		case Calendar.SUNDAY:
+			return weekly.isSunday();
+		case Calendar.MONDAY:
+			return weekly.isMonday();
+		case Calendar.TUESDAY:
+			return weekly.isTuesday();
+		case Calendar.WEDNESDAY:
+			return weekly.isWednesday();
+		case Calendar.THURSDAY:
+			return weekly.isThursday();
+		case Calendar.FRIDAY:
+			return weekly.isFriday();
+		default:
+			return weekly.isSaturday();
+		}
+	}
+
+	private void publish(SimScheduledTask task) {
+		ScheduledTaskInfo info = new ScheduledTaskInfo();
+		info.setName(task.spec.getName());
+		info.setDescription(task.spec.getDescription());
+		info.setEnabled(task.spec.isEnabled());
+		info.setScheduler(task.spec.getScheduler());
+		info.setAction(task.spec.getAction());
+		info.setNotification(task.spec.getNotification());
+		info.setScheduledTask(task.mo.mor);
+		info.setEntity(task.entity);
+		info.setLastModifiedTime(task.modified);
+		info.setLastModifiedUser("root");
+		info.setNextRunTime(task.nextRun > 0 ? calendar(task.nextRun) : null);
+		info.setPrevRunTime(task.prevRun);
+		info.setState(task.state);
+		info.setError(task.error);
+		info.setResult(task.result);
+		info.setActiveTask(task.activeTask);
+		set(task.mo, "info", info);
+	}
+
+	private void publishScheduledTasks() {
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		for (SimScheduledTask task : scheduledTasks.values())
+			mors.add(task.mo.mor);
+		set(scheduledTaskManager, "scheduledTask", mors.toArray(new ManagedObjectReference[mors.size()]));
+	}
+
+	// ---- Performance ----
+
+	private static PerfCounterInfo[] createPerfCounters() {
+		return new PerfCounterInfo[] {
+				counter(2, "cpu", "usage", "percent", PerfStatsType.rate),
+				counter(6, "cpu", "usagemhz", "megaHertz", PerfStatsType.rate),
+				counter(24, "mem", "usage", "percent", PerfStatsType.absolute),
+				counter(33, "mem", "active", "kiloBytes", PerfStatsType.absolute),
+				counter(98, "mem", "consumed", "kiloBytes", PerfStatsType.absolute) };
+	}
+
+	private static PerfCounterInfo counter(int key, String group, String name, String unit, PerfStatsType statsType) {
+		PerfCounterInfo info = new PerfCounterInfo();
+		info.setKey(key);
+		info.setGroupInfo(description(group));
+		info.setNameInfo(description(name));
+		info.setUnitInfo(description(unit));
+		info.setRollupType(PerfSummaryType.average);
+		info.setStatsType(statsType);
+		info.setLevel(1);
+		return info;
+	}
+
+	private static ElementDescription description(String key) {
+		ElementDescription description = new ElementDescription();
+		description.setKey(key);
+		description.setLabel(key);
+		description.setSummary(key);
+		return description;
+	}
+
+	// Realtime samples of the VM or vHost load, every SAMPLE_INTERVAL seconds up to now
+	private PerfEntityMetricBase[] queryPerf(PerfQuerySpec[] specs) {
+		if (specs == null)
+			return null;
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long step = SAMPLE_INTERVAL * 1000L;
+		long last = System.currentTimeMillis() / step * step;
+
+		List<PerfEntityMetricBase> metrics = new ArrayList<PerfEntityMetricBase>();
+		for (PerfQuerySpec spec : specs) {
+			if (spec.getEntity() == null || spec.getMetricId() == null)
+				continue;
+			long[] load = load(spec.getEntity().getVal());
+			if (load == null)
+				continue;
+			int count = spec.getMaxSample() != null ? spec.getMaxSample() : 15;
+			if (spec.getStartTime() != null)
+				count = Math.toIntExact(Math.min(180, (last - spec.getStartTime().getTimeInMillis()) / step));
+			if (count <= 0)
+				continue;
+
+			long[] times = new long[count];
+			for (int i = 0; i < count; i++)
+				times[i] = last - (count - 1 - i) * step;
+			boolean csv = "csv".equals(spec.getFormat());
+			List<PerfMetricSeries> series = new ArrayList<PerfMetricSeries>();
+			for (PerfMetricId id : spec.getMetricId()) {
+				long[] values = new long[count];
+				for (int i = 0; i < count; i++)
+					values[i] = sample(id.getCounterId(), load, times[i]);
+				if (csv) {
+					PerfMetricSeriesCSV csvSeries = new PerfMetricSeriesCSV();
+					csvSeries.setId(id);
+					csvSeries.setValue(join(values));
+					series.add(csvSeries);
+				} else {
+					PerfMetricIntSeries intSeries = new PerfMetricIntSeries();
+					intSeries.setId(id);
+					intSeries.setValue(values);
+					series.add(intSeries);
+				}
+			}
+			if (csv) {
+				PerfEntityMetricCSV metric = new PerfEntityMetricCSV();
+				metric.setEntity(spec.getEntity());
+				StringBuilder info = new StringBuilder();
+				for (long time : times)
+					info.append(info.length() > 0 ? "," : "").append(SAMPLE_INTERVAL).append(',').append(iso.format(time));
+				metric.setSampleInfoCSV(info.toString());
+				metric.setValue(series.toArray(new PerfMetricSeriesCSV[series.size()]));
+				metrics.add(metric);
+			} else {
+				PerfEntityMetric metric = new PerfEntityMetric();
+				metric.setEntity(spec.getEntity());
+				PerfSampleInfo[] sampleInfo = new PerfSampleInfo[count];
+				for (int i = 0; i < count; i++) {
+					sampleInfo[i] = new PerfSampleInfo();
+					sampleInfo[i].setInterval(SAMPLE_INTERVAL);
+					Calendar timestamp = Calendar.getInstance();
+					timestamp.setTimeInMillis(times[i]);
+					sampleInfo[i].setTimestamp(timestamp);
+				}
+				metric.setSampleInfo(sampleInfo);
+				metric.setValue(series.toArray(new PerfMetricSeries[series.size()]));
+				metrics.add(metric);
+			}
+		}
+		return metrics.isEmpty() ? null : metrics.toArray(new PerfEntityMetricBase[metrics.size()]);
+	}
+
+	// CPU MHz, memory MB and capacity MB of a running VM or live vHost, null otherwise
+	private synchronized long[] load(String id) {
+		SimVM vm = vms.get(id);
+		if (vm != null)
+			return vm.isUp() ? new long[] { vm.cpuMhz, vm.memoryMB, vm.memoryMB } : null;
+		SimHost host = hostSystems.get(id);
+		if (host == null || !host.isUp())
+			return null;
+		long cpu = 0;
+		long memory = 0;
+		for (SimVM hosted : host.vms) {
+			if (hosted.isUp()) {
+				cpu += hosted.cpuMhz;
+				memory += hosted.memoryMB;
+			}
+		}
+		return new long[] { cpu, memory, 256L * 1024 };
+	}
+
+	private static long sample(int counterId, long[] load, long time) {
+		// A little movement between samples, the same for every query of the same time
+		long wobble = (time / 1000 / SAMPLE_INTERVAL) % 7 - 3;
+		switch (counterId) {
+		case 2:
+			return Math.max(0, load[0] * 10000 / Math.max(1, load[2] * 10) + wobble * 10);
+		case 6:
+			return Math.max(0, load[0] + wobble * load[0] / 50);
+		case 24:
+			return load[1] * 10000 / Math.max(1, load[2]);
+		case 33:
+			return load[1] * 1024 / 4;
+		case 98:
+			return load[1] * 1024 * 6 / 10;
+		default:
+			return 0;
+		}
+	}
+
+	private static String join(long[] values) {
+		StringBuilder out = new StringBuilder();
+		for (long value : values)
+			out.append(out.length() > 0 ? "," : "").append(value);
+		return out.toString();
+	}
+
+	private ManagedObjectReference find(String key, boolean vmSearch) {
+		if (key == null)
+			return null;
+		if (vmSearch) {
+			SimVM vm = vmsByIp.get(key);
+			if (vm == null)
+				vm = vmsByName.get(key);
+			return vm != null ? vm.mo.mor : null;
+		}
+		SimHost host = hostsByName.get(key);
+		return host != null ? host.mo.mor : null;
+	}
+
+	// ---- Inventory ----
+
+	private void buildInventory() {
+		int hostCount = Integer.parseInt(prop.getProperty("SimulatorHosts", "100"));
+		int vmCount = Integer.parseInt(prop.getProperty("SimulatorVMs", "2000"));
+		int datastoreCount = Integer.parseInt(prop.getProperty("SimulatorDatastores", "8"));
+
+		synchronized (this) {
+			rootFolder = add("Folder", "group-d");
+			set(rootFolder, "name", "Datacenters");
+			set(rootFolder, "childEntity", new ManagedObjectReference[0]);
+			set(rootFolder, "childType", new String[] { "Folder", "Datacenter" });
+
+			datacenter = createDatacenter(prop.getProperty("DataCenter", "DC_Team01"));
+			network = add("Network", "network");
+			set(network, "name", "VM Network");
+			set(network, "parent", datacenter.props.get("networkFolder"));
+			link(objects.get(((ManagedObjectReference) datacenter.props.get("networkFolder")).getVal()), "childEntity", network);
+			link(datacenter, "network", network);
+
+			List<MO> datastores = new ArrayList<MO>();
+			for (int i = 0; i < datastoreCount; i++)
+				datastores.add(createDatastore(datacenter, String.format("nfs-ds-%02d", i + 1), "172.31.0.1",
+						String.format("/export/ds%02d", i + 1)));
+
+			List<SimHost> created = new ArrayList<SimHost>();
+			for (int i = 0; i < hostCount; i++) {
+				SimHost host = createHost(datacenter, String.format("172.16.%03d.%03d", i / 250, i % 250 + 1), false);
+				for (MO datastore : datastores) {
+					link(host.mo, "datastore", datastore);
+					link(host.computeResource, "datastore", datastore);
+				}
+				created.add(host);
+			}
+
+			MO vmFolder = objects.get(((ManagedObjectReference) datacenter.props.get("vmFolder")).getVal());
+			int[] memories = { 1024, 2048, 4096, 8192 };
+			for (int i = 0; i < vmCount && !created.isEmpty(); i++) {
+				SimHost host = created.get(i % created.size());
+				SimVM vm = createVM(String.format("SIM-VM%05d", i + 1), nextAddress(), host, host.pool, vmFolder,
+						datastores.isEmpty() ? null : datastores.get(i % datastores.size()),
+						memories[random.nextInt(memories.length)], 1 << random.nextInt(3), 100 + random.nextInt(1400));
+				addSnapshot(vm, "baseline", "Created by the simulator");
+				publish(vm);
+			}
+
+			// vHosts are nested VMs of the admin vCenter, in its resource pool and without an IP of their own
+			MO adminDc = createDatacenter("Admin");
+			MO adminDs = createDatastore(adminDc, "admin-ds", "172.31.0.2", "/export/admin");
+			SimHost adminHost = createHost(adminDc, prop.getProperty("vCenterAdminHost", "cumulus1.sjsu.edu"), true);
+			adminHost.admin = true;
+			link(adminHost.mo, "datastore", adminDs);
+			MO adminPool = createPool(prop.getProperty("vCenterAdminRP", "Team01_vHOSTS"), adminHost.pool, adminHost.computeResource);
+			MO adminVmFolder = objects.get(((ManagedObjectReference) adminDc.props.get("vmFolder")).getVal());
+			for (SimHost host : created) {
+				SimVM vHost = createVM("vHost-" + host.name, null, adminHost, adminPool, adminVmFolder, adminDs, 8192, 4, 800);
+				addSnapshot(vHost, "baseline", "Created by the simulator");
+				publish(vHost);
+			}
+			publish(adminHost);
+			for (SimHost host : created)
+				publish(host);
+		}
+
+		AboutInfo about = new AboutInfo();
+		about.setName("VMware vCenter Server");
+		about.setFullName("VMware vCenter Server 5.1.0 simulated");
+		about.setVendor("VMware, Inc.");
+		about.setVersion("5.1.0");
+		about.setBuild("0");
+		about.setOsType("linux-x64");
+		about.setProductLineId("vpx");
+		about.setApiType("VirtualCenter");
+		about.setApiVersion("5.1");
+		about.setInstanceUuid(UUID.randomUUID().toString());
+
+		ServiceContent content = new ServiceContent();
+		content.setAbout(about);
+		content.setRootFolder(rootFolder.mor);
+		content.setPropertyCollector(singleton("PropertyCollector", "propertyCollector").mor);
+		content.setViewManager(singleton("ViewManager", "ViewManager").mor);
+		content.setSessionManager(singleton("SessionManager", "SessionManager").mor);
+		content.setSearchIndex(singleton("SearchIndex", "SearchIndex").mor);
+		content.setEventManager(singleton("EventManager", "EventManager").mor);
+		content.setTaskManager(singleton("TaskManager", "TaskManager").mor);
+		content.setAlarmManager(singleton("AlarmManager", "AlarmManager").mor);
+		scheduledTaskManager = singleton("ScheduledTaskManager", "ScheduledTaskManager");
+		set(scheduledTaskManager, "scheduledTask", new ManagedObjectReference[0]);
+		content.setScheduledTaskManager(scheduledTaskManager.mor);
+		content.setUserDirectory(singleton("UserDirectory", "UserDirectory").mor);
+		content.setAuthorizationManager(singleton("AuthorizationManager", "AuthorizationManager").mor);
+		content.setSetting(singleton("OptionManager", "VpxSettings").mor);
+		content.setFileManager(singleton("FileManager", "FileManager").mor);
+		content.setVirtualDiskManager(singleton("VirtualDiskManager", "virtualDiskManager").mor);
+		content.setOvfManager(singleton("OvfManager", "OvfManager").mor);
+		MO perfManager = singleton("PerformanceManager", "PerfMgr");
+		set(perfManager, "perfCounter", perfCounters);
+		content.setPerfManager(perfManager.mor);
+		serviceContent = content;
+		singleton("ServiceInstance", "ServiceInstance");
+	}
+
+	private MO singleton(String type, String id) {
+		MO mo = new MO(type, id);
+		objects.put(id, mo);
+		return mo;
+	}
+
+	private MO createDatacenter(String name) {
+		MO dc = add("Datacenter", "datacenter");
+		set(dc, "name", name);
+		set(dc, "parent", rootFolder.mor);
+		set(dc, "datastore", new ManagedObjectReference[0]);
+		set(dc, "network", new ManagedObjectReference[0]);
+		link(rootFolder, "childEntity", dc);
+		String[][] folders = { { "vmFolder", "vm", "group-v" }, { "hostFolder", "host", "group-h" },
+				{ "datastoreFolder", "datastore", "group-s" }, { "networkFolder", "network", "group-n" } };
+		for (String[] folder : folders) {
+			MO mo = add("Folder", folder[2]);
+			set(mo, "name", folder[1]);
+			set(mo, "parent", dc.mor);
+			set(mo, "childEntity", new ManagedObjectReference[0]);
+			set(dc, folder[0], mo.mor);
+		}
+		return dc;
+	}
+
+	private MO createDatastore(MO dc, String name, String remoteHost, String remotePath) {
+		MO datastore = add("Datastore", "datastore");
+		set(datastore, "name", name);
+		MO folder = objects.get(((ManagedObjectReference) dc.props.get("datastoreFolder")).getVal());
+		set(datastore, "parent", folder.mor);
+		link(folder, "childEntity", datastore);
+		link(dc, "datastore", datastore);
+		set(datastore, "vm", new ManagedObjectReference[0]);
+
+		String url = "ds:///vmfs/volumes/" + datastore.id + "/";
+		DatastoreSummary summary = new DatastoreSummary();
+		summary.setDatastore(datastore.mor);
+		summary.setName(name);
+		summary.setUrl(url);
+		summary.setCapacity(10L << 40);
+		summary.setFreeSpace(6L << 40);
+		summary.setAccessible(true);
+		summary.setMultipleHostAccess(true);
+		summary.setType("NFS");
+		set(datastore, "summary", summary);
+
+		HostNasVolume nas = new HostNasVolume();
+		nas.setName(name);
+		nas.setType("NFS");
+		nas.setCapacity(summary.getCapacity());
+		nas.setRemoteHost(remoteHost);
+		nas.setRemotePath(remotePath);
+		NasDatastoreInfo info = new NasDatastoreInfo();
+		info.setName(name);
+		info.setUrl(url);
+		info.setFreeSpace(summary.getFreeSpace());
+		info.setMaxFileSize(62L << 40);
+		info.setNas(nas);
+		set(datastore, "info", info);
+		datastoresByName.put(name, datastore);
+		return datastore;
+	}
+
+	// A standalone vHost: its compute resource, root resource pool and the host itself
+	private SimHost createHost(MO dc, String name, boolean maintenance) {
+		MO folder = objects.get(((ManagedObjectReference) dc.props.get("hostFolder")).getVal());
+		MO computeResource = add("ComputeResource", "domain-s");
+		set(computeResource, "name", name);
+		set(computeResource, "parent", folder.mor);
+		set(computeResource, "datastore", new ManagedObjectReference[0]);
+		set(computeResource, "network", new ManagedObjectReference[] { network.mor });
+		link(folder, "childEntity", computeResource);
+
+		MO pool = add("ResourcePool", "resgroup");
+		set(pool, "name", "Resources");
+		set(pool, "parent", computeResource.mor);
+		set(pool, "owner", computeResource.mor);
+		set(pool, "resourcePool", new ManagedObjectReference[0]);
+		set(pool, "vm", new ManagedObjectReference[0]);
+		set(computeResource, "resourcePool", pool.mor);
+
+		MO mo = add("HostSystem", "host");
+		SimHost host = new SimHost(mo, name);
+		host.computeResource = computeResource;
+		host.pool = pool;
+		host.datacenter = dc;
+		host.maintenance = maintenance;
+		set(mo, "name", name);
+		set(mo, "parent", computeResource.mor);
+		set(mo, "vm", new ManagedObjectReference[0]);
+		set(mo, "datastore", new ManagedObjectReference[0]);
+		set(mo, "network", new ManagedObjectReference[] { network.mor });
+		HostConfigManager configManager = new HostConfigManager();
+		configManager.setDatastoreSystem(singleton("HostDatastoreSystem", "datastoreSystem-" + mo.id).mor);
+		configManager.setStorageSystem(singleton("HostStorageSystem", "storageSystem-" + mo.id).mor);
+		set(mo, "configManager", configManager);
+		link(computeResource, "host", mo);
+
+		hostSystems.put(mo.id, host);
+		hostsByName.put(name, host);
+		publish(host);
+		return host;
+	}
+
+	private MO createPool(String name, MO parent, MO owner) {
+		MO pool = add("ResourcePool", "resgroup");
+		set(pool, "name", name);
+		set(pool, "parent", parent.mor);
+		set(pool, "owner", owner.mor);
+		set(pool, "resourcePool", new ManagedObjectReference[0]);
+		set(pool, "vm", new ManagedObjectReference[0]);
+		link(parent, "resourcePool", pool);
+		return pool;
+	}
+
+	private SimVM createVM(String name, String ip, SimHost host, MO pool, MO folder, MO datastore, int memoryMB, int numCPU,
+			int cpuMhz) {
+		SimVM vm = new SimVM(add("VirtualMachine", "vm"));
+		vm.name = name;
+		vm.ip = ip;
+		vm.host = host;
+		vm.pool = pool;
+		vm.folder = folder;
+		vm.datastore = datastore;
+		vm.memoryMB = memoryMB;
+		vm.numCPU = numCPU;
+		vm.cpuMhz = cpuMhz;
+		host.vms.add(vm);
+		link(folder, "childEntity", vm.mo);
+		link(pool, "vm", vm.mo);
+		link(host.mo, "vm", vm.mo);
+		if (datastore != null)
+			link(datastore, "vm", vm.mo);
+		vms.put(vm.mo.id, vm);
+		vmsByName.put(name, vm);
+		if (ip != null)
+			vmsByIp.put(ip, vm);
+		set(vm.mo, "name", name);
+		set(vm.mo, "parent", folder.mor);
+		set(vm.mo, "network", new ManagedObjectReference[] { network.mor });
+		publish(vm);
+		return vm;
+	}
+
+	private void moveVM(SimVM vm, SimHost host, MO pool) {
+		unlink(vm.host.mo, "vm", vm.mo);
+		unlink(vm.pool, "vm", vm.mo);
+		vm.host.vms.remove(vm);
+		vm.host = host;
+		vm.pool = pool;
+		host.vms.add(vm);
+		link(host.mo, "vm", vm.mo);
+		link(pool, "vm", vm.mo);
+	}
+
+	private SimSnapshot addSnapshot(SimVM vm, String name, String description) {
+		SimSnapshot snapshot = new SimSnapshot(add("VirtualMachineSnapshot", "snapshot"), name, description, vm.snapshots.size() + 1);
+		snapshot.parent = vm.current;
+		set(snapshot.mo, "vm", vm.mo.mor);
+		vm.snapshots.add(snapshot);
+		vm.current = snapshot;
+		snapshots.put(snapshot.mo.id, snapshot);
+		return snapshot;
+	}
+
+	private SimHost hostOfPool(MO pool) {
+		ManagedObjectReference owner = (ManagedObjectReference) pool.props.get("owner");
+		if (owner == null)
+			return null;
+		MO computeResource = objects.get(owner.getVal());
+		for (ManagedObjectReference hostMor : refsOf(computeResource != null ? computeResource.props.get("host") : null)) {
+			SimHost host = hostSystems.get(hostMor.getVal());
+			if (host != null)
+				return host;
+		}
+		return null;
+	}
+
+	private MO datacenterOf(MO mo) {
+		while (mo != null && !"Datacenter".equals(mo.type)) {
+			ManagedObjectReference parent = (ManagedObjectReference) mo.props.get("parent");
+			mo = parent != null ? objects.get(parent.getVal()) : null;
+		}
+		return mo != null ? mo : datacenter;
+	}
+
+	// Function to replace the vim25 properties of a VM from its state
+	private void publish(SimVM vm) {
+		boolean running = vm.powerState == VirtualMachinePowerState.poweredOn;
+		boolean answering = running && !vm.crashed && !vm.host.failed;
+		long now = System.currentTimeMillis();
+
+		VirtualMachineRuntimeInfo runtime = new VirtualMachineRuntimeInfo();
+		runtime.setHost(vm.host.mo.mor);
+		runtime.setPowerState(vm.powerState);
+		runtime.setConnectionState(vm.host.isUp() ? VirtualMachineConnectionState.connected
+				: VirtualMachineConnectionState.disconnected);
+		runtime.setBootTime(running ? calendar(vm.bootTime) : null);
+		runtime.setMaxCpuUsage(vm.numCPU * 2400);
+		runtime.setMaxMemoryUsage(vm.memoryMB);
+
+		// vCenter drops the guest IP as soon as the tools stop answering, crashed or powered off
+		String ip = answering ? vm.ip : null;
+		GuestInfo guest = new GuestInfo();
+		guest.setGuestId("ubuntu64Guest");
+		guest.setGuestFullName("Ubuntu Linux (64-bit)");
+		guest.setHostName(vm.name);
+		guest.setIpAddress(ip);
+		guest.setGuestState(answering ? "running" : "notRunning");
+		guest.setToolsRunningStatus(answering ? "guestToolsRunning" : "guestToolsNotRunning");
+
+		VirtualHardware hardware = new VirtualHardware();
+		hardware.setNumCPU(vm.numCPU);
+		hardware.setMemoryMB(vm.memoryMB);
+		VirtualMachineConfigInfo config = new VirtualMachineConfigInfo();
+		config.setName(vm.name);
+		config.setGuestId("ubuntu64Guest");
+		config.setGuestFullName("Ubuntu Linux (64-bit)");
+		config.setUuid(vm.mo.id);
+		config.setInstanceUuid(vm.mo.id);
+		config.setVersion("vmx-09");
+		config.setHardware(hardware);
+
+		VirtualMachineGuestSummary guestSummary = new VirtualMachineGuestSummary();
+		guestSummary.setGuestId("ubuntu64Guest");
+		guestSummary.setHostName(vm.name);
+		guestSummary.setIpAddress(ip);
+		guestSummary.setToolsRunningStatus(guest.getToolsRunningStatus());
+		VirtualMachineConfigSummary configSummary = new VirtualMachineConfigSummary();
+		configSummary.setName(vm.name);
+		configSummary.setMemorySizeMB(vm.memoryMB);
+		configSummary.setNumCpu(vm.numCPU);
+		configSummary.setGuestId("ubuntu64Guest");
+		configSummary.setVmPathName("[" + (vm.datastore != null ? vm.datastore.props.get("name") : "") + "] " + vm.name + "/"
+				+ vm.name + ".vmx");
+		VirtualMachineStorageSummary storage = new VirtualMachineStorageSummary();
+		storage.setCommitted((vm.linkedTo != null ? 1L : 16L) << 30);
+		storage.setUnshared(storage.getCommitted());
+		storage.setTimestamp(calendar(now));
+		VirtualMachineQuickStats quickStats = new VirtualMachineQuickStats();
+		quickStats.setOverallCpuUsage(answering ? vm.cpuMhz : 0);
+		quickStats.setGuestMemoryUsage(answering ? vm.memoryMB / 4 : 0);
+		quickStats.setHostMemoryUsage(running ? vm.memoryMB * 6 / 10 : 0);
+		quickStats.setUptimeSeconds(answering ? (int) ((now - vm.bootTime) / 1000) : 0);
+		quickStats.setGuestHeartbeatStatus(answering ? ManagedEntityStatus.green : ManagedEntityStatus.gray);
+		VirtualMachineSummary summary = new VirtualMachineSummary();
+		summary.setVm(vm.mo.mor);
+		summary.setRuntime(runtime);
+		summary.setGuest(guestSummary);
+		summary.setConfig(configSummary);
+		summary.setStorage(storage);
+		summary.setQuickStats(quickStats);
+		summary.setOverallStatus(answering || !running ? ManagedEntityStatus.green : ManagedEntityStatus.red);
+
+		set(vm.mo, "runtime", runtime);
+		set(vm.mo, "guest", guest);
+		set(vm.mo, "config", config);
+		set(vm.mo, "summary", summary);
+		set(vm.mo, "resourcePool", vm.pool.mor);
+		set(vm.mo, "datastore", vm.datastore != null ? new ManagedObjectReference[] { vm.datastore.mor } : new ManagedObjectReference[0]);
+		set(vm.mo, "snapshot", snapshotInfo(vm));
+		set(vm.mo, "triggeredAlarmState", vm.triggered);
+		set(vm.mo, "overallStatus", summary.getOverallStatus());
+	}
+
+	private VirtualMachineSnapshotInfo snapshotInfo(SimVM vm) {
+		if (vm.snapshots.isEmpty())
+			return null;
+		VirtualMachineSnapshotInfo info = new VirtualMachineSnapshotInfo();
+		info.setCurrentSnapshot(vm.current != null ? vm.current.mo.mor : null);
+		info.setRootSnapshotList(snapshotTrees(vm, null));
+		return info;
+	}
+
+	private VirtualMachineSnapshotTree[] snapshotTrees(SimVM vm, SimSnapshot parent) {
+		List<VirtualMachineSnapshotTree> trees = new ArrayList<VirtualMachineSnapshotTree>();
+		for (SimSnapshot snapshot : vm.snapshots) {
+			if (snapshot.parent != parent)
+				continue;
+			VirtualMachineSnapshotTree tree = new VirtualMachineSnapshotTree();
+			tree.setSnapshot(snapshot.mo.mor);
+			tree.setVm(vm.mo.mor);
+			tree.setName(snapshot.name);
+			tree.setDescription(snapshot.description);
+			tree.setId(snapshot.id);
+			tree.setCreateTime(snapshot.created);
+			tree.setState(vm.powerState);
+			tree.setQuiesced(snapshot.quiesced);
+			VirtualMachineSnapshotTree[] children = snapshotTrees(vm, snapshot);
+			tree.setChildSnapshotList(children.length > 0 ? children : null);
+			trees.add(tree);
+		}
+		return trees.toArray(new VirtualMachineSnapshotTree[trees.size()]);
+	}
+
+	// Function to replace the vim25 properties of a vHost from its state
+	private void publish(SimHost host) {
+		long now = System.currentTimeMillis();
+		HostRuntimeInfo runtime = new HostRuntimeInfo();
+		runtime.setConnectionState(host.state);
+		runtime.setPowerState(host.failed ? HostSystemPowerState.unknown : HostSystemPowerState.poweredOn);
+		runtime.setInMaintenanceMode(host.maintenance);
+		runtime.setBootTime(calendar(host.bootTime));
+
+		HostHardwareSummary hardware = new HostHardwareSummary();
+		hardware.setVendor("Simulated");
+		hardware.setModel("SIM-1");
+		hardware.setUuid(host.mo.id);
+		hardware.setMemorySize(256L << 30);
+		hardware.setCpuModel("Simulated CPU");
+		hardware.setCpuMhz(2400);
+		hardware.setNumCpuPkgs((short) 2);
+		hardware.setNumCpuCores((short) 16);
+		hardware.setNumCpuThreads((short) 32);
+		hardware.setNumNics(4);
+		hardware.setNumHBAs(2);
+
+		int cpu = 0;
+		int memory = 0;
+		for (SimVM vm : host.vms) {
+			if (vm.isUp()) {
+				cpu += vm.cpuMhz;
+				memory += vm.memoryMB;
+			}
+		}
+		HostListSummaryQuickStats quickStats = new HostListSummaryQuickStats();
+		quickStats.setOverallCpuUsage(cpu);
+		quickStats.setOverallMemoryUsage(memory);
+		quickStats.setUptime((int) ((now - host.bootTime) / 1000));
+
+		HostListSummary summary = new HostListSummary();
+		summary.setHost(host.mo.mor);
+		summary.setHardware(hardware);
+		summary.setRuntime(runtime);
+		summary.setQuickStats(quickStats);
+		summary.setOverallStatus(host.isUp() ? ManagedEntityStatus.green : ManagedEntityStatus.red);
+
+		set(host.mo, "runtime", runtime);
+		set(host.mo, "summary", summary);
+		set(host.mo, "hardware", null);
+		set(host.mo, "overallStatus", summary.getOverallStatus());
+	}
+
+	// ---- Object store ----
+
+	private MO add(String type, String prefix) {
+		MO mo = new MO(type, prefix + (prefix.endsWith("-") ? "" : "-") + ids.incrementAndGet());
+		objects.put(mo.id, mo);
+		return mo;
+	}
+
+	private void remove(String id) {
+		MO mo = objects.remove(id);
+		if (mo == null)
+			return;
+		removedTypes.put(id, mo.type);
+		synchronized (this) {
+			for (String property : CONTAINMENT)
+				refs.remove(id + "." + property);
+		}
+		structure = versions.incrementAndGet();
+	}
+
+	// Function to change one property, waiters are woken by changed once the whole change is made
+	private void set(MO mo, String name, Object value) {
+		if (value == null)
+			mo.props.remove(name);
+		else
+			mo.props.put(name, value);
+		long version = versions.incrementAndGet();
+		mo.version = version;
+		if (CONTAINMENT.contains(name))
+			structure = version;
+	}
+
+	private void changed() {
+		synchronized (changes) {
+			changes.notifyAll();
+		}
+	}
+
+	private synchronized Set<String> refSet(MO owner, String property) {
+		String key = owner.id + "." + property;
+		Set<String> set = refs.get(key);
+		if (set == null) {
+			set = new LinkedHashSet<String>();
+			refs.put(key, set);
+		}
+		return set;
+	}
+
+	// Function to add a child to a MOR array property of its owner
+	private synchronized void link(MO owner, String property, MO child) {
+		if (refSet(owner, property).add(child.id))
+			set(owner, property, morArray(refSet(owner, property)));
+	}
+
+	private synchronized void unlink(MO owner, String property, MO child) {
+		if (owner != null && refSet(owner, property).remove(child.id))
+			set(owner, property, morArray(refSet(owner, property)));
+	}
+
+	private ManagedObjectReference[] morArray(Set<String> ids) {
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		for (String id : ids) {
+			MO mo = objects.get(id);
+			if (mo != null)
+				mors.add(mo.mor);
+		}
+		return mors.toArray(new ManagedObjectReference[mors.size()]);
+	}
+
+	private static Collection<ManagedObjectReference> refsOf(Object value) {
+		if (value instanceof ManagedObjectReference)
+			return Collections.singletonList((ManagedObjectReference) value);
+		if (value instanceof ManagedObjectReference[])
+			return Arrays.asList((ManagedObjectReference[]) value);
+		return Collections.emptyList();
+	}
+
+	private MO target(Call c) throws SimFault {
+		MO mo = c.self != null ? objects.get(c.self.getVal()) : null;
+		if (mo == null) {
+			ManagedObjectNotFound fault = new ManagedObjectNotFound();
+			fault.setObj(c.self);
+			throw new SimFault(fault, "The object has already been deleted or has not been completely created");
+		}
+		return mo;
+	}
+
+	private SimVM vm(Call c) throws SimFault {
+		SimVM vm = vms.get(target(c).id);
+		if (vm == null)
+			throw new SimFault(new InvalidArgument(), c.self.getVal() + " is not a VM");
+		return vm;
+	}
+
+	private SimHost host(Call c) throws SimFault {
+		SimHost host = hostSystems.get(target(c).id);
+		if (host == null)
+			throw new SimFault(new InvalidArgument(), c.self.getVal() + " is not a vHost");
+		return host;
+	}
+
+	private SimScheduledTask scheduledTask(Call c) throws SimFault {
+		SimScheduledTask task = scheduledTasks.get(target(c).id);
+		if (task == null)
+			throw new SimFault(new InvalidArgument(), c.self.getVal() + " is not a scheduled task");
+		return task;
+	}
+
+	private SimSnapshot snapshot(Call c) throws SimFault {
+		SimSnapshot snapshot = snapshots.get(target(c).id);
+		if (snapshot == null)
+			throw new SimFault(new InvalidArgument(), c.self.getVal() + " is not a snapshot");
+		return snapshot;
+	}
+
+	private void action(String vmName) {
+		firstActions.putIfAbsent(vmName, System.currentTimeMillis());
+	}
+
+	private String nextAddress() {
+		int n = addresses.incrementAndGet();
+		return "10." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255);
+	}
+
+	private static VmEventArgument vmArgument(SimVM vm) {
+		VmEventArgument argument = new VmEventArgument();
+		argument.setName(vm.name);
+		argument.setVm(vm.mo.mor);
+		return argument;
+	}
+
+	private static HostEventArgument hostArgument(SimHost host) {
+		HostEventArgument argument = new HostEventArgument();
+		argument.setName(host.name);
+		argument.setHost(host.mo.mor);
+		return argument;
+	}
+
+	private Histogram histogram(String method) {
+		Histogram histogram = calls.get(method);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = calls.putIfAbsent(method, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	private static ObjectContent[] array(List<ObjectContent> contents) {
+		return contents.isEmpty() ? null : contents.toArray(new ObjectContent[contents.size()]);
+	}
+
+	private static ManagedObjectReference mor(String type, String id) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.setVal(id);
+		return mor;
+	}
+
+	private static Calendar calendar(long millis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		return calendar;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toString("UTF-8");
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.vmware.vim25.ComputeResourceConfigSpec;
+import com.vmware.vim25.DatastoreInfo;
+import com.vmware.vim25.HostConnectSpec;
+import com.vmware.vim25.HostNasVolumeSpec;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.NasDatastoreInfo;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.Datastore;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+
+public class WarmSpareManager extends Thread {
+	// State of one configured standby vHost
+	public static final int ABSENT = 0;
+	public static final int READY = 1;
+	public static final int UNHEALTHY = 2;
+	public static final int IN_USE = 3;
+
+	// Standby vHost and the thumbprint it is added with
+	private static class Spare {
+		final String hostName;
+		final String thumbprint;
+		volatile int state = ABSENT;
+
+		Spare(String hostName, String thumbprint) {
+			this.hostName = hostName;
+			this.thumbprint = thumbprint;
+		}
+	}
+
+	private final Properties prop;
+	private final Map<String,Spare> spares = new LinkedHashMap<String,Spare>();
+	private final Object wakeup = new Object();
+	private volatile boolean running = true;
+
+	public WarmSpareManager(Properties prop) {
+		super("WarmSpareManager");
+		this.prop = prop;
+
+		// vStandByHosts is "host|thumbprint,host|thumbprint", vStandByHost alone is a pool of one
+		String standbyHosts = prop.getProperty("vStandByHosts", "");
+		if (standbyHosts.isEmpty() && prop.getProperty("vStandByHost") != null)
+			standbyHosts = prop.getProperty("vStandByHost") + "|" + prop.getProperty("vStandByHostSSL", "");
+		for (String standbyHost : standbyHosts.split(",")) {
+			String[] fields = standbyHost.trim().split("\\|", 2);
+			if (!fields[0].isEmpty())
+				spares.put(fields[0], new Spare(fields[0], fields.length > 1 ? fields[1] : null));
+		}
+		setDaemon(true);
+	}
+
+	// Function to take a ready spare out of maintenance mode for a recovery, null when none is ready
+	public String acquire() {
+		Set<Spare> tried = new HashSet<Spare>();
+		while (true) {
+			// Only the choice is made under the lock, vCenter is called without it
+			Spare spare = reserve(tried);
+			if (spare == null)
+				return null;
+			try {
+				if (exitMaintenanceMode(spare)) {
+					System.out.println("Warm spare vHost " + spare.hostName + " is taking over");
+					// The next plan has to see the spare, the pool is refilled in the background
+					PlacementEngine.getInstance(prop).invalidate();
+					synchronized (wakeup) {
+						wakeup.notifyAll();
+					}
+					return spare.hostName;
+				}
+			} catch (Exception e) {
+				System.out.println("Warm spare vHost " + spare.hostName + " could not leave maintenance mode: " + e);
+			}
+			synchronized (this) {
+				spare.state = UNHEALTHY;
+			}
+		}
+	}
+
+	// Take the first ready spare not tried yet, so no other recovery gets it
+	private synchronized Spare reserve(Set<Spare> tried) {
+		for (Spare spare : spares.values()) {
+			if (spare.state == READY && tried.add(spare)) {
+				spare.state = IN_USE;
+				return spare;
+			}
+		}
+		return null;
+	}
+
+	public synchronized int getReadyCount() {
+		int ready = 0;
+		for (Spare spare : spares.values()) {
+			if (spare.state == READY)
+				ready++;
+		}
+		return ready;
+	}
+
+	public void shutdown() {
+		running = false;
+		synchronized (wakeup) {
+			wakeup.notifyAll();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				refill();
+			} catch (Exception e) {
+				System.out.println("Warm spare check failed: " + e);
+			}
+			// Woken up early after a spare was taken
+			synchronized (wakeup) {
+				try {
+					wakeup.wait(Long.parseLong(prop.getProperty("WarmSpareCheckInterval", "60000")));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	// Check every spare, then prepare absent ones until WarmSpareCount are ready
+	private void refill() throws Exception {
+		int wanted = Integer.parseInt(prop.getProperty("WarmSpareCount", "1"));
+		List<Spare> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<Spare>(spares.values());
+		}
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			for (Spare spare : candidates) {
+				if (spare.state == IN_USE)
+					continue;
+				HostSystem host = findHost(si, spare.hostName);
+				setState(spare, host == null ? ABSENT : check(spare, host));
+			}
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		for (Spare spare : candidates) {
+			if (getReadyCount() >= wanted)
+				break;
+			if (spare.state != IN_USE && spare.state != READY)
+				setState(spare, prepare(spare));
+		}
+	}
+
+	private static HostSystem findHost(ServiceInstance si, String hostName) throws Exception {
+		return (HostSystem) new InventoryNavigator(si.getRootFolder()).searchManagedEntity("HostSystem", hostName);
+	}
+
+	private synchronized void setState(Spare spare, int state) {
+		// A spare taken by acquire meanwhile stays taken
+		if (spare.state != IN_USE)
+			spare.state = state;
+	}
+
+	// Ready means connected, in maintenance mode, reachable and with every shared datastore mounted
+	private int check(Spare spare, HostSystem host) throws Exception {
+		if (host.getRuntime().getConnectionState() != HostSystemConnectionState.connected) {
+			// Not waited for, the next check sees whether the reconnect worked
+			System.out.println("Warm spare vHost " + spare.hostName + " is " + host.getRuntime().getConnectionState() + ", reconnecting");
+			TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).track(host.reconnectHost_Task(null));
+			return UNHEALTHY;
+		}
+		if (!host.getRuntime().isInMaintenanceMode()) {
+			// Taken over by a recovery or by an operator, no longer a spare
+			return IN_USE;
+		}
+		if (!ReachabilityProber.getInstance(prop).probe(spare.hostName))
+			return UNHEALTHY;
+		return mountDatastores(spare, host) ? READY : UNHEALTHY;
+	}
+
+	// Add the vHost to the datacenter straight into maintenance mode, the slow part done ahead of any failure,
+	// a session is only held to start each task and never while waiting for it
+	private int prepare(Spare spare) throws Exception {
+		TaskTracker tracker = TaskTracker.getInstance(prop, SessionPoolManager.VCENTER);
+		Task task = null;
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			if (findHost(si, spare.hostName) == null) {
+				Datacenter dataCenter = (Datacenter) new InventoryNavigator(si.getRootFolder()).searchManagedEntity("Datacenter", prop.getProperty("DataCenter"));
+				HostConnectSpec hSpec = new HostConnectSpec();
+				hSpec.setHostName(spare.hostName);
+				hSpec.setUserName(prop.getProperty("vHostUsername"));
+				hSpec.setPassword(prop.getProperty("vHostPassword"));
+				hSpec.setForce(true);
+				hSpec.setSslThumbprint(spare.thumbprint);
+
+				System.out.println("Adding warm spare vHost " + spare.hostName);
+				task = dataCenter.getHostFolder().addStandaloneHost_Task(hSpec, new ComputeResourceConfigSpec(), true);
+			}
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		if (task != null && tracker.waitFor(task) != Task.SUCCESS)
+			return ABSENT;
+
+		task = null;
+		si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			HostSystem host = findHost(si, spare.hostName);
+			if (host == null)
+				return ABSENT;
+			if (!host.getRuntime().isInMaintenanceMode()) {
+				// Only a vHost without VMs is turned into a spare
+				if (host.getVms() != null && host.getVms().length > 0)
+					return IN_USE;
+				task = host.enterMaintenanceMode(0, false);
+			}
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		if (task != null && tracker.waitFor(task) != Task.SUCCESS)
+			return UNHEALTHY;
+
+		si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			HostSystem host = findHost(si, spare.hostName);
+			if (host == null)
+				return ABSENT;
+			int state = check(spare, host);
+			if (state == READY)
+				System.out.println("Warm spare vHost " + spare.hostName + " is ready");
+			return state;
+		} finally {
+			SessionPoolManager.release(si);
+		}
+	}
+
+	// Mount the NFS datastores the live vHosts use and rescan for shared VMFS ones
+	private boolean mountDatastores(Spare spare, HostSystem host) throws Exception {
+		String required = prop.getProperty("WarmSpareDatastores", "");
+		if (required.isEmpty())
+			return true;
+		List<String> mounted = new ArrayList<String>();
+		if (host.getDatastores() != null) {
+			for (Datastore datastore : host.getDatastores())
+				mounted.add(datastore.getName());
+		}
+		boolean rescanned = false;
+		boolean complete = true;
+		for (String name : required.split(",")) {
+			name = name.trim();
+			if (name.isEmpty() || mounted.contains(name))
+				continue;
+			ManagedEntity entity = new InventoryNavigator(host.getServerConnection().getServiceInstance().getRootFolder())
+					.searchManagedEntity("Datastore", name);
+			DatastoreInfo info = entity != null ? ((Datastore) entity).getInfo() : null;
+			if (info instanceof NasDatastoreInfo) {
+				NasDatastoreInfo nas = (NasDatastoreInfo) info;
+				HostNasVolumeSpec spec = new HostNasVolumeSpec();
+				spec.setRemoteHost(nas.getNas().getRemoteHost());
+				spec.setRemotePath(nas.getNas().getRemotePath());
+				spec.setLocalPath(name);
+				spec.setAccessMode("readWrite");
+				System.out.println("Mounting datastore " + name + " on warm spare vHost " + spare.hostName);
+				host.getHostDatastoreSystem().createNasDatastore(spec);
+			} else if (!rescanned) {
+				host.getHostStorageSystem().rescanAllHba();
+				host.getHostStorageSystem().rescanVmfs();
+				rescanned = true;
+				complete = false;
+			} else {
+				complete = false;
+			}
+		}
+		return complete;
+	}
+
+	private boolean exitMaintenanceMode(Spare spare) throws Exception {
+		Task task;
+		ServiceInstance si = SessionPoolManager.borrow(prop, SessionPoolManager.VCENTER);
+		try {
+			HostSystem host = findHost(si, spare.hostName);
+			if (host == null)
+				return false;
+			task = host.exitMaintenanceMode(0);
+		} finally {
+			SessionPoolManager.release(si);
+		}
+		return TaskTracker.getInstance(prop, SessionPoolManager.VCENTER).waitFor(task) == Task.SUCCESS;
+	}
+}
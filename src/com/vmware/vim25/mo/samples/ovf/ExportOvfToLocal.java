@@ -28,18 +28,10 @@ POSSIBILITY OF SUCH DAMAGE.
 ================================================================================*/
 package com.vmware.vim25.mo.samples.ovf;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
-
 import com.vmware.vim25.HttpNfcLeaseDeviceUrl;
 import com.vmware.vim25.HttpNfcLeaseInfo;
 import com.vmware.vim25.HttpNfcLeaseState;
@@ -66,10 +58,10 @@ public class ExportOvfToLocal
 
 	 public static void main(String[] args) throws Exception
 	  {
-	    if (args.length != 7) 
+	    if (args.length < 7) 
 	    {
-	      System.out.println("java ExportOvfToLocal <SdkUrl> <username> <password> <VappOrVmName> <hostip> <VirtualMachine|VirtualApp> <localDir>");
-	      System.out.println("java ExportOvfToLocal https://10.20.152.74/sdk root password NewVM1 10.20.152.74 VirtualMachine C:\\Temp\\ovf\\");
+	      System.out.println("java ExportOvfToLocal <SdkUrl> <username> <password> <VappOrVmName> <hostip> <VirtualMachine|VirtualApp> <localDir> [threads] [segmentMB] [maxMBps]");
+	      System.out.println("java ExportOvfToLocal https://10.20.152.74/sdk root password NewVM1 10.20.152.74 VirtualMachine C:\\Temp\\ovf\\ 8 64 0");
 	      return;
 	    }
 	    
@@ -79,6 +71,9 @@ public class ExportOvfToLocal
 	    String hostip = args[4];
 	    String entityType = args[5];
 	    String targetDir = args[6];
+	    int threads = args.length > 7 ? Integer.parseInt(args[7]) : 8;
+	    long segmentSize = (args.length > 8 ? Long.parseLong(args[8]) : 64) * 1024 * 1024;
+	    long bytesPerSecond = (args.length > 9 ? Long.parseLong(args[9]) : 0) * 1024 * 1024;
 
 	    HostSystem host = (HostSystem) si.getSearchIndex().findByIp(null, hostip, false); 
 	      
@@ -131,28 +126,48 @@ public class ExportOvfToLocal
 	    leaseProgUpdater = new LeaseProgressUpdater(hnLease, 5000);
 	    leaseProgUpdater.start();
 
-	    long alredyWrittenBytes = 0;
 	    HttpNfcLeaseDeviceUrl[] deviceUrls = httpNfcLeaseInfo.getDeviceUrl();
 	    if (deviceUrls != null) 
 	    {
-	      OvfFile[] ovfFiles = new OvfFile[deviceUrls.length];
+	      String[] diskFileNames = new String[deviceUrls.length];
+	      String[] diskUrls = new String[deviceUrls.length];
+	      String[] diskLocalPaths = new String[deviceUrls.length];
 	      System.out.println("Downloading Files:");
 	      for (int i = 0; i < deviceUrls.length; i++) 
 	      {
-	        String deviceId = deviceUrls[i].getKey();
 	        String deviceUrlStr = deviceUrls[i].getUrl();
-	        String diskFileName = deviceUrlStr.substring(deviceUrlStr.lastIndexOf("/") + 1);
-	        String diskUrlStr = deviceUrlStr.replace("*", hostip);
-	        String diskLocalPath = targetDir + diskFileName;
-	        System.out.println("File Name: " + diskFileName);
-	        System.out.println("VMDK URL: " + diskUrlStr);
-	        String cookie = si.getServerConnection().getVimService().getWsc().getCookie();
-	        long lengthOfDiskFile = writeVMDKFile(diskLocalPath, diskUrlStr, cookie, alredyWrittenBytes, diskCapacityInByte);
-	        alredyWrittenBytes += lengthOfDiskFile;
+	        diskFileNames[i] = deviceUrlStr.substring(deviceUrlStr.lastIndexOf("/") + 1);
+	        diskUrls[i] = deviceUrlStr.replace("*", hostip);
+	        diskLocalPaths[i] = targetDir + diskFileNames[i];
+	        System.out.println("File Name: " + diskFileNames[i]);
+	        System.out.println("VMDK URL: " + diskUrls[i]);
+	      }
+
+	      // All disks at once, each in Range segments, resumed from the .segments files of an earlier run
+	      String cookie = si.getServerConnection().getVimService().getWsc().getCookie();
+	      VmdkExporter exporter = new VmdkExporter(cookie, leaseProgUpdater, threads, segmentSize, bytesPerSecond);
+	      long[] diskLengths;
+	      try 
+	      {
+	        diskLengths = exporter.export(diskUrls, diskLocalPaths, diskCapacityInByte);
+	      } 
+	      catch (IOException ioe) 
+	      {
+	        // The .segments files stay behind, running the export again fetches only the missing segments
+	        System.out.println("Export failed: " + ioe.getMessage());
+	        leaseProgUpdater.interrupt();
+	        hnLease.httpNfcLeaseAbort(null);
+	        si.getServerConnection().logout();
+	        return;
+	      }
+
+	      OvfFile[] ovfFiles = new OvfFile[deviceUrls.length];
+	      for (int i = 0; i < deviceUrls.length; i++) 
+	      {
 	        OvfFile ovfFile = new OvfFile();
-	        ovfFile.setPath(diskFileName);
-	        ovfFile.setDeviceId(deviceId);
-	        ovfFile.setSize(lengthOfDiskFile);
+	        ovfFile.setPath(diskFileNames[i]);
+	        ovfFile.setDeviceId(deviceUrls[i].getKey());
+	        ovfFile.setSize(diskLengths[i]);
 	        ovfFiles[i] = ovfFile;
 	      }
 	      
@@ -203,48 +218,4 @@ public class ExportOvfToLocal
 		}
 	}
 
-	private static long writeVMDKFile(String localFilePath, String diskUrl, String cookie, 
-			long bytesAlreadyWritten, long totalBytes) throws IOException 
-	{
-		HttpsURLConnection conn = getHTTPConnection(diskUrl, cookie);
-		InputStream in = conn.getInputStream();
-		OutputStream out = new FileOutputStream(new File(localFilePath));
-		byte[] buf = new byte[102400];
-		int len = 0;
-		long bytesWritten = 0;
-		while ((len = in.read(buf)) > 0) 
-		{
-			out.write(buf, 0, len);
-			bytesWritten += len;
-			int percent = (int)(((bytesAlreadyWritten + bytesWritten) * 100) / totalBytes);
-			leaseProgUpdater.setPercent(percent);
-			System.out.println("written: " + bytesWritten);
-		}
-		in.close();
-		out.close();
-		return bytesWritten;
-	}
-
-	private static HttpsURLConnection getHTTPConnection(String urlStr, String cookieStr) throws IOException 
-	{
-		HostnameVerifier hv = new HostnameVerifier() 
-		{
-			public boolean verify(String urlHostName, SSLSession session) 
-			{
-				return true;
-			}
-		};
-		HttpsURLConnection.setDefaultHostnameVerifier(hv);
-		URL url = new URL(urlStr);
-		HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-
-		conn.setDoInput(true);
-		conn.setDoOutput(true);
-		conn.setAllowUserInteraction(true);
-		conn.setRequestProperty("Cookie",	cookieStr);
-		conn.connect();
-		return conn;
-	}
-
-
-}
\ No newline at end of file
+}
\ No newline at end of file
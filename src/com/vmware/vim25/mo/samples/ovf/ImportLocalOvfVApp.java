@@ -30,7 +30,13 @@ package com.vmware.vim25.mo.samples.ovf;
 
 import java.io.*;
 import java.net.*;
-import javax.net.ssl.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import com.vmware.vim25.*;
 import com.vmware.vim25.mo.ComputeResource;
 import com.vmware.vim25.mo.Folder;
@@ -47,33 +53,66 @@ import com.vmware.vim25.mo.ServiceInstance;
 
 public class ImportLocalOvfVApp 
 {
-	private static final int CHUCK_LEN = 64 * 1024;
-	
-	public static LeaseProgressUpdater leaseUpdater;
-
 	public static void main(String[] args) throws Exception 
 	{
-		if (args.length < 6) 
+		if (args.length < 6 || args.length % 2 != 0) 
 		{
 			System.out.println(
-			"java ImportLocalOvfVApp <targetURL> <username> <password> <hostip> <OVFFile LocalPath> <NewVMName>");
+			"java [-Dimports=4] [-DuploadConnections=8] ImportLocalOvfVApp <targetURL> <username> <password> <hostip> <OVFFile LocalPath> <NewVMName> [<OVFFile LocalPath> <NewVMName> ...]");
 			System.out.println(
 			"java ImportLocalOvfVApp https://10.20.140.47/sdk Administrator password 10.17.204.115 E:/Downloads/Nostalgia.ovf NewVM");
 			return;
 		}
 		
-		ServiceInstance si = new ServiceInstance(new URL(args[0]), args[1], args[2], true);
+		final ServiceInstance si = new ServiceInstance(new URL(args[0]), args[1], args[2], true);
 
-		String ovfLocal = args[4];
-		String hostip = args[3];
-		String newVmName = args[5];
+		final String hostip = args[3];
 		
-		HostSystem host = (HostSystem) si.getSearchIndex().findByIp(null, hostip, false); 
+		final HostSystem host = (HostSystem) si.getSearchIndex().findByIp(null, hostip, false); 
 			
 		System.out.println("Host Name : " + host.getName());
 		System.out.println("Network : " + host.getNetworks()[0].getName());
 		System.out.println("Datastore : " + host.getDatastores()[0].getName());
 
+		// vApps imported at once, and upload connections shared by all of them
+		ExecutorService imports = Executors.newFixedThreadPool(Integer.getInteger("imports", 4));
+		final VmdkImporter importer = new VmdkImporter(Integer.getInteger("uploadConnections", 8));
+
+		List<String> newVmNames = new ArrayList<String>();
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 4; i < args.length; i += 2) 
+		{
+			final String ovfLocal = args[i];
+			final String newVmName = args[i + 1];
+			newVmNames.add(newVmName);
+			results.add(imports.submit(new Callable<Boolean>() 
+			{
+				public Boolean call() throws Exception 
+				{
+					return importOvf(si, host, hostip, ovfLocal, newVmName, importer);
+				}
+			}));
+		}
+
+		for (int i = 0; i < results.size(); i++) 
+		{
+			try 
+			{
+				System.out.println(newVmNames.get(i) + (results.get(i).get() ? " imported" : " not imported"));
+			} 
+			catch (ExecutionException e) 
+			{
+				System.out.println(newVmNames.get(i) + " not imported: " + e.getCause());
+			}
+		}
+		imports.shutdown();
+		importer.shutdown();
+		si.getServerConnection().logout();
+	}
+	
+	private static boolean importOvf(ServiceInstance si, HostSystem host, String hostip, String ovfLocal, 
+			String newVmName, VmdkImporter importer) throws Exception 
+	{
 		Folder vmFolder = (Folder) host.getVms()[0].getParent();
 
 		OvfCreateImportSpecParams importSpecParams = new OvfCreateImportSpecParams();
@@ -90,8 +129,7 @@ public class ImportLocalOvfVApp
 		String ovfDescriptor = readOvfContent(ovfLocal);
 		if (ovfDescriptor == null) 
 		{
-			si.getServerConnection().logout();
-			return;
+			return false;
 		}
 		
 		ovfDescriptor = escapeSpecialChars(ovfDescriptor);
@@ -104,8 +142,7 @@ public class ImportLocalOvfVApp
 
 		if(ovfImportResult==null)
 		{
-			si.getServerConnection().logout();
-			return;
+			return false;
 		}
 		
 		long totalBytes = addTotalBytes(ovfImportResult);
@@ -115,7 +152,7 @@ public class ImportLocalOvfVApp
 
 		httpNfcLease = rp.importVApp(ovfImportResult.getImportSpec(), vmFolder, host);
 			
-		// Wait until the HttpNfcLeaseState is ready
+		// Wait until the HttpNfcLeaseState is ready, other imports poll vCenter as well
 		HttpNfcLeaseState hls;
 		for(;;)
 		{
@@ -124,42 +161,64 @@ public class ImportLocalOvfVApp
 			{
 				break;
 			}
+			Thread.sleep(1000);
 		}
 		
-		if (hls.equals(HttpNfcLeaseState.ready)) 
+		if (!hls.equals(HttpNfcLeaseState.ready)) 
 		{
-			System.out.println("HttpNfcLeaseState: ready ");
-			HttpNfcLeaseInfo httpNfcLeaseInfo = (HttpNfcLeaseInfo) httpNfcLease.getInfo();
-			printHttpNfcLeaseInfo(httpNfcLeaseInfo);
+			return false;
+		}
 
-			leaseUpdater = new LeaseProgressUpdater(httpNfcLease, 5000);
-			leaseUpdater.start();
+		System.out.println("HttpNfcLeaseState: ready ");
+		HttpNfcLeaseInfo httpNfcLeaseInfo = (HttpNfcLeaseInfo) httpNfcLease.getInfo();
+		printHttpNfcLeaseInfo(httpNfcLeaseInfo);
 
-			HttpNfcLeaseDeviceUrl[] deviceUrls = httpNfcLeaseInfo.getDeviceUrl();
-			
-			long bytesAlreadyWritten = 0;
-			for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrls) 
+		// One updater keeps the lease alive for all of its uploads
+		LeaseProgressUpdater leaseUpdater = new LeaseProgressUpdater(httpNfcLease, 5000);
+		leaseUpdater.start();
+
+		HttpNfcLeaseDeviceUrl[] deviceUrls = httpNfcLeaseInfo.getDeviceUrl();
+		
+		List<String> urls = new ArrayList<String>();
+		List<String> files = new ArrayList<String>();
+		List<Boolean> puts = new ArrayList<Boolean>();
+		for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrls) 
+		{
+			String deviceKey = deviceUrl.getImportKey();
+			for (OvfFileItem ovfFileItem : ovfImportResult.getFileItem()) 
 			{
-				String deviceKey = deviceUrl.getImportKey();
-				for (OvfFileItem ovfFileItem : ovfImportResult.getFileItem()) 
+				if (deviceKey.equals(ovfFileItem.getDeviceId())) 
 				{
-					if (deviceKey.equals(ovfFileItem.getDeviceId())) 
-					{
-						System.out.println("Import key==OvfFileItem device id: " + deviceKey);
-						String absoluteFile = new File(ovfLocal).getParent() + File.separator + ovfFileItem.getPath();
-						String urlToPost = deviceUrl.getUrl().replace("*", hostip);
-						uploadVmdkFile(ovfFileItem.isCreate(), absoluteFile, urlToPost, bytesAlreadyWritten, totalBytes);
-						bytesAlreadyWritten += ovfFileItem.getSize();
-						System.out.println("Completed uploading the VMDK file:" + absoluteFile);
-					}
+					System.out.println("Import key==OvfFileItem device id: " + deviceKey);
+					files.add(new File(ovfLocal).getParent() + File.separator + ovfFileItem.getPath());
+					urls.add(deviceUrl.getUrl().replace("*", hostip));
+					puts.add(ovfFileItem.isCreate());
 				}
 			}
+		}
 
+		boolean[] put = new boolean[puts.size()];
+		for (int i = 0; i < put.length; i++) 
+		{
+			put[i] = puts.get(i);
+		}
+		try 
+		{
+			importer.upload(urls.toArray(new String[urls.size()]), files.toArray(new String[files.size()]), put, 
+					leaseUpdater, totalBytes);
+		} 
+		catch (IOException ioe) 
+		{
+			System.out.println("Upload of " + newVmName + " failed: " + ioe.getMessage());
 			leaseUpdater.interrupt();
-			httpNfcLease.httpNfcLeaseProgress(100);
-			httpNfcLease.httpNfcLeaseComplete();
+			httpNfcLease.httpNfcLeaseAbort(null);
+			return false;
 		}
-		si.getServerConnection().logout();
+
+		leaseUpdater.interrupt();
+		httpNfcLease.httpNfcLeaseProgress(100);
+		httpNfcLease.httpNfcLeaseComplete();
+		return true;
 	}
 	
 	
@@ -179,57 +238,6 @@ public class ImportLocalOvfVApp
 		return totalBytes;
 	}
 	
-	private static void uploadVmdkFile(boolean put, String diskFilePath, String urlStr, 
-			long bytesAlreadyWritten, long totalBytes) throws IOException 
-	{
-		HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() 
-		{
-			public boolean verify(String urlHostName, SSLSession session) 
-			{
-				return true;
-			}
-		});
-		
-		HttpsURLConnection conn = (HttpsURLConnection) new URL(urlStr).openConnection();
-		conn.setDoOutput(true);
-		conn.setUseCaches(false);
-		conn.setChunkedStreamingMode(CHUCK_LEN);
-		conn.setRequestMethod(put? "PUT" : "POST"); // Use a post method to write the file.
-		conn.setRequestProperty("Connection", "Keep-Alive");
-		conn.setRequestProperty("Content-Type",	"application/x-vnd.vmware-streamVmdk");
-		conn.setRequestProperty("Content-Length", Long.toString(new File(diskFilePath).length()));
-		
-		BufferedOutputStream bos = new BufferedOutputStream(conn.getOutputStream());
-		
-		BufferedInputStream diskis = new BufferedInputStream(new FileInputStream(diskFilePath));
-		int bytesAvailable = diskis.available();
-		int bufferSize = Math.min(bytesAvailable, CHUCK_LEN);
-		byte[] buffer = new byte[bufferSize];
-		
-		long totalBytesWritten = 0;
-		while (true) 
-		{
-			int bytesRead = diskis.read(buffer, 0, bufferSize);
-			if (bytesRead == -1) 
-			{
-				System.out.println("Total bytes written: " + totalBytesWritten);
-				break;
-			}
-
-			totalBytesWritten += bytesRead;
-			bos.write(buffer, 0, bufferSize);
-			bos.flush();
-			System.out.println("Total bytes written: " + totalBytesWritten);
-			int progressPercent = (int) (((bytesAlreadyWritten + totalBytesWritten) * 100) / totalBytes);
-			leaseUpdater.setPercent(progressPercent);			
-		}
-		
-		diskis.close();
-		bos.flush();
-		bos.close();
-		conn.disconnect();
-	}
-	
 	public static String readOvfContent(String ovfFilePath)	throws IOException 
 	{
 		StringBuffer strContent = new StringBuffer();
@@ -275,4 +283,4 @@ public class ImportLocalOvfVApp
 		str = str.replaceAll("<", "&lt;");
 		return str.replaceAll(">", "&gt;"); // do not escape "&" -> "&amp;", "\"" -> "&quot;"
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -38,7 +38,7 @@ import com.vmware.vim25.mo.HttpNfcLease;
 public class LeaseProgressUpdater extends Thread
 {
 	private HttpNfcLease httpNfcLease = null;
-	private int progressPercent = 0;
+	private volatile int progressPercent = 0;
 	private int updateInterval;
 
 	public LeaseProgressUpdater(HttpNfcLease httpNfcLease, int updateInterval) 
@@ -71,4 +71,4 @@ public class LeaseProgressUpdater extends Thread
 	{
 		this.progressPercent = percent;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,505 @@
+package com.vmware.vim25.mo.samples.ovf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Downloads all disks of an export lease in parallel. Disks served with HTTP Range
+ * are split into segments written in place into a pre-sized file, and the segments
+ * done are kept in a bitmap next to the disk (<disk>.segments) so that a dropped
+ * export only fetches what is missing when it is run again. The bitmap records the
+ * ETag or Last-Modified of the disk and is only reused when the new lease serves the
+ * same one, a partial segment is resumed with If-Range or else fetched again.
+ */
+
+public class VmdkExporter
+{
+	private static final int CHUNK_LEN = 1024 * 1024;
+	private static final int MAX_ATTEMPTS = 5;
+	private static final String BITMAP_SUFFIX = ".segments";
+
+	private static final HostnameVerifier ANY_HOST = new HostnameVerifier()
+	{
+		public boolean verify(String urlHostName, SSLSession session)
+		{
+			return true;
+		}
+	};
+
+	// One disk of the lease and the segments of it already on disk
+	private class Disk
+	{
+		final String url;
+		final String localPath;
+		long length = -1;
+		// Strong ETag or else Last-Modified of the disk, null when the server sends neither
+		String validator;
+		int headerLen;
+		int segments;
+		FileChannel file;
+		FileChannel bitmap;
+		byte[] done;
+
+		Disk(String url, String localPath)
+		{
+			this.url = url;
+			this.localPath = localPath;
+		}
+
+		boolean isDone(int segment)
+		{
+			return (done[segment >> 3] & (1 << (segment & 7))) != 0;
+		}
+
+		// The data is forced before the bit so a segment marked done is really on disk
+		synchronized void markDone(int segment) throws IOException
+		{
+			file.force(false);
+			done[segment >> 3] |= 1 << (segment & 7);
+			bitmap.write(ByteBuffer.wrap(new byte[] { done[segment >> 3] }), headerLen + (segment >> 3));
+			bitmap.force(false);
+		}
+	}
+
+	private final String cookie;
+	private final LeaseProgressUpdater leaseUpdater;
+	private final int threads;
+	private final long segmentSize;
+	private final long bytesPerSecond;
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private volatile long totalBytes;
+
+	// Bandwidth budget shared by all downloads
+	private long allowance = 0;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param threads downloads running at once, over all disks
+	 * @param segmentSize bytes fetched by one Range request
+	 * @param bytesPerSecond cap of all downloads together, 0 for none
+	 */
+	public VmdkExporter(String cookie, LeaseProgressUpdater leaseUpdater, int threads, long segmentSize, long bytesPerSecond)
+	{
+		this.cookie = cookie;
+		this.leaseUpdater = leaseUpdater;
+		this.threads = Math.max(1, threads);
+		this.segmentSize = Math.max(CHUNK_LEN, segmentSize);
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Downloads every disk URL to the local path of the same index and returns the length of each disk.
+	 * estimatedBytes is used for the lease progress while the size of a disk is not known up front.
+	 */
+	public long[] export(String[] diskUrls, String[] localPaths, long estimatedBytes) throws IOException
+	{
+		Disk[] disks = new Disk[diskUrls.length];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try
+		{
+			long knownBytes = 0;
+			boolean allKnown = true;
+			for (int i = 0; i < disks.length; i++)
+			{
+				disks[i] = open(diskUrls[i], localPaths[i]);
+				if (disks[i].length < 0)
+					allKnown = false;
+				else
+					knownBytes += disks[i].length;
+			}
+			totalBytes = allKnown ? knownBytes : Math.max(knownBytes, estimatedBytes);
+			progress(0);
+
+			List<Future<?>> downloads = new ArrayList<Future<?>>();
+			for (final Disk disk : disks)
+			{
+				if (disk.bitmap == null)
+				{
+					downloads.add(pool.submit(new Callable<Void>()
+					{
+						public Void call() throws IOException
+						{
+							downloadWhole(disk);
+							return null;
+						}
+					}));
+					continue;
+				}
+				for (int s = 0; s < disk.segments; s++)
+				{
+					if (disk.isDone(s))
+						continue;
+					final int segment = s;
+					downloads.add(pool.submit(new Callable<Void>()
+					{
+						public Void call() throws IOException
+						{
+							downloadSegment(disk, segment);
+							return null;
+						}
+					}));
+				}
+			}
+
+			for (Future<?> download : downloads)
+			{
+				try
+				{
+					download.get();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException("Export interrupted");
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+
+			long[] lengths = new long[disks.length];
+			for (int i = 0; i < disks.length; i++)
+			{
+				finish(disks[i]);
+				lengths[i] = disks[i].length;
+			}
+			return lengths;
+		}
+		finally
+		{
+			pool.shutdownNow();
+			for (Disk disk : disks)
+			{
+				if (disk != null)
+					close(disk);
+			}
+		}
+	}
+
+	// Pre-size the file and pick up the bitmap of an earlier run when it is for the same disk
+	private Disk open(String url, String localPath) throws IOException
+	{
+		Disk disk = new Disk(url, localPath);
+		probe(disk);
+		RandomAccessFile raf = new RandomAccessFile(localPath, "rw");
+		disk.file = raf.getChannel();
+		File bitmapFile = new File(localPath + BITMAP_SUFFIX);
+		if (disk.length < 0)
+		{
+			System.out.println(localPath + ": no Range support, downloaded in one piece");
+			bitmapFile.delete();
+			disk.file.truncate(0);
+			return disk;
+		}
+
+		disk.segments = (int) ((disk.length + segmentSize - 1) / segmentSize);
+		disk.done = new byte[(disk.segments + 7) / 8];
+		boolean resumed = false;
+		// Segments of an earlier lease are only kept when the disk served now is the same one
+		if (bitmapFile.exists() && disk.file.size() == disk.length && disk.validator != null)
+		{
+			RandomAccessFile saved = new RandomAccessFile(bitmapFile, "r");
+			try
+			{
+				if (saved.readLong() == disk.length && saved.readLong() == segmentSize && disk.validator.equals(saved.readUTF())
+						&& saved.length() == saved.getFilePointer() + disk.done.length)
+				{
+					disk.headerLen = (int) saved.getFilePointer();
+					saved.readFully(disk.done);
+					resumed = true;
+				}
+			}
+			catch (EOFException e)
+			{
+				// Cut short, started over
+			}
+			finally
+			{
+				saved.close();
+			}
+		}
+
+		disk.bitmap = new RandomAccessFile(bitmapFile, "rw").getChannel();
+		if (!resumed)
+		{
+			if (disk.validator == null)
+				System.out.println(localPath + ": no ETag or Last-Modified, an interrupted export starts over");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.writeLong(disk.length);
+			header.writeLong(segmentSize);
+			header.writeUTF(disk.validator != null ? disk.validator : "");
+			disk.headerLen = header.size();
+			header.write(disk.done);
+			disk.bitmap.truncate(0);
+			disk.bitmap.write(ByteBuffer.wrap(bytes.toByteArray()), 0);
+			disk.bitmap.force(false);
+			disk.file.truncate(0);
+		}
+		raf.setLength(disk.length);
+
+		int resumedSegments = 0;
+		for (int s = 0; s < disk.segments; s++)
+		{
+			if (disk.isDone(s))
+			{
+				resumedSegments++;
+				bytesWritten.addAndGet(Math.min(disk.length, (s + 1) * segmentSize) - s * segmentSize);
+			}
+		}
+		System.out.println(localPath + ": " + disk.length + " bytes in " + disk.segments + " segments"
+				+ (resumedSegments > 0 ? ", " + resumedSegments + " already downloaded" : ""));
+		return disk;
+	}
+
+	// Length from the Content-Range of a one byte request, -1 when the server does not do ranges.
+	// A weak ETag cannot be used with If-Range, Last-Modified is taken instead
+	private void probe(Disk disk) throws IOException
+	{
+		HttpsURLConnection conn = connect(disk.url, "bytes=0-0", null);
+		try
+		{
+			String etag = conn.getHeaderField("ETag");
+			disk.validator = etag != null && !etag.startsWith("W/") ? etag : conn.getHeaderField("Last-Modified");
+			String range = conn.getHeaderField("Content-Range");
+			if (conn.getResponseCode() != HttpsURLConnection.HTTP_PARTIAL || range == null || range.indexOf('/') < 0)
+			{
+				disk.length = -1;
+				return;
+			}
+			String total = range.substring(range.indexOf('/') + 1).trim();
+			disk.length = "*".equals(total) ? -1 : Long.parseLong(total);
+		}
+		finally
+		{
+			conn.disconnect();
+		}
+	}
+
+	// A failed attempt goes on from the last byte written when If-Range confirms the disk is unchanged,
+	// otherwise the segment is fetched again from its start
+	private void downloadSegment(Disk disk, int segment) throws IOException
+	{
+		long start = segment * segmentSize;
+		long position = start;
+		long end = Math.min(disk.length, start + segmentSize);
+		for (int attempt = 1; ; attempt++)
+		{
+			HttpsURLConnection conn = null;
+			try
+			{
+				if (position > start && disk.validator == null)
+				{
+					progress(start - position);
+					position = start;
+				}
+				boolean partial = position > start;
+				conn = connect(disk.url, "bytes=" + position + "-" + (end - 1), partial ? disk.validator : null);
+				if (partial && conn.getResponseCode() == HttpsURLConnection.HTTP_OK)
+				{
+					progress(start - position);
+					position = start;
+					throw new IOException(disk.url + " no longer matches " + disk.validator);
+				}
+				if (conn.getResponseCode() != HttpsURLConnection.HTTP_PARTIAL)
+					throw new IOException(disk.url + " answered " + conn.getResponseCode() + " to a Range request");
+				ReadableByteChannel in = Channels.newChannel(conn.getInputStream());
+				try
+				{
+					while (position < end)
+					{
+						long n = disk.file.transferFrom(in, position, Math.min(CHUNK_LEN, end - position));
+						if (n <= 0)
+							throw new EOFException(disk.url + " ended at " + position + " of " + end);
+						position += n;
+						progress(n);
+						throttle(n);
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+				disk.markDone(segment);
+				return;
+			}
+			catch (InterruptedIOException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				if (attempt >= MAX_ATTEMPTS)
+					throw e;
+				System.out.println(disk.localPath + ": segment " + segment + " failed (" + e.getMessage() + "), retrying");
+				backoff(attempt);
+			}
+			finally
+			{
+				if (conn != null)
+					conn.disconnect();
+			}
+		}
+	}
+
+	// Without ranges a failed attempt starts over
+	private void downloadWhole(Disk disk) throws IOException
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			long position = 0;
+			HttpsURLConnection conn = null;
+			try
+			{
+				conn = connect(disk.url, null, null);
+				ReadableByteChannel in = Channels.newChannel(conn.getInputStream());
+				try
+				{
+					long n;
+					while ((n = disk.file.transferFrom(in, position, CHUNK_LEN)) > 0)
+					{
+						position += n;
+						progress(n);
+						throttle(n);
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+				disk.file.truncate(position);
+				disk.length = position;
+				return;
+			}
+			catch (InterruptedIOException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				progress(-position);
+				if (attempt >= MAX_ATTEMPTS)
+					throw e;
+				System.out.println(disk.localPath + ": download failed (" + e.getMessage() + "), starting over");
+				backoff(attempt);
+			}
+			finally
+			{
+				if (conn != null)
+					conn.disconnect();
+			}
+		}
+	}
+
+	// With ifRange the server sends the whole disk instead of the range when it has changed
+	private HttpsURLConnection connect(String url, String range, String ifRange) throws IOException
+	{
+		HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
+		conn.setHostnameVerifier(ANY_HOST);
+		conn.setDoInput(true);
+		conn.setUseCaches(false);
+		conn.setRequestProperty("Cookie", cookie);
+		if (range != null)
+			conn.setRequestProperty("Range", range);
+		if (ifRange != null)
+			conn.setRequestProperty("If-Range", ifRange);
+		conn.connect();
+		return conn;
+	}
+
+	private void progress(long bytes)
+	{
+		long written = bytesWritten.addAndGet(bytes);
+		// 100 is only reported once the lease is completed
+		if (leaseUpdater != null && totalBytes > 0)
+			leaseUpdater.setPercent((int) Math.min(99, written * 100 / totalBytes));
+	}
+
+	// Token bucket refilled at bytesPerSecond and holding at most one second of budget
+	private void throttle(long bytes) throws IOException
+	{
+		if (bytesPerSecond <= 0)
+			return;
+		long wait;
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			long elapsed = Math.min(now - lastRefill, 1000000000L);
+			allowance = Math.min(bytesPerSecond, allowance + elapsed * bytesPerSecond / 1000000000L);
+			lastRefill = now;
+			allowance -= bytes;
+			wait = allowance < 0 ? -allowance * 1000 / bytesPerSecond : 0;
+		}
+		sleep(wait);
+	}
+
+	private void backoff(int attempt) throws IOException
+	{
+		sleep(1000L << Math.min(attempt, 5));
+	}
+
+	private void sleep(long millis) throws IOException
+	{
+		if (millis <= 0)
+			return;
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Export interrupted");
+		}
+	}
+
+	// All segments are in, the bitmap is no longer needed
+	private void finish(Disk disk) throws IOException
+	{
+		disk.file.force(true);
+		if (disk.bitmap != null)
+		{
+			disk.bitmap.close();
+			disk.bitmap = null;
+			new File(disk.localPath + BITMAP_SUFFIX).delete();
+		}
+	}
+
+	private void close(Disk disk)
+	{
+		try
+		{
+			if (disk.file != null)
+				disk.file.close();
+			if (disk.bitmap != null)
+				disk.bitmap.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println(disk.localPath + ": " + e.getMessage());
+		}
+	}
+}
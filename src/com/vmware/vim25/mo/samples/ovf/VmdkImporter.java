@@ -0,0 +1,163 @@
+package com.vmware.vim25.mo.samples.ovf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Uploads the disks of import leases over a bounded pool of connections. The pool is
+ * shared by every lease going on at once, each local disk is streamed from a memory
+ * mapped window of the file with chunked transfer encoding.
+ */
+
+public class VmdkImporter
+{
+	private static final int CHUNK_LEN = 1024 * 1024;
+	private static final long MAP_LEN = 64L * 1024 * 1024;
+
+	private static final HostnameVerifier ANY_HOST = new HostnameVerifier()
+	{
+		public boolean verify(String urlHostName, SSLSession session)
+		{
+			return true;
+		}
+	};
+
+	private final ExecutorService connections;
+
+	/**
+	 * @param maxConnections uploads running at once, over all leases
+	 */
+	public VmdkImporter(int maxConnections)
+	{
+		connections = Executors.newFixedThreadPool(Math.max(1, maxConnections));
+	}
+
+	/**
+	 * Uploads every local disk to the URL of the same index, PUT where put is set and POST otherwise,
+	 * and reports the progress of all of them together to the updater of the lease.
+	 */
+	public void upload(String[] urls, String[] localPaths, boolean[] put, final LeaseProgressUpdater leaseUpdater,
+			final long totalBytes) throws IOException
+	{
+		final AtomicLong bytesWritten = new AtomicLong();
+		List<Future<?>> uploads = new ArrayList<Future<?>>();
+		for (int i = 0; i < urls.length; i++)
+		{
+			final String url = urls[i];
+			final String localPath = localPaths[i];
+			final boolean usePut = put[i];
+			uploads.add(connections.submit(new Callable<Void>()
+			{
+				public Void call() throws IOException
+				{
+					uploadFile(url, localPath, usePut, bytesWritten, leaseUpdater, totalBytes);
+					return null;
+				}
+			}));
+		}
+
+		try
+		{
+			for (Future<?> upload : uploads)
+				upload.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Import interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		finally
+		{
+			// Uploads of a failed lease are not worth finishing
+			for (Future<?> upload : uploads)
+				upload.cancel(true);
+		}
+	}
+
+	public void shutdown()
+	{
+		connections.shutdownNow();
+	}
+
+	private static void uploadFile(String urlStr, String localPath, boolean put, AtomicLong bytesWritten,
+			LeaseProgressUpdater leaseUpdater, long totalBytes) throws IOException
+	{
+		RandomAccessFile disk = new RandomAccessFile(localPath, "r");
+		HttpsURLConnection conn = null;
+		try
+		{
+			FileChannel file = disk.getChannel();
+			long length = file.size();
+
+			conn = (HttpsURLConnection) new URL(urlStr).openConnection();
+			conn.setHostnameVerifier(ANY_HOST);
+			conn.setDoOutput(true);
+			conn.setUseCaches(false);
+			conn.setChunkedStreamingMode(CHUNK_LEN);
+			conn.setRequestMethod(put ? "PUT" : "POST");
+			conn.setRequestProperty("Connection", "Keep-Alive");
+			conn.setRequestProperty("Content-Type", "application/x-vnd.vmware-streamVmdk");
+
+			OutputStream os = conn.getOutputStream();
+			WritableByteChannel out = Channels.newChannel(os);
+			long position = 0;
+			while (position < length)
+			{
+				// One window mapped at a time, files can be larger than a single mapping
+				MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_LEN, length - position));
+				while (window.hasRemaining())
+				{
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedIOException("Upload of " + localPath + " cancelled");
+					int end = Math.min(window.limit(), window.position() + CHUNK_LEN);
+					ByteBuffer chunk = window.duplicate();
+					chunk.limit(end);
+					int n = out.write(chunk);
+					window.position(window.position() + n);
+					int percent = (int) Math.min(99, bytesWritten.addAndGet(n) * 100 / Math.max(1, totalBytes));
+					if (leaseUpdater != null)
+						leaseUpdater.setPercent(percent);
+				}
+				position += MAP_LEN;
+			}
+			os.close();
+
+			int code = conn.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_CREATED)
+				throw new IOException(urlStr + " answered " + code + " to the upload of " + localPath);
+			System.out.println("Completed uploading the VMDK file: " + localPath + " (" + length + " bytes)");
+		}
+		finally
+		{
+			if (conn != null)
+				conn.disconnect();
+			disk.close();
+		}
+	}
+}